@@ -0,0 +1,98 @@
+package com.opengles.shadow;
+
+import java.io.PrintStream;
+import java.util.Arrays;
+import java.util.Locale;
+
+/**
+ * One CPU-side benchmark and the loop that measures it.
+ *
+ * A measurement first calibrates how many operations fill one iteration
+ * of about ITERATION_NANOS, runs WARMUP_ITERATIONS so the JIT has compiled
+ * the code under test, refining the count after each, then times
+ * MEASURED_ITERATIONS. Every operation returns a value that is folded
+ * into a sink, so the JIT cannot drop the work as dead code.
+ */
+abstract class Benchmark {
+
+    static final long ITERATION_NANOS = 100000000L;
+    static final int WARMUP_ITERATIONS = 5;
+    static final int MEASURED_ITERATIONS = 10;
+
+    private static volatile long sSink;
+
+    final String mName;
+    final String mParam;
+
+    /**
+     * @param name - Benchmark name, the same for every parameter value.
+     * @param param - Parameter value of this instance, or "" for none.
+     */
+    Benchmark(String name, String param) {
+        mName = name;
+        mParam = param;
+    }
+
+    /**
+     * Runs the operation under test ops times.
+     *
+     * @return Any value depending on the results.
+     */
+    abstract long run(int ops);
+
+    /**
+     * Measures the benchmark and prints the result as one JSON object on a
+     * line of its own, times in nanoseconds per operation.
+     */
+    void measure(PrintStream out) {
+        int ops = 1;
+        while (true) {
+            long start = System.nanoTime();
+            sSink += run(ops);
+            long elapsed = System.nanoTime() - start;
+            if (elapsed >= ITERATION_NANOS / 10 || ops >= 1 << 30) {
+                ops = (int) Math.max(1, Math.min(1 << 30,
+                        (long) ops * ITERATION_NANOS / Math.max(elapsed, 1)));
+                break;
+            }
+            ops *= 2;
+        }
+
+        // the first calibration runs are interpreted; rescale as the code
+        // gets compiled
+        for (int i = 0; i < WARMUP_ITERATIONS; i++) {
+            long start = System.nanoTime();
+            sSink += run(ops);
+            long elapsed = System.nanoTime() - start;
+            ops = (int) Math.max(1, Math.min(1 << 30,
+                    (long) ops * ITERATION_NANOS / Math.max(elapsed, 1)));
+        }
+
+        double[] nanosPerOp = new double[MEASURED_ITERATIONS];
+        for (int i = 0; i < MEASURED_ITERATIONS; i++) {
+            long start = System.nanoTime();
+            sSink += run(ops);
+            nanosPerOp[i] = (double) (System.nanoTime() - start) / ops;
+        }
+
+        double mean = 0.0;
+        for (double t : nanosPerOp)
+            mean += t;
+        mean /= nanosPerOp.length;
+        double variance = 0.0;
+        for (double t : nanosPerOp)
+            variance += (t - mean) * (t - mean);
+        double stdev = Math.sqrt(variance / (nanosPerOp.length - 1));
+        Arrays.sort(nanosPerOp);
+        int n = nanosPerOp.length;
+        double median = (nanosPerOp[(n - 1) / 2] + nanosPerOp[n / 2]) * 0.5;
+
+        out.println(String.format(Locale.US,
+                "{\"benchmark\":\"%s\",\"param\":\"%s\",\"unit\":\"ns/op\","
+                + "\"mean\":%.3f,\"stdev\":%.3f,\"min\":%.3f,\"median\":%.3f,"
+                + "\"max\":%.3f,\"iterations\":%d,\"opsPerIteration\":%d}",
+                mName, mParam, mean, stdev, nanosPerOp[0], median, nanosPerOp[n - 1],
+                MEASURED_ITERATIONS, ops));
+        out.flush();
+    }
+}
@@ -0,0 +1,606 @@
+package com.opengles.shadow;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.nio.ByteBuffer;
+import java.nio.FloatBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import com.openglesbook.common.ESIndices;
+import com.openglesbook.common.ESMatrix;
+import com.openglesbook.common.ESMeshOptimizer;
+import com.openglesbook.common.ESMeshSimplifier;
+import com.openglesbook.common.ESObjLoader;
+import com.openglesbook.common.ESShapes;
+import com.openglesbook.common.ESVertexFormat;
+import com.openglesbook.common.ESVertexFormat.Encoding;
+
+/**
+ * Desktop JVM benchmarks of the CPU-side rendering math: sphere
+ * generation and simplification, the per-object matrix chain, scene
+ * graph updates, frustum culling, shadow matrix composition, vertex
+ * packing and mesh loading. The matrix benchmarks come in pairs, the general ESMatrix
+ * operations against the affine, fused and batch ones.
+ *
+ * The code under test only uses GLES20 constants, which javac inlines, so
+ * android.jar is needed to compile but not to run:
+ *
+ *   javac -d bench/out -cp $ANDROID_SDK/platforms/android-18/android.jar \
+ *       $(find src bench/src -name '*.java')
+ *   java -cp bench/out com.opengles.shadow.ShadowBenchmarks [filter...]
+ *
+ * Each result is printed as one JSON object per line (see Benchmark), so
+ * runs can be saved and compared to track regressions. A filter keeps
+ * the benchmarks whose "name/param" contains it.
+ */
+public class ShadowBenchmarks {
+
+    private static final int[] SPHERE_SLICES = { 8, 16, 32, 64, 128 };
+    private static final int[] SCENE_NODES = { 10, 100, 1000 };
+    private static final int BATCH_MATRICES = 1000;
+    private static final int LARGE_SPHERE_SLICES = 1024;
+    private static final int GRID_QUADS = 1000;
+    private static final int[] CULL_OBJECTS = { 10000, 30000, 100000 };
+
+    public static void main(String[] args) {
+        ExecutorService pool = Executors.newFixedThreadPool(
+                Runtime.getRuntime().availableProcessors());
+        List<Benchmark> benchmarks = new ArrayList<Benchmark>();
+        for (int slices : SPHERE_SLICES)
+            benchmarks.add(genSphere(slices, null));
+        benchmarks.add(genSphere(LARGE_SPHERE_SLICES, null));
+        benchmarks.add(genSphere(LARGE_SPHERE_SLICES, pool));
+        benchmarks.add(genGrid(GRID_QUADS, null));
+        benchmarks.add(genGrid(GRID_QUADS, pool));
+        for (int slices : SPHERE_SLICES)
+            benchmarks.add(simplifySphere(slices));
+        for (int slices : SPHERE_SLICES)
+            benchmarks.add(optimizeMesh(slices));
+        benchmarks.add(objectMatrixChain(false));
+        benchmarks.add(objectMatrixChain(true));
+        benchmarks.add(projViewModel(false));
+        benchmarks.add(projViewModel(true));
+        benchmarks.add(inverse(false));
+        benchmarks.add(inverse(true));
+        benchmarks.add(worldTransforms(BATCH_MATRICES, false));
+        benchmarks.add(worldTransforms(BATCH_MATRICES, true));
+        for (int nodes : SCENE_NODES)
+            benchmarks.add(sceneGraphUpdate(nodes));
+        for (int objects : CULL_OBJECTS)
+            benchmarks.add(cullBounds(objects));
+        for (int objects : CULL_OBJECTS)
+            benchmarks.add(frustumCull(objects));
+        benchmarks.add(shadowMatrices());
+        benchmarks.add(packVertices("float",
+                new ESVertexFormat(Encoding.FLOAT, Encoding.FLOAT, Encoding.FLOAT)));
+        benchmarks.add(packVertices("default", ESVertexFormat.createDefault()));
+        benchmarks.add(packVertices("compact", new ESVertexFormat(Encoding.HALF_FLOAT,
+                Encoding.INT_10_10_10_2, Encoding.UNSIGNED_SHORT)));
+        benchmarks.add(loadMesh(false));
+        benchmarks.add(loadMesh(true));
+
+        for (Benchmark b : benchmarks) {
+            if (matches(b, args))
+                b.measure(System.out);
+        }
+        pool.shutdown();
+    }
+
+    private static boolean matches(Benchmark b, String[] filters) {
+        if (filters.length == 0)
+            return true;
+        String id = b.mName + "/" + b.mParam;
+        for (String filter : filters) {
+            if (id.contains(filter))
+                return true;
+        }
+        return false;
+    }
+
+    /**
+     * ESShapes.genSphere() including its buffer allocation and packing,
+     * on this thread or in bands on a pool with a thread per core. The
+     * "/parallel" variants show the speedup on the machine running them.
+     */
+    static Benchmark genSphere(final int slices, final ExecutorService pool) {
+        return new Benchmark("genSphere", slices + (pool != null ? "/parallel" : "")) {
+            private final ESShapes mShapes = new ESShapes();
+
+            @Override
+            long run(int ops) {
+                long sum = 0;
+                for (int i = 0; i < ops; i++)
+                    sum += mShapes.genSphere(slices, 0.75f, pool);
+                return sum;
+            }
+        };
+    }
+
+    /**
+     * ESShapes.genGrid() of quads x quads, as genSphere().
+     */
+    static Benchmark genGrid(final int quads, final ExecutorService pool) {
+        return new Benchmark("genGrid", quads + (pool != null ? "/parallel" : "")) {
+            private final ESShapes mShapes = new ESShapes();
+
+            @Override
+            long run(int ops) {
+                long sum = 0;
+                for (int i = 0; i < ops; i++)
+                    sum += mShapes.genGrid(quads, quads, 10.0f, pool);
+                return sum;
+            }
+        };
+    }
+
+    /**
+     * ESMeshSimplifier down to a quarter of a sphere's triangles, welding
+     * included, with no error limit.
+     */
+    static Benchmark simplifySphere(final int slices) {
+        return new Benchmark("simplifySphere", Integer.toString(slices)) {
+            private final ESShapes mShapes = new ESShapes();
+
+            {
+                mShapes.genSphere(slices, 0.75f);
+            }
+
+            @Override
+            long run(int ops) {
+                long sum = 0;
+                for (int i = 0; i < ops; i++) {
+                    ESMeshSimplifier simplifier = new ESMeshSimplifier(mShapes.getVertices(),
+                            mShapes.getNormals(), mShapes.getNumVertices(),
+                            mShapes.getIndices(), mShapes.getNumIndices());
+                    sum += simplifier.simplify(simplifier.getTriangleCount() / 4,
+                            Float.MAX_VALUE).getTriangleCount();
+                }
+                return sum;
+            }
+        };
+    }
+
+    /**
+     * The vertex cache and overdraw passes of ESMeshOptimizer over a
+     * sphere's indices. They start in the generator's block order and
+     * are reordered in place each time; the greedy search costs about the
+     * same for any order.
+     */
+    static Benchmark optimizeMesh(final int slices) {
+        return new Benchmark("optimizeMesh", Integer.toString(slices)) {
+            private final ESShapes mShapes = new ESShapes();
+
+            {
+                mShapes.genSphere(slices, 0.75f);
+            }
+
+            @Override
+            long run(int ops) {
+                long sum = 0;
+                for (int i = 0; i < ops; i++) {
+                    ESMeshOptimizer.optimizeVertexCache(mShapes.getIndices(),
+                            mShapes.getNumIndices(), mShapes.getNumVertices());
+                    ESMeshOptimizer.optimizeOverdraw(mShapes.getIndices(),
+                            mShapes.getNumIndices(), mShapes.getVertices(),
+                            mShapes.getNumVertices(), ESMeshOptimizer.CACHE_SIZE, 1.05f);
+                    sum += mShapes.getIndices().get(i % mShapes.getNumIndices());
+                }
+                return sum;
+            }
+        };
+    }
+
+    /**
+     * The matrices drawn objects used to need one by one: model-view,
+     * model-view-projection, and the normal matrix as the inverse
+     * transpose of the model-view. The affine variant takes the normal
+     * matrix from the 3x3 cofactors instead of the general inverse.
+     */
+    static Benchmark objectMatrixChain(final boolean affine) {
+        return new Benchmark("objectMatrixChain", affine ? "affine" : "general") {
+            private final float[] mProjection = new float[16];
+            private final float[] mView = new float[16];
+            private final float[] mModel = new float[16];
+            private final float[] mMV = new float[16];
+            private final float[] mMVP = new float[16];
+            private final float[] mInverse = new float[16];
+            private final float[] mNormal = new float[16];
+
+            {
+                ESMatrix.frustumM(mProjection, 0, -1, 1, -0.75f, 0.75f, 1.0f, 20.0f);
+                ESMatrix.setLookAtM(mView, 0, 0.0f, 3.0f, 6.0f, 0f, 0f, 0f, 0f, 1.0f, 0.0f);
+            }
+
+            @Override
+            long run(int ops) {
+                long sum = 0;
+                for (int i = 0; i < ops; i++) {
+                    ESMatrix.setRotateM(mModel, 0, i & 255, 0, 1.0f, 0.0f);
+                    ESMatrix.multiplyMM(mMV, 0, mView, 0, mModel, 0);
+                    ESMatrix.multiplyMM(mMVP, 0, mProjection, 0, mMV, 0);
+                    if (affine) {
+                        ESMatrix.normalMatrixM(mNormal, 0, mMV, 0);
+                    } else {
+                        ESMatrix.invertM(mInverse, 0, mMV, 0);
+                        ESMatrix.transposeM(mNormal, 0, mInverse, 0);
+                    }
+                    sum += Float.floatToRawIntBits(mMVP[i & 15] + mNormal[i & 15]);
+                }
+                return sum;
+            }
+        };
+    }
+
+    /**
+     * P * V * M through a temporary matrix, or fused in one call.
+     */
+    static Benchmark projViewModel(final boolean fused) {
+        return new Benchmark("projViewModel", fused ? "fused" : "twoMultiplies") {
+            private final float[] mProjection = new float[16];
+            private final float[] mView = new float[16];
+            private final float[] mModel = new float[16 * 16];
+            private final float[] mTemp = new float[16];
+            private final float[] mMVP = new float[16];
+
+            {
+                ESMatrix.frustumM(mProjection, 0, -1, 1, -0.75f, 0.75f, 1.0f, 20.0f);
+                ESMatrix.setLookAtM(mView, 0, 0.0f, 3.0f, 6.0f, 0f, 0f, 0f, 0f, 1.0f, 0.0f);
+                for (int i = 0; i < 16; i++)
+                    ESMatrix.setRotateM(mModel, i * 16, i * 20.0f, 0.0f, 1.0f, 0.0f);
+            }
+
+            @Override
+            long run(int ops) {
+                long sum = 0;
+                for (int i = 0; i < ops; i++) {
+                    int o = (i & 15) * 16;
+                    if (fused) {
+                        ESMatrix.multiplyMMM(mMVP, 0, mProjection, 0, mView, 0, mModel, o);
+                    } else {
+                        ESMatrix.multiplyMM(mTemp, 0, mView, 0, mModel, o);
+                        ESMatrix.multiplyMM(mMVP, 0, mProjection, 0, mTemp, 0);
+                    }
+                    sum += Float.floatToRawIntBits(mMVP[i & 15]);
+                }
+                return sum;
+            }
+        };
+    }
+
+    /**
+     * Inverse of a rigid transform with scale, general or affine.
+     */
+    static Benchmark inverse(final boolean affine) {
+        return new Benchmark("inverse", affine ? "affine" : "general") {
+            private final float[] mMatrix = new float[16 * 16];
+            private final float[] mInverse = new float[16];
+
+            {
+                for (int i = 0; i < 16; i++) {
+                    ESMatrix.setRotateM(mMatrix, i * 16, i * 20.0f, 1.0f, 1.0f, 0.0f);
+                    ESMatrix.scaleM(mMatrix, i * 16, 1.0f, 2.0f, 0.5f);
+                    ESMatrix.translateM(mMatrix, i * 16, i, 1.0f, -i);
+                }
+            }
+
+            @Override
+            long run(int ops) {
+                long sum = 0;
+                for (int i = 0; i < ops; i++) {
+                    int o = (i & 15) * 16;
+                    if (affine)
+                        ESMatrix.invertAffineM(mInverse, 0, mMatrix, o);
+                    else
+                        ESMatrix.invertM(mInverse, 0, mMatrix, o);
+                    sum += Float.floatToRawIntBits(mInverse[i & 15]);
+                }
+                return sum;
+            }
+        };
+    }
+
+    /**
+     * A view-projection times many world matrices, with their normal
+     * matrices, one call per matrix or one batch call for all.
+     */
+    static Benchmark worldTransforms(final int count, final boolean batch) {
+        return new Benchmark("worldTransforms", (batch ? "batch/" : "loop/") + count) {
+            private final float[] mViewProj = new float[16];
+            private final float[] mWorld = new float[count * 16];
+            private final float[] mMVP = new float[count * 16];
+            private final float[] mNormal = new float[count * 16];
+
+            {
+                ESMatrix.frustumM(mViewProj, 0, -1, 1, -0.75f, 0.75f, 1.0f, 20.0f);
+                for (int i = 0; i < count; i++) {
+                    ESMatrix.setRotateM(mWorld, i * 16, i, 0.0f, 1.0f, 0.0f);
+                    ESMatrix.translateM(mWorld, i * 16, i % 32, 0.0f, i / 32);
+                }
+            }
+
+            @Override
+            long run(int ops) {
+                long sum = 0;
+                for (int i = 0; i < ops; i++) {
+                    if (batch) {
+                        ESMatrix.multiplyMMBatch(mMVP, 0, mViewProj, 0, mWorld, 0, count);
+                        ESMatrix.normalMatrixBatch(mNormal, 0, mWorld, 0, count);
+                    } else {
+                        for (int m = 0; m < count; m++) {
+                            ESMatrix.multiplyMM(mMVP, m * 16, mViewProj, 0, mWorld, m * 16);
+                            ESMatrix.normalMatrixM(mNormal, m * 16, mWorld, m * 16);
+                        }
+                    }
+                    sum += Float.floatToRawIntBits(mMVP[i & 1023] + mNormal[i & 1023]);
+                }
+                return sum;
+            }
+        };
+    }
+
+    /**
+     * SceneGraph.update() after the root moved, which recomputes the world
+     * and normal matrices of every node, as for the rotating cube grid.
+     */
+    static Benchmark sceneGraphUpdate(final int nodes) {
+        return new Benchmark("sceneGraphUpdate", Integer.toString(nodes)) {
+            private final SceneGraph mScene = new SceneGraph(nodes);
+            private final float[] mMatrix = new float[16];
+
+            {
+                int root = mScene.addNode(SceneGraph.NO_PARENT, 0);
+                for (int i = 1; i < nodes; i++) {
+                    ESMatrix.setIdentityM(mMatrix, 0);
+                    ESMatrix.translateM(mMatrix, 0, i % 32, 0.0f, i / 32);
+                    mScene.setLocalMatrix(mScene.addNode(root, 0), mMatrix, 0);
+                }
+            }
+
+            @Override
+            long run(int ops) {
+                long sum = 0;
+                for (int i = 0; i < ops; i++) {
+                    ESMatrix.setRotateM(mMatrix, 0, i & 255, 0, 1.0f, 0.0f);
+                    mScene.setLocalMatrix(0, mMatrix, 0);
+                    sum += mScene.update();
+                }
+                return sum;
+            }
+        };
+    }
+
+    /**
+     * FrustumCuller.transformBounds() for objects scattered over a
+     * 100 x 100 floor, as done for every moved scene node before culling.
+     */
+    static Benchmark cullBounds(final int count) {
+        return new Benchmark("cullBounds", Integer.toString(count)) {
+            private final float[] mWorld = scatter(count);
+            private final float[] mBoxes = new float[count * 6];
+            private final float[] mSpheres = new float[count * 4];
+            private final float[] mLocalBox = { -0.5f, -0.5f, -0.5f, 0.5f, 0.5f, 0.5f };
+            private final float[] mLocalSphere = { 0.0f, 0.0f, 0.0f, 0.87f };
+
+            @Override
+            long run(int ops) {
+                long sum = 0;
+                for (int i = 0; i < ops; i++) {
+                    for (int o = 0; o < count; o++)
+                        FrustumCuller.transformBounds(mWorld, o * 16, mLocalBox,
+                                mLocalSphere, mBoxes, o * 6, mSpheres, o * 4);
+                    sum += Float.floatToRawIntBits(mBoxes[i % (count * 6)]);
+                }
+                return sum;
+            }
+        };
+    }
+
+    /**
+     * FrustumCuller.cull() of the objects of cullBounds() against the
+     * camera frustum, which keeps about a quarter of them. The camera turns
+     * between operations so the branches do not settle on one pattern.
+     */
+    static Benchmark frustumCull(final int count) {
+        return new Benchmark("frustumCull", Integer.toString(count)) {
+            private final FrustumCuller mCuller = new FrustumCuller();
+            private final float[] mBoxes = new float[count * 6];
+            private final float[] mSpheres = new float[count * 4];
+            private final boolean[] mVisible = new boolean[count];
+            private final float[] mViewProj = new float[16 * 16];
+
+            {
+                float[] world = scatter(count);
+                float[] localBox = { -0.5f, -0.5f, -0.5f, 0.5f, 0.5f, 0.5f };
+                float[] localSphere = { 0.0f, 0.0f, 0.0f, 0.87f };
+                for (int o = 0; o < count; o++)
+                    FrustumCuller.transformBounds(world, o * 16, localBox, localSphere,
+                            mBoxes, o * 6, mSpheres, o * 4);
+                float[] projection = new float[16];
+                float[] view = new float[16];
+                ESMatrix.frustumM(projection, 0, -1, 1, -0.75f, 0.75f, 1.0f, 100.0f);
+                for (int i = 0; i < 16; i++) {
+                    double angle = i * Math.PI / 8.0;
+                    ESMatrix.setLookAtM(view, 0, 0.0f, 3.0f, 0.0f, (float) Math.sin(angle),
+                            3.0f, (float) -Math.cos(angle), 0f, 1.0f, 0.0f);
+                    ESMatrix.multiplyMM(mViewProj, i * 16, projection, 0, view, 0);
+                }
+            }
+
+            @Override
+            long run(int ops) {
+                long sum = 0;
+                for (int i = 0; i < ops; i++) {
+                    mCuller.setMatrix(mViewProj, (i & 15) * 16);
+                    sum += mCuller.cull(mSpheres, mBoxes, count, mVisible);
+                }
+                return sum;
+            }
+        };
+    }
+
+    // World matrices of count unit cubes at random places and angles over
+    // a 100 x 100 floor, the same for every run
+    private static float[] scatter(int count) {
+        Random random = new Random(13);
+        float[] world = new float[count * 16];
+        for (int o = 0; o < count; o++) {
+            ESMatrix.setRotateM(world, o * 16, random.nextFloat() * 360.0f, 0.0f, 1.0f, 0.0f);
+            world[o * 16 + 12] = random.nextFloat() * 100.0f - 50.0f;
+            world[o * 16 + 13] = random.nextFloat() * 10.0f - 5.0f;
+            world[o * 16 + 14] = random.nextFloat() * 100.0f - 50.0f;
+        }
+        return world;
+    }
+
+    /**
+     * The camera, light and shadow bias matrices built when the surface
+     * changes.
+     */
+    static Benchmark shadowMatrices() {
+        return new Benchmark("shadowMatrices", "") {
+            private final float[] mProjection = new float[16];
+            private final float[] mView = new float[16];
+            private final float[] mLightProjection = new float[16];
+            private final float[] mLightView = new float[16];
+            private final float[] mLightVP = new float[16];
+            private final float[] mBias = new float[16];
+            private final float[] mShadow = new float[16];
+
+            @Override
+            long run(int ops) {
+                long sum = 0;
+                for (int i = 0; i < ops; i++) {
+                    float aspect = 1.0f + (i & 7) * 0.125f;
+                    ESMatrix.frustumM(mProjection, 0, -1, 1, -1 / aspect, 1 / aspect, 1.0f, 20.0f);
+                    ESMatrix.setLookAtM(mView, 0, 0.0f, 3.0f, 6.0f, 0f, 0f, 0f, 0f, 1.0f, 0.0f);
+                    ESMatrix.frustumM(mLightProjection, 0, -1, 1, -1, 1, 1.0f, 20.0f);
+                    ESMatrix.setLookAtM(mLightView, 0, 2.0f, 5.0f, 2.0f, 0f, 0f, 0f, 0f, 1.0f, 0.0f);
+                    ESMatrix.multiplyMM(mLightVP, 0, mLightProjection, 0, mLightView, 0);
+                    ESMatrix.setIdentityM(mBias, 0);
+                    ESMatrix.translateM(mBias, 0, 0.5f, 0.5f, 0.5f);
+                    ESMatrix.scaleM(mBias, 0, 0.5f, 0.5f, 0.5f);
+                    ESMatrix.multiplyMM(mShadow, 0, mBias, 0, mLightVP, 0);
+                    sum += Float.floatToRawIntBits(mShadow[i & 15] + mProjection[i & 15]
+                            + mView[i & 15]);
+                }
+                return sum;
+            }
+        };
+    }
+
+    /**
+     * ESVertexFormat.pack() of a 64-slice sphere into a layout.
+     */
+    static Benchmark packVertices(String name, final ESVertexFormat format) {
+        return new Benchmark("packVertices", name) {
+            private final FloatBuffer mPositions;
+            private final FloatBuffer mNormals;
+            private final FloatBuffer mTexCoords;
+            private final int mVertices;
+
+            {
+                ESShapes sphere = new ESShapes();
+                sphere.genSphere(64, 0.75f);
+                mPositions = sphere.getVertices();
+                mNormals = sphere.getNormals();
+                mTexCoords = sphere.getTexCoords();
+                mVertices = sphere.getNumVertices();
+            }
+
+            @Override
+            long run(int ops) {
+                long sum = 0;
+                for (int i = 0; i < ops; i++)
+                    sum += format.pack(mPositions, mNormals, mTexCoords, mVertices).get(i & 63);
+                return sum;
+            }
+        };
+    }
+
+    /**
+     * Loading a 128-slice sphere from disk until its packed vertices and
+     * indices are ready for glBufferData: parsing it as OBJ, or mapping
+     * the binary mesh file. Both then read every byte once, as the upload
+     * would, so the mapped load pays for its page faults.
+     */
+    static Benchmark loadMesh(final boolean mapped) {
+        return new Benchmark("loadMesh", mapped ? "mapped" : "obj") {
+            private final File mFile;
+
+            {
+                ESShapes sphere = new ESShapes();
+                sphere.genSphere(128, 0.75f);
+                try {
+                    mFile = File.createTempFile("sphere", mapped ? ".mesh" : ".obj");
+                    mFile.deleteOnExit();
+                    if (mapped)
+                        sphere.save(mFile);
+                    else
+                        writeObj(sphere, mFile);
+                } catch (IOException e) {
+                    throw new RuntimeException(e);
+                }
+            }
+
+            @Override
+            long run(int ops) {
+                long sum = 0;
+                try {
+                    for (int i = 0; i < ops; i++) {
+                        ESShapes shape = mapped ? ESShapes.load(mFile)
+                                : ESObjLoader.load(mFile, ESVertexFormat.createDefault());
+                        sum += checksum(shape.getInterleavedVertices(), shape.getIndices());
+                    }
+                } catch (IOException e) {
+                    throw new RuntimeException(e);
+                }
+                return sum;
+            }
+        };
+    }
+
+    private static long checksum(ByteBuffer vertices, ESIndices indices) {
+        long sum = 0;
+        for (int i = 0; i + 4 <= vertices.capacity(); i += 4)
+            sum += vertices.getInt(i);
+        for (int i = 0; i < indices.getCount(); i++)
+            sum += indices.get(i);
+        return sum;
+    }
+
+    private static void writeObj(ESShapes shape, File file) throws IOException {
+        FloatBuffer v = shape.getVertices();
+        FloatBuffer n = shape.getNormals();
+        FloatBuffer t = shape.getTexCoords();
+        ESIndices indices = shape.getIndices();
+        PrintWriter out = new PrintWriter(new BufferedWriter(new FileWriter(file)));
+        try {
+            for (int i = 0; i < shape.getNumVertices(); i++)
+                out.println("v " + v.get(i * 3) + " " + v.get(i * 3 + 1) + " " + v.get(i * 3 + 2));
+            for (int i = 0; i < shape.getNumVertices(); i++)
+                out.println("vt " + t.get(i * 2) + " " + t.get(i * 2 + 1));
+            for (int i = 0; i < shape.getNumVertices(); i++)
+                out.println("vn " + n.get(i * 3) + " " + n.get(i * 3 + 1) + " " + n.get(i * 3 + 2));
+            StringBuilder face = new StringBuilder();
+            for (int i = 0; i < shape.getNumIndices(); i += 3) {
+                face.setLength(0);
+                face.append('f');
+                for (int k = 0; k < 3; k++) {
+                    int index = indices.get(i + k) + 1;
+                    face.append(' ').append(index).append('/').append(index).append('/')
+                            .append(index);
+                }
+                out.println(face);
+            }
+        } finally {
+            out.close();
+        }
+    }
+}
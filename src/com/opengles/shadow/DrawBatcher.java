@@ -0,0 +1,463 @@
+// DrawBatcher
+//
+//    Groups scene nodes that share a mesh and a material into batches and
+//    draws each batch with as few calls as possible.
+//
+//    With instancing (an OpenGL ES 3.0 context) the world and normal matrices
+//    of the nodes a pass selects are packed into a per-instance buffer and
+//    the batch is one instanced draw. Without it each batch is merged on the
+//    CPU into world-space vertex buffers and drawn with identity model
+//    matrices. Chunks hold as many members as 16-bit indices can address, and
+//    use 8-bit indices where they fit; a mesh too large for 16-bit indices on
+//    its own is merged one member per chunk with 32-bit indices, which needs
+//    OES_element_index_uint.
+//
+//    Merging only pays for members that stay put. A member that moves after
+//    its chunk was built leaves the merged set for good: its chunk is rebuilt
+//    once without it, and the caller draws it on its own from then on (see
+//    isSeparate()). A pass draws each run of consecutive members it selects
+//    within a chunk with one call, so culling is per member, at the cost of a
+//    call per gap.
+//
+//    Per-instance layout: the 4 columns of the world matrix, then the 3
+//    columns of the upper 3x3 of the normal matrix, as floats.
+//
+
+package com.opengles.shadow;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+
+import com.openglesbook.common.ESGL;
+import com.openglesbook.common.ESIndices;
+import com.openglesbook.common.ESShapes;
+
+import android.opengl.GLES20;
+
+class DrawBatcher {
+
+	static final int INSTANCE_FLOATS = 16 + 9;
+	static final int INSTANCE_STRIDE = INSTANCE_FLOATS * 4;
+
+	// merged vertex layout: world position and world normal
+	static final int MERGED_FLOATS = 6;
+	static final int MERGED_STRIDE = MERGED_FLOATS * 4;
+
+	//
+	///
+	/// \param instanced true to use instanced draws; needs ES 3.0.
+	//
+	DrawBatcher(ESGL gl, SceneGraph scene, boolean instanced) {
+		mGL = gl;
+		mScene = scene;
+		mInstanced = instanced;
+	}
+
+	boolean isInstanced() {
+		return mInstanced;
+	}
+
+	//
+	///
+	/// \return The batch index.
+	//
+	int addBatch(ESShapes mesh, float[] color) {
+		if (mBatchCount == mBatches.length) {
+			Batch[] b = new Batch[mBatchCount * 2];
+			System.arraycopy(mBatches, 0, b, 0, mBatchCount);
+			mBatches = b;
+		}
+		mBatches[mBatchCount] = new Batch(mesh, color);
+		return mBatchCount++;
+	}
+
+	//
+	///
+	/// \brief Adds a node to a batch. Membership is static; which members a
+	/// pass draws is chosen per call.
+	//
+	void addNode(int batch, int node) {
+		Batch b = mBatches[batch];
+		if (b.count == b.nodes.length) {
+			int[] n = new int[b.count * 2];
+			System.arraycopy(b.nodes, 0, n, 0, b.count);
+			b.nodes = n;
+		}
+		b.nodes[b.count++] = node;
+		b.dirty = true;
+		if (mSeparate.length <= node) {
+			boolean[] separate = new boolean[Math.max(node + 1, mSeparate.length * 2)];
+			System.arraycopy(mSeparate, 0, separate, 0, mSeparate.length);
+			mSeparate = separate;
+		}
+	}
+
+	int getBatchCount() {
+		return mBatchCount;
+	}
+
+	float[] getColor(int batch) {
+		return mBatches[batch].color;
+	}
+
+	//
+	///
+	/// \return true if the node belongs to a merged batch but moved, so the
+	/// caller draws it on its own. Always false with instancing.
+	//
+	boolean isSeparate(int node) {
+		return node < mSeparate.length && mSeparate[node];
+	}
+
+	//
+	///
+	/// \brief Takes members the scene graph moved in its last update() out of
+	/// their merged chunks. Before the first draw the chunks take the new
+	/// positions instead.
+	//
+	void update() {
+		if (mInstanced)
+			return;
+		for (int i = 0; i < mBatchCount; i++) {
+			Batch b = mBatches[i];
+			if (!b.built)
+				continue;
+			for (int k = 0; k < b.count; k++) {
+				int node = b.nodes[k];
+				int c = k / b.perChunk;
+				if (mSeparate[node] || !mScene.isChanged(node))
+					continue;
+				mSeparate[node] = true;
+				b.chunkDirty[c] = true;
+				b.dirty = true;
+			}
+		}
+	}
+
+	//
+	///
+	/// \brief Draws the members of a batch whose include flag is set, with
+	/// the instanced program current.
+	///
+	/// \param include Per scene node, whether this pass draws it.
+	/// \param modelLoc First location of the mat4 world matrix attribute.
+	/// \param normalMatrixLoc First location of the mat3 normal matrix
+	/// attribute, -1 if the program has none.
+	/// \return The number of draw calls issued.
+	//
+	int drawInstanced(int batch, boolean[] include, int positionLoc, int normalLoc,
+			int modelLoc, int normalMatrixLoc) {
+		Batch b = mBatches[batch];
+		float[] world = mScene.getWorldMatrices();
+		float[] normal = mScene.getNormalMatrices();
+
+		int n = 0;
+		ensureInstanceCapacity(b.count);
+		for (int k = 0; k < b.count; k++) {
+			int node = b.nodes[k];
+			if (!include[node])
+				continue;
+			int o = n * INSTANCE_FLOATS;
+			System.arraycopy(world, node * 16, mInstanceData, o, 16);
+			for (int c = 0; c < 3; c++)
+				System.arraycopy(normal, node * 16 + c * 4, mInstanceData, o + 16 + c * 3, 3);
+			n++;
+		}
+		if (n == 0)
+			return 0;
+
+		mInstanceBuffer.clear();
+		mInstanceBuffer.put(mInstanceData, 0, n * INSTANCE_FLOATS).position(0);
+		mGL.bindBuffer(GLES20.GL_ARRAY_BUFFER, mInstanceBufferId);
+		mGL.bufferData(GLES20.GL_ARRAY_BUFFER, n * INSTANCE_STRIDE, mInstanceBuffer,
+				GLES20.GL_STREAM_DRAW);
+		for (int c = 0; c < 4; c++)
+			setInstanceAttrib(modelLoc + c, 4, c * 16);
+		if (normalMatrixLoc >= 0) {
+			for (int c = 0; c < 3; c++)
+				setInstanceAttrib(normalMatrixLoc + c, 3, 64 + c * 12);
+		}
+
+		int calls = b.mesh.drawInstanced(mGL, positionLoc, normalLoc, n);
+
+		for (int c = 0; c < 4; c++)
+			clearInstanceAttrib(modelLoc + c);
+		if (normalMatrixLoc >= 0) {
+			for (int c = 0; c < 3; c++)
+				clearInstanceAttrib(normalMatrixLoc + c);
+		}
+		return calls;
+	}
+
+	//
+	///
+	/// \brief Draws the included members of a batch that are still merged,
+	/// with a program whose model matrix is identity: one call per run of
+	/// consecutive included members in a chunk.
+	///
+	/// \return The number of draw calls issued.
+	//
+	int drawMerged(int batch, boolean[] include, int positionLoc, int normalLoc) {
+		Batch b = mBatches[batch];
+		if (b.dirty)
+			rebuild(b);
+
+		int calls = 0;
+		for (int c = 0; c < b.chunkCount; c++) {
+			if (b.chunkIndices[c] == 0)
+				continue;
+			// slots count the merged members, in the order rebuild() wrote
+			// them
+			int slot = 0;
+			int run = -1;
+			boolean bound = false;
+			int last = Math.min((c + 1) * b.perChunk, b.count);
+			for (int k = c * b.perChunk; k < last; k++) {
+				int node = b.nodes[k];
+				if (mSeparate[node])
+					continue;
+				if (include[node]) {
+					if (run < 0)
+						run = slot;
+				} else if (run >= 0) {
+					drawRun(b, c, run, slot, !bound, positionLoc, normalLoc);
+					bound = true;
+					calls++;
+					run = -1;
+				}
+				slot++;
+			}
+			if (run >= 0) {
+				drawRun(b, c, run, slot, !bound, positionLoc, normalLoc);
+				calls++;
+			}
+		}
+		return calls;
+	}
+
+	//
+	///
+	/// \brief Creates the buffer objects of all batches once membership is
+	/// final, so that drawing only fills them and can be recorded for later
+	/// replay.
+	//
+	void createBuffers() {
+		if (mInstanced) {
+			if (mInstanceBufferId == 0)
+				mInstanceBufferId = mGL.genBuffer();
+			return;
+		}
+		for (int i = 0; i < mBatchCount; i++) {
+			Batch b = mBatches[i];
+			b.perChunk = Math.max(1, 65536 / b.mesh.getNumVertices());
+			b.chunkIndexType = ESIndices.typeFor(
+					Math.min(b.perChunk, b.count) * b.mesh.getNumVertices());
+			if (b.chunkIndexType == GLES20.GL_UNSIGNED_INT && !ESIndices.isUintSupported())
+				throw new IllegalStateException("A batched mesh of "
+						+ b.mesh.getNumVertices() + " vertices needs 32-bit indices");
+			int chunks = (b.count + b.perChunk - 1) / b.perChunk;
+			for (int c = chunks; c < b.chunkCount; c++) {
+				mGL.deleteBuffer(b.chunkVbo[c]);
+				mGL.deleteBuffer(b.chunkIbo[c]);
+			}
+			if (b.chunkVbo.length < chunks) {
+				b.chunkVbo = grow(b.chunkVbo, chunks);
+				b.chunkIbo = grow(b.chunkIbo, chunks);
+				b.chunkIndices = grow(b.chunkIndices, chunks);
+				b.chunkDirty = new boolean[chunks];
+			}
+			for (int c = b.chunkCount; c < chunks; c++) {
+				b.chunkVbo[c] = mGL.genBuffer();
+				b.chunkIbo[c] = mGL.genBuffer();
+			}
+			b.chunkCount = chunks;
+			b.dirty = true;
+			b.built = false;
+			for (int c = 0; c < chunks; c++)
+				b.chunkDirty[c] = true;
+
+			// staging for one chunk, reused by every rebuild
+			int members = Math.min(b.perChunk, b.count);
+			int vertexFloats = members * b.mesh.getNumVertices() * MERGED_FLOATS;
+			if (b.vertexData == null || b.vertexData.capacity() < vertexFloats)
+				b.vertexData = ByteBuffer.allocateDirect(vertexFloats * 4)
+						.order(ByteOrder.nativeOrder()).asFloatBuffer();
+			int indexCount = members * b.mesh.getNumIndices();
+			if (b.indexData == null || b.indexData.getType() != b.chunkIndexType
+					|| b.indexData.getCount() < indexCount)
+				b.indexData = ESIndices.allocateType(indexCount, b.chunkIndexType);
+		}
+	}
+
+	//
+	///
+	/// \brief Releases the buffer objects of all batches.
+	//
+	void release() {
+		mGL.deleteBuffer(mInstanceBufferId);
+		mInstanceBufferId = 0;
+		for (int i = 0; i < mBatchCount; i++) {
+			Batch b = mBatches[i];
+			for (int c = 0; c < b.chunkCount; c++) {
+				mGL.deleteBuffer(b.chunkVbo[c]);
+				mGL.deleteBuffer(b.chunkIbo[c]);
+			}
+			b.chunkCount = 0;
+			b.dirty = true;
+			b.built = false;
+		}
+	}
+
+	// Draws the merged members in slots [first, end) of a chunk, binding the
+	// chunk's buffers first if bind is set
+	private void drawRun(Batch b, int c, int first, int end, boolean bind, int positionLoc,
+			int normalLoc) {
+		if (bind) {
+			mGL.bindBuffer(GLES20.GL_ARRAY_BUFFER, b.chunkVbo[c]);
+			mGL.vertexAttribPointer(positionLoc, 3, GLES20.GL_FLOAT, false, MERGED_STRIDE, 0);
+			mGL.enableVertexAttribArray(positionLoc);
+			if (normalLoc >= 0) {
+				mGL.vertexAttribPointer(normalLoc, 3, GLES20.GL_FLOAT, false, MERGED_STRIDE, 12);
+				mGL.enableVertexAttribArray(normalLoc);
+			}
+			mGL.bindBuffer(GLES20.GL_ELEMENT_ARRAY_BUFFER, b.chunkIbo[c]);
+		}
+		int numIndices = b.mesh.getNumIndices();
+		mGL.drawElements(GLES20.GL_TRIANGLES, (end - first) * numIndices, b.chunkIndexType,
+				first * numIndices * ESIndices.sizeOf(b.chunkIndexType));
+	}
+
+	private void setInstanceAttrib(int loc, int size, int offset) {
+		mGL.vertexAttribPointer(loc, size, GLES20.GL_FLOAT, false, INSTANCE_STRIDE, offset);
+		mGL.enableVertexAttribArray(loc);
+		mGL.vertexAttribDivisor(loc, 1);
+	}
+
+	private void clearInstanceAttrib(int loc) {
+		mGL.vertexAttribDivisor(loc, 0);
+		mGL.disableVertexAttribArray(loc);
+	}
+
+	private void ensureInstanceCapacity(int count) {
+		if (mInstanceData.length >= count * INSTANCE_FLOATS)
+			return;
+		mInstanceData = new float[count * INSTANCE_FLOATS];
+		mInstanceBuffer = ByteBuffer.allocateDirect(mInstanceData.length * 4)
+				.order(ByteOrder.nativeOrder()).asFloatBuffer();
+	}
+
+	// Transforms the vertices of the members still merged to world space and
+	// uploads the chunks that changed into the buffers made by
+	// createBuffers(). Runs again only when members leave a chunk, so the
+	// chunks are static data, filled through the batch's staging buffers.
+	private void rebuild(Batch b) {
+		ESShapes mesh = b.mesh;
+		int numVertices = mesh.getNumVertices();
+		int numIndices = mesh.getNumIndices();
+		int chunks = b.chunkCount;
+
+		FloatBuffer positions = mesh.getVertices();
+		FloatBuffer normals = mesh.getNormals();
+		ESIndices indices = mesh.getIndices();
+		float[] world = mScene.getWorldMatrices();
+		float[] normal = mScene.getNormalMatrices();
+
+		FloatBuffer vertexData = b.vertexData;
+		ESIndices indexData = b.indexData;
+
+		for (int c = 0; c < chunks; c++) {
+			if (!b.chunkDirty[c])
+				continue;
+			b.chunkDirty[c] = false;
+			vertexData.clear();
+			int n = 0;
+			int base = 0;
+			int first = c * b.perChunk;
+			int last = Math.min(first + b.perChunk, b.count);
+			for (int k = first; k < last; k++) {
+				if (mSeparate[b.nodes[k]])
+					continue;
+				int m = b.nodes[k] * 16;
+				for (int v = 0; v < numVertices; v++) {
+					float x = positions.get(v * 3), y = positions.get(v * 3 + 1), z = positions.get(v * 3 + 2);
+					vertexData.put(world[m] * x + world[m + 4] * y + world[m + 8] * z + world[m + 12]);
+					vertexData.put(world[m + 1] * x + world[m + 5] * y + world[m + 9] * z + world[m + 13]);
+					vertexData.put(world[m + 2] * x + world[m + 6] * y + world[m + 10] * z + world[m + 14]);
+
+					x = normals.get(v * 3);
+					y = normals.get(v * 3 + 1);
+					z = normals.get(v * 3 + 2);
+					float nx = normal[m] * x + normal[m + 4] * y + normal[m + 8] * z;
+					float ny = normal[m + 1] * x + normal[m + 5] * y + normal[m + 9] * z;
+					float nz = normal[m + 2] * x + normal[m + 6] * y + normal[m + 10] * z;
+					float len = (float) Math.sqrt(nx * nx + ny * ny + nz * nz);
+					float s = len > 0.0f ? 1.0f / len : 0.0f;
+					vertexData.put(nx * s).put(ny * s).put(nz * s);
+				}
+				for (int i = 0; i < numIndices; i++)
+					indexData.put(n++, base + indices.get(i));
+				base += numVertices;
+			}
+
+			b.chunkIndices[c] = n;
+			if (n == 0)
+				continue;
+			vertexData.flip();
+			ByteBuffer indexBytes = indexData.getBuffer();
+			indexBytes.position(0);
+			mGL.bindBuffer(GLES20.GL_ARRAY_BUFFER, b.chunkVbo[c]);
+			mGL.bufferData(GLES20.GL_ARRAY_BUFFER, vertexData.remaining() * 4, vertexData,
+					GLES20.GL_STATIC_DRAW);
+			mGL.bindBuffer(GLES20.GL_ELEMENT_ARRAY_BUFFER, b.chunkIbo[c]);
+			mGL.bufferData(GLES20.GL_ELEMENT_ARRAY_BUFFER, n * indexData.getSize(), indexBytes,
+					GLES20.GL_STATIC_DRAW);
+		}
+		mGL.bindBuffer(GLES20.GL_ARRAY_BUFFER, 0);
+		mGL.bindBuffer(GLES20.GL_ELEMENT_ARRAY_BUFFER, 0);
+		b.dirty = false;
+		b.built = true;
+	}
+
+	private static int[] grow(int[] a, int size) {
+		int[] b = new int[size];
+		System.arraycopy(a, 0, b, 0, a.length);
+		return b;
+	}
+
+	private static final class Batch {
+		Batch(ESShapes mesh, float[] color) {
+			this.mesh = mesh;
+			this.color = color;
+		}
+
+		final ESShapes mesh;
+		final float[] color;
+		int[] nodes = new int[4];
+		int count;
+
+		// merged fallback; dirty while any chunk waits for a rebuild
+		boolean dirty = true;
+		boolean built;
+		int perChunk;
+		int chunkIndexType;
+		int chunkCount;
+		int[] chunkVbo = new int[1];
+		int[] chunkIbo = new int[1];
+		int[] chunkIndices = new int[1];
+		boolean[] chunkDirty = new boolean[1];
+		FloatBuffer vertexData;
+		ESIndices indexData;
+	}
+
+	private final ESGL mGL;
+	private final SceneGraph mScene;
+	private final boolean mInstanced;
+	private Batch[] mBatches = new Batch[2];
+	private int mBatchCount;
+	private int mInstanceBufferId;
+	private float[] mInstanceData = new float[0];
+	private FloatBuffer mInstanceBuffer;
+	// per scene node: merged member drawn by the caller since it moved
+	private boolean[] mSeparate = new boolean[0];
+}
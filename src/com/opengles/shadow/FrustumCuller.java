@@ -0,0 +1,153 @@
+// FrustumCuller
+//
+//    View frustum tests against bounding spheres and axis-aligned boxes.
+//
+//    The six planes are extracted from a view-projection matrix (Gribb and
+//    Hartmann), so the same code serves the camera and every light pass.
+//    Planes point inwards and are normalized; a volume is culled only when it
+//    lies entirely behind one plane, so the tests are conservative.
+//
+//    Boxes are minX, minY, minZ, maxX, maxY, maxZ and spheres centerX,
+//    centerY, centerZ, radius, both in world space and both read from flat
+//    arrays at an offset. Nothing here allocates.
+//
+
+package com.opengles.shadow;
+
+class FrustumCuller {
+
+	//
+	///
+	/// \brief Extracts the planes of a column-major view-projection matrix.
+	//
+	void setMatrix(float[] m, int offset) {
+		for (int p = 0; p < 6; p++) {
+			// left/right use row 0, bottom/top row 1, near/far row 2
+			int row = p / 2;
+			float sign = (p & 1) == 0 ? 1.0f : -1.0f;
+			float a = m[offset + 3] + sign * m[offset + row];
+			float b = m[offset + 7] + sign * m[offset + 4 + row];
+			float c = m[offset + 11] + sign * m[offset + 8 + row];
+			float d = m[offset + 15] + sign * m[offset + 12 + row];
+			float len = (float) Math.sqrt(a * a + b * b + c * c);
+			float s = len > 0.0f ? 1.0f / len : 0.0f;
+			mPlanes[p * 4] = a * s;
+			mPlanes[p * 4 + 1] = b * s;
+			mPlanes[p * 4 + 2] = c * s;
+			mPlanes[p * 4 + 3] = d * s;
+		}
+	}
+
+	boolean isSphereVisible(float[] spheres, int o) {
+		float x = spheres[o], y = spheres[o + 1], z = spheres[o + 2];
+		float r = spheres[o + 3];
+		float[] pl = mPlanes;
+		for (int p = 0; p < 24; p += 4) {
+			if (pl[p] * x + pl[p + 1] * y + pl[p + 2] * z + pl[p + 3] < -r)
+				return false;
+		}
+		return true;
+	}
+
+	boolean isBoxVisible(float[] boxes, int o) {
+		float[] pl = mPlanes;
+		for (int p = 0; p < 24; p += 4) {
+			// the corner furthest along the plane normal
+			float x = pl[p] >= 0.0f ? boxes[o + 3] : boxes[o];
+			float y = pl[p + 1] >= 0.0f ? boxes[o + 4] : boxes[o + 1];
+			float z = pl[p + 2] >= 0.0f ? boxes[o + 5] : boxes[o + 2];
+			if (pl[p] * x + pl[p + 1] * y + pl[p + 2] * z + pl[p + 3] < 0.0f)
+				return false;
+		}
+		return true;
+	}
+
+	//
+	///
+	/// \brief Tests the volume a sphere sweeps when moved from its center
+	/// along a direction, which bounds the shadow it casts away from a light.
+	///
+	/// \param dx, dy, dz Unit direction away from the light.
+	/// \param length How far the shadow can reach.
+	//
+	boolean isSweptSphereVisible(float[] spheres, int o, float dx, float dy,
+			float dz, float length) {
+		float x = spheres[o], y = spheres[o + 1], z = spheres[o + 2];
+		float r = spheres[o + 3];
+		float[] pl = mPlanes;
+		for (int p = 0; p < 24; p += 4) {
+			float d0 = pl[p] * x + pl[p + 1] * y + pl[p + 2] * z + pl[p + 3];
+			float d1 = d0 + (pl[p] * dx + pl[p + 1] * dy + pl[p + 2] * dz) * length;
+			if (d0 < -r && d1 < -r)
+				return false;
+		}
+		return true;
+	}
+
+	//
+	///
+	/// \brief Culls count objects, sphere first and the box only for spheres
+	/// that pass.
+	///
+	/// \param visible Receives the result per object.
+	/// \return The number of visible objects.
+	//
+	int cull(float[] spheres, float[] boxes, int count, boolean[] visible) {
+		int n = 0;
+		for (int i = 0; i < count; i++) {
+			boolean v = isSphereVisible(spheres, i * 4) && isBoxVisible(boxes, i * 6);
+			visible[i] = v;
+			if (v)
+				n++;
+		}
+		return n;
+	}
+
+	//
+	///
+	/// \brief World-space bounds of an object from its local box and sphere:
+	/// the box that encloses the transformed box (Arvo), and the sphere
+	/// scaled by the largest axis scale of the matrix.
+	//
+	static void transformBounds(float[] model, int mo, float[] localBox,
+			float[] localSphere, float[] boxes, int bo, float[] spheres, int so) {
+		for (int i = 0; i < 3; i++) {
+			float min = model[mo + 12 + i], max = min;
+			for (int j = 0; j < 3; j++) {
+				float e = model[mo + j * 4 + i];
+				float a = e * localBox[j], b = e * localBox[j + 3];
+				min += Math.min(a, b);
+				max += Math.max(a, b);
+			}
+			boxes[bo + i] = min;
+			boxes[bo + i + 3] = max;
+		}
+
+		float x = localSphere[0], y = localSphere[1], z = localSphere[2];
+		spheres[so] = model[mo] * x + model[mo + 4] * y + model[mo + 8] * z + model[mo + 12];
+		spheres[so + 1] = model[mo + 1] * x + model[mo + 5] * y + model[mo + 9] * z + model[mo + 13];
+		spheres[so + 2] = model[mo + 2] * x + model[mo + 6] * y + model[mo + 10] * z + model[mo + 14];
+		float scale2 = 0.0f;
+		for (int j = 0; j < 3; j++) {
+			float a = model[mo + j * 4], b = model[mo + j * 4 + 1], c = model[mo + j * 4 + 2];
+			scale2 = Math.max(scale2, a * a + b * b + c * c);
+		}
+		spheres[so + 3] = localSphere[3] * (float) Math.sqrt(scale2);
+	}
+
+	//
+	///
+	/// \brief Sphere around a box, for shapes that only provide a box.
+	//
+	static void sphereFromBox(float[] box, float[] sphere) {
+		float dx = (box[3] - box[0]) * 0.5f;
+		float dy = (box[4] - box[1]) * 0.5f;
+		float dz = (box[5] - box[2]) * 0.5f;
+		sphere[0] = box[0] + dx;
+		sphere[1] = box[1] + dy;
+		sphere[2] = box[2] + dz;
+		sphere[3] = (float) Math.sqrt(dx * dx + dy * dy + dz * dz);
+	}
+
+	private final float[] mPlanes = new float[24];
+}
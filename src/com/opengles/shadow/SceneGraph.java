@@ -0,0 +1,200 @@
+// SceneGraph
+//
+//    Transform hierarchy stored as flat arrays, one slot per node.
+//
+//    Each node has a local matrix relative to its parent. update() rebuilds
+//    the world matrix, and the world-space normal matrix, only for nodes
+//    whose local matrix or an ancestor's changed since the last update, so
+//    both passes of a frame share the results. A parent always has a lower
+//    index than its children, which lets update() walk the arrays once in
+//    order.
+//
+//    Matrices are column-major float[16] (the android.opengl.Matrix layout),
+//    node i at offset i * 16. Storage only grows while nodes are added;
+//    updates and lookups do not allocate.
+//
+
+package com.opengles.shadow;
+
+import com.openglesbook.common.ESMatrix;
+
+class SceneGraph {
+
+	static final int NO_PARENT = -1;
+
+	//
+	///
+	/// \param capacity Initial number of node slots; more are allocated as
+	/// nodes are added.
+	//
+	SceneGraph(int capacity) {
+		allocate(Math.max(capacity, 1));
+	}
+
+	//
+	///
+	/// \brief Adds a node with an identity local matrix.
+	///
+	/// \param parent An existing node, or NO_PARENT for a root.
+	/// \param drawable Caller-defined tag saying what to draw at the node.
+	/// \return The node index.
+	//
+	int addNode(int parent, int drawable) {
+		if (parent != NO_PARENT && (parent < 0 || parent >= mCount))
+			throw new IllegalArgumentException("No such parent node: " + parent);
+		if (mCount == mParent.length)
+			allocate(mCount * 2);
+
+		int node = mCount++;
+		mParent[node] = parent;
+		mDrawable[node] = drawable;
+		int o = node * 16;
+		for (int i = 0; i < 16; i++)
+			mLocal[o + i] = (i % 5 == 0) ? 1.0f : 0.0f;
+		mDirty[node] = true;
+		return node;
+	}
+
+	int getNodeCount() {
+		return mCount;
+	}
+
+	int getParent(int node) {
+		return mParent[node];
+	}
+
+	int getDrawable(int node) {
+		return mDrawable[node];
+	}
+
+	//
+	///
+	/// \brief Replaces a node's local matrix. Nothing is recomputed until
+	/// update(), and nothing at all if the matrix did not change.
+	//
+	void setLocalMatrix(int node, float[] m, int offset) {
+		int o = node * 16;
+		boolean changed = false;
+		for (int i = 0; i < 16; i++) {
+			if (mLocal[o + i] != m[offset + i]) {
+				mLocal[o + i] = m[offset + i];
+				changed = true;
+			}
+		}
+		if (changed)
+			mDirty[node] = true;
+	}
+
+	//
+	///
+	/// \brief Recomputes world and normal matrices of dirty nodes and their
+	/// descendants.
+	///
+	/// \return The number of nodes recomputed.
+	//
+	int update() {
+		int updated = 0;
+		int node = 0;
+		while (node < mCount) {
+			int parent = mParent[node];
+			if (!markChanged(node, parent)) {
+				node++;
+				continue;
+			}
+
+			// changed siblings that follow each other, like the children of
+			// a moving group, share the parent matrix and go in one batch
+			int end = node + 1;
+			int next = end;
+			if (parent != NO_PARENT) {
+				while (end < mCount && mParent[end] == parent && markChanged(end, parent))
+					end++;
+				// an unchanged sibling that ended the run is done with too
+				next = end < mCount && mParent[end] == parent ? end + 1 : end;
+			}
+
+			int o = node * 16;
+			if (parent == NO_PARENT)
+				System.arraycopy(mLocal, o, mWorld, o, 16);
+			else
+				ESMatrix.multiplyMMBatch(mWorld, o, mWorld, parent * 16, mLocal, o, end - node);
+			ESMatrix.normalMatrixBatch(mNormal, o, mWorld, o, end - node);
+			updated += end - node;
+			node = next;
+		}
+		return updated;
+	}
+
+	private boolean markChanged(int node, int parent) {
+		mChanged[node] = mDirty[node] || (parent != NO_PARENT && mChanged[parent]);
+		mDirty[node] = false;
+		return mChanged[node];
+	}
+
+	//
+	///
+	/// \return true if update() recomputed the node's world matrix.
+	//
+	boolean isChanged(int node) {
+		return mChanged[node];
+	}
+
+	//
+	///
+	/// \brief World matrices of all nodes, node i at offset i * 16. Valid
+	/// after update(); the array is replaced when nodes are added past
+	/// capacity.
+	//
+	float[] getWorldMatrices() {
+		return mWorld;
+	}
+
+	//
+	///
+	/// \brief Inverse transposes of the world matrices, same layout. Only the
+	/// upper 3x3 is meaningful; it takes world-space normals to world space.
+	//
+	float[] getNormalMatrices() {
+		return mNormal;
+	}
+
+	private void allocate(int capacity) {
+		mParent = grow(mParent, capacity);
+		mDrawable = grow(mDrawable, capacity);
+		mDirty = grow(mDirty, capacity);
+		mChanged = grow(mChanged, capacity);
+		mLocal = grow(mLocal, capacity * 16);
+		mWorld = grow(mWorld, capacity * 16);
+		mNormal = grow(mNormal, capacity * 16);
+	}
+
+	private static int[] grow(int[] a, int size) {
+		int[] b = new int[size];
+		if (a != null)
+			System.arraycopy(a, 0, b, 0, a.length);
+		return b;
+	}
+
+	private static boolean[] grow(boolean[] a, int size) {
+		boolean[] b = new boolean[size];
+		if (a != null)
+			System.arraycopy(a, 0, b, 0, a.length);
+		return b;
+	}
+
+	private static float[] grow(float[] a, int size) {
+		float[] b = new float[size];
+		if (a != null)
+			System.arraycopy(a, 0, b, 0, a.length);
+		return b;
+	}
+
+	private int mCount;
+	private int[] mParent;
+	private int[] mDrawable;
+	private boolean[] mDirty;
+	private boolean[] mChanged;
+	private float[] mLocal;
+	private float[] mWorld;
+	private float[] mNormal;
+}
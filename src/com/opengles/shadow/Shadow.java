@@ -22,7 +22,13 @@ public class Shadow extends Activity {
             // Tell the surface view we want to create an OpenGL ES 2.0-compatible
             // context, and set an OpenGL ES 2.0-compatible renderer.
             mGLSurfaceView.setEGLContextClientVersion(2);
-            mGLSurfaceView.setRenderer(new ShadowRenderer(this));
+            ShadowRenderer renderer = new ShadowRenderer(this);
+            ActivityManager am =
+                (ActivityManager) getSystemService(Context.ACTIVITY_SERVICE);
+            renderer.setDeviceTier(
+                ShadowRenderer.DeviceTier.fromMemoryClass(am.getMemoryClass()));
+            mGLSurfaceView.setRenderer(renderer);
+            mRenderer = renderer;
         } 
         else
         {
@@ -48,6 +54,8 @@ public class Shadow extends Activity {
         // to take appropriate action when the activity looses focus
         super.onResume();
         mGLSurfaceView.onResume();
+        if (LOG_FRAME_STATS && mRenderer != null)
+            mStatsLogger = ShadowStats.startLogging(mRenderer.getFrameStats(), 5000);
     }
 
     @Override
@@ -57,7 +65,25 @@ public class Shadow extends Activity {
         // to take appropriate action when the activity looses focus
         super.onPause();
         mGLSurfaceView.onPause();
+        if (mStatsLogger != null)
+        {
+            mStatsLogger.interrupt();
+            mStatsLogger = null;
+        }
     }
 
+    @Override
+    protected void onDestroy()
+    {
+        super.onDestroy();
+        if (mRenderer != null)
+            mRenderer.release();
+    }
+
+    // Log frame time percentiles and counters every few seconds
+    private static final boolean LOG_FRAME_STATS = false;
+
     private GLSurfaceView mGLSurfaceView;
+    private ShadowRenderer mRenderer;
+    private Thread mStatsLogger;
 }
@@ -0,0 +1,148 @@
+// ShadowAtlas
+//
+//    Layout of square shadow tiles in one square atlas texture, and the
+//    matrices that look a tile up.
+//
+//    Tiles are power-of-two squares. Placed largest first along a Morton
+//    (Z-order) curve, each tile starts where the previous one ended, at an
+//    offset that is always a multiple of its own area. That puts it on its
+//    own size grid, so the packing never overlaps and never leaves a hole:
+//    any set of tiles whose areas add up to at most the atlas area fits.
+//
+//    Plain Java with preallocated arrays, so it runs off-device.
+//
+
+package com.opengles.shadow;
+
+class ShadowAtlas {
+
+	//
+	///
+	/// \param maxTiles The largest tile count pack() will be given.
+	//
+	ShadowAtlas(int maxTiles) {
+		mViewports = new int[maxTiles * 4];
+		mOrder = new int[maxTiles];
+	}
+
+	//
+	///
+	/// \brief Places count tiles.
+	///
+	/// \param atlasSize Atlas side in pixels, a power of two.
+	/// \param sizes Side of each tile in pixels, powers of two no larger than
+	/// the atlas.
+	/// \return false, leaving the previous layout, if the tiles do not fit.
+	//
+	boolean pack(int atlasSize, int[] sizes, int count) {
+		long area = 0;
+		for (int i = 0; i < count; i++) {
+			if (Integer.bitCount(sizes[i]) != 1 || sizes[i] > atlasSize)
+				throw new IllegalArgumentException("Bad tile size: " + sizes[i]);
+			area += (long) sizes[i] * sizes[i];
+		}
+		if (area > (long) atlasSize * atlasSize)
+			return false;
+
+		// largest first, in tile order among equal sizes so that a layout
+		// only moves the tiles whose sizes changed ahead of them
+		for (int i = 0; i < count; i++) {
+			int j = i;
+			while (j > 0 && sizes[mOrder[j - 1]] < sizes[i]) {
+				mOrder[j] = mOrder[j - 1];
+				j--;
+			}
+			mOrder[j] = i;
+		}
+
+		long offset = 0;
+		for (int k = 0; k < count; k++) {
+			int tile = mOrder[k];
+			int size = sizes[tile];
+			long cell = offset / ((long) size * size);
+			int o = tile * 4;
+			mViewports[o] = compact((int) cell) * size;
+			mViewports[o + 1] = compact((int) (cell >>> 1)) * size;
+			mViewports[o + 2] = size;
+			mViewports[o + 3] = size;
+			offset += (long) size * size;
+		}
+		mCount = count;
+		mAtlasSize = atlasSize;
+		return true;
+	}
+
+	int getCount() {
+		return mCount;
+	}
+
+	int getAtlasSize() {
+		return mAtlasSize;
+	}
+
+	//
+	///
+	/// \param viewport Receives x, y, width and height of the tile in pixels.
+	//
+	void getViewport(int tile, int[] viewport) {
+		System.arraycopy(mViewports, tile * 4, viewport, 0, 4);
+	}
+
+	//
+	///
+	/// \brief Atlas coordinates of a tile, for the shader to reject lookups
+	/// that fall outside it.
+	///
+	/// \param out Receives minU, minV, maxU and maxV at offset.
+	//
+	void getRect(int tile, float[] out, int offset) {
+		int o = tile * 4;
+		float scale = 1.0f / mAtlasSize;
+		out[offset] = mViewports[o] * scale;
+		out[offset + 1] = mViewports[o + 1] * scale;
+		out[offset + 2] = (mViewports[o] + mViewports[o + 2]) * scale;
+		out[offset + 3] = (mViewports[o + 1] + mViewports[o + 3]) * scale;
+	}
+
+	//
+	///
+	/// \brief Turns a light view-projection into the lookup matrix of a tile:
+	/// world space to atlas coordinates (xy) and depth (z), all in [0, 1].
+	///
+	/// \param viewProj Light projection times light view, at vpOffset.
+	/// \param viewport x, y, width and height of the tile in pixels.
+	/// \param out Receives the matrix at offset.
+	//
+	static void toAtlasMatrix(float[] viewProj, int vpOffset, int[] viewport,
+			int atlasSize, float[] out, int offset) {
+		float scaleX = 0.5f * viewport[2] / atlasSize;
+		float scaleY = 0.5f * viewport[3] / atlasSize;
+		float offsetX = (viewport[0] + 0.5f * viewport[2]) / atlasSize;
+		float offsetY = (viewport[1] + 0.5f * viewport[3]) / atlasSize;
+		for (int c = 0; c < 4; c++) {
+			int i = vpOffset + c * 4;
+			float x = viewProj[i], y = viewProj[i + 1];
+			float z = viewProj[i + 2], w = viewProj[i + 3];
+			int o = offset + c * 4;
+			out[o] = scaleX * x + offsetX * w;
+			out[o + 1] = scaleY * y + offsetY * w;
+			out[o + 2] = 0.5f * z + 0.5f * w;
+			out[o + 3] = w;
+		}
+	}
+
+	// Even bits of a Morton index, packed together
+	private static int compact(int bits) {
+		bits &= 0x55555555;
+		bits = (bits | (bits >>> 1)) & 0x33333333;
+		bits = (bits | (bits >>> 2)) & 0x0f0f0f0f;
+		bits = (bits | (bits >>> 4)) & 0x00ff00ff;
+		bits = (bits | (bits >>> 8)) & 0x0000ffff;
+		return bits;
+	}
+
+	private final int[] mViewports;
+	private final int[] mOrder;
+	private int mCount;
+	private int mAtlasSize;
+}
@@ -0,0 +1,236 @@
+// ShadowBudget
+//
+//    Shares a shadow atlas between lights and decides which of them redraw
+//    their shadows each frame.
+//
+//    A light's importance is the fraction of the screen its range covers
+//    times its brightness. Lights get atlas area in proportion to it, as
+//    power-of-two tiles that ShadowAtlas packs. Sizes only change when an
+//    importance has moved by more than a factor of HYSTERESIS since they were
+//    last chosen, since every change moves tiles and redraws their shadows.
+//
+//    Plain Java with preallocated arrays, so it runs off-device.
+//
+
+package com.opengles.shadow;
+
+class ShadowBudget {
+
+	// Importance ratio that triggers a new allocation
+	static final float HYSTERESIS = 1.5f;
+
+	//
+	///
+	/// \param maxLights The largest light count update() will be given.
+	//
+	ShadowBudget(int maxLights) {
+		mImportance = new float[maxLights];
+		mAllocated = new float[maxLights];
+		mSizes = new int[maxLights];
+		mPreviousSizes = new int[maxLights];
+	}
+
+	//
+	///
+	/// \brief Approximate fraction of the screen covered by a sphere, from
+	/// the screen rectangle around its projection.
+	///
+	/// \param viewProj Camera projection times view, column-major.
+	/// \param x, y, z, radius The sphere, in world space.
+	/// \return A value in [0, 1]; 1 when the sphere reaches the camera plane,
+	/// 0 when it lies behind the camera.
+	//
+	static float screenCoverage(float[] viewProj, float x, float y, float z,
+			float radius) {
+		float cx = viewProj[0] * x + viewProj[4] * y + viewProj[8] * z + viewProj[12];
+		float cy = viewProj[1] * x + viewProj[5] * y + viewProj[9] * z + viewProj[13];
+		float w = viewProj[3] * x + viewProj[7] * y + viewProj[11] * z + viewProj[15];
+		// clip-space extent of the sphere is radius times the length of the
+		// matrix rows, exact for w and a bound for x and y
+		float rx = radius * length(viewProj[0], viewProj[4], viewProj[8]);
+		float ry = radius * length(viewProj[1], viewProj[5], viewProj[9]);
+		float rw = radius * length(viewProj[3], viewProj[7], viewProj[11]);
+		if (w <= -rw)
+			return 0.0f; // behind the camera
+		if (w <= rw)
+			return 1.0f;
+
+		// widest on screen where the sphere is nearest, at w - rw
+		float near = w - rw;
+		float minX = Math.max(-1.0f, (cx - rx) / near);
+		float maxX = Math.min(1.0f, (cx + rx) / near);
+		float minY = Math.max(-1.0f, (cy - ry) / near);
+		float maxY = Math.min(1.0f, (cy + ry) / near);
+		if (minX >= maxX || minY >= maxY)
+			return 0.0f;
+		// the disc fills pi / 4 of its rectangle
+		float area = (maxX - minX) * (maxY - minY) * 0.25f * (float) (Math.PI / 4.0);
+		return Math.min(1.0f, area);
+	}
+
+	//
+	///
+	/// \brief Picks tile sizes for count lights.
+	///
+	/// \param importance Per light, see screenCoverage(); any scale.
+	/// \param views Per light, the number of tiles it uses, all of the same
+	/// size.
+	/// \param atlasSize Atlas side in pixels, a power of two.
+	/// \param minTile Smallest tile side, a power of two; every light gets at
+	/// least this.
+	/// \return Whether any size changed since the previous call.
+	//
+	boolean update(float[] importance, int[] views, int count, int atlasSize,
+			int minTile) {
+		boolean reallocate = count != mCount || atlasSize != mAtlasSize;
+		for (int i = 0; i < count && !reallocate; i++)
+			reallocate = changed(mAllocated[i], importance[i]);
+		if (!reallocate)
+			return false;
+
+		// the halving and growing below may well end on the old sizes
+		System.arraycopy(mSizes, 0, mPreviousSizes, 0, count);
+		float total = 0.0f;
+		for (int i = 0; i < count; i++) {
+			mImportance[i] = Math.max(0.0f, importance[i]);
+			mAllocated[i] = importance[i];
+			total += mImportance[i];
+		}
+
+		// proportional share, rounded down to a power of two
+		long area = (long) atlasSize * atlasSize;
+		long used = 0;
+		for (int i = 0; i < count; i++) {
+			float share = total > 0.0f ? mImportance[i] / total : 1.0f / count;
+			int size = floorPow2((int) Math.sqrt(share * area / views[i]));
+			size = Math.max(minTile, Math.min(atlasSize, size));
+			mSizes[i] = size;
+			used += (long) size * size * views[i];
+		}
+
+		// over budget after the minimum: halve the largest tiles, least
+		// important first
+		while (used > area) {
+			int pick = -1;
+			for (int i = 0; i < count; i++) {
+				if (mSizes[i] > 1 && (pick < 0 || mSizes[i] > mSizes[pick]
+						|| mSizes[i] == mSizes[pick] && mImportance[i] < mImportance[pick]))
+					pick = i;
+			}
+			if (pick < 0)
+				break;
+			int size = mSizes[pick];
+			used -= 3L * (size / 2) * (size / 2) * views[pick];
+			mSizes[pick] = size / 2;
+		}
+
+		// spend what rounding down left over, most important first, but
+		// never leave a light with more area than a more important one
+		boolean grown = true;
+		while (grown) {
+			grown = false;
+			int pick = -1;
+			for (int i = 0; i < count; i++) {
+				long extra = 3L * mSizes[i] * mSizes[i] * views[i];
+				if (mSizes[i] < atlasSize && used + extra <= area
+						&& !overtakes(i, 4L * mSizes[i] * mSizes[i] * views[i], views, count)
+						&& (pick < 0 || mImportance[i] > mImportance[pick]))
+					pick = i;
+			}
+			if (pick >= 0) {
+				used += 3L * mSizes[pick] * mSizes[pick] * views[pick];
+				mSizes[pick] *= 2;
+				grown = true;
+			}
+		}
+
+		boolean changed = count != mCount || atlasSize != mAtlasSize;
+		for (int i = 0; i < count; i++)
+			changed |= mSizes[i] != mPreviousSizes[i];
+		mCount = count;
+		mAtlasSize = atlasSize;
+		return changed;
+	}
+
+	//
+	///
+	/// \return The tile side of light i from the last update().
+	//
+	int getSize(int i) {
+		return mSizes[i];
+	}
+
+	//
+	///
+	/// \brief Chooses which lights redraw their shadow tiles this frame.
+	/// Lights whose shadows change slowly take turns, at most maxSlow of them
+	/// a frame; a light skipped here keeps its old tile contents, and its
+	/// caster tracker keeps growing the region to redraw until its turn.
+	///
+	/// \param needsUpdate Per light, whether anything in its shadow changed.
+	/// \param mustUpdate Per light, whether its tile contents are invalid,
+	/// because the tile moved or was never drawn; these redraw regardless of
+	/// turns.
+	/// \param slow Per light, whether it may wait for its turn.
+	/// \param out Receives, per light, whether to redraw it.
+	/// \return The number of lights to redraw.
+	//
+	int scheduleRefresh(int count, boolean[] needsUpdate, boolean[] mustUpdate,
+			boolean[] slow, int maxSlow, boolean[] out) {
+		int refreshed = 0;
+		for (int i = 0; i < count; i++) {
+			out[i] = mustUpdate[i] || needsUpdate[i] && !slow[i];
+			if (out[i])
+				refreshed++;
+		}
+
+		// round-robin over the waiting slow lights, starting after the last
+		// one served
+		int served = 0;
+		int start = mCursor;
+		for (int k = 0; k < count && served < maxSlow; k++) {
+			int i = (start + 1 + k) % count;
+			if (!out[i] && needsUpdate[i] && slow[i]) {
+				out[i] = true;
+				refreshed++;
+				served++;
+				mCursor = i;
+			}
+		}
+		return refreshed;
+	}
+
+	// Whether light i with the given area would have more than a light
+	// that is more important
+	private boolean overtakes(int i, long area, int[] views, int count) {
+		for (int j = 0; j < count; j++) {
+			if (mImportance[j] > mImportance[i]
+					&& area > (long) mSizes[j] * mSizes[j] * views[j])
+				return true;
+		}
+		return false;
+	}
+
+	private static boolean changed(float allocated, float importance) {
+		if (allocated <= 0.0f || importance <= 0.0f)
+			return (allocated <= 0.0f) != (importance <= 0.0f);
+		return importance > allocated * HYSTERESIS
+				|| importance * HYSTERESIS < allocated;
+	}
+
+	private static int floorPow2(int x) {
+		return x <= 0 ? 0 : Integer.highestOneBit(x);
+	}
+
+	private static float length(float x, float y, float z) {
+		return (float) Math.sqrt(x * x + y * y + z * z);
+	}
+
+	private final float[] mImportance;
+	private final float[] mAllocated;
+	private final int[] mSizes;
+	private final int[] mPreviousSizes;
+	private int mCount = -1;
+	private int mAtlasSize;
+	private int mCursor = -1;
+}
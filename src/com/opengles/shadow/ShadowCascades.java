@@ -0,0 +1,270 @@
+// ShadowCascades
+//
+//    Cascaded shadow map setup: splits the camera frustum into depth ranges,
+//    fits an orthographic light projection around each range and places each
+//    cascade in a tile of one shadow atlas.
+//
+//    Everything here is plain Java math on column-major float[16] matrices
+//    (the android.opengl.Matrix layout), so it runs off-device.
+//
+
+package com.opengles.shadow;
+
+import com.openglesbook.common.ESMatrix;
+
+class ShadowCascades {
+
+	//
+	///
+	/// \param maxCascades The largest cascade count update() will be given.
+	//
+	ShadowCascades(int maxCascades) {
+		mSplits = new float[maxCascades + 1];
+		mProjections = new float[maxCascades * 16];
+		mShadowMatrices = new float[maxCascades * 16];
+		mViewports = new int[maxCascades * 4];
+	}
+
+	//
+	///
+	/// \brief Splits [near, far] with the practical split scheme, a blend
+	/// between logarithmic (lambda = 1) and uniform (lambda = 0)
+	/// distribution.
+	///
+	/// \param out Receives count + 1 distances, out[0] = near and out[count]
+	/// = far.
+	//
+	static void computeSplits(float near, float far, int count, float lambda,
+			float[] out) {
+		out[0] = near;
+		for (int i = 1; i < count; i++) {
+			float f = (float) i / count;
+			float log = near * (float) Math.pow(far / near, f);
+			float uniform = near + (far - near) * f;
+			out[i] = lambda * log + (1.0f - lambda) * uniform;
+		}
+		out[count] = far;
+	}
+
+	//
+	///
+	/// \brief Number of atlas columns (and rows) used for the given cascade
+	/// count.
+	//
+	static int getAtlasColumns(int count) {
+		int columns = 1;
+		while (columns * columns < count)
+			columns++;
+		return columns;
+	}
+
+	//
+	///
+	/// \brief Viewport of a cascade's tile inside a square atlas.
+	///
+	/// \param viewport Receives x, y, width and height in pixels.
+	//
+	static void getAtlasTile(int cascade, int count, int atlasSize, int[] viewport) {
+		int columns = getAtlasColumns(count);
+		int tile = atlasSize / columns;
+		viewport[0] = (cascade % columns) * tile;
+		viewport[1] = (cascade / columns) * tile;
+		viewport[2] = tile;
+		viewport[3] = tile;
+	}
+
+	//
+	///
+	/// \brief Sets the camera the cascades cover, with the same frustum
+	/// arguments that were passed to Matrix.frustumM().
+	///
+	/// \param viewMatrix The camera view matrix, assumed rigid.
+	//
+	void setCamera(float[] viewMatrix, float left, float right, float bottom,
+			float top, float near, float far) {
+		invertRigid(viewMatrix, mCameraToWorld);
+		mLeft = left;
+		mRight = right;
+		mBottom = bottom;
+		mTop = top;
+		mNear = near;
+		mFar = far;
+	}
+
+	//
+	///
+	/// \brief Sets the light view matrix; all cascades share it.
+	//
+	void setLight(float[] lightViewMatrix) {
+		System.arraycopy(lightViewMatrix, 0, mLightView, 0, 16);
+	}
+
+	//
+	///
+	/// \brief Recomputes splits, projections and shadow lookup matrices, with
+	/// the cascades in the square grid of tiles given by getAtlasTile().
+	///
+	/// \param count Number of cascades.
+	/// \param lambda Split scheme blend, see computeSplits().
+	/// \param casterMargin How far in front of each slice, towards the light,
+	/// casters are still captured.
+	/// \param atlasSize Atlas size in pixels, used to snap each projection to
+	/// whole texels so shadows do not shimmer as the camera moves.
+	//
+	void update(int count, float lambda, float casterMargin, int atlasSize) {
+		for (int i = 0; i < count; i++) {
+			getAtlasTile(i, count, atlasSize, mViewport);
+			System.arraycopy(mViewport, 0, mViewports, i * 4, 4);
+		}
+		update(count, lambda, casterMargin, atlasSize, mViewports);
+	}
+
+	//
+	///
+	/// \brief Recomputes splits, projections and shadow lookup matrices, with
+	/// the cascades in tiles placed by the caller, such as a ShadowAtlas.
+	///
+	/// \param viewports x, y, width and height of each cascade's square tile,
+	/// 4 ints per cascade; each projection snaps to its own tile's texels.
+	//
+	void update(int count, float lambda, float casterMargin, int atlasSize,
+			int[] viewports) {
+		mCount = count;
+		computeSplits(mNear, mFar, count, lambda, mSplits);
+
+		for (int i = 0; i < count; i++) {
+			System.arraycopy(viewports, i * 4, mViewport, 0, 4);
+			fitSlice(mSplits[i], mSplits[i + 1], casterMargin, mViewport[2],
+					mProjections, i * 16);
+
+			// shadow matrix = tile * bias * projection * lightView
+			ESMatrix.multiplyMM(mTemp, 0, mProjections, i * 16, mLightView, 0);
+			ShadowAtlas.toAtlasMatrix(mTemp, 0, mViewport, atlasSize,
+					mShadowMatrices, i * 16);
+		}
+	}
+
+	int getCount() {
+		return mCount;
+	}
+
+	//
+	///
+	/// \return The view-space distance at which cascade i ends.
+	//
+	float getSplit(int i) {
+		return mSplits[i + 1];
+	}
+
+	//
+	///
+	/// \brief Copies the orthographic light projection of cascade i.
+	//
+	void getProjection(int i, float[] out) {
+		System.arraycopy(mProjections, i * 16, out, 0, 16);
+	}
+
+	//
+	///
+	/// \brief Matrices mapping world space to atlas coordinates (xy) and
+	/// depth (z), all in [0, 1], one per cascade, for the eye shader.
+	//
+	float[] getShadowMatrices() {
+		return mShadowMatrices;
+	}
+
+	// Fits a texel-snapped orthographic projection, in light view space,
+	// around the camera frustum slice [near, far].
+	private void fitSlice(float near, float far, float casterMargin,
+			int tileSize, float[] out, int offset) {
+		float cx = 0.0f, cy = 0.0f, cz = 0.0f;
+		for (int c = 0; c < 8; c++) {
+			float d = (c & 4) == 0 ? near : far;
+			float s = d / mNear;
+			float vx = ((c & 1) == 0 ? mLeft : mRight) * s;
+			float vy = ((c & 2) == 0 ? mBottom : mTop) * s;
+			float vz = -d;
+			// camera view space -> world -> light view space
+			transformPoint(mCameraToWorld, vx, vy, vz, mPoint);
+			transformPoint(mLightView, mPoint[0], mPoint[1], mPoint[2], mCorners, c * 3);
+			cx += mCorners[c * 3];
+			cy += mCorners[c * 3 + 1];
+			cz += mCorners[c * 3 + 2];
+		}
+		cx /= 8.0f;
+		cy /= 8.0f;
+		cz /= 8.0f;
+
+		// a bounding sphere keeps the extent constant under camera rotation
+		float radius = 0.0f;
+		float minZ = Float.MAX_VALUE, maxZ = -Float.MAX_VALUE;
+		for (int c = 0; c < 8; c++) {
+			float dx = mCorners[c * 3] - cx;
+			float dy = mCorners[c * 3 + 1] - cy;
+			float dz = mCorners[c * 3 + 2] - cz;
+			radius = Math.max(radius, (float) Math.sqrt(dx * dx + dy * dy + dz * dz));
+			minZ = Math.min(minZ, mCorners[c * 3 + 2]);
+			maxZ = Math.max(maxZ, mCorners[c * 3 + 2]);
+		}
+		radius = (float) Math.ceil(radius * 16.0f) / 16.0f;
+
+		float texel = 2.0f * radius / tileSize;
+		cx = (float) Math.floor(cx / texel) * texel;
+		cy = (float) Math.floor(cy / texel) * texel;
+
+		// the light looks down -z, so nearer to the light is larger z
+		ortho(out, offset, cx - radius, cx + radius, cy - radius, cy + radius,
+				-maxZ - casterMargin, -minZ);
+	}
+
+	static void ortho(float[] m, int o, float left, float right, float bottom,
+			float top, float near, float far) {
+		for (int i = 0; i < 16; i++)
+			m[o + i] = 0.0f;
+		m[o] = 2.0f / (right - left);
+		m[o + 5] = 2.0f / (top - bottom);
+		m[o + 10] = -2.0f / (far - near);
+		m[o + 12] = -(right + left) / (right - left);
+		m[o + 13] = -(top + bottom) / (top - bottom);
+		m[o + 14] = -(far + near) / (far - near);
+		m[o + 15] = 1.0f;
+	}
+
+	private static void transformPoint(float[] m, float x, float y, float z,
+			float[] out) {
+		transformPoint(m, x, y, z, out, 0);
+	}
+
+	private static void transformPoint(float[] m, float x, float y, float z,
+			float[] out, int o) {
+		out[o] = m[0] * x + m[4] * y + m[8] * z + m[12];
+		out[o + 1] = m[1] * x + m[5] * y + m[9] * z + m[13];
+		out[o + 2] = m[2] * x + m[6] * y + m[10] * z + m[14];
+	}
+
+	// Inverse of a rotation + translation matrix
+	private static void invertRigid(float[] m, float[] out) {
+		for (int c = 0; c < 3; c++) {
+			for (int r = 0; r < 3; r++)
+				out[c * 4 + r] = m[r * 4 + c];
+			out[c * 4 + 3] = 0.0f;
+		}
+		for (int r = 0; r < 3; r++) {
+			out[12 + r] = -(out[r] * m[12] + out[4 + r] * m[13] + out[8 + r] * m[14]);
+		}
+		out[15] = 1.0f;
+	}
+
+	private final float[] mSplits;
+	private final float[] mProjections;
+	private final float[] mShadowMatrices;
+	private final int[] mViewports;
+	private final int[] mViewport = new int[4];
+	private final float[] mCameraToWorld = new float[16];
+	private final float[] mLightView = new float[16];
+	private final float[] mTemp = new float[16];
+	private final float[] mCorners = new float[24];
+	private final float[] mPoint = new float[3];
+	private float mLeft, mRight, mBottom, mTop, mNear, mFar;
+	private int mCount;
+}
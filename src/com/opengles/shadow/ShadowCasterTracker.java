@@ -0,0 +1,215 @@
+// ShadowCasterTracker
+//
+//    Tracks what the shadow map was last rendered with, so that the shadow
+//    pass only runs when the light or a caster moved, and only over the part
+//    of the map those changes touch.
+//
+//    Casters are identified by a small integer id and described by a model
+//    matrix and a local axis-aligned box (minX, minY, minZ, maxX, maxY,
+//    maxZ). All work is done in preallocated arrays.
+//
+
+package com.opengles.shadow;
+
+class ShadowCasterTracker {
+
+	//
+	///
+	/// \param maxCasters The number of caster ids that will be used.
+	//
+	ShadowCasterTracker(int maxCasters) {
+		mModels = new float[maxCasters * 16];
+		mRects = new float[maxCasters * 4];
+		mKnown = new boolean[maxCasters];
+		clear();
+		invalidate();
+	}
+
+	//
+	///
+	/// \brief Forces a full redraw on the next frame, for instance after the
+	/// shadow map texture was recreated.
+	//
+	void invalidate() {
+		mFullUpdate = true;
+		for (int i = 0; i < mKnown.length; i++)
+			mKnown[i] = false;
+	}
+
+	//
+	///
+	/// \brief Records the light view-projection used for the shadow map. Any
+	/// change invalidates the whole map.
+	//
+	void setLightMatrix(float[] lightVP) {
+		if (!equals(mLightVP, 0, lightVP, 0)) {
+			System.arraycopy(lightVP, 0, mLightVP, 0, 16);
+			invalidate();
+		}
+	}
+
+	//
+	///
+	/// \brief Records the current transform of a caster. If it differs from
+	/// the one the shadow map holds, both its old and new footprints become
+	/// dirty.
+	///
+	/// \param offset Offset of the model matrix in model.
+	//
+	void updateCaster(int id, float[] model, int offset, float[] bounds) {
+		int m = id * 16;
+		int r = id * 4;
+		if (mKnown[id] && equals(mModels, m, model, offset))
+			return;
+
+		if (mKnown[id])
+			addDirty(mRects, r);
+		System.arraycopy(model, offset, mModels, m, 16);
+		projectBounds(mModels, m, bounds, mRects, r);
+		addDirty(mRects, r);
+		mKnown[id] = true;
+	}
+
+	//
+	///
+	/// \brief Takes a caster out of the shadow map, e.g. once it is culled.
+	/// Its old footprint becomes dirty; updateCaster() brings it back.
+	//
+	void removeCaster(int id) {
+		if (!mKnown[id])
+			return;
+		addDirty(mRects, id * 4);
+		mKnown[id] = false;
+	}
+
+	//
+	///
+	/// \return true if the shadow map has to be rendered this frame.
+	//
+	boolean needsUpdate() {
+		return mFullUpdate || mDirtyMinX <= mDirtyMaxX;
+	}
+
+	//
+	///
+	/// \return true if the whole shadow map has to be rendered.
+	//
+	boolean isFullUpdate() {
+		return mFullUpdate || (mDirtyMinX <= -1.0f && mDirtyMinY <= -1.0f
+				&& mDirtyMaxX >= 1.0f && mDirtyMaxY >= 1.0f);
+	}
+
+	//
+	///
+	/// \brief Converts the dirty region to a scissor rectangle.
+	///
+	/// \param size The shadow map size in pixels.
+	/// \param rect Receives x, y, width and height in pixels.
+	//
+	void getDirtyRect(int size, int[] rect) {
+		if (isFullUpdate()) {
+			rect[0] = rect[1] = 0;
+			rect[2] = rect[3] = size;
+			return;
+		}
+		// grow by a texel to cover rasterization at the edges
+		int x0 = Math.max((int) Math.floor((mDirtyMinX * 0.5f + 0.5f) * size) - 1, 0);
+		int y0 = Math.max((int) Math.floor((mDirtyMinY * 0.5f + 0.5f) * size) - 1, 0);
+		int x1 = Math.min((int) Math.ceil((mDirtyMaxX * 0.5f + 0.5f) * size) + 1, size);
+		int y1 = Math.min((int) Math.ceil((mDirtyMaxY * 0.5f + 0.5f) * size) + 1, size);
+		rect[0] = x0;
+		rect[1] = y0;
+		rect[2] = Math.max(x1 - x0, 0);
+		rect[3] = Math.max(y1 - y0, 0);
+	}
+
+	//
+	///
+	/// \return true if the caster's current footprint overlaps the dirty
+	/// region, i.e. it has to be drawn in this shadow pass.
+	//
+	boolean intersectsDirty(int id) {
+		if (mFullUpdate)
+			return true;
+		int r = id * 4;
+		return mRects[r] <= mDirtyMaxX && mRects[r + 2] >= mDirtyMinX
+				&& mRects[r + 1] <= mDirtyMaxY && mRects[r + 3] >= mDirtyMinY;
+	}
+
+	//
+	///
+	/// \brief Marks the shadow map as up to date with everything recorded so
+	/// far.
+	//
+	void clear() {
+		mFullUpdate = false;
+		mDirtyMinX = mDirtyMinY = Float.MAX_VALUE;
+		mDirtyMaxX = mDirtyMaxY = -Float.MAX_VALUE;
+	}
+
+	private void addDirty(float[] rects, int r) {
+		if (rects[r] > rects[r + 2] || rects[r + 1] > rects[r + 3])
+			return; // entirely outside the shadow map
+		mDirtyMinX = Math.min(mDirtyMinX, rects[r]);
+		mDirtyMinY = Math.min(mDirtyMinY, rects[r + 1]);
+		mDirtyMaxX = Math.max(mDirtyMaxX, rects[r + 2]);
+		mDirtyMaxY = Math.max(mDirtyMaxY, rects[r + 3]);
+	}
+
+	// Light-space NDC rectangle of the 8 corners of a transformed box,
+	// clamped to [-1, 1]. A corner behind the light covers everything.
+	private void projectBounds(float[] model, int mo, float[] b, float[] out, int o) {
+		float minX = Float.MAX_VALUE, minY = Float.MAX_VALUE;
+		float maxX = -Float.MAX_VALUE, maxY = -Float.MAX_VALUE;
+		boolean behind = false;
+
+		for (int c = 0; c < 8; c++) {
+			float x = (c & 1) == 0 ? b[0] : b[3];
+			float y = (c & 2) == 0 ? b[1] : b[4];
+			float z = (c & 4) == 0 ? b[2] : b[5];
+
+			// world = model * corner
+			float wx = model[mo] * x + model[mo + 4] * y + model[mo + 8] * z + model[mo + 12];
+			float wy = model[mo + 1] * x + model[mo + 5] * y + model[mo + 9] * z + model[mo + 13];
+			float wz = model[mo + 2] * x + model[mo + 6] * y + model[mo + 10] * z + model[mo + 14];
+
+			// clip = lightVP * world
+			float[] l = mLightVP;
+			float cx = l[0] * wx + l[4] * wy + l[8] * wz + l[12];
+			float cy = l[1] * wx + l[5] * wy + l[9] * wz + l[13];
+			float cw = l[3] * wx + l[7] * wy + l[11] * wz + l[15];
+			if (cw <= 0.0f) {
+				behind = true;
+				break;
+			}
+			minX = Math.min(minX, cx / cw);
+			minY = Math.min(minY, cy / cw);
+			maxX = Math.max(maxX, cx / cw);
+			maxY = Math.max(maxY, cy / cw);
+		}
+
+		if (behind) {
+			minX = minY = -1.0f;
+			maxX = maxY = 1.0f;
+		}
+		out[o] = Math.max(minX, -1.0f);
+		out[o + 1] = Math.max(minY, -1.0f);
+		out[o + 2] = Math.min(maxX, 1.0f);
+		out[o + 3] = Math.min(maxY, 1.0f);
+	}
+
+	private static boolean equals(float[] a, int offset, float[] b, int bOffset) {
+		for (int i = 0; i < 16; i++) {
+			if (a[offset + i] != b[bOffset + i])
+				return false;
+		}
+		return true;
+	}
+
+	private final float[] mLightVP = new float[16];
+	private final float[] mModels;
+	private final float[] mRects;
+	private final boolean[] mKnown;
+	private boolean mFullUpdate;
+	private float mDirtyMinX, mDirtyMinY, mDirtyMaxX, mDirtyMaxY;
+}
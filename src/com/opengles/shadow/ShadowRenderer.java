@@ -16,14 +16,29 @@
 
 package com.opengles.shadow;
 
+import java.io.File;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
 import java.nio.FloatBuffer;
-import java.nio.IntBuffer;
 import java.nio.ShortBuffer;
-
+import java.util.concurrent.ExecutionException;
+
+import com.openglesbook.common.ESCommandBuffer;
+import com.openglesbook.common.ESCommandRecorder;
+import com.openglesbook.common.ESFrameStats;
+import com.openglesbook.common.ESGL;
+import com.openglesbook.common.ESGLES20;
+import com.openglesbook.common.ESGpuTimer;
+import com.openglesbook.common.ESMatrix;
+import com.openglesbook.common.ESProgram;
+import com.openglesbook.common.ESProgramCache;
+import com.openglesbook.common.ESLodChain;
 import com.openglesbook.common.ESShapes;
-import com.openglesbook.common.ESShader;
+import com.openglesbook.common.ESShaderCompiler;
+import com.openglesbook.common.ESStateCache;
+import com.openglesbook.common.ESTripleBuffer;
+import com.openglesbook.common.ESVertexFormat;
+import com.openglesbook.common.ESWorker;
 //import com.openglesbook.common.ESTransform;
 
 import javax.microedition.khronos.egl.EGLConfig;
@@ -32,19 +47,366 @@ import javax.microedition.khronos.opengles.GL10;
 import android.content.Context;
 import android.opengl.GLES20;
 import android.opengl.GLSurfaceView;
-import android.opengl.Matrix;
+import android.os.Debug;
 import android.os.SystemClock;
 import android.util.Log;
 
 public class ShadowRenderer implements GLSurfaceView.Renderer
 {
+    ///
+    // Shadow map resolution presets, independent of the window size
+    //
+    public enum ShadowQuality
+    {
+        LOW(512), MEDIUM(1024), HIGH(2048);
+
+        ShadowQuality(int size)
+        {
+            this.size = size;
+        }
+
+        public final int size;
+    }
+
+    ///
+    // Shadow test filters. The grid kernels average n x n compares one
+    // texel apart; POISSON spreads 12 taps over a disk that is rotated per
+    // pixel, which turns the banding of a small grid into noise.
+    //
+    public enum ShadowFilter
+    {
+        HARD(1, false), PCF_4(4, false), PCF_9(9, false), PCF_16(16, false),
+        POISSON(12, true);
+
+        ShadowFilter(int taps, boolean poisson)
+        {
+            this.taps = taps;
+            this.poisson = poisson;
+        }
+
+        public final int taps;
+        public final boolean poisson;
+    }
+
+    ///
+    // Shadow settings per device class. Filter taps are cheaper than
+    // resolution, so the upper tiers buy softer edges before more texels.
+    //
+    public enum DeviceTier
+    {
+        LOW(ShadowQuality.LOW, ShadowFilter.PCF_4),
+        MID(ShadowQuality.MEDIUM, ShadowFilter.PCF_9),
+        HIGH(ShadowQuality.MEDIUM, ShadowFilter.POISSON);
+
+        DeviceTier(ShadowQuality quality, ShadowFilter filter)
+        {
+            this.quality = quality;
+            this.filter = filter;
+        }
+
+        ///
+        // Classify a device by the per-application heap limit, in megabytes,
+        // from ActivityManager.getMemoryClass()
+        //
+        public static DeviceTier fromMemoryClass(int memoryClass)
+        {
+            if (memoryClass <= 48)
+                return LOW;
+            if (memoryClass <= 128)
+                return MID;
+            return HIGH;
+        }
+
+        public final ShadowQuality quality;
+        public final ShadowFilter filter;
+    }
 
     ///
     // Constructor
     //
     public ShadowRenderer(Context context)
     {
+        this(context, new ESGLES20());
+    }
+
+    ShadowRenderer(Context context, ESGL gl)
+    {
+        mStateCache = new ESStateCache(gl);
+        mRecorder = new ESCommandRecorder(mStateCache);
+        mGL = mRecorder;
+        mFrames = new ESTripleBuffer<PreparedFrame>(new PreparedFrame(),
+                new PreparedFrame(), new PreparedFrame());
+        mFramePrep = new ESWorker("ShadowFramePrep");
+        mProgramCacheDir = context != null ? new File(context.getCacheDir(), "programs") : null;
+        buildScene();
+        // the meshes take no GL calls; build them while the surface is
+        // being set up
+        mFramePrep.post(mBuildMeshes);
+    }
+
+    ///
+    // Generate the vertex data: the cube, and the light marker sphere at
+    // decreasing tessellations. Runs once on the frame preparation thread;
+    // the levels are built inline since that thread is this task's.
+    //
+    private final Runnable mBuildMeshes = new Runnable()
+    {
+        public void run()
+        {
+            mCube.genCube(2.0f);
+            mSphereLods = ESLodChain.genSpheres(SPHERE_LOD_SLICES, 0.1f, null);
+        }
+    };
+
+    ///
+    // Scene: the floor, a rotating group of cubes and a marker at the light.
+    // The cubes are laid out on a grid that keeps the footprint of the
+    // single cube.
+    //
+    private void buildScene()
+    {
+        mScene = new SceneGraph(3 + mCubeCount);
+        mFloorNode = mScene.addNode(SceneGraph.NO_PARENT, DRAWABLE_FLOOR);
+        mCubeNode = mScene.addNode(SceneGraph.NO_PARENT, DRAWABLE_NONE);
+
+        int columns = ShadowCascades.getAtlasColumns(mCubeCount);
+        float scale = 1.0f / columns;
+        for (int i = 0; i < mCubeCount; i++)
+        {
+            int node = mScene.addNode(mCubeNode, DRAWABLE_CUBE);
+            float x = (i % columns - (columns - 1) * 0.5f) * 2.5f * scale;
+            float z = (i / columns - (columns - 1) * 0.5f) * 2.5f * scale;
+            ESMatrix.setIdentityM(mModelMatrix, 0);
+            ESMatrix.translateM(mModelMatrix, 0, x, 0.0f, z);
+            ESMatrix.scaleM(mModelMatrix, 0, scale, scale, scale);
+            mScene.setLocalMatrix(node, mModelMatrix, 0);
+        }
+        mLightNode = mScene.addNode(SceneGraph.NO_PARENT, DRAWABLE_LIGHT);
+
+        int count = mScene.getNodeCount();
+        for (int i = 0; i < MAX_VIEWS; i++)
+            mShadowTrackers[i] = new ShadowCasterTracker(count);
+        mNodeBoxes = new float[count * 6];
+        mNodeSpheres = new float[count * 4];
+        mCasterVisible = new boolean[MAX_VIEWS * count];
+        mDrawInclude = new boolean[count];
+    }
+
+    ///
+    // Set the number of cubes, drawn as one batch. Must be called before
+    // the surface is created.
+    //
+    public void setCubeCount(int count)
+    {
+        if (count < 1)
+            throw new IllegalArgumentException("Cube count out of range: " + count);
+        mCubeCount = count;
+        buildScene();
+    }
+
+    ///
+    // Stop the frame preparation thread once the renderer is no longer
+    // drawn, for instance when its activity is destroyed. A frame being
+    // prepared is finished first; no frames can be drawn afterwards.
+    //
+    public void release()
+    {
+        mFramePrep.quit();
+    }
+
+    ///
+    // Draw calls issued by the last completed frame
+    //
+    public int getDrawCallCount()
+    {
+        return mLastDrawCalls;
+    }
+
+    ///
+    // GL calls the last frame issued, and the ones the state cache dropped
+    // because they would not have changed anything
+    //
+    public int getGLCallCount()
+    {
+        return mLastGLCalls;
+    }
 
+    public int getSuppressedGLCallCount()
+    {
+        return mLastSuppressedGLCalls;
+    }
+
+    ///
+    // Per-frame samples laid out as in ShadowStats: CPU time per phase, GPU
+    // time per pass, draw, GL call and allocation counts, GL errors. Read
+    // them from any thread; the GL thread never waits for readers.
+    //
+    public ESFrameStats getFrameStats()
+    {
+        return mStats;
+    }
+
+    ///
+    // Count the allocations made between frames. The counter is process
+    // wide and has a cost of its own, so it is off unless asked for.
+    //
+    // deprecated in API 23 for Debug.getRuntimeStat(), absent from android-18
+    @SuppressWarnings("deprecation")
+    public void setAllocationCounting(boolean enable)
+    {
+        if (enable == mCountAllocations)
+            return;
+        if (enable)
+        {
+            Debug.resetGlobalAllocCount();
+            Debug.startAllocCounting();
+            mLastAllocCount = 0;
+        }
+        else
+        {
+            Debug.stopAllocCounting();
+        }
+        mCountAllocations = enable;
+    }
+
+    private boolean isShadowCaster(int node)
+    {
+        int drawable = mScene.getDrawable(node);
+        return drawable == DRAWABLE_FLOOR || drawable == DRAWABLE_CUBE;
+    }
+
+    ///
+    // Whether a caster belongs in the current light pass: inside the light
+    // frustum, and with a shadow that can reach the camera frustum. The
+    // shadow is bounded by the caster's sphere swept away from the light.
+    //
+    private boolean isCasterVisible(int node, int light)
+    {
+        int o = node * 4;
+        if (!mLightCuller.isSphereVisible(mNodeSpheres, o)
+                || !mLightCuller.isBoxVisible(mNodeBoxes, node * 6))
+            return false;
+
+        int l = light * 3;
+        float dx = mNodeSpheres[o] - mLightPositions[l];
+        float dy = mNodeSpheres[o + 1] - mLightPositions[l + 1];
+        float dz = mNodeSpheres[o + 2] - mLightPositions[l + 2];
+        float len = (float) Math.sqrt(dx * dx + dy * dy + dz * dz);
+        if (len <= mNodeSpheres[o + 3])
+            return true; // the light is inside the caster
+        return mCameraCuller.isSweptSphereVisible(mNodeSpheres, o,
+                dx / len, dy / len, dz / len, SHADOW_REACH);
+    }
+
+    private float[] getBoundingSphere(int node)
+    {
+        switch (mScene.getDrawable(node))
+        {
+        case DRAWABLE_FLOOR:
+            return mFloorSphere;
+        case DRAWABLE_CUBE:
+            return mCubeSphere;
+        default:
+            return mSphereSphere;
+        }
+    }
+
+    private float[] getBounds(int node)
+    {
+        switch (mScene.getDrawable(node))
+        {
+        case DRAWABLE_FLOOR:
+            return mFloorBounds;
+        case DRAWABLE_CUBE:
+            return mCubeBounds;
+        default:
+            return mSphereBounds;
+        }
+    }
+
+    ///
+    // Select the number of shadow cascades, 1 to MAX_CASCADES. With more
+    // than one, the camera frustum is split into depth ranges that each get
+    // a tile of the shadow map. Must be called before the surface is created.
+    //
+    public void setCascadeCount(int count)
+    {
+        if (count < 1 || count > MAX_CASCADES)
+            throw new IllegalArgumentException("Cascade count out of range: " + count);
+        mCascadeCount = count;
+    }
+
+    ///
+    // Select the number of shadow-casting lights, 1 to MAX_LIGHTS. Light 0
+    // gets the cascades; each further light casts one perspective shadow
+    // from its position towards the origin. All of them share the shadow
+    // map as an atlas, sized per light by how much of the screen it
+    // reaches. Must be called before the surface is created.
+    //
+    public void setLightCount(int count)
+    {
+        if (count < 1 || count > MAX_LIGHTS)
+            throw new IllegalArgumentException("Light count out of range: " + count);
+        mLightCount = count;
+    }
+
+    ///
+    // Place a light and set its color and range, the distance within which
+    // it counts towards the atlas budget. Must be called before the surface
+    // is created.
+    //
+    public void setLight(int light, float[] position, float[] color, float range)
+    {
+        if (light < 0 || light >= MAX_LIGHTS)
+            throw new IllegalArgumentException("Light out of range: " + light);
+        System.arraycopy(position, 0, mLightPositions, light * 3, 3);
+        System.arraycopy(color, 0, mLightColors, light * 4, 4);
+        mLightRanges[light] = range;
+    }
+
+    ///
+    // Mark a light whose shadows change slowly. Such lights take turns
+    // redrawing their shadows, one per frame, instead of redrawing whenever
+    // a caster moves; a stale shadow lasts a few frames at most. By default
+    // every light but light 0 is slow.
+    //
+    public void setLightSlow(int light, boolean slow)
+    {
+        if (light < 0 || light >= MAX_LIGHTS)
+            throw new IllegalArgumentException("Light out of range: " + light);
+        mLightSlow[light] = slow;
+    }
+
+    ///
+    // Select the shadow test filter. The eye program is generated for it,
+    // so this must be called before the surface is created.
+    //
+    public void setShadowFilter(ShadowFilter filter)
+    {
+        mShadowFilter = filter;
+    }
+
+    ///
+    // Apply the shadow map resolution and filter of a device tier
+    //
+    public void setDeviceTier(DeviceTier tier)
+    {
+        setShadowQuality(tier.quality);
+        setShadowFilter(tier.filter);
+    }
+
+    ///
+    // Select the shadow map resolution. Takes effect on the next frame and
+    // may be called from any thread.
+    //
+    public void setShadowQuality(ShadowQuality quality)
+    {
+        mRequestedShadowMapSize = quality.size;
+    }
+
+    public int getShadowMapSize()
+    {
+        return mShadowMapSize;
     }
 
     ///
@@ -52,110 +414,149 @@ public class ShadowRenderer implements GLSurfaceView.Renderer
     //
     public void onSurfaceCreated(GL10 glUnused, EGLConfig config)
     {
-        String vShaderStr = 
-        		"uniform mat4 uMVPMatrix;                   \n"
-                + "uniform mat4 uMVMatrix;                  \n"
-                + "uniform mat4 uVMatrix;                   \n"  //view
-                + "uniform mat4 uMMatrix;                   \n"  //model
-                + "uniform mat4 uNormalMatrix;              \n"
-                + "attribute vec4 aPosition;                \n"
-                + "attribute vec3 aVertexNormal;            \n"
-                + "varying vec4 vProjectPosition;                	\n"
-                + "varying vec4 vEyePosition;                	\n"
-                + "varying vec4 vWorldPosition;                	\n"
-                + "varying vec3 vNormal;                		\n"
-                + "void main()                              \n"
-                + "{                                        \n"
-                + "   gl_Position = uMVPMatrix * aPosition;  	\n"
-                + "   vNormal = normalize(mat3(uNormalMatrix) * aVertexNormal);  \n"
-                + "   vWorldPosition = uMMatrix * aPosition;  		\n"
-                + "   vEyePosition = uMVMatrix * aPosition;  		\n"
-                + "   vProjectPosition = uMVPMatrix * aPosition;    \n"
-                + "}                                            \n";
-
-        String fShaderStr = 
-        		"precision mediump float;                  \n"
-                + "uniform vec4 uVertexColor;             \n"
-                + "uniform vec4 uLightColor;               \n"
-                + "uniform vec3 uLightPosition;            \n"
-                + "uniform vec3 uEyePosition;              \n"
-                + "uniform mat4 uVMatrix;                  \n"
-                + "uniform mat4 uShadowMatrix;                  \n"
-                + "uniform mat4 uBiasMatrix;                  \n"
-                + "varying vec4 vProjectPosition;                \n"
-                + "varying vec4 vEyePosition;                	\n"
-                + "varying vec4 vWorldPosition;                	\n"
-                + "varying vec3 vNormal;                		\n"
-                + "uniform sampler2D uLightMap;                       \n"
-                + "void main()                                         \n"
-                + "{                                                   \n"
-                + "  float isUnShadowed = 1.0;		      \n"
-                + "  vec4 shadowCoord = uShadowMatrix * vWorldPosition; 		      \n"
-                + "  vec3 lightDirection = vec3(uVMatrix*vec4(uLightPosition,1) - vEyePosition);  \n"
-                + "  float lightDistance = length(lightDirection); 		      \n"
-                + "  lightDirection = lightDirection / lightDistance;  \n"
-                + "  float attenuation = 1.0 / (1.0 + 0.5 * lightDistance + 0.25 * lightDistance * lightDistance);  \n"
-                + "  vec3 halfVector = normalize(lightDirection + uEyePosition);  \n"
-                + "  float diffuse = max(0.0, dot(vNormal, lightDirection));  \n"
-                + "  float specular = max(0.0, dot(vNormal, halfVector));  \n"
-                + "  if (diffuse > 0.0)  									\n"
-                + "  	specular = pow(specular, 1.0)*12.0;  				\n"
-                + "  else  													\n"
-                + "  	specular = 0.0;  									\n"
-                + "  vec3 scatteredLight = uVertexColor.rgb * vec3(uLightColor) * diffuse * attenuation ;  \n"
-                + "  vec3 reflectedLight = vec3(uLightColor) * specular * attenuation;  \n"
-                + "  vec3 ambientLight = uVertexColor.rgb * vec3(0.3);  \n"
-				+ "  vec4 texCoord = shadowCoord / shadowCoord.w;				\n"
-                + "  vec4 depthColor = texture2D(uLightMap, vec2(uBiasMatrix*texCoord));  \n"
-                + "  float depth =  depthColor.r + depthColor.g/256.0  + depthColor.b /(256.0*256.0) + depthColor.a/(256.0*256.0*256.0); \n"
-                + "  if ( shadowCoord.z / shadowCoord.w > depth && depth > 0.01)  \n"
-                + "     isUnShadowed = 0.0;  \n"
-                + "  vec3 rgb = min(ambientLight + isUnShadowed*(scatteredLight + reflectedLight), vec3(1.0));  \n"
-               + "  gl_FragColor = vec4(rgb, uVertexColor.a); 					       \n"
-//                + "  depth = shadowCoord.z / shadowCoord.w;	\n"
-//                + "  gl_FragColor = vec4(0.0 + depth, 0.0+depth, 0.0+depth, 0.0+depth);	\n"
-//              + "  gl_FragColor = depthColor;	\n"
-                + "}                                                   \n";
-
-        // Load the shaders and get a linked program object
-        mProgramObject = ESShader.loadProgram(vShaderStr, fShaderStr);
+        // GL objects and state from a previous context are gone, and so are
+        // the frames recorded against them
+        finishFramePrep();
+        mGeneration++;
+        mStateCache.invalidate();
+        mShadowMapTexture[0] = 0;
+        mShadowDepthBuffer[0] = 0;
+        fb[0] = 0;
+        mAllocatedShadowMapSize = 0;
+        invalidateShadowViews();
+        // queries of the old context went with it
+        mGpuTimer = ESGpuTimer.isSupported() ? new ESGpuTimer(GPU_PASSES) : null;
+        GLES20.glGetIntegerv(GLES20.GL_MAX_TEXTURE_SIZE, mIntParam, 0);
+        mMaxTextureSize = mIntParam[0];
+
+        // Render depth straight into a depth texture where the driver can
+        // sample one, otherwise pack it into an RGBA8 color target
+        mPackedDepth = !supportsDepthTexture(GLES20.glGetString(GLES20.GL_EXTENSIONS));
+
+        // Load the shaders and get a linked program object. Programs of a
+        // previous context died with it, so the in-memory cache starts over;
+        // the binaries on disk carry across contexts and launches.
+        mProgramCache = new ESProgramCache(new ESShaderCompiler(), mProgramCacheDir,
+                ESShaderCompiler.getDriverId());
+        mDepthProgramObject = mProgramCache.getProgram(ShadowShaders.depthVertexShader(false),
+                ShadowShaders.depthFragmentShader(mPackedDepth));
+        initDepthShaderProgram();
+        mProgramObject = mProgramCache.getProgram(ShadowShaders.eyeVertexShader(false),
+                ShadowShaders.eyeFragmentShader(mCascadeCount, mLightCount, mPackedDepth,
+                        mShadowFilter));
         initEyeShaderProgram();
 
-        // Generate the vertex data
-        mCube.genCube(2.0f);
-        mSphere.genSphere(12, 0.1f);
+        // Repeated meshes are drawn instanced where the context is ES 3.0,
+        // and from CPU-merged buffers otherwise
+        boolean instanced = ESGLES20.isES30Context();
+        if (instanced)
+        {
+            mDepthInstancedProgram = new ESProgram(mGL, mProgramCache.getProgram(
+                    ShadowShaders.depthVertexShader(true),
+                    ShadowShaders.depthFragmentShader(mPackedDepth)),
+                    DEPTH_INSTANCED_ATTRIBS, DEPTH_INSTANCED_UNIFORMS);
+            mEyeInstancedProgram = new ESProgram(mGL, mProgramCache.getProgram(
+                    ShadowShaders.eyeVertexShader(true),
+                    ShadowShaders.eyeFragmentShader(mCascadeCount, mLightCount, mPackedDepth,
+                            mShadowFilter)),
+                    EYE_INSTANCED_ATTRIBS, EYE_INSTANCED_UNIFORMS);
+            mDepthInstancedLocs = new ProgramLocations(mDepthInstancedProgram);
+            mEyeInstancedLocs = new ProgramLocations(mEyeInstancedProgram);
+        }
+
+        // Vertex data from the constructor's task. Upload it once; this
+        // runs again after a context loss, when the previous buffer objects
+        // are gone with the old context
+        waitForMeshes();
+        mCube.createBuffers(mGL);
+        mSphereLods.createBuffers(mGL);
+        mSquare   = new Square(mEyeProgram, mDepthProgram, mGL);
+
+        // Local bounds of the drawables for culling and the shadow map
+        // dirty tracking
+        mCube.getBoundingBox(mCubeBounds);
+        mCube.getBoundingSphere(mCubeSphere);
+        mSquare.getBoundingBox(mFloorBounds);
+        FrustumCuller.sphereFromBox(mFloorBounds, mFloorSphere);
+        // the finest level bounds the coarser ones closely enough
+        mSphereLods.getLevel(0).getBoundingBox(mSphereBounds);
+        mSphereLods.getLevel(0).getBoundingSphere(mSphereSphere);
+
+        // One batch for all the cubes
+        mBatcher = new DrawBatcher(mGL, mScene, instanced);
+        int cubes = mBatcher.addBatch(mCube, cubeColor);
+        for (int node = 0; node < mScene.getNodeCount(); node++)
+        {
+            if (mScene.getDrawable(node) == DRAWABLE_CUBE)
+                mBatcher.addNode(cubes, node);
+        }
+        mBatcher.createBuffers();
+
+        // Scene node transforms
+        ESMatrix.setIdentityM(mModelMatrix, 0);
+        ESMatrix.scaleM(mModelMatrix, 0, 3f, 1f, 4f);
+        ESMatrix.translateM(mModelMatrix, 0, floorCoords[0], floorCoords[1], floorCoords[2]);
+        mScene.setLocalMatrix(mFloorNode, mModelMatrix, 0);
+
+        ESMatrix.setIdentityM(mModelMatrix, 0);
+        ESMatrix.translateM(mModelMatrix, 0, mLightPositions[0], mLightPositions[1],
+                mLightPositions[2]);
+        mScene.setLocalMatrix(mLightNode, mModelMatrix, 0);
+
         // Starting rotation angle for the cube
         mAngle = 45.0f;
+        ESMatrix.setRotateM(mModelMatrix, 0, mAngle, 0, 1.0f, 0.0f);
+        mScene.setLocalMatrix(mCubeNode, mModelMatrix, 0);
+    }
 
-        mSquare   = new Square(mProgramObject);
+    private void initDepthShaderProgram()
+    {
+        mDepthProgram = new ESProgram(mGL, mDepthProgramObject, DEPTH_ATTRIBS, DEPTH_UNIFORMS);
+        mDepthPositionLoc = mDepthProgram.getAttribLocation("aPosition");
+        mDepthMVPLoc = mDepthProgram.getUniformLocation("uMVPMatrix");
     }
 
     private void initEyeShaderProgram()
     {
+        // Resolve every location once; drawables read them from mEyeProgram
+        mEyeProgram = new ESProgram(mGL, mProgramObject, EYE_ATTRIBS, EYE_UNIFORMS);
+
         // Use the program object
-        GLES20.glUseProgram(mProgramObject);
+        mEyeProgram.use();
 
         // Get the attribute locations
-        mPositionLoc = GLES20.glGetAttribLocation(mProgramObject, "aPosition");
-        mNormalLoc = GLES20.glGetAttribLocation(mProgramObject, "aVertexNormal");
-        mColorLoc = GLES20.glGetUniformLocation(mProgramObject, "uVertexColor");
-        //mColorLoc = GLES20.glGetAttribLocation(mProgramObject, "uVertexColor");
+        mPositionLoc = mEyeProgram.getAttribLocation("aPosition");
+        mNormalLoc = mEyeProgram.getAttribLocation("aVertexNormal");
+        mColorLoc = mEyeProgram.getUniformLocation("uVertexColor");
 
         // Get the uniform locations
-        mMVPLoc = GLES20.glGetUniformLocation(mProgramObject, "uMVPMatrix");
-        mMVLoc = GLES20.glGetUniformLocation(mProgramObject, "uMVMatrix");
-        mNormalMatrixLoc = GLES20.glGetUniformLocation(mProgramObject, "uNormalMatrix");
-        mVLoc = GLES20.glGetUniformLocation(mProgramObject, "uVMatrix");
-        mMLoc = GLES20.glGetUniformLocation(mProgramObject, "uMMatrix");
-        mShadowMatrixLoc = GLES20.glGetUniformLocation(mProgramObject, "uShadowMatrix");
-        mBiasMatrixLoc = GLES20.glGetUniformLocation(mProgramObject, "uBiasMatrix");
-        mLightColorLocation  = GLES20.glGetUniformLocation(mProgramObject, "uLightColor");
-        mLightPositionLocation  = GLES20.glGetUniformLocation(mProgramObject, "uLightPosition");
-        mEyePositionLocation  = GLES20.glGetUniformLocation(mProgramObject, "uEyePosition");
-
-        // Get the sampler locations
-        mShadowMapLocation = GLES20.glGetUniformLocation ( mProgramObject, "uLightMap" );
+        mMVPLoc = mEyeProgram.getUniformLocation("uMVPMatrix");
+        mMVLoc = mEyeProgram.getUniformLocation("uMVMatrix");
+        mNormalMatrixLoc = mEyeProgram.getUniformLocation("uNormalMatrix");
+        mMLoc = mEyeProgram.getUniformLocation("uMMatrix");
+
+        // and the per-frame ones, shared with the instanced program
+        mEyeLocs = new ProgramLocations(mEyeProgram);
+    }
+
+    ///
+    // Make an eye program current and load the uniforms shared by every
+    // object of the frame, at the locations resolved for that program
+    //
+    private void setEyeUniforms(ESProgram program, ProgramLocations locs)
+    {
+        program.use();
+        program.setVec4Array(locs.lightColors, mLightCount, mLightColors);
+        program.setVec3Array(locs.lightPositions, mLightCount, mLightPositions);
+        program.setVec3(locs.eyePosition, eyeCoords);
+        program.setMatrix4(locs.viewMatrix, mViewMatrix);
+        program.setInt(locs.lightMap, 0);
+        program.setFloat(locs.shadowTexelSize, 1.0f / mShadowMapSize);
+        program.setMatrix4Array(locs.shadowMatrices, getViewCount(), mShadowMatrices);
+        program.setVec4Array(locs.shadowRects, getViewCount(), mShadowRects);
+        program.setFloatArray(locs.cascadeSplits, mCascadeCount, mCascadeSplits);
     }
+
     private void update()
     {
         if (mLastTime == 0)
@@ -171,192 +572,610 @@ public class ShadowRenderer implements GLSurfaceView.Renderer
         mAngle += (deltaTime * 40.0f);
         if (mAngle >= 360.0f)
             mAngle -= 360.0f;
+        ESMatrix.setRotateM(mModelMatrix, 0, mAngle, 0, 1.0f, 0.0f);
+        mScene.setLocalMatrix(mCubeNode, mModelMatrix, 0);
+        mScene.update();
+        mBatcher.update();
+
+        // World bounds of the nodes that moved
+        float[] world = mScene.getWorldMatrices();
+        for (int node = 0; node < mScene.getNodeCount(); node++)
+        {
+            if (mScene.isChanged(node))
+                FrustumCuller.transformBounds(world, node * 16, getBounds(node),
+                        getBoundingSphere(node), mNodeBoxes, node * 6, mNodeSpheres, node * 4);
+        }
     }
 
     ///
-    // Draw a triangle using the shader pair created in onSurfaceCreated()
+    // Draw the newest frame the worker thread has prepared, and have it
+    // prepare the next one meanwhile. Without a new frame the last one is
+    // drawn again.
+    //
+    // The worker prepares one frame at a time. Before a fresh frame is
+    // drawn, this thread waits on the worker's monitor for the task that
+    // published it to return, and only then posts the next frame, which is
+    // prepared while this one replays. The handoff is a blocking one; its
+    // wait is short because the task has published already.
     //
     public void onDrawFrame(GL10 glUnused)
     {
-        // Use the program object
-        GLES20.glUseProgram(mProgramObject);
+        long start = System.nanoTime();
+        boolean fresh = mFrames.acquire();
+        PreparedFrame frame = mFrames.getFront();
+        if (frame == null || frame.generation != mGeneration)
+        {
+            // nothing recorded for this surface yet, prepare one and wait
+            finishFramePrep();
+            startFramePrep();
+            finishFramePrep();
+            fresh = mFrames.acquire();
+            frame = mFrames.getFront();
+        }
+        if (fresh)
+        {
+            // the task that published this frame is done or about to be;
+            // only one frame is in flight, so none is ever overwritten
+            // before it was drawn
+            finishFramePrep();
+            startFramePrep();
+        }
+
+        setupDepthTexture(frame.shadowMapSize);
+        mStateCache.resetCounters();
+        long replayStart = System.nanoTime();
+        frame.commands.replay(mStateCache);
+        long replayNanos = System.nanoTime() - replayStart;
+		checkGlError("onDrawFrame");
+
+        mLastDrawCalls = frame.drawCalls;
+        mLastGLCalls = mStateCache.getIssuedCount();
+        mLastSuppressedGLCalls = mStateCache.getSuppressedCount();
+
+        // a frame drawn again has issued its queries already
+        boolean gpuTimes = fresh && mGpuTimer != null && frame.timed
+                && mGpuTimer.collect(frame.index);
+        writeFrameStats(frame, fresh, gpuTimes, start, replayNanos);
+    }
 
-        update();
+    ///
+    // Append the sample of the frame just drawn to mStats. Values that are
+    // not known for this frame are -1: worker phases when the frame was
+    // drawn again, GPU times until a result comes back, allocations when
+    // not counted.
+    //
+    private void writeFrameStats(PreparedFrame frame, boolean fresh, boolean gpuTimes,
+            long start, long replayNanos)
+    {
+        long[] sample = mSample;
+        sample[ShadowStats.FRAME_NS] = mLastFrameStart != 0 ? start - mLastFrameStart : -1;
+        mLastFrameStart = start;
+        sample[ShadowStats.UPDATE_NS] = fresh ? frame.updateNanos : -1;
+        sample[ShadowStats.SHADOW_PASS_NS] = fresh ? frame.shadowNanos : -1;
+        sample[ShadowStats.EYE_PASS_NS] = fresh ? frame.eyeNanos : -1;
+        sample[ShadowStats.REPLAY_NS] = replayNanos;
+        sample[ShadowStats.GPU_SHADOW_PASS_NS] = gpuTimes ? mGpuTimer.getNanos(GPU_SHADOW_PASS) : -1;
+        sample[ShadowStats.GPU_EYE_PASS_NS] = gpuTimes ? mGpuTimer.getNanos(GPU_EYE_PASS) : -1;
+        sample[ShadowStats.DRAW_CALLS] = frame.drawCalls;
+        sample[ShadowStats.GL_CALLS] = mLastGLCalls;
+        sample[ShadowStats.GL_CALLS_SUPPRESSED] = mLastSuppressedGLCalls;
+        sample[ShadowStats.ALLOCATIONS] = -1;
+        if (mCountAllocations)
+        {
+            // everything allocated since the previous frame, on any thread
+            int count = getGlobalAllocCount();
+            sample[ShadowStats.ALLOCATIONS] = count - mLastAllocCount;
+            mLastAllocCount = count;
+        }
+        sample[ShadowStats.GL_ERRORS] = mGlErrors;
+        mGlErrors = 0;
+        mStats.write(sample);
+    }
 
-        prepareDrawDepthBuffer();
-        GLES20.glUniform3fv(mEyePositionLocation, 1, lightCoords, 0);
-        drawFloor(mLightViewMatrix, mLightProjectionMatrix);
-        drawCube(mLightViewMatrix, mLightProjectionMatrix);
-        drawDepthBuffer();
+    // See setAllocationCounting()
+    @SuppressWarnings("deprecation")
+    private static int getGlobalAllocCount()
+    {
+        return Debug.getGlobalAllocCount();
+    }
 
-		GLES20.glBindFramebuffer(GLES20.GL_FRAMEBUFFER, 0);
-        // Clear the color buffer
-        GLES20.glClear(GLES20.GL_COLOR_BUFFER_BIT|GLES20.GL_DEPTH_BUFFER_BIT);
-/*
-        GLES20.glActiveTexture ( GLES20.GL_TEXTURE0 );
-        GLES20.glBindTexture ( GLES20.GL_TEXTURE_2D, mShadowMapTexture[0] );
-        GLES20.glUniform1i ( mShadowMapLocation, 0 );
-        GLES20.glUniform3fv(mEyePositionLocation, 1, lightCoords, 0);
-        drawFloor(mLightViewMatrix, mLightProjectionMatrix);
-        drawCube(mLightViewMatrix, mLightProjectionMatrix);
-*/
-        GLES20.glUniform3fv(mEyePositionLocation, 1, eyeCoords, 0);
-        GLES20.glActiveTexture ( GLES20.GL_TEXTURE0 );
-        GLES20.glBindTexture ( GLES20.GL_TEXTURE_2D, mShadowMapTexture[0] );
-        GLES20.glUniform1i ( mShadowMapLocation, 0 );
-
-        drawFloor(mViewMatrix, mProjectionMatrix);
-        drawCube(mViewMatrix, mProjectionMatrix);
-//        drawLightSource(mViewMatrix, mProjectionMatrix);
-		checkGlError("glFramebufferTexture2D depth");
-
-    }
-
-    private void drawCube(float[] viewMatrix, float[] projectionMatrix)
-    {
-        // Rotate the cube
-        float[] rotate = new float[16];
-        Matrix.setRotateM(rotate, 0, mAngle, 0, 1.0f, 0.0f);
-
-        // Combine the rotation matrix with the projection and camera view
-        // Note that the mMVPMatrix factor *must be first* in order
-        // for the matrix multiplication product to be correct.
-        float[] MVPMatrix = new float[16];
-        float[] MVMatrix = new float[16];
-        Matrix.multiplyMM(MVMatrix, 0, viewMatrix, 0, rotate, 0);
-        Matrix.multiplyMM(MVPMatrix, 0, projectionMatrix, 0, MVMatrix, 0);
-
-        GLES20.glUniformMatrix4fv(mMVLoc, 1, false, MVMatrix, 0);
-        GLES20.glUniformMatrix4fv(mVLoc, 1, false, viewMatrix, 0);
-        GLES20.glUniformMatrix4fv(mMLoc, 1, false, rotate, 0);
-
-        float[] NormalMatrix = new float[16];
-        float[] inverse = new float[16];
-        Matrix.invertM(inverse, 0, MVMatrix, 0);
-        Matrix.transposeM(NormalMatrix, 0, inverse, 0);
-        GLES20.glUniformMatrix4fv(mNormalMatrixLoc, 1, false, NormalMatrix, 0);
-
-          // Load the vertex data
-          GLES20.glVertexAttribPointer(mPositionLoc, 3, GLES20.GL_FLOAT, false,
-                  0, mCube.getVertices());
-
-          GLES20.glEnableVertexAttribArray(mPositionLoc);
-
-          // Prepare the triangle coordinate data
-          GLES20.glVertexAttribPointer(
-                  mNormalLoc, 3,
-                  GLES20.GL_FLOAT, false,
-                  0, mCube.getNormals());
-          // Enable a handle to the triangle vertices
-          GLES20.glEnableVertexAttribArray(mNormalLoc);
-
-          // Load the MVP matrix
-          GLES20.glUniformMatrix4fv(mMVPLoc, 1, false, MVPMatrix, 0);
-
-          float cubeColor[] = {1.0f, 0.0f, 1.0f, 1.0f};
-          // Set color for drawing the triangle
-          GLES20.glUniform4fv(mColorLoc, 1, cubeColor, 0);
-          //GLES20.glVertexAttrib4fv(mColorLoc, cubeColor, 0);
-          //GLES20.glEnableVertexAttribArray(mColorLoc);
-          // Draw the cube
-          GLES20.glDrawElements(GLES20.GL_TRIANGLES, mCube.getNumIndices(),
-                  GLES20.GL_UNSIGNED_SHORT, mCube.getIndices());
-
-          GLES20.glDisableVertexAttribArray(mPositionLoc);
-          GLES20.glDisableVertexAttribArray(mNormalLoc);
-          //GLES20.glDisableVertexAttribArray(mColorLoc);
-    }
-
-    private void drawLightSource(float[] viewMatrix, float[] projectionMatrix)
-    {
-        float[] MVPMatrix = new float[16];
-        float[] model = new float[16];
-        float[] MVMatrix = new float[16];
-        float[] NormalMatrix = new float[16];
-
-        Matrix.setIdentityM(model, 0);
-        Matrix.translateM(model, 0, lightCoords[0], lightCoords[1], lightCoords[2]);
-
-        Matrix.multiplyMM(MVMatrix, 0, viewMatrix, 0, model, 0);
-        Matrix.multiplyMM(MVPMatrix, 0, projectionMatrix, 0, MVMatrix, 0);
-        GLES20.glUniformMatrix4fv(mMVLoc, 1, false, MVMatrix, 0);
-        GLES20.glUniformMatrix4fv(mVLoc, 1, false, viewMatrix, 0);
-        GLES20.glUniformMatrix4fv(mMLoc, 1, false, model, 0);
-
-        float[] inverse = new float[16];
-        Matrix.invertM(inverse, 0, MVMatrix, 0);
-        Matrix.transposeM(NormalMatrix, 0, inverse, 0);
-        GLES20.glUniformMatrix4fv(mNormalMatrixLoc, 1, false, NormalMatrix, 0);
-
-        // Load the vertex data
-        GLES20.glVertexAttribPointer(mPositionLoc, 3, GLES20.GL_FLOAT, false,
-                0, mSphere.getVertices());
-
-        GLES20.glEnableVertexAttribArray(mPositionLoc);
-
-        // Prepare the triangle coordinate data
-        GLES20.glVertexAttribPointer(
-                mNormalLoc, 3,
-                GLES20.GL_FLOAT, false,
-                0, mSphere.getNormals());
-        // Enable a handle to the triangle vertices
-        GLES20.glEnableVertexAttribArray(mNormalLoc);
+    // The mesh task is the first the worker runs, so no frame is pending
+    private void waitForMeshes()
+    {
+        if (mMeshesBuilt)
+            return;
+        try
+        {
+            mFramePrep.await();
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("Interrupted building meshes", e);
+        }
+        catch (ExecutionException e)
+        {
+            throw new RuntimeException("Mesh generation failed", e.getCause());
+        }
+        mMeshesBuilt = true;
+    }
 
-        // Load the MVP matrix
-        GLES20.glUniformMatrix4fv(mMVPLoc, 1, false, MVPMatrix, 0);
+    private void startFramePrep()
+    {
+        // after an interrupted wait the last frame may still be running;
+        // it publishes all the same
+        if (mFramePending)
+            return;
+        mFramePrep.post(mPrepareFrame);
+        mFramePending = true;
+    }
 
-        // Set color for drawing the triangle
-        GLES20.glUniform4fv(mColorLoc, 1, lightColor, 0);
+    // Wait for the frame being prepared, if any; worker failures surface
+    // here on the GL thread
+    private void finishFramePrep()
+    {
+        if (!mFramePending)
+            return;
+        try
+        {
+            mFramePrep.await();
+            mFramePending = false;
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+        }
+        catch (ExecutionException e)
+        {
+            mFramePending = false;
+            throw new RuntimeException("Frame preparation failed", e.getCause());
+        }
+    }
 
-        // Draw the cube
-        GLES20.glDrawElements(GLES20.GL_TRIANGLES, mSphere.getNumIndices(),
-                GLES20.GL_UNSIGNED_SHORT, mSphere.getIndices());
+    private final Runnable mPrepareFrame = new Runnable()
+    {
+        public void run()
+        {
+            prepareFrame();
+        }
+    };
 
-        GLES20.glDisableVertexAttribArray(mPositionLoc);
-        GLES20.glDisableVertexAttribArray(mNormalLoc);
+    ///
+    // Worker thread: animate, cull and record the GL calls of a frame into
+    // the back slot, then publish it
+    //
+    private void prepareFrame()
+    {
+        PreparedFrame frame = mFrames.getBack();
+        int size = Math.min(mRequestedShadowMapSize, mMaxTextureSize);
+        if (size != mShadowMapSize)
+        {
+            // the shadow map is reallocated before this frame is drawn
+            mShadowMapSize = size;
+            invalidateShadowViews();
+        }
+
+        mDrawCalls = 0;
+        mFrameIndex++;
+        mRecorder.begin(frame.commands);
+        try
+        {
+            recordFrame();
+        }
+        finally
+        {
+            mRecorder.end();
+        }
+        frame.shadowMapSize = mShadowMapSize;
+        frame.drawCalls = mDrawCalls;
+        frame.generation = mGeneration;
+        frame.index = mFrameIndex;
+        frame.timed = mGpuTimer != null;
+        frame.updateNanos = mUpdateNanos;
+        frame.shadowNanos = mShadowNanos;
+        frame.eyeNanos = mEyeNanos;
+        mFrames.publish();
     }
 
-    private void drawFloor(float[] viewMatrix, float[] projectionMatrix)
+    private void recordFrame()
     {
-        float[] MVPMatrix = new float[16];
-        float[] model = new float[16];
-        float[] MVMatrix = new float[16];
+        long time = System.nanoTime();
+        update();
+        long now = System.nanoTime();
+        mUpdateNanos = now - time;
+        time = now;
+
+        // Every timed pass is queried every frame, even when it draws
+        // nothing, so each set of queries is complete when read back
+        ESGpuTimer timer = mGpuTimer;
+        if (timer != null)
+            mGL.beginQuery(ESGpuTimer.GL_TIME_ELAPSED_EXT, timer.getQuery(mFrameIndex, GPU_SHADOW_PASS));
+        ESMatrix.multiplyMM(mViewProjMatrix, 0, mProjectionMatrix, 0, mViewMatrix, 0);
+        mCameraCuller.setMatrix(mViewProjMatrix, 0);
+        updateShadowViews();
+
+        // Track the casters of every shadow view, then pick the lights
+        // whose views are redrawn this frame
+        int views = getViewCount();
+        int count = mScene.getNodeCount();
+        float[] world = mScene.getWorldMatrices();
+        for (int i = 0; i < mLightCount; i++)
+        {
+            mLightNeedsUpdate[i] = false;
+            mLightMustUpdate[i] = false;
+        }
+        for (int v = 0; v < views; v++)
+        {
+            int light = getViewLight(v);
+            ShadowCasterTracker tracker = mShadowTrackers[v];
+            System.arraycopy(mShadowVPMatrices, v * 16, mShadowVPMatrix, 0, 16);
+            tracker.setLightMatrix(mShadowVPMatrix);
+            mLightCuller.setMatrix(mShadowVPMatrix, 0);
+            for (int node = 0; node < count; node++)
+            {
+                boolean visible = isShadowCaster(node) && isCasterVisible(node, light);
+                mCasterVisible[v * count + node] = visible;
+                if (visible)
+                    tracker.updateCaster(node, world, node * 16, getBounds(node));
+                else
+                    tracker.removeCaster(node);
+            }
+            mLightNeedsUpdate[light] |= tracker.needsUpdate();
+            mLightMustUpdate[light] |= !mTileValid[v];
+        }
+        mBudget.scheduleRefresh(mLightCount, mLightNeedsUpdate, mLightMustUpdate,
+                mLightSlow, MAX_SLOW_REFRESHES, mLightRefresh);
+
+        // Shadow pass: depth only, from the lights, and only for views
+        // where the light or a caster moved since they were last rendered.
+        // Views of lights not refreshed keep their tiles and dirty regions.
+        boolean shadowPassStarted = false;
+        for (int v = 0; v < views; v++)
+        {
+            ShadowCasterTracker tracker = mShadowTrackers[v];
+            if (!mLightRefresh[getViewLight(v)] || !tracker.needsUpdate())
+                continue;
+
+            if (!shadowPassStarted)
+            {
+                prepareDrawDepthBuffer();
+                shadowPassStarted = true;
+            }
+            prepareDrawView(v, tracker);
+            System.arraycopy(mShadowVPMatrices, v * 16, mShadowVPMatrix, 0, 16);
+            System.arraycopy(mLightViewMatrices, getViewLight(v) * 16, mLightViewMatrix, 0, 16);
+            for (int node = 0; node < count; node++)
+            {
+                mDrawInclude[node] = mCasterVisible[v * count + node]
+                        && tracker.intersectsDirty(node);
+                if (mDrawInclude[node] && !isBatched(node))
+                    drawNode(node, mLightViewMatrix, mShadowVPMatrix, true);
+            }
+            drawBatches(mShadowVPMatrix, true);
+            tracker.clear();
+            mTileValid[v] = true;
+        }
+        if (shadowPassStarted)
+            drawDepthBuffer();
+        if (timer != null)
+            mGL.endQuery(ESGpuTimer.GL_TIME_ELAPSED_EXT);
+        now = System.nanoTime();
+        mShadowNanos = now - time;
+        time = now;
+        if (timer != null)
+            mGL.beginQuery(ESGpuTimer.GL_TIME_ELAPSED_EXT, timer.getQuery(mFrameIndex, GPU_EYE_PASS));
+
+		mGL.bindFramebuffer(GLES20.GL_FRAMEBUFFER, 0);
+        // Clear the color buffer
+        mGL.clear(GLES20.GL_COLOR_BUFFER_BIT|GLES20.GL_DEPTH_BUFFER_BIT);
+
+        // Eye pass: full lighting with the shadow map lookup
+        mGL.activeTexture ( GLES20.GL_TEXTURE0 );
+        mGL.bindTexture ( GLES20.GL_TEXTURE_2D, mShadowMapTexture[0] );
+        setEyeUniforms(mEyeProgram, mEyeLocs);
+        for (int node = 0; node < mScene.getNodeCount(); node++)
+        {
+            // the light source marker is not drawn
+            int drawable = mScene.getDrawable(node);
+            mDrawInclude[node] = drawable != DRAWABLE_LIGHT && drawable != DRAWABLE_NONE
+                    && mCameraCuller.isSphereVisible(mNodeSpheres, node * 4)
+                    && mCameraCuller.isBoxVisible(mNodeBoxes, node * 6);
+            if (mDrawInclude[node] && !isBatched(node))
+                drawNode(node, mViewMatrix, mViewProjMatrix, false);
+        }
+        drawBatches(mViewProjMatrix, false);
+        mGL.disableVertexAttribArray(mPositionLoc);
+        mGL.disableVertexAttribArray(mNormalLoc);
+        if (timer != null)
+            mGL.endQuery(ESGpuTimer.GL_TIME_ELAPSED_EXT);
+        mEyeNanos = System.nanoTime() - time;
+    }
 
+    ///
+    // Draw one scene node. The MVP comes from the node's cached world
+    // matrix and the pass's view-projection; the eye pass also loads the
+    // model-view and the node's world-space normal matrix.
+    //
+    private void drawNode(int node, float[] viewMatrix, float[] viewProjMatrix, boolean depthOnly)
+    {
+        int o = node * 16;
+        float[] world = mScene.getWorldMatrices();
+        ESMatrix.multiplyMM(mMVPMatrix, 0, viewProjMatrix, 0, world, o);
+        int drawable = mScene.getDrawable(node);
+
+        if (depthOnly)
+        {
+            if (drawable == DRAWABLE_FLOOR)
+            {
+                mSquare.drawDepth(mMVPMatrix);
+                mDrawCalls++;
+            }
+            else if (drawable == DRAWABLE_CUBE)
+                drawShapeDepth(mCube);
+            else
+                drawShapeDepth(selectSphereLevel(node, viewProjMatrix, mTileViewport[3],
+                        LOD_PIXEL_ERROR * SHADOW_LOD_BIAS));
+            return;
+        }
+
+        ESMatrix.multiplyMM(mMVMatrix, 0, viewMatrix, 0, world, o);
+        System.arraycopy(world, o, mModelMatrix, 0, 16);
+        System.arraycopy(mScene.getNormalMatrices(), o, mNormalMatrix, 0, 16);
+        mEyeProgram.setMatrix4(mMVLoc, mMVMatrix);
+        mEyeProgram.setMatrix4(mMLoc, mModelMatrix);
+        mEyeProgram.setMatrix4(mNormalMatrixLoc, mNormalMatrix);
+
+        if (drawable == DRAWABLE_FLOOR)
+        {
+            mSquare.draw(mMVPMatrix);
+            mDrawCalls++;
+        }
+        else if (drawable == DRAWABLE_CUBE)
+            drawShape(mCube, cubeColor);
+        else
+            drawShape(selectSphereLevel(node, viewProjMatrix, mHeight, LOD_PIXEL_ERROR),
+                    mLightColors);
+    }
 
-        Matrix.setIdentityM(model, 0);
-        Matrix.scaleM(model, 0, 3f, 1f, 4f);
-        Matrix.translateM(model, 0, floorCoords[0], floorCoords[1], floorCoords[2]);
+    ///
+    // Pick the coarsest sphere level whose error stays under the tolerance
+    // at the node's projected size. One model unit at the node's center
+    // covers the projection's y scale over the clip w, times half the
+    // target height, pixels; this holds for the perspective eye pass and
+    // the orthographic light passes alike.
+    //
+    private ESShapes selectSphereLevel(int node, float[] viewProjMatrix, int targetHeight,
+            float maxPixelError)
+    {
+        int o = node * 4;
+        float x = mNodeSpheres[o];
+        float y = mNodeSpheres[o + 1];
+        float z = mNodeSpheres[o + 2];
+        float w = viewProjMatrix[3] * x + viewProjMatrix[7] * y
+                + viewProjMatrix[11] * z + viewProjMatrix[15];
+        if (w <= 0.0f)
+            return mSphereLods.getLevel(0);
+        float yScale = (float) Math.sqrt(viewProjMatrix[1] * viewProjMatrix[1]
+                + viewProjMatrix[5] * viewProjMatrix[5]
+                + viewProjMatrix[9] * viewProjMatrix[9]);
+        // the node's world scale, as the level errors are in local units
+        float scale = mNodeSpheres[o + 3] / mSphereSphere[3];
+        float pixelsPerUnit = yScale * targetHeight * 0.5f * scale / w;
+        return mSphereLods.getLevel(mSphereLods.selectLevel(pixelsPerUnit, maxPixelError));
+    }
 
-        // Calculate the projection and view transformation
-        Matrix.multiplyMM(MVMatrix, 0, viewMatrix, 0, model, 0);
-        Matrix.multiplyMM(MVPMatrix, 0, projectionMatrix, 0, MVMatrix, 0);
-        GLES20.glUniformMatrix4fv(mMVLoc, 1, false, MVMatrix, 0);
-        GLES20.glUniformMatrix4fv(mVLoc, 1, false, viewMatrix, 0);
-        GLES20.glUniformMatrix4fv(mMLoc, 1, false, model, 0);
+    ///
+    // Whether the batcher draws the node. Cubes that moved since their
+    // merged chunk was built are drawn one by one instead.
+    //
+    private boolean isBatched(int node)
+    {
+        return mScene.getDrawable(node) == DRAWABLE_CUBE && !mBatcher.isSeparate(node);
+    }
+
+    ///
+    // Draw the batched nodes selected in mDrawInclude. Instanced batches
+    // switch to the instanced programs; merged batches are already in world
+    // space and use the current program with an identity model matrix.
+    //
+    private void drawBatches(float[] viewProjMatrix, boolean depthOnly)
+    {
+        if (mBatcher.isInstanced())
+        {
+            ESProgram program = depthOnly ? mDepthInstancedProgram : mEyeInstancedProgram;
+            ProgramLocations locs = depthOnly ? mDepthInstancedLocs : mEyeInstancedLocs;
+            if (depthOnly)
+                program.use();
+            else
+                setEyeUniforms(program, locs);
+            program.setMatrix4(locs.viewProjMatrix, viewProjMatrix);
+
+            for (int b = 0; b < mBatcher.getBatchCount(); b++)
+            {
+                program.setVec4(locs.color, mBatcher.getColor(b));
+                mDrawCalls += mBatcher.drawInstanced(b, mDrawInclude, locs.position,
+                        locs.normal, locs.modelMatrix, locs.normalMatrix);
+            }
+            return;
+        }
+
+        if (depthOnly)
+        {
+            mDepthProgram.setMatrix4(mDepthMVPLoc, viewProjMatrix);
+            for (int b = 0; b < mBatcher.getBatchCount(); b++)
+                mDrawCalls += mBatcher.drawMerged(b, mDrawInclude, mDepthPositionLoc, -1);
+            return;
+        }
+
+        mEyeProgram.setMatrix4(mMVPLoc, viewProjMatrix);
+        mEyeProgram.setMatrix4(mMVLoc, mViewMatrix);
+        mEyeProgram.setMatrix4(mMLoc, IDENTITY_MATRIX);
+        mEyeProgram.setMatrix4(mNormalMatrixLoc, IDENTITY_MATRIX);
+        for (int b = 0; b < mBatcher.getBatchCount(); b++)
+        {
+            mEyeProgram.setVec4(mColorLoc, mBatcher.getColor(b));
+            mDrawCalls += mBatcher.drawMerged(b, mDrawInclude, mPositionLoc, mNormalLoc);
+        }
+    }
+
+    ///
+    // Draw a shape with the eye program, using the matrices already loaded
+    //
+    private void drawShape(ESShapes shape, float[] color)
+    {
+        // Load the MVP matrix
+        mEyeProgram.setMatrix4(mMVPLoc, mMVPMatrix);
+
+        // Set color for drawing the triangle
+        mEyeProgram.setVec4(mColorLoc, color);
 
-        float[] NormalMatrix = new float[16];
-        float[] inverse = new float[16];
-        Matrix.invertM(inverse, 0, MVMatrix, 0);
-        Matrix.transposeM(NormalMatrix, 0, inverse, 0);
-        GLES20.glUniformMatrix4fv(mNormalMatrixLoc, 1, false, NormalMatrix, 0);
+        // Bind the vertex data and draw, in parts if the mesh was split
+        mDrawCalls += shape.draw(mGL, mPositionLoc, mNormalLoc);
+    }
 
-        // Draw square
-        mSquare.draw(MVPMatrix);        
+    ///
+    // Draw a shape with the depth program, using the MVP in mMVPMatrix.
+    // Only the position attribute is enabled.
+    //
+    private void drawShapeDepth(ESShapes shape)
+    {
+        mDepthProgram.setMatrix4(mDepthMVPLoc, mMVPMatrix);
+        mDrawCalls += shape.draw(mGL, mDepthPositionLoc, -1);
     }
 
     private void prepareDrawDepthBuffer()
     {
-//        GLES20.glColorMask(false, false, false, false);
-        //Depth states
-        GLES20.glClearDepthf(1.0f);
-        GLES20.glDepthFunc(GLES20.GL_LEQUAL);
-        GLES20.glEnable(GLES20.GL_DEPTH_TEST);
+        mDepthProgram.use();
+        // A depth texture needs no color writes; the packed target clears
+        // to the far plane, all channels at 1
+        if (mPackedDepth)
+            mGL.clearColor(1.0f, 1.0f, 1.0f, 1.0f);
+        else
+            mGL.colorMask(false, false, false, false);
+        // The shadow map is the render target now, keep it off the sampler
+        mGL.activeTexture(GLES20.GL_TEXTURE0);
+        mGL.bindTexture(GLES20.GL_TEXTURE_2D, 0);
+        mGL.enable(GLES20.GL_DEPTH_TEST);
+
+        // the shadow map was attached when it was created
+		mGL.bindFramebuffer(GLES20.GL_FRAMEBUFFER, fb[0]);
+        mGL.enable(GLES20.GL_SCISSOR_TEST);
+    }
 
-		GLES20.glBindFramebuffer(GLES20.GL_FRAMEBUFFER, fb[0]);
-		GLES20.glFramebufferTexture2D(GLES20.GL_FRAMEBUFFER, GLES20.GL_DEPTH_ATTACHMENT, GLES20.GL_TEXTURE_2D, mShadowMapTexture[0], 0);
-        // Clear the color buffer
-        GLES20.glClear(GLES20.GL_DEPTH_BUFFER_BIT);
-		checkGlError("glFramebufferTexture2D depth");
+    ///
+    // Point the viewport at a shadow view's atlas tile and clear the part
+    // of it that changed
+    //
+    private void prepareDrawView(int view, ShadowCasterTracker tracker)
+    {
+        mDepthProgram.use();
+        System.arraycopy(mViewports, view * 4, mTileViewport, 0, 4);
+        mGL.viewport(mTileViewport[0], mTileViewport[1], mTileViewport[2], mTileViewport[3]);
+
+        // Restrict clearing and drawing to the region that changed
+        tracker.getDirtyRect(mTileViewport[2], mScissorRect);
+        mGL.scissor(mTileViewport[0] + mScissorRect[0], mTileViewport[1] + mScissorRect[1],
+                mScissorRect[2], mScissorRect[3]);
+
+        // Clear the depth buffer
+        if (mPackedDepth)
+            mGL.clear(GLES20.GL_COLOR_BUFFER_BIT | GLES20.GL_DEPTH_BUFFER_BIT);
+        else
+            mGL.clear(GLES20.GL_DEPTH_BUFFER_BIT);
+    }
+
+    ///
+    // Shadow views: the cascades of light 0, then one view per further
+    // light
+    //
+    private int getViewCount()
+    {
+        return mCascadeCount + mLightCount - 1;
+    }
+
+    private int getViewLight(int view)
+    {
+        return view < mCascadeCount ? 0 : view - mCascadeCount + 1;
+    }
+
+    ///
+    // Tiles of the shadow views that moved, or never were drawn, in the
+    // current shadow map are redrawn whole
+    //
+    private void invalidateShadowViews()
+    {
+        for (int v = 0; v < MAX_VIEWS; v++)
+        {
+            mShadowTrackers[v].invalidate();
+            mTileValid[v] = false;
+        }
+    }
+
+    ///
+    // Share the atlas out between the lights, fit the cascades to the
+    // camera frustum and compute every view's light view-projection and
+    // atlas lookup. With a single cascade, light 0 uses the perspective
+    // light frustum set up in onSurfaceChanged as is, like the other lights.
+    //
+    private void updateShadowViews()
+    {
+        int views = getViewCount();
+        for (int i = 0; i < mLightCount; i++)
+        {
+            int l = i * 3;
+            int c = i * 4;
+            float luminance = 0.2126f * mLightColors[c] + 0.7152f * mLightColors[c + 1]
+                    + 0.0722f * mLightColors[c + 2];
+            mLightImportance[i] = luminance * ShadowBudget.screenCoverage(mViewProjMatrix,
+                    mLightPositions[l], mLightPositions[l + 1], mLightPositions[l + 2],
+                    mLightRanges[i]);
+            mLightViews[i] = i == 0 ? mCascadeCount : 1;
+        }
+        if (mBudget.update(mLightImportance, mLightViews, mLightCount, mShadowMapSize,
+                Math.min(MIN_SHADOW_TILE, mShadowMapSize)))
+        {
+            for (int v = 0; v < views; v++)
+                mTileSizes[v] = mBudget.getSize(getViewLight(v));
+            if (!mAtlas.pack(mShadowMapSize, mTileSizes, views))
+                throw new IllegalStateException("Shadow views do not fit the atlas");
+            for (int v = 0; v < views; v++)
+            {
+                mAtlas.getViewport(v, mTileViewport);
+                int o = v * 4;
+                if (mTileViewport[0] != mViewports[o] || mTileViewport[1] != mViewports[o + 1]
+                        || mTileViewport[2] != mViewports[o + 2])
+                {
+                    System.arraycopy(mTileViewport, 0, mViewports, o, 4);
+                    mShadowTrackers[v].invalidate();
+                    mTileValid[v] = false;
+                }
+                mAtlas.getRect(v, mShadowRects, o);
+            }
+        }
+
+        if (mCascadeCount > 1)
+        {
+            mCascades.setCamera(mViewMatrix, mCameraFrustum[0], mCameraFrustum[1],
+                    mCameraFrustum[2], mCameraFrustum[3], mCameraFrustum[4], mCameraFrustum[5]);
+            mCascades.setLight(mLightViewMatrices);
+            mCascades.update(mCascadeCount, CASCADE_SPLIT_LAMBDA, CASCADE_CASTER_MARGIN,
+                    mShadowMapSize, mViewports);
+            for (int i = 0; i < mCascadeCount; i++)
+                mCascadeSplits[i] = mCascades.getSplit(i);
+        }
+
+        for (int v = 0; v < views; v++)
+        {
+            if (v < mCascadeCount && mCascadeCount > 1)
+                mCascades.getProjection(v, mCascadeProjMatrix);
+            else
+                System.arraycopy(mLightProjectionMatrix, 0, mCascadeProjMatrix, 0, 16);
+            ESMatrix.multiplyMM(mShadowVPMatrices, v * 16, mCascadeProjMatrix, 0,
+                    mLightViewMatrices, getViewLight(v) * 16);
+            System.arraycopy(mViewports, v * 4, mTileViewport, 0, 4);
+            ShadowAtlas.toAtlasMatrix(mShadowVPMatrices, v * 16, mTileViewport,
+                    mShadowMapSize, mShadowMatrices, v * 16);
+        }
     }
 
     private void drawDepthBuffer()
@@ -365,7 +1184,11 @@ public class ShadowRenderer implements GLSurfaceView.Renderer
 //        checkGlError("glCopyTexSubImage2D");
 //        GLES20.glCopyTexImage2D(GLES20.GL_TEXTURE_2D, 0, GLES20.GL_DEPTH_COMPONENT, 0, 0, mWidth, mHeight, 0);
 //        checkGlError("glCopyTexSubImage2D");
-//        GLES20.glColorMask(true, true, true, true);
+        mGL.disableVertexAttribArray(mDepthPositionLoc);
+        mGL.disable(GLES20.GL_SCISSOR_TEST);
+        mGL.colorMask(true, true, true, true);
+        mGL.clearColor(0.0f, 0.0f, 0.0f, 0.0f);
+        mGL.viewport(0, 0, mWidth, mHeight);
     }
 
     ///
@@ -373,70 +1196,86 @@ public class ShadowRenderer implements GLSurfaceView.Renderer
     //
     public void onSurfaceChanged(GL10 glUnused, int width, int height)
     {
+        // frames recorded for the old size are not drawn
+        finishFramePrep();
+        mGeneration++;
         mWidth = width;
         mHeight = height;
 
-        setupDepthTexture();
+        // the shadow map exists before any frame refers to it
+        setupDepthTexture(Math.min(mRequestedShadowMapSize, mMaxTextureSize));
 
-        GLES20.glClearColor(0.0f, 0.0f, 0.0f, 0.0f);
+        mGL.clearColor(0.0f, 0.0f, 0.0f, 0.0f);
         GLES20.glFrontFace(GLES20.GL_CCW);
         GLES20.glCullFace(GLES20.GL_BACK);
-        GLES20.glEnable(GLES20.GL_CULL_FACE);
+        mGL.enable(GLES20.GL_CULL_FACE);
+
+        // Depth states, shared by both passes
+        GLES20.glClearDepthf(1.0f);
+        GLES20.glDepthFunc(GLES20.GL_LEQUAL);
 
         // Set the viewport
-        GLES20.glViewport(0, 0, mWidth, mHeight);
+        mGL.viewport(0, 0, mWidth, mHeight);
 
         // Compute the window aspect ratio
         float aspect = (float) mWidth / (float) mHeight;
 
         // Generate a perspective matrix
         if(aspect <  1)
-            Matrix.frustumM(mProjectionMatrix, 0, -aspect,aspect,-1, 1, 1.0f, 20.0f);
+            setCameraFrustum(-aspect, aspect, -1, 1, 1.0f, 20.0f);
         else
-            Matrix.frustumM(mProjectionMatrix, 0, -1,1,-1/aspect, 1/aspect, 1.0f, 20.0f);
+            setCameraFrustum(-1, 1, -1/aspect, 1/aspect, 1.0f, 20.0f);
 
         // Set the camera position (View matrix)
-        Matrix.setLookAtM(mViewMatrix, 0, eyeCoords[0], eyeCoords[1], eyeCoords[2],
+        ESMatrix.setLookAtM(mViewMatrix, 0, eyeCoords[0], eyeCoords[1], eyeCoords[2],
                 0f, 0f, 0f, 0f, 1.0f, 0.0f);
 
-        // Generate a perspective matrix
-        if(aspect <  1)
-            Matrix.frustumM(mLightProjectionMatrix, 0, -aspect,aspect,-1, 1, 1.0f, 20.0f);
-        else
-            Matrix.frustumM(mLightProjectionMatrix, 0, -1,1,-1/aspect, 1/aspect, 1.0f, 20.0f);
-
-                // Set the camera position (View matrix)
-        Matrix.setLookAtM(mLightViewMatrix, 0, lightCoords[0], lightCoords[1], lightCoords[2],
-                0f, 0f, 0f, 0f, 1.0f, 0.0f);
-        float[] LightVPMatrix = new float[16];
-        Matrix.multiplyMM(LightVPMatrix, 0, mLightProjectionMatrix, 0, mLightViewMatrix, 0);
-
-        // Compute the final MVP by multiplying the
-        // modevleiw and perspective matrices together
-        // Calculate the projection and view transformation
-
-        GLES20.glUniform4fv(mLightColorLocation, 1, lightColor, 0);
-        GLES20.glUniform3fv(mLightPositionLocation, 1, lightCoords, 0);
-        GLES20.glUniform3fv(mEyePositionLocation, 1, eyeCoords, 0);
-
-        Matrix.setIdentityM(mShadowmapBiasMatrix, 0);
-        Matrix.translateM(mShadowmapBiasMatrix, 0, 0.5f, 0.5f, 0.5f);
-        Matrix.scaleM(mShadowmapBiasMatrix, 0, 0.5f, 0.5f, 0.5f);
-        GLES20.glUniformMatrix4fv(mBiasMatrixLoc, 1, false, mShadowmapBiasMatrix, 0);
+        // Generate a perspective matrix for the square shadow views; light 0
+        // replaces it with one orthographic fit per cascade when it has them
+        ESMatrix.frustumM(mLightProjectionMatrix, 0, -1, 1, -1, 1, 1.0f, 20.0f);
+
+        // Set the light positions (View matrices)
+        for (int i = 0; i < mLightCount; i++)
+        {
+            int l = i * 3;
+            ESMatrix.setLookAtM(mLightViewMatrices, i * 16, mLightPositions[l],
+                    mLightPositions[l + 1], mLightPositions[l + 2],
+                    0f, 0f, 0f, 0f, 1.0f, 0.0f);
+        }
+        mCascadeSplits[0] = mCameraFrustum[5];
+    }
 
-        float[] shadowProjectM = new float[16];
-        Matrix.multiplyMM(shadowProjectM, 0, mShadowmapBiasMatrix, 0, LightVPMatrix, 0);
-        GLES20.glUniformMatrix4fv(mShadowMatrixLoc, 1, false, LightVPMatrix, 0);
+    private void setCameraFrustum(float left, float right, float bottom, float top,
+            float near, float far)
+    {
+        ESMatrix.frustumM(mProjectionMatrix, 0, left, right, bottom, top, near, far);
+        mCameraFrustum[0] = left;
+        mCameraFrustum[1] = right;
+        mCameraFrustum[2] = bottom;
+        mCameraFrustum[3] = top;
+        mCameraFrustum[4] = near;
+        mCameraFrustum[5] = far;
     }
 
-	private void setupDepthTexture() {
-		// generate
-		checkGlError("depthBuffer");
-		GLES20.glDeleteFramebuffers(1, fb, 0);
-		checkGlError("depthBuffer");
-		GLES20.glDeleteTextures(1, mShadowMapTexture, 0);
-		GLES20.glGenFramebuffers(1, fb, 0);
-		GLES20.glGenTextures(1, mShadowMapTexture, 0);
+	///
+	// Create the shadow map, or reallocate its storage when the resolution
+	// changed. The object names stay the same for the life of the context,
+	// so frames recorded ahead of time can refer to them.
+	//
+	private void setupDepthTexture(int size) {
+		if (mShadowMapTexture[0] != 0 && size == mAllocatedShadowMapSize)
+			return;
+
+		// bindings change behind the state cache here
+		mStateCache.invalidate();
+		boolean create = mShadowMapTexture[0] == 0;
+		if (create)
+		{
+			GLES20.glGenFramebuffers(1, fb, 0);
+			GLES20.glGenTextures(1, mShadowMapTexture, 0);
+			if (mPackedDepth)
+				GLES20.glGenRenderbuffers(1, mShadowDepthBuffer, 0);
+		}
 
 		GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, mShadowMapTexture[0]);
 		GLES20.glTexParameteri(GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_WRAP_S,
@@ -448,27 +1287,160 @@ public class ShadowRenderer implements GLSurfaceView.Renderer
 		GLES20.glTexParameteri(GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_MIN_FILTER,
 				GLES20.GL_NEAREST);
 
-		// create it
-		int zero[] = new int[mWidth * mHeight];
-
-		IntBuffer depthBuffer = ByteBuffer.allocateDirect(mWidth * mHeight * 4).asIntBuffer();
-		depthBuffer.put(zero).position(0);
-		GLES20.glTexImage2D(GLES20.GL_TEXTURE_2D, 0, GLES20.GL_DEPTH_COMPONENT, mWidth, mHeight, 0,
-					GLES20.GL_DEPTH_COMPONENT, GLES20.GL_UNSIGNED_INT, depthBuffer);
+		// allocate it, the contents are cleared by every shadow pass so no
+		// initial pixels are uploaded
+		if (mPackedDepth)
+		{
+			GLES20.glTexImage2D(GLES20.GL_TEXTURE_2D, 0, GLES20.GL_RGBA, size, size, 0,
+					GLES20.GL_RGBA, GLES20.GL_UNSIGNED_BYTE, null);
+
+			// depth testing still needs a depth buffer, it is never sampled
+			GLES20.glBindRenderbuffer(GLES20.GL_RENDERBUFFER, mShadowDepthBuffer[0]);
+			GLES20.glRenderbufferStorage(GLES20.GL_RENDERBUFFER, GLES20.GL_DEPTH_COMPONENT16, size, size);
+			GLES20.glBindRenderbuffer(GLES20.GL_RENDERBUFFER, 0);
+		}
+		else
+		{
+			GLES20.glTexImage2D(GLES20.GL_TEXTURE_2D, 0, GLES20.GL_DEPTH_COMPONENT, size, size, 0,
+					GLES20.GL_DEPTH_COMPONENT, GLES20.GL_UNSIGNED_INT, null);
+		}
+		GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, 0);
+
+		// attach once; the shadow pass only binds the framebuffer
+		if (create)
+		{
+			GLES20.glBindFramebuffer(GLES20.GL_FRAMEBUFFER, fb[0]);
+			if (mPackedDepth)
+			{
+				GLES20.glFramebufferTexture2D(GLES20.GL_FRAMEBUFFER, GLES20.GL_COLOR_ATTACHMENT0, GLES20.GL_TEXTURE_2D, mShadowMapTexture[0], 0);
+				GLES20.glFramebufferRenderbuffer(GLES20.GL_FRAMEBUFFER, GLES20.GL_DEPTH_ATTACHMENT, GLES20.GL_RENDERBUFFER, mShadowDepthBuffer[0]);
+			}
+			else
+			{
+				GLES20.glFramebufferTexture2D(GLES20.GL_FRAMEBUFFER, GLES20.GL_DEPTH_ATTACHMENT, GLES20.GL_TEXTURE_2D, mShadowMapTexture[0], 0);
+			}
+			GLES20.glBindFramebuffer(GLES20.GL_FRAMEBUFFER, 0);
+		}
 		checkGlError("depthBuffer");
+		mAllocatedShadowMapSize = size;
+	}
+
+	///
+	// Whether depth textures can be rendered to and sampled
+	// (GL_OES_depth_texture)
+	//
+	static boolean supportsDepthTexture(String extensions) {
+		return extensions != null && extensions.indexOf("GL_OES_depth_texture") >= 0;
 	}
 
-	// debugging opengl
+	// debugging opengl: log and count pending errors. A lost context can
+	// keep reporting errors, so only a bounded number is drained per call.
 	private void checkGlError(String op) {
 		int error;
-		while ((error = GLES20.glGetError()) != GLES20.GL_NO_ERROR) {
-		//	throw new RuntimeException(op + ": glError " + error);
+		for (int i = 0; i < MAX_GL_ERRORS_PER_CHECK
+				&& (error = GLES20.glGetError()) != GLES20.GL_NO_ERROR; i++) {
+			Log.e("ShadowRenderer", op + ": glError 0x" + Integer.toHexString(error));
+			mGlErrors++;
 		}
 	}
 
     // Handle to a program object
     private int mProgramObject;
-    private int mLightProgramObject;
+    private int mDepthProgramObject;
+    private ESProgram mEyeProgram;
+    private ESProgram mDepthProgram;
+    private ESProgramCache mProgramCache;
+    private final File mProgramCacheDir;
+
+    // Depth program locations
+    private int mDepthPositionLoc;
+    private int mDepthMVPLoc;
+
+    // Names resolved by mEyeProgram when the program is linked
+    private static final String[] EYE_ATTRIBS = {
+        "aPosition", "aVertexNormal"
+    };
+    private static final String[] EYE_UNIFORMS = {
+        "uMVPMatrix", "uMVMatrix", "uNormalMatrix", "uVMatrix", "uMMatrix",
+        "uShadowMatrices[0]", "uShadowRects[0]", "uCascadeSplits[0]", "uVertexColor",
+        "uLightColors[0]", "uLightPositions[0]", "uEyePosition", "uLightMap",
+        "uShadowTexelSize"
+    };
+    private static final String[] DEPTH_ATTRIBS = { "aPosition" };
+    private static final String[] DEPTH_UNIFORMS = { "uMVPMatrix" };
+
+    // Instanced variants; the model and normal matrices are per-instance
+    // attributes
+    private static final String[] EYE_INSTANCED_ATTRIBS = {
+        "aPosition", "aVertexNormal", "aModelMatrix", "aNormalMatrix"
+    };
+    private static final String[] EYE_INSTANCED_UNIFORMS = {
+        "uVPMatrix", "uVMatrix", "uShadowMatrices[0]", "uShadowRects[0]",
+        "uCascadeSplits[0]", "uVertexColor", "uLightColors[0]", "uLightPositions[0]",
+        "uEyePosition", "uLightMap", "uShadowTexelSize"
+    };
+    private static final String[] DEPTH_INSTANCED_ATTRIBS = { "aPosition", "aModelMatrix" };
+    private static final String[] DEPTH_INSTANCED_UNIFORMS = { "uVPMatrix" };
+    private ESProgram mEyeInstancedProgram;
+    private ESProgram mDepthInstancedProgram;
+
+    // Locations the frame reads from an eye or instanced program, resolved
+    // when the program is created. -1 where the program does not declare
+    // the name; the setters and the batcher skip those.
+    private static final class ProgramLocations
+    {
+        ProgramLocations(ESProgram program)
+        {
+            position = program.getAttribLocation("aPosition");
+            normal = program.getAttribLocation("aVertexNormal");
+            modelMatrix = program.getAttribLocation("aModelMatrix");
+            normalMatrix = program.getAttribLocation("aNormalMatrix");
+            viewProjMatrix = program.getUniformLocation("uVPMatrix");
+            color = program.getUniformLocation("uVertexColor");
+            lightColors = program.getUniformLocation("uLightColors[0]");
+            lightPositions = program.getUniformLocation("uLightPositions[0]");
+            eyePosition = program.getUniformLocation("uEyePosition");
+            viewMatrix = program.getUniformLocation("uVMatrix");
+            lightMap = program.getUniformLocation("uLightMap");
+            shadowTexelSize = program.getUniformLocation("uShadowTexelSize");
+            shadowMatrices = program.getUniformLocation("uShadowMatrices[0]");
+            shadowRects = program.getUniformLocation("uShadowRects[0]");
+            cascadeSplits = program.getUniformLocation("uCascadeSplits[0]");
+        }
+
+        final int position;
+        final int normal;
+        final int modelMatrix;
+        final int normalMatrix;
+        final int viewProjMatrix;
+        final int color;
+        final int lightColors;
+        final int lightPositions;
+        final int eyePosition;
+        final int viewMatrix;
+        final int lightMap;
+        final int shadowTexelSize;
+        final int shadowMatrices;
+        final int shadowRects;
+        final int cascadeSplits;
+    }
+    private ProgramLocations mEyeLocs;
+    private ProgramLocations mEyeInstancedLocs;
+    private ProgramLocations mDepthInstancedLocs;
+
+    // Repeated meshes, and the draw calls issued per frame
+    private DrawBatcher mBatcher;
+    private boolean[] mDrawInclude;
+    private int mDrawCalls;
+    private volatile int mLastDrawCalls;
+    private int mCubeCount = 1;
+    private static final float[] IDENTITY_MATRIX = {
+        1.0f, 0.0f, 0.0f, 0.0f,
+        0.0f, 1.0f, 0.0f, 0.0f,
+        0.0f, 0.0f, 1.0f, 0.0f,
+        0.0f, 0.0f, 0.0f, 1.0f
+    };
+
     // Attribute locations
     private int mPositionLoc;
     private int mNormalLoc;
@@ -477,21 +1449,72 @@ public class ShadowRenderer implements GLSurfaceView.Renderer
     private int mMVPLoc;
     private int mMVLoc;
     private int mNormalMatrixLoc;
-    private int mVLoc;
     private int mMLoc;
-    private int mShadowMatrixLoc;
-    private int mBiasMatrixLoc;
 
     // color locations
     private int mColorLoc;
-    private int mLightColorLocation;
-    private int mLightPositionLocation;
-    private int mEyePositionLocation;
-    private int mShadowMapLocation;
 
-    // Vertex data
-    private ESShapes mCube = new ESShapes();
-    private ESShapes mSphere = new ESShapes();
+    // GL entry points. Drawing code issues everything through mGL, the
+    // recorder: straight to the state cache during setup on the GL thread,
+    // into a command buffer while the worker prepares a frame.
+    private final ESStateCache mStateCache;
+    private final ESCommandRecorder mRecorder;
+    private final ESGL mGL;
+
+    // Frames prepared by the worker thread and drawn by the GL thread.
+    // Worker-owned state (scene, culling, trackers, mShadowMapSize) is only
+    // touched by one thread at a time: the worker while a frame is being
+    // prepared, the GL thread in onSurfaceCreated/Changed after waiting
+    // for it.
+    private static final class PreparedFrame
+    {
+        final ESCommandBuffer commands = new ESCommandBuffer();
+        int shadowMapSize;
+        int drawCalls;
+        int generation;
+        long index;
+        boolean timed;
+        long updateNanos;
+        long shadowNanos;
+        long eyeNanos;
+    }
+    private final ESTripleBuffer<PreparedFrame> mFrames;
+    private final ESWorker mFramePrep;
+    private boolean mFramePending;
+    private int mGeneration;
+    private int mAllocatedShadowMapSize;
+    private volatile int mLastGLCalls;
+    private volatile int mLastSuppressedGLCalls;
+
+    // Instrumentation. Phase times are taken by the worker and travel with
+    // the frame; the GL thread adds its own and writes one sample per
+    // drawn frame to mStats.
+    private static final int GPU_SHADOW_PASS = 0;
+    private static final int GPU_EYE_PASS = 1;
+    private static final int GPU_PASSES = 2;
+    private static final int MAX_GL_ERRORS_PER_CHECK = 16;
+    private final ESFrameStats mStats = new ESFrameStats(256, ShadowStats.FIELDS);
+    private final long[] mSample = new long[ShadowStats.FIELDS];
+    private ESGpuTimer mGpuTimer;
+    private long mFrameIndex;
+    private long mUpdateNanos;
+    private long mShadowNanos;
+    private long mEyeNanos;
+    private long mLastFrameStart;
+    private int mGlErrors;
+    private boolean mCountAllocations;
+    private int mLastAllocCount;
+
+    // Vertex data, built by mBuildMeshes. Sphere levels are chosen so that
+    // the surface is off by at most LOD_PIXEL_ERROR pixels on screen; the
+    // shadow map tolerates SHADOW_LOD_BIAS times more, as its texels are
+    // filtered and rarely map one to one to screen pixels.
+    private static final int[] SPHERE_LOD_SLICES = { 12, 8, 6 };
+    private static final float LOD_PIXEL_ERROR = 1.0f;
+    private static final float SHADOW_LOD_BIAS = 4.0f;
+    private boolean mMeshesBuilt;
+    private final ESShapes mCube = new ESShapes();
+    private ESLodChain mSphereLods;
 
     private Square mSquare;
 
@@ -500,6 +1523,13 @@ public class ShadowRenderer implements GLSurfaceView.Renderer
 
     private int[] mShadowMapTexture = new int[1];
     private int[] fb = new int[1];
+    private int[] mShadowDepthBuffer = new int[1];
+    private boolean mPackedDepth;
+    private ShadowFilter mShadowFilter = ShadowFilter.HARD;
+    private int mShadowMapSize;
+    private volatile int mRequestedShadowMapSize = ShadowQuality.MEDIUM.size;
+    private int mMaxTextureSize;
+    private final int[] mIntParam = new int[1];
 
     // Additional Member variables
     private int mWidth;
@@ -507,8 +1537,6 @@ public class ShadowRenderer implements GLSurfaceView.Renderer
     private long mLastTime = 0;
 
     float floorCoords[] = { 0.0f,  -4.0f, 0.0f };
-    float lightColor[] = { 1.0f,  1.0f, 1.0f, 1.0f};
-    float lightCoords[] = { 3.0f,  6.0f, 3.0f };
     float eyeCoords[] = { 0.0f,  5.0f, 4.0f };
     float cubeCoords[] = {0.0f,  0.0f, 0.0f};
 
@@ -516,5 +1544,91 @@ public class ShadowRenderer implements GLSurfaceView.Renderer
     private final float[] mViewMatrix = new float[16];
     private final float[] mLightProjectionMatrix = new float[16];
     private final float[] mLightViewMatrix = new float[16];
-    private final float[] mShadowmapBiasMatrix = new float[16];
+
+    // Per-draw scratch matrices, reused by every draw call of every pass so
+    // that the steady-state frame loop does not allocate
+    private final float[] mModelMatrix = new float[16];
+    private final float[] mMVMatrix = new float[16];
+    private final float[] mMVPMatrix = new float[16];
+    private final float[] mNormalMatrix = new float[16];
+    private final float[] mViewProjMatrix = new float[16];
+
+    private final float[] cubeColor = { 1.0f, 0.0f, 1.0f, 1.0f };
+
+    // Scene nodes, tagged with what they draw; caster ids in the shadow
+    // trackers are node indices
+    private static final int DRAWABLE_FLOOR = 0;
+    private static final int DRAWABLE_CUBE = 1;
+    private static final int DRAWABLE_LIGHT = 2;
+    private static final int DRAWABLE_NONE = 3;
+    private SceneGraph mScene;
+    private int mFloorNode;
+    private int mCubeNode;
+    private int mLightNode;
+    private final float[] mFloorBounds = new float[6];
+    private final float[] mCubeBounds = new float[6];
+    private final float[] mSphereBounds = new float[6];
+    private final float[] mFloorSphere = new float[4];
+    private final float[] mCubeSphere = new float[4];
+    private final float[] mSphereSphere = new float[4];
+
+    // Culling: world bounds per node, refreshed when a node moves
+    private static final float SHADOW_REACH = 20.0f;
+    private final FrustumCuller mCameraCuller = new FrustumCuller();
+    private final FrustumCuller mLightCuller = new FrustumCuller();
+    private float[] mNodeBoxes;
+    private float[] mNodeSpheres;
+    private boolean[] mCasterVisible;
+    private final ShadowCasterTracker[] mShadowTrackers = new ShadowCasterTracker[MAX_VIEWS];
+    private final int[] mScissorRect = new int[4];
+
+    // Cascaded shadow maps
+    public static final int MAX_CASCADES = 4;
+    private static final float CASCADE_SPLIT_LAMBDA = 0.75f;
+    private static final float CASCADE_CASTER_MARGIN = 20.0f;
+    private int mCascadeCount = 1;
+    private final ShadowCascades mCascades = new ShadowCascades(MAX_CASCADES);
+    private final float[] mCascadeSplits = new float[MAX_CASCADES];
+    private final float[] mCascadeProjMatrix = new float[16];
+    private final float[] mCameraFrustum = new float[6];
+
+    // Shadow-casting lights. Light 0 defaults to the original single
+    // light; the others are dimmer, reach DEFAULT_LIGHT_RANGE units and
+    // are refreshed round-robin, at most MAX_SLOW_REFRESHES a frame.
+    public static final int MAX_LIGHTS = 4;
+    private static final float DEFAULT_LIGHT_RANGE = 10.0f;
+    private static final int MAX_SLOW_REFRESHES = 1;
+    private int mLightCount = 1;
+    private final float[] mLightPositions = {
+        3.0f, 6.0f, 3.0f,   -3.0f, 5.0f, 2.0f,   0.0f, 6.0f, -3.0f,   2.5f, 4.0f, -3.5f
+    };
+    private final float[] mLightColors = {
+        1.0f, 1.0f, 1.0f, 1.0f,   0.6f, 0.5f, 0.3f, 1.0f,
+        0.3f, 0.4f, 0.6f, 1.0f,   0.4f, 0.6f, 0.4f, 1.0f
+    };
+    private final float[] mLightRanges = {
+        DEFAULT_LIGHT_RANGE, DEFAULT_LIGHT_RANGE, DEFAULT_LIGHT_RANGE, DEFAULT_LIGHT_RANGE
+    };
+    private final boolean[] mLightSlow = { false, true, true, true };
+    private final float[] mLightViewMatrices = new float[MAX_LIGHTS * 16];
+    private final float[] mLightImportance = new float[MAX_LIGHTS];
+    private final int[] mLightViews = new int[MAX_LIGHTS];
+    private final boolean[] mLightNeedsUpdate = new boolean[MAX_LIGHTS];
+    private final boolean[] mLightMustUpdate = new boolean[MAX_LIGHTS];
+    private final boolean[] mLightRefresh = new boolean[MAX_LIGHTS];
+
+    // Shadow atlas: every shadow view renders into its own tile of the
+    // shadow map. Tiles are no smaller than MIN_SHADOW_TILE texels a side.
+    private static final int MAX_VIEWS = MAX_CASCADES + MAX_LIGHTS - 1;
+    private static final int MIN_SHADOW_TILE = 128;
+    private final ShadowBudget mBudget = new ShadowBudget(MAX_LIGHTS);
+    private final ShadowAtlas mAtlas = new ShadowAtlas(MAX_VIEWS);
+    private final int[] mTileSizes = new int[MAX_VIEWS];
+    private final int[] mViewports = new int[MAX_VIEWS * 4];
+    private final boolean[] mTileValid = new boolean[MAX_VIEWS];
+    private final float[] mShadowVPMatrices = new float[MAX_VIEWS * 16];
+    private final float[] mShadowMatrices = new float[MAX_VIEWS * 16];
+    private final float[] mShadowRects = new float[MAX_VIEWS * 4];
+    private final float[] mShadowVPMatrix = new float[16];
+    private final int[] mTileViewport = new int[4];
 }
@@ -0,0 +1,330 @@
+// ShadowShaders
+//
+//    GLSL sources of the renderer's programs. Sources that depend on renderer
+//    options are generated from them.
+//
+
+package com.opengles.shadow;
+
+final class ShadowShaders {
+
+	private ShadowShaders() {
+	}
+
+	//
+	///
+	/// \param instanced Read the world and normal matrices from per-instance
+	/// attributes, with the view-projection in uVPMatrix, instead of the
+	/// per-object uniforms.
+	//
+	static String eyeVertexShader(boolean instanced) {
+		if (instanced) {
+			return    "uniform mat4 uVPMatrix;                    \n"
+					+ "uniform mat4 uVMatrix;                     \n"  //view
+					+ "attribute vec4 aPosition;                  \n"
+					+ "attribute vec3 aVertexNormal;              \n"
+					+ "attribute mat4 aModelMatrix;               \n"  //per instance
+					+ "attribute mat3 aNormalMatrix;              \n"  //per instance, world space
+					+ "varying vec4 vProjectPosition;             \n"
+					+ "varying vec4 vEyePosition;                 \n"
+					+ "varying vec4 vWorldPosition;               \n"
+					+ "varying vec3 vNormal;                      \n"
+					+ "void main()                                \n"
+					+ "{                                          \n"
+					+ "   vWorldPosition = aModelMatrix * aPosition;  \n"
+					+ "   gl_Position = uVPMatrix * vWorldPosition;   \n"
+					+ "   vNormal = normalize(mat3(uVMatrix) * (aNormalMatrix * aVertexNormal));  \n"
+					+ "   vEyePosition = uVMatrix * vWorldPosition;   \n"
+					+ "   vProjectPosition = gl_Position;         \n"
+					+ "}                                          \n";
+		}
+		return    "uniform mat4 uMVPMatrix;                   \n"
+				+ "uniform mat4 uMVMatrix;                  \n"
+				+ "uniform mat4 uVMatrix;                   \n"  //view
+				+ "uniform mat4 uMMatrix;                   \n"  //model
+				+ "uniform mat4 uNormalMatrix;              \n"  //world space
+				+ "attribute vec4 aPosition;                \n"
+				+ "attribute vec3 aVertexNormal;            \n"
+				+ "varying vec4 vProjectPosition;                	\n"
+				+ "varying vec4 vEyePosition;                	\n"
+				+ "varying vec4 vWorldPosition;                	\n"
+				+ "varying vec3 vNormal;                		\n"
+				+ "void main()                              \n"
+				+ "{                                        \n"
+				+ "   gl_Position = uMVPMatrix * aPosition;  	\n"
+				+ "   vNormal = normalize(mat3(uVMatrix) * (mat3(uNormalMatrix) * aVertexNormal));  \n"
+				+ "   vWorldPosition = uMMatrix * aPosition;  		\n"
+				+ "   vEyePosition = uMVMatrix * aPosition;  		\n"
+				+ "   vProjectPosition = uMVPMatrix * aPosition;    \n"
+				+ "}                                            \n";
+	}
+
+	//
+	///
+	/// \brief Lighting from up to NUM_LIGHTS lights, each with a shadow
+	/// lookup in one shared atlas. uShadowMatrices maps world space to atlas
+	/// coordinates and depth in [0, 1], one matrix per shadow view: the
+	/// cascades of light 0 first, then one view for each further light. Light
+	/// 0 uses the first cascade whose uCascadeSplits distance lies beyond the
+	/// fragment's view depth. A lookup outside its view's uShadowRects tile
+	/// is lit, and filter taps are kept inside the tile.
+	///
+	/// \param numCascades Number of cascades of light 0, 1 for a single
+	/// shadow view.
+	/// \param numLights Number of lights, each fetched from the uniform
+	/// arrays in a loop with a constant bound.
+	/// \param packedDepth true if the shadow map is an RGBA8 color texture
+	/// written by packDepth(), false for a native depth texture.
+	/// \param filter Kernel used to filter the shadow test.
+	//
+	static String eyeFragmentShader(int numCascades, int numLights,
+			boolean packedDepth, ShadowRenderer.ShadowFilter filter) {
+		return    "#define NUM_CASCADES " + numCascades + "\n"
+				+ "#define NUM_LIGHTS " + numLights + "\n"
+				+ "#define NUM_VIEWS " + (numCascades + numLights - 1) + "\n"
+				+ (packedDepth ? "#define PACKED_DEPTH\n" : "")
+				// the decode and the compare need the low bytes of the depth
+				+ (packedDepth ? HIGHP_FLOAT : "precision mediump float;                  \n")
+				+ "uniform vec4 uVertexColor;             \n"
+				+ "uniform vec4 uLightColors[NUM_LIGHTS];     \n"
+				+ "uniform vec3 uLightPositions[NUM_LIGHTS];  \n"
+				+ "uniform vec3 uEyePosition;              \n"
+				+ "uniform mat4 uVMatrix;                  \n"
+				+ "uniform mat4 uShadowMatrices[NUM_VIEWS];     \n"
+				+ "uniform vec4 uShadowRects[NUM_VIEWS];        \n"
+				+ "uniform float uCascadeSplits[NUM_CASCADES];  \n"
+				+ "varying vec4 vProjectPosition;                \n"
+				+ "varying vec4 vEyePosition;                	\n"
+				+ "varying vec4 vWorldPosition;                	\n"
+				+ "varying vec3 vNormal;                		\n"
+				+ "uniform sampler2D uLightMap;                       \n"
+				+ "uniform float uShadowTexelSize;                     \n"
+				+ "vec4 shadowRect;                                    \n"
+				+ "#ifdef PACKED_DEPTH                                 \n"
+				+ UNPACK_DEPTH
+				+ "#endif                                              \n"
+				+ "float shadowLit(vec2 uv, float z)                   \n"
+				+ "{                                                   \n"
+				+ "  uv = clamp(uv, shadowRect.xy + 0.5 * uShadowTexelSize,  \n"
+				+ "        shadowRect.zw - 0.5 * uShadowTexelSize);    \n"
+				+ "#ifdef PACKED_DEPTH                                 \n"
+				+ "  float depth = unpackDepth(texture2D(uLightMap, uv));  \n"
+				+ "#else                                               \n"
+				+ "  float depth = texture2D(uLightMap, uv).r;         \n"
+				+ "#endif                                              \n"
+				+ "  return (z > depth && depth > 0.01) ? 0.0 : 1.0;   \n"
+				+ "}                                                   \n"
+				+ shadowFilter(filter)
+				+ "void main()                                         \n"
+				+ "{                                                   \n"
+				+ "  float viewDepth = -vEyePosition.z;		      \n"
+				+ "  vec4 shadowCoord = uShadowMatrices[0] * vWorldPosition;  \n"
+				+ "  shadowRect = uShadowRects[0];                   \n"
+				+ "  for (int i = 1; i < NUM_CASCADES; i++)          \n"
+				+ "  {                                               \n"
+				+ "     if (viewDepth > uCascadeSplits[i - 1])       \n"
+				+ "     {                                            \n"
+				+ "        shadowCoord = uShadowMatrices[i] * vWorldPosition;  \n"
+				+ "        shadowRect = uShadowRects[i];             \n"
+				+ "     }                                            \n"
+				+ "  }                                               \n"
+				+ "  vec3 light = vec3(0.0);                         \n"
+				+ "  for (int i = 0; i < NUM_LIGHTS; i++)            \n"
+				+ "  {                                               \n"
+				+ "    if (i > 0)                                    \n"
+				+ "    {                                             \n"
+				+ "      shadowCoord = uShadowMatrices[NUM_CASCADES - 1 + i] * vWorldPosition;  \n"
+				+ "      shadowRect = uShadowRects[NUM_CASCADES - 1 + i];  \n"
+				+ "    }                                             \n"
+				+ "    vec3 lightDirection = vec3(uVMatrix*vec4(uLightPositions[i],1) - vEyePosition);  \n"
+				+ "    float lightDistance = length(lightDirection);  \n"
+				+ "    lightDirection = lightDirection / lightDistance;  \n"
+				+ "    float attenuation = 1.0 / (1.0 + 0.5 * lightDistance + 0.25 * lightDistance * lightDistance);  \n"
+				+ "    vec3 halfVector = normalize(lightDirection + uEyePosition);  \n"
+				+ "    float diffuse = max(0.0, dot(vNormal, lightDirection));  \n"
+				+ "    float specular = max(0.0, dot(vNormal, halfVector));  \n"
+				+ "    if (diffuse > 0.0)                            \n"
+				+ "      specular = pow(specular, 1.0)*12.0;         \n"
+				+ "    else                                          \n"
+				+ "      specular = 0.0;                             \n"
+				+ "    vec3 scatteredLight = uVertexColor.rgb * vec3(uLightColors[i]) * diffuse * attenuation;  \n"
+				+ "    vec3 reflectedLight = vec3(uLightColors[i]) * specular * attenuation;  \n"
+				+ "    vec3 texCoord = shadowCoord.xyz / shadowCoord.w;  \n"
+				+ "    float isUnShadowed = 1.0;                     \n"
+				+ "    if (shadowCoord.w > 0.0 && all(greaterThanEqual(texCoord.xy, shadowRect.xy))  \n"
+				+ "        && all(lessThanEqual(texCoord.xy, shadowRect.zw)))  \n"
+				+ "      isUnShadowed = shadowFactor(texCoord);      \n"
+				+ "    light += isUnShadowed * (scatteredLight + reflectedLight);  \n"
+				+ "  }                                               \n"
+				+ "  vec3 ambientLight = uVertexColor.rgb * vec3(0.3);  \n"
+				+ "  vec3 rgb = min(ambientLight + light, vec3(1.0));  \n"
+				+ "  gl_FragColor = vec4(rgb, uVertexColor.a); 					       \n"
+				+ "}                                                   \n";
+	}
+
+	//
+	///
+	/// \brief Position-only program for the shadow pass: no lighting, no
+	/// shadow lookup, and color writes are masked while it runs.
+	//
+	static String depthVertexShader(boolean instanced) {
+		if (instanced) {
+			return    "uniform mat4 uVPMatrix;                    \n"
+					+ "attribute vec4 aPosition;                  \n"
+					+ "attribute mat4 aModelMatrix;               \n"  //per instance
+					+ "void main()                                \n"
+					+ "{                                          \n"
+					+ "   gl_Position = uVPMatrix * (aModelMatrix * aPosition);  \n"
+					+ "}                                          \n";
+		}
+		return    "uniform mat4 uMVPMatrix;                   \n"
+				+ "attribute vec4 aPosition;                  \n"
+				+ "void main()                                \n"
+				+ "{                                          \n"
+				+ "   gl_Position = uMVPMatrix * aPosition;   \n"
+				+ "}                                          \n";
+	}
+
+	//
+	///
+	/// \param packedDepth true to write the fragment depth into the color
+	/// target with packDepth(), false when only the depth attachment is kept.
+	//
+	static String depthFragmentShader(boolean packedDepth) {
+		if (!packedDepth) {
+			return    "precision mediump float;                   \n"
+					+ "void main()                                \n"
+					+ "{                                          \n"
+					+ "  gl_FragColor = vec4(1.0);                \n"
+					+ "}                                          \n";
+		}
+		return    HIGHP_FLOAT
+				+ PACK_DEPTH
+				+ "void main()                                \n"
+				+ "{                                          \n"
+				+ "  gl_FragColor = packDepth(gl_FragCoord.z); \n"
+				+ "}                                          \n";
+	}
+
+	//
+	///
+	/// \brief Generates shadowFactor(vec3 texCoord), the lit fraction of the
+	/// kernel around texCoord.xy. Taps are unrolled since GLSL ES 1.00 has no
+	/// constant arrays.
+	//
+	private static String shadowFilter(ShadowRenderer.ShadowFilter filter) {
+		StringBuilder sb = new StringBuilder();
+		sb.append("float shadowFactor(vec3 c)\n{\n");
+		if (filter.taps == 1) {
+			sb.append("  return shadowLit(c.xy, c.z);\n}\n");
+			return sb.toString();
+		}
+
+		sb.append("  float sum = 0.0;\n");
+		if (filter.poisson) {
+			// rotate the disk per pixel, trading banding for noise
+			sb.append("  float a = 6.2831853 * fract(sin(dot(gl_FragCoord.xy, vec2(12.9898, 78.233))) * 43758.5453);\n")
+			  .append("  vec2 r = vec2(cos(a), sin(a)) * (" + POISSON_RADIUS + " * uShadowTexelSize);\n")
+			  .append("  mat2 rot = mat2(r.x, r.y, -r.y, r.x);\n");
+			for (int i = 0; i < filter.taps; i++) {
+				sb.append("  sum += shadowLit(c.xy + rot * vec2(")
+				  .append(POISSON_DISK[i * 2]).append(", ")
+				  .append(POISSON_DISK[i * 2 + 1]).append("), c.z);\n");
+			}
+		} else {
+			// an n x n grid centered on the sample, one texel apart
+			int n = (int) Math.round(Math.sqrt(filter.taps));
+			for (int y = 0; y < n; y++) {
+				for (int x = 0; x < n; x++) {
+					sb.append("  sum += shadowLit(c.xy + vec2(")
+					  .append(x - (n - 1) * 0.5f).append(", ")
+					  .append(y - (n - 1) * 0.5f)
+					  .append(") * uShadowTexelSize, c.z);\n");
+				}
+			}
+		}
+		sb.append("  return sum * ").append(1.0f / filter.taps).append(";\n}\n");
+		return sb.toString();
+	}
+
+	// Kernel radius of the Poisson filter, in shadow map texels
+	private static final float POISSON_RADIUS = 2.0f;
+
+	// 12 points of a Poisson disk in the unit circle
+	private static final float[] POISSON_DISK = {
+		-0.326212f, -0.405810f,  -0.840144f, -0.073580f,
+		-0.695914f,  0.457137f,  -0.203345f,  0.620716f,
+		 0.962340f, -0.194983f,   0.473434f, -0.480026f,
+		 0.519456f,  0.767022f,   0.185461f, -0.893124f,
+		 0.507431f,  0.064425f,   0.896420f,  0.412458f,
+		-0.321940f, -0.932615f,  -0.791559f, -0.597705f
+	};
+
+	// highp where the fragment shader supports it. mediump, with as few as
+	// 10 bits of mantissa, cannot hold the low bytes of a packed depth.
+	private static final String HIGHP_FLOAT =
+			  "#ifdef GL_FRAGMENT_PRECISION_HIGH          \n"
+			+ "precision highp float;                     \n"
+			+ "#else                                      \n"
+			+ "precision mediump float;                   \n"
+			+ "#endif                                     \n";
+
+	// Depth in [0, 1) spread over four 8-bit channels, most significant
+	// first. Each channel keeps the fraction left after the channels before
+	// it, minus what the next channel carries, so that quantizing every
+	// channel to 8 bits does not add up the rounding twice.
+	private static final String PACK_DEPTH =
+			  "vec4 packDepth(float depth)                \n"
+			+ "{                                          \n"
+			+ "  vec4 enc = fract(depth * vec4(1.0, 255.0, 65025.0, 16581375.0));  \n"
+			+ "  enc -= enc.yzww * vec4(1.0 / 255.0, 1.0 / 255.0, 1.0 / 255.0, 0.0);  \n"
+			+ "  return enc;                              \n"
+			+ "}                                          \n";
+
+	private static final String UNPACK_DEPTH =
+			  "float unpackDepth(vec4 rgba)               \n"
+			+ "{                                          \n"
+			+ "  return dot(rgba, vec4(1.0, 1.0 / 255.0, 1.0 / 65025.0, 1.0 / 16581375.0));  \n"
+			+ "}                                          \n";
+
+	//
+	///
+	/// \brief Java mirror of the packDepth() shader function, including the
+	/// rounding of each channel to the 8-bit color target.
+	///
+	/// \param depth Depth in [0, 1).
+	/// \param rgba Receives the four stored channels in [0, 1].
+	//
+	static void packDepth(float depth, float[] rgba) {
+		double[] enc = new double[4];
+		double scale = 1.0;
+		for (int i = 0; i < 4; i++) {
+			double v = depth * scale;
+			enc[i] = v - Math.floor(v);
+			scale *= 255.0;
+		}
+		for (int i = 0; i < 3; i++)
+			enc[i] -= enc[i + 1] / 255.0;
+		for (int i = 0; i < 4; i++)
+			rgba[i] = (float) (Math.round(enc[i] * 255.0) / 255.0);
+	}
+
+	//
+	///
+	/// \brief Java mirror of the unpackDepth() shader function.
+	//
+	static float unpackDepth(float[] rgba) {
+		return rgba[0] + rgba[1] / 255.0f + rgba[2] / 65025.0f
+				+ rgba[3] / 16581375.0f;
+	}
+
+	//
+	///
+	/// \brief Largest difference between a depth and its packDepth() /
+	/// unpackDepth() round trip: half a step of the last channel, plus the
+	/// float rounding of the decode.
+	//
+	static float getPackedDepthMaxError() {
+		return 0.5f / 16581375.0f / 255.0f + 1.0f / (1 << 23);
+	}
+}
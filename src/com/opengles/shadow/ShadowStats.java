@@ -0,0 +1,111 @@
+// ShadowStats
+//
+//    Layout of the per-frame samples ShadowRenderer writes to its
+//    ESFrameStats, and a logcat dumper for them.
+//
+//    Times are nanoseconds. CPU phases are measured on the thread that runs
+//    them: update, shadow pass and eye pass on the frame preparation thread,
+//    replay on the GL thread. GPU pass times come from timer queries a few
+//    frames late, and are -1 where the driver has no timer queries. Counters
+//    are per frame; allocations are process-wide and -1 unless allocation
+//    counting is on.
+//
+//    The dumper computes percentiles on its own thread from a copy of the
+//    ring buffer, so reading the statistics never stalls rendering.
+//
+
+package com.opengles.shadow;
+
+import com.openglesbook.common.ESFrameStats;
+
+import android.util.Log;
+
+final class ShadowStats {
+
+	static final int FRAME_NS = 0;
+	static final int UPDATE_NS = 1;
+	static final int SHADOW_PASS_NS = 2;
+	static final int EYE_PASS_NS = 3;
+	static final int REPLAY_NS = 4;
+	static final int GPU_SHADOW_PASS_NS = 5;
+	static final int GPU_EYE_PASS_NS = 6;
+	static final int DRAW_CALLS = 7;
+	static final int GL_CALLS = 8;
+	static final int GL_CALLS_SUPPRESSED = 9;
+	static final int ALLOCATIONS = 10;
+	static final int GL_ERRORS = 11;
+	static final int FIELDS = 12;
+
+	static final String[] NAMES = {
+		"frame", "update", "shadow", "eye", "replay", "gpuShadow", "gpuEye",
+		"draws", "glCalls", "glSuppressed", "allocs", "glErrors"
+	};
+
+	private static final String TAG = "ShadowStats";
+	private static final float[] PERCENTILES = { 50.0f, 95.0f, 99.0f };
+
+	private ShadowStats() {
+	}
+
+	//
+	///
+	/// \brief Starts a daemon thread that logs p50/p95/p99 of every field
+	/// over the last samples once per period.
+	///
+	/// \return The thread; interrupt it to stop logging.
+	//
+	static Thread startLogging(final ESFrameStats stats, final long periodMillis) {
+		Thread thread = new Thread("ShadowStatsLogger") {
+			@Override
+			public void run() {
+				long[] samples = new long[stats.getCapacity() * stats.getFieldCount()];
+				long[] scratch = new long[stats.getCapacity()];
+				long[] result = new long[PERCENTILES.length];
+				StringBuilder line = new StringBuilder();
+				try {
+					while (!isInterrupted()) {
+						Thread.sleep(periodMillis);
+						int count = stats.read(samples, stats.getCapacity());
+						if (count == 0)
+							continue;
+						line.setLength(0);
+						line.append(count).append(" frames");
+						for (int f = 0; f < FIELDS; f++) {
+							ESFrameStats.percentiles(samples, count, FIELDS, f, scratch,
+									PERCENTILES, result);
+							if (result[0] < 0)
+								continue;
+							line.append(' ').append(NAMES[f]).append('=');
+							for (int p = 0; p < result.length; p++) {
+								if (p > 0)
+									line.append('/');
+								appendValue(line, f, result[p]);
+							}
+						}
+						Log.i(TAG, line.toString());
+					}
+				} catch (InterruptedException e) {
+					// stopped
+				}
+			}
+		};
+		thread.setDaemon(true);
+		thread.setPriority(Thread.MIN_PRIORITY);
+		thread.start();
+		return thread;
+	}
+
+	// Times in milliseconds with two decimals, counters as they are
+	private static void appendValue(StringBuilder line, int field, long value) {
+		if (field > GPU_EYE_PASS_NS) {
+			line.append(value);
+			return;
+		}
+		long hundredths = value / 10000;
+		line.append(hundredths / 100).append('.');
+		long frac = hundredths % 100;
+		if (frac < 10)
+			line.append('0');
+		line.append(frac);
+	}
+}
@@ -14,11 +14,12 @@
  * limitations under the License.
  */
 package com.opengles.shadow;
-import com.openglesbook.common.ESShader;
+import com.openglesbook.common.ESGL;
+import com.openglesbook.common.ESIndices;
+import com.openglesbook.common.ESProgram;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
 import java.nio.FloatBuffer;
-import java.nio.ShortBuffer;
 
 import android.opengl.GLES20;
 
@@ -29,12 +30,19 @@ public class Square {
 
     private final FloatBuffer vertexBuffer;
     private final FloatBuffer normalBuffer;
-    private final ShortBuffer drawListBuffer;
-    private final int mProgram;
-    private int mPositionHandle;
-    private int mNormalHandle;
-    private int mColorHandle;
-    private int mMVPMatrixHandle;
+    private final ESIndices drawListBuffer;
+    private final ESProgram mProgram;
+    private final ESProgram mDepthProgram;
+    private final ESGL mGL;
+    private final int mVertexBufferId;
+    private final int mNormalBufferId;
+    private final int mIndexBufferId;
+    private final int mPositionHandle;
+    private final int mNormalHandle;
+    private final int mColorHandle;
+    private final int mMVPMatrixHandle;
+    private final int mDepthPositionHandle;
+    private final int mDepthMVPMatrixHandle;
 
     // number of coordinates per vertex in this array
     static final int COORDS_PER_VERTEX = 3;
@@ -65,10 +73,23 @@ public class Square {
     float color[] = { 0.2f, 0.709803922f, 0.898039216f, 1.0f };
 
     /**
-     * Sets up the drawing object data for use in an OpenGL ES context.
+     * Sets up the drawing object data for use in an OpenGL ES context and
+     * uploads it into buffer objects. A new Square must be created whenever
+     * the context is recreated.
      */
-    public Square(int Program) {
-    	mProgram = Program;
+    public Square(ESProgram program, ESProgram depthProgram, ESGL gl) {
+        mProgram = program;
+        mDepthProgram = depthProgram;
+        mGL = gl;
+
+        // handles were resolved when the program was linked
+        mPositionHandle = program.getAttribLocation("aPosition");
+        mNormalHandle = program.getAttribLocation("aVertexNormal");
+        mColorHandle = program.getUniformLocation("uVertexColor");
+        mMVPMatrixHandle = program.getUniformLocation("uMVPMatrix");
+        mDepthPositionHandle = depthProgram.getAttribLocation("aPosition");
+        mDepthMVPMatrixHandle = depthProgram.getUniformLocation("uMVPMatrix");
+
         // initialize vertex byte buffer for shape coordinates
         ByteBuffer bb = ByteBuffer.allocateDirect(
         // (# of coordinate values * 4 bytes per float)
@@ -87,14 +108,58 @@ public class Square {
         normalBuffer.put(normals);
         normalBuffer.position(0);
 
-        // initialize byte buffer for the draw list
-        ByteBuffer dlb = ByteBuffer.allocateDirect(
-        // (# of coordinate values * 2 bytes per short)
-                drawOrder.length * 2);
-        dlb.order(ByteOrder.nativeOrder());
-        drawListBuffer = dlb.asShortBuffer();
-        drawListBuffer.put(drawOrder);
-        drawListBuffer.position(0);
+        // initialize the draw list, in the smallest index type that
+        // addresses the four corners
+        drawListBuffer = ESIndices.allocate(drawOrder.length,
+                squareCoords.length / COORDS_PER_VERTEX);
+        for (int i = 0; i < drawOrder.length; i++)
+            drawListBuffer.put(i, drawOrder[i]);
+
+        // upload everything once; draw() only binds and uses offsets
+        mVertexBufferId = gl.genBuffer();
+        gl.bindBuffer(GLES20.GL_ARRAY_BUFFER, mVertexBufferId);
+        gl.bufferData(GLES20.GL_ARRAY_BUFFER, squareCoords.length * 4,
+                vertexBuffer, GLES20.GL_STATIC_DRAW);
+
+        mNormalBufferId = gl.genBuffer();
+        gl.bindBuffer(GLES20.GL_ARRAY_BUFFER, mNormalBufferId);
+        gl.bufferData(GLES20.GL_ARRAY_BUFFER, normals.length * 4,
+                normalBuffer, GLES20.GL_STATIC_DRAW);
+
+        mIndexBufferId = gl.genBuffer();
+        gl.bindBuffer(GLES20.GL_ELEMENT_ARRAY_BUFFER, mIndexBufferId);
+        gl.bufferData(GLES20.GL_ELEMENT_ARRAY_BUFFER,
+                drawOrder.length * drawListBuffer.getSize(),
+                drawListBuffer.getBuffer(), GLES20.GL_STATIC_DRAW);
+
+        gl.bindBuffer(GLES20.GL_ARRAY_BUFFER, 0);
+        gl.bindBuffer(GLES20.GL_ELEMENT_ARRAY_BUFFER, 0);
+    }
+
+    /**
+     * Axis-aligned bounding box of the square's vertices.
+     *
+     * @param out - Receives minX, minY, minZ, maxX, maxY, maxZ.
+     */
+    public void getBoundingBox(float[] out) {
+        for (int c = 0; c < 3; c++) {
+            out[c] = Float.MAX_VALUE;
+            out[c + 3] = -Float.MAX_VALUE;
+        }
+        for (int i = 0; i < squareCoords.length; i++) {
+            int c = i % COORDS_PER_VERTEX;
+            out[c] = Math.min(out[c], squareCoords[i]);
+            out[c + 3] = Math.max(out[c + 3], squareCoords[i]);
+        }
+    }
+
+    /**
+     * Releases the buffer objects created by the constructor.
+     */
+    public void release(ESGL gl) {
+        gl.deleteBuffer(mVertexBufferId);
+        gl.deleteBuffer(mNormalBufferId);
+        gl.deleteBuffer(mIndexBufferId);
     }
 
     /**
@@ -105,55 +170,58 @@ public class Square {
      */
     public void draw(float[] mvpMatrix) {
 
-        // get handle to vertex shader's vPosition member
-        mPositionHandle = GLES20.glGetAttribLocation(mProgram, "aPosition");
-
         // Enable a handle to the triangle vertices
-        GLES20.glEnableVertexAttribArray(mPositionHandle);
+        mGL.enableVertexAttribArray(mPositionHandle);
 
         // Prepare the triangle coordinate data
-        GLES20.glVertexAttribPointer(
+        mGL.bindBuffer(GLES20.GL_ARRAY_BUFFER, mVertexBufferId);
+        mGL.vertexAttribPointer(
                 mPositionHandle, COORDS_PER_VERTEX,
                 GLES20.GL_FLOAT, false,
-                vertexStride, vertexBuffer);
-
-        // get handle to vertex shader's normal member
-        mNormalHandle = GLES20.glGetAttribLocation(mProgram, "aVertexNormal");
+                vertexStride, 0);
 
         // Enable a handle to the triangle vertices
-        GLES20.glEnableVertexAttribArray(mNormalHandle);
+        mGL.enableVertexAttribArray(mNormalHandle);
 
         // Prepare the triangle coordinate data
-        GLES20.glVertexAttribPointer(
+        mGL.bindBuffer(GLES20.GL_ARRAY_BUFFER, mNormalBufferId);
+        mGL.vertexAttribPointer(
                 mNormalHandle, COORDS_PER_VERTEX,
                 GLES20.GL_FLOAT, false,
-                vertexStride, normalBuffer);
+                vertexStride, 0);
 
-        // get handle to fragment shader's vColor member
-        //mColorHandle = GLES20.glGetAttribLocation(mProgram, "vVertexColor");
-        //GLES20.glEnableVertexAttribArray(mColorHandle);
-        //GLES20.glVertexAttrib4fv(mColorHandle, color, 0);
         // Set color for drawing the triangle
-        mColorHandle = GLES20.glGetUniformLocation(mProgram, "uVertexColor");
-        GLES20.glUniform4fv(mColorHandle, 1, color, 0);
-
-
-        // get handle to shape's transformation matrix
-        mMVPMatrixHandle = GLES20.glGetUniformLocation(mProgram, "uMVPMatrix");
-//        MyGLRenderer.checkGlError("glGetUniformLocation");
+        mProgram.setVec4(mColorHandle, color);
 
         // Apply the projection and view transformation
-        GLES20.glUniformMatrix4fv(mMVPMatrixHandle, 1, false, mvpMatrix, 0);
+        mProgram.setMatrix4(mMVPMatrixHandle, mvpMatrix);
 //        MyGLRenderer.checkGlError("glUniformMatrix4fv");
 
         // Draw the square
-        GLES20.glDrawElements(
+        mGL.bindBuffer(GLES20.GL_ELEMENT_ARRAY_BUFFER, mIndexBufferId);
+        mGL.drawElements(
                 GLES20.GL_TRIANGLES, drawOrder.length,
-                GLES20.GL_UNSIGNED_SHORT, drawListBuffer);
+                drawListBuffer.getType(), 0);
+    }
 
-        // Disable vertex array
-        GLES20.glDisableVertexAttribArray(mPositionHandle);
-        //GLES20.glDisableVertexAttribArray(mColorHandle);
-        GLES20.glDisableVertexAttribArray(mNormalHandle);
+    /**
+     * Draws only the positions with the depth program, for the shadow pass.
+     *
+     * @param mvpMatrix - The Model View Project matrix of the light.
+     */
+    public void drawDepth(float[] mvpMatrix) {
+        mGL.enableVertexAttribArray(mDepthPositionHandle);
+        mGL.bindBuffer(GLES20.GL_ARRAY_BUFFER, mVertexBufferId);
+        mGL.vertexAttribPointer(
+                mDepthPositionHandle, COORDS_PER_VERTEX,
+                GLES20.GL_FLOAT, false,
+                vertexStride, 0);
+
+        mDepthProgram.setMatrix4(mDepthMVPMatrixHandle, mvpMatrix);
+
+        mGL.bindBuffer(GLES20.GL_ELEMENT_ARRAY_BUFFER, mIndexBufferId);
+        mGL.drawElements(
+                GLES20.GL_TRIANGLES, drawOrder.length,
+                drawListBuffer.getType(), 0);
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,360 @@
+// ESCommandBuffer
+//
+//    A recorded sequence of ESGL calls that can be replayed later, on
+//    another thread, as many times as needed. Arguments are copied when a
+//    call is recorded, including uniform arrays and buffer contents, so the
+//    recording thread may reuse its own arrays and buffers at once.
+//
+//    Calls that return a value (buffer generation, location queries) cannot
+//    be deferred and are not part of the format; ESCommandRecorder refuses
+//    them while recording.
+//
+//    Not thread safe: one thread records, then hands the buffer over (for
+//    instance through an ESTripleBuffer) to the thread that replays it.
+//
+
+package com.openglesbook.common;
+
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+import java.nio.ShortBuffer;
+
+public class ESCommandBuffer {
+
+	// Opcodes, one per recordable ESGL call
+	static final int DELETE_BUFFER = 1;
+	static final int BIND_BUFFER = 2;
+	static final int BUFFER_DATA = 3;
+	static final int BUFFER_SUB_DATA = 4;
+	static final int USE_PROGRAM = 5;
+	static final int UNIFORM_1I = 6;
+	static final int UNIFORM_1F = 7;
+	static final int UNIFORM_1FV = 8;
+	static final int UNIFORM_3FV = 9;
+	static final int UNIFORM_4FV = 10;
+	static final int UNIFORM_MATRIX_4FV = 11;
+	static final int VERTEX_ATTRIB_POINTER = 12;
+	static final int ENABLE_VERTEX_ATTRIB_ARRAY = 13;
+	static final int DISABLE_VERTEX_ATTRIB_ARRAY = 14;
+	static final int DRAW_ELEMENTS = 15;
+	static final int VERTEX_ATTRIB_DIVISOR = 16;
+	static final int DRAW_ELEMENTS_INSTANCED = 17;
+	static final int BIND_FRAMEBUFFER = 18;
+	static final int ACTIVE_TEXTURE = 19;
+	static final int BIND_TEXTURE = 20;
+	static final int ENABLE = 21;
+	static final int DISABLE = 22;
+	static final int VIEWPORT = 23;
+	static final int SCISSOR = 24;
+	static final int COLOR_MASK = 25;
+	static final int CLEAR_COLOR = 26;
+	static final int CLEAR = 27;
+	static final int BEGIN_QUERY = 28;
+	static final int END_QUERY = 29;
+
+	//
+	///
+	/// \brief Forget the recorded calls, keeping the storage
+	//
+	public void clear() {
+		mIntCount = 0;
+		mFloatCount = 0;
+		mDataSize = 0;
+		mCommandCount = 0;
+	}
+
+	/// \return Calls recorded since clear()
+	public int getCommandCount() {
+		return mCommandCount;
+	}
+
+	//
+	///
+	/// \brief Issue the recorded calls, in order, to gl
+	//
+	public void replay(ESGL gl) {
+		int[] ints = mInts;
+		float[] floats = mFloats;
+		int f = 0;
+		int i = 0;
+		while (i < mIntCount) {
+			switch (ints[i++]) {
+			case DELETE_BUFFER:
+				gl.deleteBuffer(ints[i++]);
+				break;
+			case BIND_BUFFER:
+				gl.bindBuffer(ints[i], ints[i + 1]);
+				i += 2;
+				break;
+			case BUFFER_DATA: {
+				// target, size, data offset or -1, usage
+				Buffer data = getData(ints[i + 2], ints[i + 1]);
+				gl.bufferData(ints[i], ints[i + 1], data, ints[i + 3]);
+				i += 4;
+				break;
+			}
+			case BUFFER_SUB_DATA:
+				// target, offset, size, data offset
+				gl.bufferSubData(ints[i], ints[i + 1], ints[i + 2],
+						getData(ints[i + 3], ints[i + 2]));
+				i += 4;
+				break;
+			case USE_PROGRAM:
+				gl.useProgram(ints[i++]);
+				break;
+			case UNIFORM_1I:
+				gl.uniform1i(ints[i], ints[i + 1]);
+				i += 2;
+				break;
+			case UNIFORM_1F:
+				gl.uniform1f(ints[i++], floats[f++]);
+				break;
+			case UNIFORM_1FV:
+				gl.uniform1fv(ints[i], ints[i + 1], floats, f);
+				f += ints[i + 1];
+				i += 2;
+				break;
+			case UNIFORM_3FV:
+				gl.uniform3fv(ints[i], ints[i + 1], floats, f);
+				f += ints[i + 1] * 3;
+				i += 2;
+				break;
+			case UNIFORM_4FV:
+				gl.uniform4fv(ints[i], ints[i + 1], floats, f);
+				f += ints[i + 1] * 4;
+				i += 2;
+				break;
+			case UNIFORM_MATRIX_4FV:
+				gl.uniformMatrix4fv(ints[i], ints[i + 1], floats, f);
+				f += ints[i + 1] * 16;
+				i += 2;
+				break;
+			case VERTEX_ATTRIB_POINTER:
+				gl.vertexAttribPointer(ints[i], ints[i + 1], ints[i + 2],
+						ints[i + 3] != 0, ints[i + 4], ints[i + 5]);
+				i += 6;
+				break;
+			case ENABLE_VERTEX_ATTRIB_ARRAY:
+				gl.enableVertexAttribArray(ints[i++]);
+				break;
+			case DISABLE_VERTEX_ATTRIB_ARRAY:
+				gl.disableVertexAttribArray(ints[i++]);
+				break;
+			case DRAW_ELEMENTS:
+				gl.drawElements(ints[i], ints[i + 1], ints[i + 2], ints[i + 3]);
+				i += 4;
+				break;
+			case VERTEX_ATTRIB_DIVISOR:
+				gl.vertexAttribDivisor(ints[i], ints[i + 1]);
+				i += 2;
+				break;
+			case DRAW_ELEMENTS_INSTANCED:
+				gl.drawElementsInstanced(ints[i], ints[i + 1], ints[i + 2],
+						ints[i + 3], ints[i + 4]);
+				i += 5;
+				break;
+			case BIND_FRAMEBUFFER:
+				gl.bindFramebuffer(ints[i], ints[i + 1]);
+				i += 2;
+				break;
+			case ACTIVE_TEXTURE:
+				gl.activeTexture(ints[i++]);
+				break;
+			case BIND_TEXTURE:
+				gl.bindTexture(ints[i], ints[i + 1]);
+				i += 2;
+				break;
+			case ENABLE:
+				gl.enable(ints[i++]);
+				break;
+			case DISABLE:
+				gl.disable(ints[i++]);
+				break;
+			case VIEWPORT:
+				gl.viewport(ints[i], ints[i + 1], ints[i + 2], ints[i + 3]);
+				i += 4;
+				break;
+			case SCISSOR:
+				gl.scissor(ints[i], ints[i + 1], ints[i + 2], ints[i + 3]);
+				i += 4;
+				break;
+			case COLOR_MASK: {
+				int mask = ints[i++];
+				gl.colorMask((mask & 1) != 0, (mask & 2) != 0, (mask & 4) != 0,
+						(mask & 8) != 0);
+				break;
+			}
+			case CLEAR_COLOR:
+				gl.clearColor(floats[f], floats[f + 1], floats[f + 2], floats[f + 3]);
+				f += 4;
+				break;
+			case CLEAR:
+				gl.clear(ints[i++]);
+				break;
+			case BEGIN_QUERY:
+				gl.beginQuery(ints[i], ints[i + 1]);
+				i += 2;
+				break;
+			case END_QUERY:
+				gl.endQuery(ints[i++]);
+				break;
+			default:
+				throw new IllegalStateException("Bad opcode at " + (i - 1));
+			}
+		}
+	}
+
+	//
+	// Recording, used by ESCommandRecorder
+	//
+	void begin(int opcode, int argCount) {
+		if (mIntCount + 1 + argCount > mInts.length)
+			mInts = grow(mInts, mIntCount + 1 + argCount);
+		mInts[mIntCount++] = opcode;
+		mCommandCount++;
+	}
+
+	void putInt(int x) {
+		mInts[mIntCount++] = x;
+	}
+
+	void putFloats(float[] v, int offset, int n) {
+		if (mFloatCount + n > mFloats.length)
+			mFloats = grow(mFloats, mFloatCount + n);
+		System.arraycopy(v, offset, mFloats, mFloatCount, n);
+		mFloatCount += n;
+	}
+
+	void putFloat(float x) {
+		if (mFloatCount == mFloats.length)
+			mFloats = grow(mFloats, mFloatCount + 1);
+		mFloats[mFloatCount++] = x;
+	}
+
+	//
+	// Copy size bytes of data from its position into the data store. The
+	// views this takes of data and of the store are kept, as a frame
+	// usually uploads from the same few buffers every time.
+	// \return The offset of the copy, -1 for null data
+	//
+	int putData(Buffer data, int size) {
+		if (data == null)
+			return -1;
+		// keep every copy aligned for the typed views
+		int offset = (mDataSize + 3) & ~3;
+		if (mData == null || offset + size > mData.capacity()) {
+			int capacity = Math.max(offset + size, mData != null ? mData.capacity() * 2 : 4096);
+			ByteBuffer b = ByteBuffer.allocateDirect(capacity).order(ByteOrder.nativeOrder());
+			if (mData != null) {
+				mData.clear();
+				mData.limit(mDataSize);
+				b.put(mData);
+			}
+			mData = b;
+			mDataView = null;
+			mFloatData = null;
+			mShortData = null;
+			mIntData = null;
+		}
+
+		mData.clear();
+		if (data instanceof ByteBuffer) {
+			if (data != mByteSource) {
+				mByteSource = (ByteBuffer) data;
+				mByteSourceView = mByteSource.duplicate();
+			}
+			mData.position(offset);
+			mData.put(window(mByteSourceView, data.position(), size));
+		} else if (data instanceof FloatBuffer) {
+			if (data != mFloatSource) {
+				mFloatSource = (FloatBuffer) data;
+				mFloatSourceView = mFloatSource.duplicate();
+			}
+			if (mFloatData == null)
+				mFloatData = mData.asFloatBuffer();
+			mFloatData.clear();
+			mFloatData.position(offset / 4);
+			mFloatData.put(window(mFloatSourceView, data.position(), size / 4));
+		} else if (data instanceof ShortBuffer) {
+			if (data != mShortSource) {
+				mShortSource = (ShortBuffer) data;
+				mShortSourceView = mShortSource.duplicate();
+			}
+			if (mShortData == null)
+				mShortData = mData.asShortBuffer();
+			mShortData.clear();
+			mShortData.position(offset / 2);
+			mShortData.put(window(mShortSourceView, data.position(), size / 2));
+		} else if (data instanceof IntBuffer) {
+			if (data != mIntSource) {
+				mIntSource = (IntBuffer) data;
+				mIntSourceView = mIntSource.duplicate();
+			}
+			if (mIntData == null)
+				mIntData = mData.asIntBuffer();
+			mIntData.clear();
+			mIntData.position(offset / 4);
+			mIntData.put(window(mIntSourceView, data.position(), size / 4));
+		} else {
+			throw new IllegalArgumentException("Unsupported buffer type: " + data.getClass());
+		}
+		mDataSize = offset + size;
+		return offset;
+	}
+
+	private Buffer getData(int offset, int size) {
+		if (offset < 0)
+			return null;
+		if (mDataView == null)
+			mDataView = mData.duplicate();
+		mDataView.clear();
+		mDataView.position(offset);
+		mDataView.limit(offset + size);
+		return mDataView;
+	}
+
+	// Point a view at count elements from position
+	private static <B extends Buffer> B window(B view, int position, int count) {
+		view.limit(view.capacity());
+		view.position(position);
+		view.limit(position + count);
+		return view;
+	}
+
+	private static int[] grow(int[] a, int min) {
+		int[] b = new int[Math.max(min, a.length * 2)];
+		System.arraycopy(a, 0, b, 0, a.length);
+		return b;
+	}
+
+	private static float[] grow(float[] a, int min) {
+		float[] b = new float[Math.max(min, a.length * 2)];
+		System.arraycopy(a, 0, b, 0, a.length);
+		return b;
+	}
+
+	// Member variables
+	private int[] mInts = new int[1024];
+	private int mIntCount;
+	private float[] mFloats = new float[1024];
+	private int mFloatCount;
+	private ByteBuffer mData;
+	private ByteBuffer mDataView;
+	// recording side views, see putData()
+	private FloatBuffer mFloatData;
+	private ShortBuffer mShortData;
+	private IntBuffer mIntData;
+	private ByteBuffer mByteSource;
+	private ByteBuffer mByteSourceView;
+	private FloatBuffer mFloatSource;
+	private FloatBuffer mFloatSourceView;
+	private ShortBuffer mShortSource;
+	private ShortBuffer mShortSourceView;
+	private IntBuffer mIntSource;
+	private IntBuffer mIntSourceView;
+	private int mDataSize;
+	private int mCommandCount;
+}
@@ -0,0 +1,374 @@
+// ESCommandRecorder
+//
+//    ESGL that either forwards to another ESGL straight away or, between
+//    begin() and end(), appends the calls to an ESCommandBuffer instead.
+//    Programs, shapes and drawables can then be set up once against the
+//    recorder on the GL thread and later record frames on any thread.
+//
+//    While recording, calls that return a value cannot be deferred and
+//    throw IllegalStateException; create GL objects and query locations
+//    before recording starts.
+//
+
+package com.openglesbook.common;
+
+import java.nio.Buffer;
+
+public class ESCommandRecorder implements ESGL {
+
+	//
+	///
+	/// \param gl Receives the calls made outside begin()/end()
+	//
+	public ESCommandRecorder(ESGL gl) {
+		mGL = gl;
+	}
+
+	//
+	///
+	/// \brief Start appending calls to buffer, after clearing it
+	//
+	public void begin(ESCommandBuffer buffer) {
+		buffer.clear();
+		mBuffer = buffer;
+	}
+
+	//
+	///
+	/// \brief Stop recording; later calls go to the wrapped ESGL again
+	//
+	public void end() {
+		mBuffer = null;
+	}
+
+	public boolean isRecording() {
+		return mBuffer != null;
+	}
+
+	public int genBuffer() {
+		checkNotRecording("genBuffer");
+		return mGL.genBuffer();
+	}
+
+	public void deleteBuffer(int buffer) {
+		if (mBuffer == null) {
+			mGL.deleteBuffer(buffer);
+			return;
+		}
+		mBuffer.begin(ESCommandBuffer.DELETE_BUFFER, 1);
+		mBuffer.putInt(buffer);
+	}
+
+	public void bindBuffer(int target, int buffer) {
+		if (mBuffer == null) {
+			mGL.bindBuffer(target, buffer);
+			return;
+		}
+		mBuffer.begin(ESCommandBuffer.BIND_BUFFER, 2);
+		mBuffer.putInt(target);
+		mBuffer.putInt(buffer);
+	}
+
+	public void bufferData(int target, int size, Buffer data, int usage) {
+		if (mBuffer == null) {
+			mGL.bufferData(target, size, data, usage);
+			return;
+		}
+		int offset = mBuffer.putData(data, size);
+		mBuffer.begin(ESCommandBuffer.BUFFER_DATA, 4);
+		mBuffer.putInt(target);
+		mBuffer.putInt(size);
+		mBuffer.putInt(offset);
+		mBuffer.putInt(usage);
+	}
+
+	public void bufferSubData(int target, int offset, int size, Buffer data) {
+		if (mBuffer == null) {
+			mGL.bufferSubData(target, offset, size, data);
+			return;
+		}
+		int dataOffset = mBuffer.putData(data, size);
+		mBuffer.begin(ESCommandBuffer.BUFFER_SUB_DATA, 4);
+		mBuffer.putInt(target);
+		mBuffer.putInt(offset);
+		mBuffer.putInt(size);
+		mBuffer.putInt(dataOffset);
+	}
+
+	public void useProgram(int program) {
+		if (mBuffer == null) {
+			mGL.useProgram(program);
+			return;
+		}
+		mBuffer.begin(ESCommandBuffer.USE_PROGRAM, 1);
+		mBuffer.putInt(program);
+	}
+
+	public int getAttribLocation(int program, String name) {
+		checkNotRecording("getAttribLocation");
+		return mGL.getAttribLocation(program, name);
+	}
+
+	public int getUniformLocation(int program, String name) {
+		checkNotRecording("getUniformLocation");
+		return mGL.getUniformLocation(program, name);
+	}
+
+	public void uniform1i(int location, int x) {
+		if (mBuffer == null) {
+			mGL.uniform1i(location, x);
+			return;
+		}
+		mBuffer.begin(ESCommandBuffer.UNIFORM_1I, 2);
+		mBuffer.putInt(location);
+		mBuffer.putInt(x);
+	}
+
+	public void uniform1f(int location, float x) {
+		if (mBuffer == null) {
+			mGL.uniform1f(location, x);
+			return;
+		}
+		mBuffer.begin(ESCommandBuffer.UNIFORM_1F, 1);
+		mBuffer.putInt(location);
+		mBuffer.putFloat(x);
+	}
+
+	public void uniform1fv(int location, int count, float[] v, int offset) {
+		if (mBuffer == null) {
+			mGL.uniform1fv(location, count, v, offset);
+			return;
+		}
+		recordUniform(ESCommandBuffer.UNIFORM_1FV, location, count, v, offset, count);
+	}
+
+	public void uniform3fv(int location, int count, float[] v, int offset) {
+		if (mBuffer == null) {
+			mGL.uniform3fv(location, count, v, offset);
+			return;
+		}
+		recordUniform(ESCommandBuffer.UNIFORM_3FV, location, count, v, offset, count * 3);
+	}
+
+	public void uniform4fv(int location, int count, float[] v, int offset) {
+		if (mBuffer == null) {
+			mGL.uniform4fv(location, count, v, offset);
+			return;
+		}
+		recordUniform(ESCommandBuffer.UNIFORM_4FV, location, count, v, offset, count * 4);
+	}
+
+	public void uniformMatrix4fv(int location, int count, float[] v, int offset) {
+		if (mBuffer == null) {
+			mGL.uniformMatrix4fv(location, count, v, offset);
+			return;
+		}
+		recordUniform(ESCommandBuffer.UNIFORM_MATRIX_4FV, location, count, v, offset, count * 16);
+	}
+
+	public void vertexAttribPointer(int index, int size, int type,
+			boolean normalized, int stride, int offset) {
+		if (mBuffer == null) {
+			mGL.vertexAttribPointer(index, size, type, normalized, stride, offset);
+			return;
+		}
+		mBuffer.begin(ESCommandBuffer.VERTEX_ATTRIB_POINTER, 6);
+		mBuffer.putInt(index);
+		mBuffer.putInt(size);
+		mBuffer.putInt(type);
+		mBuffer.putInt(normalized ? 1 : 0);
+		mBuffer.putInt(stride);
+		mBuffer.putInt(offset);
+	}
+
+	public void enableVertexAttribArray(int index) {
+		if (mBuffer == null) {
+			mGL.enableVertexAttribArray(index);
+			return;
+		}
+		mBuffer.begin(ESCommandBuffer.ENABLE_VERTEX_ATTRIB_ARRAY, 1);
+		mBuffer.putInt(index);
+	}
+
+	public void disableVertexAttribArray(int index) {
+		if (mBuffer == null) {
+			mGL.disableVertexAttribArray(index);
+			return;
+		}
+		mBuffer.begin(ESCommandBuffer.DISABLE_VERTEX_ATTRIB_ARRAY, 1);
+		mBuffer.putInt(index);
+	}
+
+	public void drawElements(int mode, int count, int type, int offset) {
+		if (mBuffer == null) {
+			mGL.drawElements(mode, count, type, offset);
+			return;
+		}
+		mBuffer.begin(ESCommandBuffer.DRAW_ELEMENTS, 4);
+		mBuffer.putInt(mode);
+		mBuffer.putInt(count);
+		mBuffer.putInt(type);
+		mBuffer.putInt(offset);
+	}
+
+	public void vertexAttribDivisor(int index, int divisor) {
+		if (mBuffer == null) {
+			mGL.vertexAttribDivisor(index, divisor);
+			return;
+		}
+		mBuffer.begin(ESCommandBuffer.VERTEX_ATTRIB_DIVISOR, 2);
+		mBuffer.putInt(index);
+		mBuffer.putInt(divisor);
+	}
+
+	public void drawElementsInstanced(int mode, int count, int type, int offset,
+			int instanceCount) {
+		if (mBuffer == null) {
+			mGL.drawElementsInstanced(mode, count, type, offset, instanceCount);
+			return;
+		}
+		mBuffer.begin(ESCommandBuffer.DRAW_ELEMENTS_INSTANCED, 5);
+		mBuffer.putInt(mode);
+		mBuffer.putInt(count);
+		mBuffer.putInt(type);
+		mBuffer.putInt(offset);
+		mBuffer.putInt(instanceCount);
+	}
+
+	public void bindFramebuffer(int target, int framebuffer) {
+		if (mBuffer == null) {
+			mGL.bindFramebuffer(target, framebuffer);
+			return;
+		}
+		mBuffer.begin(ESCommandBuffer.BIND_FRAMEBUFFER, 2);
+		mBuffer.putInt(target);
+		mBuffer.putInt(framebuffer);
+	}
+
+	public void activeTexture(int unit) {
+		if (mBuffer == null) {
+			mGL.activeTexture(unit);
+			return;
+		}
+		mBuffer.begin(ESCommandBuffer.ACTIVE_TEXTURE, 1);
+		mBuffer.putInt(unit);
+	}
+
+	public void bindTexture(int target, int texture) {
+		if (mBuffer == null) {
+			mGL.bindTexture(target, texture);
+			return;
+		}
+		mBuffer.begin(ESCommandBuffer.BIND_TEXTURE, 2);
+		mBuffer.putInt(target);
+		mBuffer.putInt(texture);
+	}
+
+	public void enable(int cap) {
+		if (mBuffer == null) {
+			mGL.enable(cap);
+			return;
+		}
+		mBuffer.begin(ESCommandBuffer.ENABLE, 1);
+		mBuffer.putInt(cap);
+	}
+
+	public void disable(int cap) {
+		if (mBuffer == null) {
+			mGL.disable(cap);
+			return;
+		}
+		mBuffer.begin(ESCommandBuffer.DISABLE, 1);
+		mBuffer.putInt(cap);
+	}
+
+	public void viewport(int x, int y, int width, int height) {
+		if (mBuffer == null) {
+			mGL.viewport(x, y, width, height);
+			return;
+		}
+		recordRect(ESCommandBuffer.VIEWPORT, x, y, width, height);
+	}
+
+	public void scissor(int x, int y, int width, int height) {
+		if (mBuffer == null) {
+			mGL.scissor(x, y, width, height);
+			return;
+		}
+		recordRect(ESCommandBuffer.SCISSOR, x, y, width, height);
+	}
+
+	public void colorMask(boolean red, boolean green, boolean blue, boolean alpha) {
+		if (mBuffer == null) {
+			mGL.colorMask(red, green, blue, alpha);
+			return;
+		}
+		mBuffer.begin(ESCommandBuffer.COLOR_MASK, 1);
+		mBuffer.putInt((red ? 1 : 0) | (green ? 2 : 0) | (blue ? 4 : 0) | (alpha ? 8 : 0));
+	}
+
+	public void clearColor(float red, float green, float blue, float alpha) {
+		if (mBuffer == null) {
+			mGL.clearColor(red, green, blue, alpha);
+			return;
+		}
+		mBuffer.begin(ESCommandBuffer.CLEAR_COLOR, 0);
+		mBuffer.putFloat(red);
+		mBuffer.putFloat(green);
+		mBuffer.putFloat(blue);
+		mBuffer.putFloat(alpha);
+	}
+
+	public void clear(int mask) {
+		if (mBuffer == null) {
+			mGL.clear(mask);
+			return;
+		}
+		mBuffer.begin(ESCommandBuffer.CLEAR, 1);
+		mBuffer.putInt(mask);
+	}
+
+	public void beginQuery(int target, int id) {
+		if (mBuffer == null) {
+			mGL.beginQuery(target, id);
+			return;
+		}
+		mBuffer.begin(ESCommandBuffer.BEGIN_QUERY, 2);
+		mBuffer.putInt(target);
+		mBuffer.putInt(id);
+	}
+
+	public void endQuery(int target) {
+		if (mBuffer == null) {
+			mGL.endQuery(target);
+			return;
+		}
+		mBuffer.begin(ESCommandBuffer.END_QUERY, 1);
+		mBuffer.putInt(target);
+	}
+
+	private void recordUniform(int opcode, int location, int count, float[] v,
+			int offset, int n) {
+		mBuffer.begin(opcode, 2);
+		mBuffer.putInt(location);
+		mBuffer.putInt(count);
+		mBuffer.putFloats(v, offset, n);
+	}
+
+	private void recordRect(int opcode, int x, int y, int width, int height) {
+		mBuffer.begin(opcode, 4);
+		mBuffer.putInt(x);
+		mBuffer.putInt(y);
+		mBuffer.putInt(width);
+		mBuffer.putInt(height);
+	}
+
+	private void checkNotRecording(String call) {
+		if (mBuffer != null)
+			throw new IllegalStateException(call + " cannot be recorded");
+	}
+
+	// Member variables
+	private final ESGL mGL;
+	private ESCommandBuffer mBuffer;
+}
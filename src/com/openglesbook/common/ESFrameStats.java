@@ -0,0 +1,123 @@
+// ESFrameStats
+//
+//    Lock-free ring buffer of per-frame samples, each a fixed number of
+//    long fields. One thread writes a sample per frame; any number of
+//    readers copy recent samples out without ever blocking the writer.
+//
+//    Every slot carries the number of the sample it holds. The writer marks
+//    the slot as being written, stores the fields, then stores the number;
+//    a reader keeps a copied sample only if the number was the expected
+//    one both before and after copying it. Samples overwritten while being
+//    read are skipped rather than returned torn.
+//
+
+package com.openglesbook.common;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+public class ESFrameStats {
+
+	//
+	///
+	/// \param capacity Samples kept
+	/// \param fields Values per sample
+	//
+	public ESFrameStats(int capacity, int fields) {
+		mCapacity = capacity;
+		mFields = fields;
+		mSlots = new AtomicLongArray(capacity * (fields + 1));
+		for (int i = 0; i < capacity; i++)
+			mSlots.set(i * (fields + 1), -1);
+	}
+
+	public int getFieldCount() {
+		return mFields;
+	}
+
+	public int getCapacity() {
+		return mCapacity;
+	}
+
+	/// \return Samples written so far
+	public long getSampleCount() {
+		return mCount.get();
+	}
+
+	//
+	///
+	/// \brief Append a sample. Writer thread only; never blocks.
+	/// \param values getFieldCount() values
+	//
+	public void write(long[] values) {
+		long n = mCount.get();
+		int base = (int) (n % mCapacity) * (mFields + 1);
+		mSlots.set(base, -1);
+		for (int i = 0; i < mFields; i++)
+			mSlots.set(base + 1 + i, values[i]);
+		mSlots.set(base, n);
+		mCount.lazySet(n + 1);
+	}
+
+	//
+	///
+	/// \brief Copy up to maxSamples of the newest samples, oldest first
+	/// \param out Receives the samples one after another, getFieldCount()
+	/// values each
+	/// \return The number of samples copied
+	//
+	public int read(long[] out, int maxSamples) {
+		long end = mCount.get();
+		long start = Math.max(0, end - Math.min(maxSamples, mCapacity));
+		int copied = 0;
+		for (long n = start; n < end; n++) {
+			int base = (int) (n % mCapacity) * (mFields + 1);
+			if (mSlots.get(base) != n)
+				continue;
+			int o = copied * mFields;
+			for (int i = 0; i < mFields; i++)
+				out[o + i] = mSlots.get(base + 1 + i);
+			if (mSlots.get(base) != n)
+				continue; // overwritten meanwhile
+			copied++;
+		}
+		return copied;
+	}
+
+	//
+	///
+	/// \brief Percentiles of one field over samples copied by read().
+	/// Negative values mark a field as unknown for that sample and are
+	/// left out.
+	/// \param scratch At least count values, reordered on return
+	/// \param percentiles Requested percentiles, 0 to 100
+	/// \param result Receives one value per percentile, -1 if no sample
+	/// had the field
+	//
+	public static void percentiles(long[] samples, int count, int fields,
+			int field, long[] scratch, float[] percentiles, long[] result) {
+		int n = 0;
+		for (int i = 0; i < count; i++) {
+			long v = samples[i * fields + field];
+			if (v >= 0)
+				scratch[n++] = v;
+		}
+		Arrays.sort(scratch, 0, n);
+		for (int p = 0; p < percentiles.length; p++) {
+			if (n == 0) {
+				result[p] = -1;
+				continue;
+			}
+			// nearest rank
+			int rank = (int) Math.ceil(percentiles[p] / 100.0f * n);
+			result[p] = scratch[Math.min(Math.max(rank, 1), n) - 1];
+		}
+	}
+
+	// Member variables
+	private final int mCapacity;
+	private final int mFields;
+	private final AtomicLongArray mSlots;
+	private final AtomicLong mCount = new AtomicLong();
+}
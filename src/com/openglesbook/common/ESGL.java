@@ -0,0 +1,160 @@
+// ESGL
+//
+//    Thin interface over the GLES20 entry points used by the shapes and the
+//    renderer, so that GPU resource management can be driven by something
+//    other than the real driver (for instance a recording stand-in).
+//
+
+package com.openglesbook.common;
+
+import java.nio.Buffer;
+
+public interface ESGL {
+	//
+	///
+	/// \brief Generate a single buffer object name
+	/// \return The new buffer object name
+	//
+	int genBuffer();
+
+	//
+	///
+	/// \brief Delete a buffer object previously returned by genBuffer()
+	/// \param buffer Buffer object name, 0 is silently ignored
+	//
+	void deleteBuffer(int buffer);
+
+	//
+	///
+	/// \brief Bind a buffer object
+	/// \param target GL_ARRAY_BUFFER or GL_ELEMENT_ARRAY_BUFFER
+	/// \param buffer Buffer object name, 0 to unbind
+	//
+	void bindBuffer(int target, int buffer);
+
+	//
+	///
+	/// \brief Create and initialize the data store of the bound buffer
+	/// \param target GL_ARRAY_BUFFER or GL_ELEMENT_ARRAY_BUFFER
+	/// \param size Size of the data store in bytes
+	/// \param data Client data to copy, positioned at its first element
+	/// \param usage GL_STATIC_DRAW, GL_DYNAMIC_DRAW or GL_STREAM_DRAW
+	//
+	void bufferData(int target, int size, Buffer data, int usage);
+
+	//
+	///
+	/// \brief Update part of the data store of the bound buffer
+	/// \param target GL_ARRAY_BUFFER or GL_ELEMENT_ARRAY_BUFFER
+	/// \param offset Offset into the data store in bytes
+	/// \param size Number of bytes to copy
+	/// \param data Client data to copy, positioned at its first element
+	//
+	void bufferSubData(int target, int offset, int size, Buffer data);
+
+	//
+	///
+	/// \brief Install a program object as part of the current rendering state
+	//
+	void useProgram(int program);
+
+	//
+	///
+	/// \brief Query the location of a vertex attribute of a linked program
+	/// \return The location, -1 if the program has no such active attribute
+	//
+	int getAttribLocation(int program, String name);
+
+	//
+	///
+	/// \brief Query the location of a uniform of a linked program
+	/// \return The location, -1 if the program has no such active uniform
+	//
+	int getUniformLocation(int program, String name);
+
+	void uniform1i(int location, int x);
+
+	void uniform1f(int location, float x);
+
+	void uniform1fv(int location, int count, float[] v, int offset);
+
+	void uniform3fv(int location, int count, float[] v, int offset);
+
+	void uniform4fv(int location, int count, float[] v, int offset);
+
+	void uniformMatrix4fv(int location, int count, float[] v, int offset);
+
+	//
+	///
+	/// \brief Point a vertex attribute into the bound GL_ARRAY_BUFFER
+	/// \param offset Byte offset of the first element in the buffer
+	//
+	void vertexAttribPointer(int index, int size, int type, boolean normalized,
+			int stride, int offset);
+
+	void enableVertexAttribArray(int index);
+
+	void disableVertexAttribArray(int index);
+
+	//
+	///
+	/// \brief Draw from the bound GL_ELEMENT_ARRAY_BUFFER
+	/// \param offset Byte offset of the first index in the buffer
+	//
+	void drawElements(int mode, int count, int type, int offset);
+
+	//
+	///
+	/// \brief Advance an attribute once per instance instead of per vertex.
+	/// Requires an OpenGL ES 3.0 context.
+	/// \param divisor 0 for per-vertex, n to advance every n instances
+	//
+	void vertexAttribDivisor(int index, int divisor);
+
+	//
+	///
+	/// \brief drawElements() repeated instanceCount times. Requires an
+	/// OpenGL ES 3.0 context.
+	//
+	void drawElementsInstanced(int mode, int count, int type, int offset,
+			int instanceCount);
+
+	//
+	///
+	/// \brief Bind a framebuffer object
+	/// \param framebuffer Framebuffer object name, 0 for the window surface
+	//
+	void bindFramebuffer(int target, int framebuffer);
+
+	//
+	///
+	/// \brief Select the texture unit that bindTexture() affects
+	/// \param unit GL_TEXTURE0 + n
+	//
+	void activeTexture(int unit);
+
+	void bindTexture(int target, int texture);
+
+	void enable(int cap);
+
+	void disable(int cap);
+
+	void viewport(int x, int y, int width, int height);
+
+	void scissor(int x, int y, int width, int height);
+
+	void colorMask(boolean red, boolean green, boolean blue, boolean alpha);
+
+	void clearColor(float red, float green, float blue, float alpha);
+
+	void clear(int mask);
+
+	//
+	///
+	/// \brief Start a query object, for instance a GPU timer
+	/// (GL_TIME_ELAPSED_EXT). Requires an OpenGL ES 3.0 context.
+	//
+	void beginQuery(int target, int id);
+
+	void endQuery(int target);
+}
@@ -0,0 +1,166 @@
+// ESGLES20
+//
+//    ESGL implementation forwarding to the android.opengl.GLES20 bindings.
+//
+
+package com.openglesbook.common;
+
+import java.nio.Buffer;
+
+import android.opengl.GLES20;
+import android.opengl.GLES30;
+import android.os.Build;
+
+public class ESGLES20 implements ESGL {
+
+	//
+	///
+	/// \brief Whether the current context and platform offer the OpenGL ES
+	/// 3.0 entry points (GLES30 bindings need API 18). A context requested
+	/// as 2.0 is often created as 3.x by the driver.
+	//
+	public static boolean isES30Context() {
+		if (Build.VERSION.SDK_INT < 18)
+			return false;
+		String version = GLES20.glGetString(GLES20.GL_VERSION);
+		return version != null && version.startsWith("OpenGL ES ")
+				&& version.length() > 10 && version.charAt(10) >= '3';
+	}
+
+	public int genBuffer() {
+		GLES20.glGenBuffers(1, mName, 0);
+		return mName[0];
+	}
+
+	public void deleteBuffer(int buffer) {
+		if (buffer == 0)
+			return;
+		mName[0] = buffer;
+		GLES20.glDeleteBuffers(1, mName, 0);
+	}
+
+	public void bindBuffer(int target, int buffer) {
+		GLES20.glBindBuffer(target, buffer);
+	}
+
+	public void bufferData(int target, int size, Buffer data, int usage) {
+		GLES20.glBufferData(target, size, data, usage);
+	}
+
+	public void bufferSubData(int target, int offset, int size, Buffer data) {
+		GLES20.glBufferSubData(target, offset, size, data);
+	}
+
+	public void useProgram(int program) {
+		GLES20.glUseProgram(program);
+	}
+
+	public int getAttribLocation(int program, String name) {
+		return GLES20.glGetAttribLocation(program, name);
+	}
+
+	public int getUniformLocation(int program, String name) {
+		return GLES20.glGetUniformLocation(program, name);
+	}
+
+	public void uniform1i(int location, int x) {
+		GLES20.glUniform1i(location, x);
+	}
+
+	public void uniform1f(int location, float x) {
+		GLES20.glUniform1f(location, x);
+	}
+
+	public void uniform1fv(int location, int count, float[] v, int offset) {
+		GLES20.glUniform1fv(location, count, v, offset);
+	}
+
+	public void uniform3fv(int location, int count, float[] v, int offset) {
+		GLES20.glUniform3fv(location, count, v, offset);
+	}
+
+	public void uniform4fv(int location, int count, float[] v, int offset) {
+		GLES20.glUniform4fv(location, count, v, offset);
+	}
+
+	public void uniformMatrix4fv(int location, int count, float[] v, int offset) {
+		GLES20.glUniformMatrix4fv(location, count, false, v, offset);
+	}
+
+	public void vertexAttribPointer(int index, int size, int type,
+			boolean normalized, int stride, int offset) {
+		GLES20.glVertexAttribPointer(index, size, type, normalized, stride, offset);
+	}
+
+	public void enableVertexAttribArray(int index) {
+		GLES20.glEnableVertexAttribArray(index);
+	}
+
+	public void disableVertexAttribArray(int index) {
+		GLES20.glDisableVertexAttribArray(index);
+	}
+
+	public void drawElements(int mode, int count, int type, int offset) {
+		GLES20.glDrawElements(mode, count, type, offset);
+	}
+
+	public void vertexAttribDivisor(int index, int divisor) {
+		GLES30.glVertexAttribDivisor(index, divisor);
+	}
+
+	public void drawElementsInstanced(int mode, int count, int type, int offset,
+			int instanceCount) {
+		GLES30.glDrawElementsInstanced(mode, count, type, offset, instanceCount);
+	}
+
+	public void bindFramebuffer(int target, int framebuffer) {
+		GLES20.glBindFramebuffer(target, framebuffer);
+	}
+
+	public void activeTexture(int unit) {
+		GLES20.glActiveTexture(unit);
+	}
+
+	public void bindTexture(int target, int texture) {
+		GLES20.glBindTexture(target, texture);
+	}
+
+	public void enable(int cap) {
+		GLES20.glEnable(cap);
+	}
+
+	public void disable(int cap) {
+		GLES20.glDisable(cap);
+	}
+
+	public void viewport(int x, int y, int width, int height) {
+		GLES20.glViewport(x, y, width, height);
+	}
+
+	public void scissor(int x, int y, int width, int height) {
+		GLES20.glScissor(x, y, width, height);
+	}
+
+	public void colorMask(boolean red, boolean green, boolean blue, boolean alpha) {
+		GLES20.glColorMask(red, green, blue, alpha);
+	}
+
+	public void clearColor(float red, float green, float blue, float alpha) {
+		GLES20.glClearColor(red, green, blue, alpha);
+	}
+
+	public void clear(int mask) {
+		GLES20.glClear(mask);
+	}
+
+	public void beginQuery(int target, int id) {
+		GLES30.glBeginQuery(target, id);
+	}
+
+	public void endQuery(int target) {
+		GLES30.glEndQuery(target);
+	}
+
+	// Scratch array for the glGen*/glDelete* entry points
+	private final int[] mName = new int[1];
+}
@@ -0,0 +1,116 @@
+// ESGpuTimer
+//
+//    GPU time per render pass from GL_EXT_disjoint_timer_query. The
+//    extension has no Java bindings of its own, but on an OpenGL ES 3.0
+//    context its GL_TIME_ELAPSED_EXT target works with the core query
+//    entry points of GLES30.
+//
+//    Results arrive a few frames late, so each frame index uses its own set
+//    of query objects out of LATENCY sets, and collect() reads the oldest
+//    set without waiting. Frames recorded ahead of time pick their query
+//    ids with getQuery() and issue beginQuery()/endQuery() through ESGL.
+//
+
+package com.openglesbook.common;
+
+import android.opengl.GLES20;
+import android.opengl.GLES30;
+
+public class ESGpuTimer {
+
+	public static final int GL_TIME_ELAPSED_EXT = 0x88BF;
+	public static final int GL_GPU_DISJOINT_EXT = 0x8FBB;
+
+	// Frames between issuing a query and reading it back
+	public static final int LATENCY = 3;
+
+	//
+	///
+	/// \brief Whether the current context can time passes
+	//
+	public static boolean isSupported() {
+		if (!ESGLES20.isES30Context())
+			return false;
+		String extensions = GLES20.glGetString(GLES20.GL_EXTENSIONS);
+		return extensions != null
+				&& extensions.indexOf("GL_EXT_disjoint_timer_query") >= 0;
+	}
+
+	//
+	///
+	/// \brief Create the query objects. GL thread, current context.
+	/// \param passes Number of passes timed per frame
+	//
+	public ESGpuTimer(int passes) {
+		mPasses = passes;
+		mQueries = new int[LATENCY * passes];
+		mNanos = new long[passes];
+		mUsed = new long[LATENCY];
+		GLES30.glGenQueries(mQueries.length, mQueries, 0);
+		for (int i = 0; i < passes; i++)
+			mNanos[i] = -1;
+		for (int i = 0; i < LATENCY; i++)
+			mUsed[i] = -1;
+	}
+
+	//
+	///
+	/// \brief Query object timing a pass of a frame. Any thread; the ids do
+	/// not change after construction.
+	//
+	public int getQuery(long frame, int pass) {
+		return mQueries[(int) (frame % LATENCY) * mPasses + pass];
+	}
+
+	//
+	///
+	/// \brief Note that a frame's queries were issued, then read back the
+	/// oldest frame whose results are ready. GL thread.
+	/// \return Whether getNanos() changed
+	//
+	public boolean collect(long frame) {
+		mUsed[(int) (frame % LATENCY)] = frame;
+		long oldest = frame - (LATENCY - 1);
+		if (oldest < 0 || mUsed[(int) (oldest % LATENCY)] != oldest)
+			return false;
+
+		int base = (int) (oldest % LATENCY) * mPasses;
+		GLES30.glGetQueryObjectuiv(mQueries[base + mPasses - 1],
+				GLES30.GL_QUERY_RESULT_AVAILABLE, mParam, 0);
+		if (mParam[0] == 0)
+			return false; // still in flight; the next frame reuses the set
+
+		// a disjoint operation (frequency change, context switch) makes
+		// every pending result meaningless
+		GLES20.glGetIntegerv(GL_GPU_DISJOINT_EXT, mParam, 0);
+		boolean disjoint = mParam[0] != 0;
+		for (int p = 0; p < mPasses; p++) {
+			GLES30.glGetQueryObjectuiv(mQueries[base + p], GLES30.GL_QUERY_RESULT,
+					mParam, 0);
+			mNanos[p] = disjoint ? -1 : mParam[0] & 0xffffffffL;
+		}
+		mUsed[(int) (oldest % LATENCY)] = -1;
+		return true;
+	}
+
+	/// \return The last GPU time read back for a pass in nanoseconds, -1 if
+	/// none is known
+	public long getNanos(int pass) {
+		return mNanos[pass];
+	}
+
+	//
+	///
+	/// \brief Delete the query objects. GL thread.
+	//
+	public void release() {
+		GLES30.glDeleteQueries(mQueries.length, mQueries, 0);
+	}
+
+	// Member variables
+	private final int mPasses;
+	private final int[] mQueries;
+	private final long[] mNanos;
+	private final long[] mUsed;
+	private final int[] mParam = new int[1];
+}
@@ -0,0 +1,172 @@
+// ESIndices
+//
+//    Triangle indices stored in the narrowest GL type that can address
+//    every vertex of the mesh: unsigned bytes up to 256 vertices, unsigned
+//    shorts up to 65536, unsigned ints beyond that. Unsigned int indices
+//    are core in OpenGL ES 3.0 but need OES_element_index_uint on 2.0;
+//    ESShapes splits meshes into 16-bit parts where they are missing.
+//
+
+package com.openglesbook.common;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+import android.opengl.GLES20;
+
+public class ESIndices {
+
+	//
+	///
+	/// \return GL_UNSIGNED_BYTE, GL_UNSIGNED_SHORT or GL_UNSIGNED_INT,
+	/// whichever is the smallest that indexes numVertices vertices
+	//
+	public static int typeFor(int numVertices) {
+		if (numVertices <= 1 << 8)
+			return GLES20.GL_UNSIGNED_BYTE;
+		if (numVertices <= 1 << 16)
+			return GLES20.GL_UNSIGNED_SHORT;
+		return GLES20.GL_UNSIGNED_INT;
+	}
+
+	/// \return Bytes per index of an index type
+	public static int sizeOf(int type) {
+		switch (type) {
+		case GLES20.GL_UNSIGNED_BYTE:
+			return 1;
+		case GLES20.GL_UNSIGNED_SHORT:
+			return 2;
+		case GLES20.GL_UNSIGNED_INT:
+			return 4;
+		default:
+			throw new IllegalArgumentException("Not an index type: " + type);
+		}
+	}
+
+	//
+	///
+	/// \brief Whether the current context draws GL_UNSIGNED_INT indices.
+	/// GL thread only.
+	//
+	public static boolean isUintSupported() {
+		if (ESGLES20.isES30Context())
+			return true;
+		String extensions = GLES20.glGetString(GLES20.GL_EXTENSIONS);
+		return extensions != null
+				&& extensions.indexOf("GL_OES_element_index_uint") >= 0;
+	}
+
+	//
+	///
+	/// \brief Allocate zeroed indices in a direct, native-order buffer
+	/// \param count Number of indices
+	/// \param numVertices Number of vertices indexed, which picks the type
+	//
+	public static ESIndices allocate(int count, int numVertices) {
+		return allocateType(count, typeFor(numVertices));
+	}
+
+	public static ESIndices allocateType(int count, int type) {
+		return new ESIndices(ByteBuffer.allocateDirect(count * sizeOf(type))
+				.order(ByteOrder.nativeOrder()), type);
+	}
+
+	//
+	///
+	/// \brief Use existing index data, such as a view of a mapped mesh file
+	/// \param data getCount() * sizeOf(type) bytes, in native order
+	//
+	public static ESIndices wrap(ByteBuffer data, int type) {
+		return new ESIndices(data, type);
+	}
+
+	/// \return GL_UNSIGNED_BYTE, GL_UNSIGNED_SHORT or GL_UNSIGNED_INT
+	public int getType() {
+		return mType;
+	}
+
+	/// \return Bytes per index
+	public int getSize() {
+		return mSize;
+	}
+
+	public int getCount() {
+		return mData.capacity() / mSize;
+	}
+
+	public int get(int i) {
+		switch (mSize) {
+		case 1:
+			return mData.get(i) & 0xff;
+		case 2:
+			return mData.getShort(i * 2) & 0xffff;
+		default:
+			return mData.getInt(i * 4);
+		}
+	}
+
+	//
+	///
+	/// \param value Vertex index; must fit the type
+	//
+	public void put(int i, int value) {
+		switch (mSize) {
+		case 1:
+			mData.put(i, (byte) value);
+			break;
+		case 2:
+			mData.putShort(i * 2, (short) value);
+			break;
+		default:
+			mData.putInt(i * 4, value);
+			break;
+		}
+	}
+
+	//
+	///
+	/// \brief Store count values from an array at indices first onwards,
+	/// with one bulk copy. Safe to call from several threads for disjoint
+	/// ranges.
+	//
+	public void put(int first, int[] values, int offset, int count) {
+		ByteBuffer data = mData.duplicate().order(mData.order());
+		data.position(first * mSize);
+		switch (mSize) {
+		case 1:
+			byte[] bytes = new byte[count];
+			for (int i = 0; i < count; i++)
+				bytes[i] = (byte) values[offset + i];
+			data.put(bytes);
+			break;
+		case 2:
+			short[] shorts = new short[count];
+			for (int i = 0; i < count; i++)
+				shorts[i] = (short) values[offset + i];
+			data.asShortBuffer().put(shorts);
+			break;
+		default:
+			data.asIntBuffer().put(values, offset, count);
+			break;
+		}
+	}
+
+	//
+	///
+	/// \return The index data, for glBufferData; its position is not used
+	/// by this class
+	//
+	public ByteBuffer getBuffer() {
+		return mData;
+	}
+
+	private ESIndices(ByteBuffer data, int type) {
+		mData = data;
+		mType = type;
+		mSize = sizeOf(type);
+	}
+
+	private final ByteBuffer mData;
+	private final int mType;
+	private final int mSize;
+}
@@ -0,0 +1,160 @@
+// ESLodChain
+//
+//    Levels of detail of one shape, finest first, and the choice of level
+//    for a projected size. Each level records how far its triangles stray
+//    from the true surface (ESShapes.getError()); a level is good enough
+//    when that distance, projected to the screen, stays under a pixel
+//    tolerance.
+//
+//    Levels are built without GL calls, so the generation can run on any
+//    thread, several levels in parallel when an executor is given. Buffer
+//    objects are created afterwards on the GL thread.
+//
+
+package com.openglesbook.common;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+public class ESLodChain {
+
+	//
+	///
+	/// \param levels Shapes of decreasing detail, finest first
+	//
+	public ESLodChain(ESShapes... levels) {
+		if (levels.length == 0)
+			throw new IllegalArgumentException("no levels");
+		mLevels = levels.clone();
+	}
+
+	public int getLevelCount() {
+		return mLevels.length;
+	}
+
+	public ESShapes getLevel(int level) {
+		return mLevels[level];
+	}
+
+	//
+	///
+	/// \brief Pick the coarsest level that looks right at a given size
+	/// \param pixelsPerUnit Screen pixels covered by one model unit at the
+	/// shape's distance
+	/// \param maxPixelError Largest acceptable deviation on screen, in pixels
+	/// \return Level index; 0 if even the finest level exceeds the tolerance
+	//
+	public int selectLevel(float pixelsPerUnit, float maxPixelError) {
+		for (int i = mLevels.length - 1; i > 0; i--) {
+			if (mLevels[i].getError() * pixelsPerUnit <= maxPixelError)
+				return i;
+		}
+		return 0;
+	}
+
+	//
+	///
+	/// \brief Build spheres of decreasing tessellation
+	/// \param slices Slice count of each level, finest first
+	/// \param executor Runs one task per level; null to build them inline
+	//
+	public static ESLodChain genSpheres(final int[] slices, final float radius,
+			ExecutorService executor) {
+		List<Callable<ESShapes>> tasks = new ArrayList<Callable<ESShapes>>();
+		for (int i = 0; i < slices.length; i++) {
+			final int numSlices = slices[i];
+			tasks.add(new Callable<ESShapes>() {
+				@Override
+				public ESShapes call() {
+					ESShapes shape = new ESShapes();
+					shape.genSphere(numSlices, radius);
+					return shape;
+				}
+			});
+		}
+		return new ESLodChain(runAll(tasks, executor));
+	}
+
+	//
+	///
+	/// \brief Build a chain by simplifying a shape with ESMeshSimplifier
+	/// \param base Level 0, kept as it is
+	/// \param ratios Triangle count of each further level as a fraction of
+	/// the base, decreasing
+	/// \param maxError Largest distance a level may move from the base, in
+	/// model units; a level stops short of its ratio rather than exceed it
+	/// \param executor Runs one task per level; null to build them inline
+	//
+	public static ESLodChain simplify(final ESShapes base, float[] ratios,
+			final float maxError, ExecutorService executor) {
+		// welding is done once; simplify() only reads the simplifier
+		final ESMeshSimplifier simplifier = new ESMeshSimplifier(
+				base.getVertices(), base.getNormals(), base.getNumVertices(),
+				base.getIndices(), base.getNumIndices());
+		List<Callable<ESShapes>> tasks = new ArrayList<Callable<ESShapes>>();
+		for (int i = 0; i < ratios.length; i++) {
+			final int target = Math.max(1,
+					(int) (simplifier.getTriangleCount() * ratios[i]));
+			tasks.add(new Callable<ESShapes>() {
+				@Override
+				public ESShapes call() {
+					return base.simplify(simplifier, target, maxError);
+				}
+			});
+		}
+		ESShapes[] simplified = runAll(tasks, executor);
+		ESShapes[] levels = new ESShapes[simplified.length + 1];
+		levels[0] = base;
+		System.arraycopy(simplified, 0, levels, 1, simplified.length);
+		return new ESLodChain(levels);
+	}
+
+	//
+	///
+	/// \brief Create the buffer objects of every level. GL thread only.
+	//
+	public void createBuffers(ESGL gl) {
+		for (ESShapes level : mLevels)
+			level.createBuffers(gl);
+	}
+
+	//
+	///
+	/// \brief Release the buffer objects of every level. GL thread only.
+	//
+	public void deleteBuffers(ESGL gl) {
+		for (ESShapes level : mLevels)
+			level.deleteBuffers(gl);
+	}
+
+	private static ESShapes[] runAll(List<Callable<ESShapes>> tasks,
+			ExecutorService executor) {
+		ESShapes[] shapes = new ESShapes[tasks.size()];
+		try {
+			if (executor == null) {
+				for (int i = 0; i < shapes.length; i++)
+					shapes[i] = tasks.get(i).call();
+			} else {
+				List<Future<ESShapes>> futures = executor.invokeAll(tasks);
+				for (int i = 0; i < shapes.length; i++)
+					shapes[i] = futures.get(i).get();
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new RuntimeException(e);
+		} catch (ExecutionException e) {
+			throw new RuntimeException(e.getCause());
+		} catch (RuntimeException e) {
+			throw e;
+		} catch (Exception e) {
+			throw new RuntimeException(e);
+		}
+		return shapes;
+	}
+
+	private final ESShapes[] mLevels;
+}
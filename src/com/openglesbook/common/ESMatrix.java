@@ -0,0 +1,404 @@
+// ESMatrix
+//
+//    Pure Java 4x4 matrix helpers with the layout and call signatures of
+//    android.opengl.Matrix: column-major float[16] at an offset, angles in
+//    degrees. Nothing here calls into native code, so the same math runs
+//    and can be measured on a desktop JVM.
+//
+//    On top of the android.opengl.Matrix set there are operations for what
+//    a renderer does most: inverses and normal matrices of affine
+//    transforms, which skip the projective row, a fused P * V * M, and
+//    batch versions that run over many matrices stored one after another
+//    in a flat array. The batch loops keep one operand in locals and touch
+//    memory sequentially, which is what the JIT needs to unroll and
+//    vectorize them.
+//
+//    Unless noted, an output must not overlap an input.
+//
+
+package com.openglesbook.common;
+
+public class ESMatrix {
+
+	private ESMatrix() {
+	}
+
+	//
+	///
+	/// \brief result = lhs * rhs. result may also be exactly lhs or rhs
+	/// (same array and offset).
+	//
+	public static void multiplyMM(float[] result, int resultOffset,
+			float[] lhs, int lhsOffset, float[] rhs, int rhsOffset) {
+		multiplyMMBatch(result, resultOffset, lhs, lhsOffset, rhs, rhsOffset, 1);
+	}
+
+	//
+	///
+	/// \brief result[i] = lhs * rhs[i] for count matrices stored one after
+	/// another, for instance a view-projection times every world matrix, or
+	/// a parent's world matrix times the local matrices of its children.
+	/// result may be exactly rhs; it must not overlap lhs unless it is
+	/// exactly lhs with a count of 1.
+	//
+	public static void multiplyMMBatch(float[] result, int resultOffset,
+			float[] lhs, int lhsOffset, float[] rhs, int rhsOffset, int count) {
+		float l00 = lhs[lhsOffset], l10 = lhs[lhsOffset + 1];
+		float l20 = lhs[lhsOffset + 2], l30 = lhs[lhsOffset + 3];
+		float l01 = lhs[lhsOffset + 4], l11 = lhs[lhsOffset + 5];
+		float l21 = lhs[lhsOffset + 6], l31 = lhs[lhsOffset + 7];
+		float l02 = lhs[lhsOffset + 8], l12 = lhs[lhsOffset + 9];
+		float l22 = lhs[lhsOffset + 10], l32 = lhs[lhsOffset + 11];
+		float l03 = lhs[lhsOffset + 12], l13 = lhs[lhsOffset + 13];
+		float l23 = lhs[lhsOffset + 14], l33 = lhs[lhsOffset + 15];
+		int end = rhsOffset + count * 16;
+		for (int r = rhsOffset, o = resultOffset; r < end; r += 4, o += 4) {
+			float x = rhs[r], y = rhs[r + 1], z = rhs[r + 2], w = rhs[r + 3];
+			result[o] = l00 * x + l01 * y + l02 * z + l03 * w;
+			result[o + 1] = l10 * x + l11 * y + l12 * z + l13 * w;
+			result[o + 2] = l20 * x + l21 * y + l22 * z + l23 * w;
+			result[o + 3] = l30 * x + l31 * y + l32 * z + l33 * w;
+		}
+	}
+
+	//
+	///
+	/// \brief result = p * v * m in one pass, without a temporary matrix.
+	/// result may be exactly m.
+	//
+	public static void multiplyMMM(float[] result, int resultOffset, float[] p,
+			int pOffset, float[] v, int vOffset, float[] m, int mOffset) {
+		float p00 = p[pOffset], p10 = p[pOffset + 1], p20 = p[pOffset + 2], p30 = p[pOffset + 3];
+		float p01 = p[pOffset + 4], p11 = p[pOffset + 5], p21 = p[pOffset + 6], p31 = p[pOffset + 7];
+		float p02 = p[pOffset + 8], p12 = p[pOffset + 9], p22 = p[pOffset + 10], p32 = p[pOffset + 11];
+		float p03 = p[pOffset + 12], p13 = p[pOffset + 13], p23 = p[pOffset + 14], p33 = p[pOffset + 15];
+		float v00 = v[vOffset], v10 = v[vOffset + 1], v20 = v[vOffset + 2], v30 = v[vOffset + 3];
+		float v01 = v[vOffset + 4], v11 = v[vOffset + 5], v21 = v[vOffset + 6], v31 = v[vOffset + 7];
+		float v02 = v[vOffset + 8], v12 = v[vOffset + 9], v22 = v[vOffset + 10], v32 = v[vOffset + 11];
+		float v03 = v[vOffset + 12], v13 = v[vOffset + 13], v23 = v[vOffset + 14], v33 = v[vOffset + 15];
+		for (int c = 0; c < 16; c += 4) {
+			float x = m[mOffset + c], y = m[mOffset + c + 1];
+			float z = m[mOffset + c + 2], w = m[mOffset + c + 3];
+			// column of v * m, then p times it
+			float a = v00 * x + v01 * y + v02 * z + v03 * w;
+			float b = v10 * x + v11 * y + v12 * z + v13 * w;
+			float d = v20 * x + v21 * y + v22 * z + v23 * w;
+			float e = v30 * x + v31 * y + v32 * z + v33 * w;
+			result[resultOffset + c] = p00 * a + p01 * b + p02 * d + p03 * e;
+			result[resultOffset + c + 1] = p10 * a + p11 * b + p12 * d + p13 * e;
+			result[resultOffset + c + 2] = p20 * a + p21 * b + p22 * d + p23 * e;
+			result[resultOffset + c + 3] = p30 * a + p31 * b + p32 * d + p33 * e;
+		}
+	}
+
+	//
+	///
+	/// \brief resultVec = lhsMat * rhsVec, for 4 component vectors
+	//
+	public static void multiplyMV(float[] resultVec, int resultVecOffset,
+			float[] lhsMat, int lhsMatOffset, float[] rhsVec, int rhsVecOffset) {
+		float x = rhsVec[rhsVecOffset], y = rhsVec[rhsVecOffset + 1];
+		float z = rhsVec[rhsVecOffset + 2], w = rhsVec[rhsVecOffset + 3];
+		for (int r = 0; r < 4; r++) {
+			resultVec[resultVecOffset + r] = lhsMat[lhsMatOffset + r] * x
+					+ lhsMat[lhsMatOffset + 4 + r] * y
+					+ lhsMat[lhsMatOffset + 8 + r] * z
+					+ lhsMat[lhsMatOffset + 12 + r] * w;
+		}
+	}
+
+	public static void setIdentityM(float[] sm, int smOffset) {
+		for (int i = 0; i < 16; i++)
+			sm[smOffset + i] = 0.0f;
+		sm[smOffset] = 1.0f;
+		sm[smOffset + 5] = 1.0f;
+		sm[smOffset + 10] = 1.0f;
+		sm[smOffset + 15] = 1.0f;
+	}
+
+	//
+	///
+	/// \brief m = m * T(x, y, z), in place
+	//
+	public static void translateM(float[] m, int mOffset, float x, float y, float z) {
+		for (int i = 0; i < 4; i++) {
+			int o = mOffset + i;
+			m[o + 12] += m[o] * x + m[o + 4] * y + m[o + 8] * z;
+		}
+	}
+
+	//
+	///
+	/// \brief m = m * S(x, y, z), in place
+	//
+	public static void scaleM(float[] m, int mOffset, float x, float y, float z) {
+		for (int i = 0; i < 4; i++) {
+			int o = mOffset + i;
+			m[o] *= x;
+			m[o + 4] *= y;
+			m[o + 8] *= z;
+		}
+	}
+
+	//
+	///
+	/// \brief Rotation by a degrees around the axis (x, y, z)
+	//
+	public static void setRotateM(float[] rm, int rmOffset, float a, float x,
+			float y, float z) {
+		rm[rmOffset + 3] = 0.0f;
+		rm[rmOffset + 7] = 0.0f;
+		rm[rmOffset + 11] = 0.0f;
+		rm[rmOffset + 12] = 0.0f;
+		rm[rmOffset + 13] = 0.0f;
+		rm[rmOffset + 14] = 0.0f;
+		rm[rmOffset + 15] = 1.0f;
+		double radians = Math.toRadians(a);
+		float s = (float) Math.sin(radians);
+		float c = (float) Math.cos(radians);
+		float len = (float) Math.sqrt(x * x + y * y + z * z);
+		if (len != 1.0f) {
+			float recipLen = 1.0f / len;
+			x *= recipLen;
+			y *= recipLen;
+			z *= recipLen;
+		}
+		float nc = 1.0f - c;
+		float xy = x * y, yz = y * z, zx = z * x;
+		float xs = x * s, ys = y * s, zs = z * s;
+		rm[rmOffset] = x * x * nc + c;
+		rm[rmOffset + 1] = xy * nc + zs;
+		rm[rmOffset + 2] = zx * nc - ys;
+		rm[rmOffset + 4] = xy * nc - zs;
+		rm[rmOffset + 5] = y * y * nc + c;
+		rm[rmOffset + 6] = yz * nc + xs;
+		rm[rmOffset + 8] = zx * nc + ys;
+		rm[rmOffset + 9] = yz * nc - xs;
+		rm[rmOffset + 10] = z * z * nc + c;
+	}
+
+	//
+	///
+	/// \brief Perspective projection of the given view volume
+	//
+	public static void frustumM(float[] m, int offset, float left, float right,
+			float bottom, float top, float near, float far) {
+		if (left == right || top == bottom || near == far || near <= 0.0f
+				|| far <= 0.0f)
+			throw new IllegalArgumentException("Bad frustum");
+		float rWidth = 1.0f / (right - left);
+		float rHeight = 1.0f / (top - bottom);
+		float rDepth = 1.0f / (near - far);
+		for (int i = 0; i < 16; i++)
+			m[offset + i] = 0.0f;
+		m[offset] = 2.0f * (near * rWidth);
+		m[offset + 5] = 2.0f * (near * rHeight);
+		m[offset + 8] = (right + left) * rWidth;
+		m[offset + 9] = (top + bottom) * rHeight;
+		m[offset + 10] = (far + near) * rDepth;
+		m[offset + 11] = -1.0f;
+		m[offset + 14] = 2.0f * (far * near * rDepth);
+	}
+
+	//
+	///
+	/// \brief View matrix of an eye at (eyeX, eyeY, eyeZ) looking at the
+	/// center point
+	//
+	public static void setLookAtM(float[] rm, int rmOffset, float eyeX, float eyeY,
+			float eyeZ, float centerX, float centerY, float centerZ, float upX,
+			float upY, float upZ) {
+		float fx = centerX - eyeX;
+		float fy = centerY - eyeY;
+		float fz = centerZ - eyeZ;
+		float rlf = 1.0f / (float) Math.sqrt(fx * fx + fy * fy + fz * fz);
+		fx *= rlf;
+		fy *= rlf;
+		fz *= rlf;
+
+		// s = f x up
+		float sx = fy * upZ - fz * upY;
+		float sy = fz * upX - fx * upZ;
+		float sz = fx * upY - fy * upX;
+		float rls = 1.0f / (float) Math.sqrt(sx * sx + sy * sy + sz * sz);
+		sx *= rls;
+		sy *= rls;
+		sz *= rls;
+
+		// u = s x f
+		float ux = sy * fz - sz * fy;
+		float uy = sz * fx - sx * fz;
+		float uz = sx * fy - sy * fx;
+
+		rm[rmOffset] = sx;
+		rm[rmOffset + 1] = ux;
+		rm[rmOffset + 2] = -fx;
+		rm[rmOffset + 3] = 0.0f;
+		rm[rmOffset + 4] = sy;
+		rm[rmOffset + 5] = uy;
+		rm[rmOffset + 6] = -fy;
+		rm[rmOffset + 7] = 0.0f;
+		rm[rmOffset + 8] = sz;
+		rm[rmOffset + 9] = uz;
+		rm[rmOffset + 10] = -fz;
+		rm[rmOffset + 11] = 0.0f;
+		rm[rmOffset + 12] = 0.0f;
+		rm[rmOffset + 13] = 0.0f;
+		rm[rmOffset + 14] = 0.0f;
+		rm[rmOffset + 15] = 1.0f;
+		translateM(rm, rmOffset, -eyeX, -eyeY, -eyeZ);
+	}
+
+	//
+	///
+	/// \brief Inverse of an affine matrix, one whose bottom row is
+	/// (0, 0, 0, 1): the inverse of the upper 3x3 and the translation
+	/// brought back through it. Much cheaper than invertM().
+	/// \return false, leaving mInv untouched, if m is singular
+	//
+	public static boolean invertAffineM(float[] mInv, int mInvOffset, float[] m,
+			int mOffset) {
+		float a = m[mOffset], b = m[mOffset + 4], c = m[mOffset + 8];
+		float d = m[mOffset + 1], e = m[mOffset + 5], f = m[mOffset + 9];
+		float g = m[mOffset + 2], h = m[mOffset + 6], i = m[mOffset + 10];
+		float tx = m[mOffset + 12], ty = m[mOffset + 13], tz = m[mOffset + 14];
+
+		float c00 = e * i - f * h, c01 = f * g - d * i, c02 = d * h - e * g;
+		float det = a * c00 + b * c01 + c * c02;
+		if (det == 0.0f)
+			return false;
+		float s = 1.0f / det;
+
+		// inverse = adjugate / det, the transpose of the cofactors
+		float i00 = c00 * s, i01 = (c * h - b * i) * s, i02 = (b * f - c * e) * s;
+		float i10 = c01 * s, i11 = (a * i - c * g) * s, i12 = (c * d - a * f) * s;
+		float i20 = c02 * s, i21 = (b * g - a * h) * s, i22 = (a * e - b * d) * s;
+		mInv[mInvOffset] = i00;
+		mInv[mInvOffset + 1] = i10;
+		mInv[mInvOffset + 2] = i20;
+		mInv[mInvOffset + 3] = 0.0f;
+		mInv[mInvOffset + 4] = i01;
+		mInv[mInvOffset + 5] = i11;
+		mInv[mInvOffset + 6] = i21;
+		mInv[mInvOffset + 7] = 0.0f;
+		mInv[mInvOffset + 8] = i02;
+		mInv[mInvOffset + 9] = i12;
+		mInv[mInvOffset + 10] = i22;
+		mInv[mInvOffset + 11] = 0.0f;
+		mInv[mInvOffset + 12] = -(i00 * tx + i01 * ty + i02 * tz);
+		mInv[mInvOffset + 13] = -(i10 * tx + i11 * ty + i12 * tz);
+		mInv[mInvOffset + 14] = -(i20 * tx + i21 * ty + i22 * tz);
+		mInv[mInvOffset + 15] = 1.0f;
+		return true;
+	}
+
+	//
+	///
+	/// \brief Normal matrix of m: the inverse transpose of its upper 3x3,
+	/// the cofactor matrix over the determinant, as a 4x4 whose last row
+	/// and column are those of the identity. Same as invertM() followed by
+	/// transposeM() for affine m, without computing the projective part.
+	/// A singular m gives a zero 3x3.
+	//
+	public static void normalMatrixM(float[] out, int outOffset, float[] m,
+			int mOffset) {
+		normalMatrixBatch(out, outOffset, m, mOffset, 1);
+	}
+
+	//
+	///
+	/// \brief normalMatrixM() of count matrices stored one after another.
+	/// out must not overlap m.
+	//
+	public static void normalMatrixBatch(float[] out, int outOffset, float[] m,
+			int mOffset, int count) {
+		int end = mOffset + count * 16;
+		for (int mo = mOffset, o = outOffset; mo < end; mo += 16, o += 16) {
+			float a = m[mo], b = m[mo + 4], c = m[mo + 8];
+			float d = m[mo + 1], e = m[mo + 5], f = m[mo + 9];
+			float g = m[mo + 2], h = m[mo + 6], i = m[mo + 10];
+
+			float c00 = e * i - f * h, c01 = f * g - d * i, c02 = d * h - e * g;
+			float c10 = c * h - b * i, c11 = a * i - c * g, c12 = b * g - a * h;
+			float c20 = b * f - c * e, c21 = c * d - a * f, c22 = a * e - b * d;
+			float det = a * c00 + b * c01 + c * c02;
+			float s = det != 0.0f ? 1.0f / det : 0.0f;
+
+			// column-major: out[col * 4 + row] = cofactor(row, col) / det
+			out[o] = c00 * s;
+			out[o + 1] = c10 * s;
+			out[o + 2] = c20 * s;
+			out[o + 3] = 0.0f;
+			out[o + 4] = c01 * s;
+			out[o + 5] = c11 * s;
+			out[o + 6] = c21 * s;
+			out[o + 7] = 0.0f;
+			out[o + 8] = c02 * s;
+			out[o + 9] = c12 * s;
+			out[o + 10] = c22 * s;
+			out[o + 11] = 0.0f;
+			out[o + 12] = 0.0f;
+			out[o + 13] = 0.0f;
+			out[o + 14] = 0.0f;
+			out[o + 15] = 1.0f;
+		}
+	}
+
+	public static void transposeM(float[] mTrans, int mTransOffset, float[] m,
+			int mOffset) {
+		for (int c = 0; c < 4; c++) {
+			for (int r = 0; r < 4; r++)
+				mTrans[mTransOffset + r * 4 + c] = m[mOffset + c * 4 + r];
+		}
+	}
+
+	//
+	///
+	/// \brief General 4x4 inverse by cofactors
+	/// \return false, leaving mInv untouched, if m is singular
+	//
+	public static boolean invertM(float[] mInv, int mInvOffset, float[] m,
+			int mOffset) {
+		float a00 = m[mOffset], a10 = m[mOffset + 1], a20 = m[mOffset + 2], a30 = m[mOffset + 3];
+		float a01 = m[mOffset + 4], a11 = m[mOffset + 5], a21 = m[mOffset + 6], a31 = m[mOffset + 7];
+		float a02 = m[mOffset + 8], a12 = m[mOffset + 9], a22 = m[mOffset + 10], a32 = m[mOffset + 11];
+		float a03 = m[mOffset + 12], a13 = m[mOffset + 13], a23 = m[mOffset + 14], a33 = m[mOffset + 15];
+
+		// 2x2 determinants of the top two and bottom two rows
+		float b00 = a00 * a11 - a01 * a10;
+		float b01 = a00 * a12 - a02 * a10;
+		float b02 = a00 * a13 - a03 * a10;
+		float b03 = a01 * a12 - a02 * a11;
+		float b04 = a01 * a13 - a03 * a11;
+		float b05 = a02 * a13 - a03 * a12;
+		float b06 = a20 * a31 - a21 * a30;
+		float b07 = a20 * a32 - a22 * a30;
+		float b08 = a20 * a33 - a23 * a30;
+		float b09 = a21 * a32 - a22 * a31;
+		float b10 = a21 * a33 - a23 * a31;
+		float b11 = a22 * a33 - a23 * a32;
+
+		float det = b00 * b11 - b01 * b10 + b02 * b09 + b03 * b08 - b04 * b07 + b05 * b06;
+		if (det == 0.0f)
+			return false;
+		float s = 1.0f / det;
+
+		mInv[mInvOffset] = (a11 * b11 - a12 * b10 + a13 * b09) * s;
+		mInv[mInvOffset + 1] = (-a10 * b11 + a12 * b08 - a13 * b07) * s;
+		mInv[mInvOffset + 2] = (a10 * b10 - a11 * b08 + a13 * b06) * s;
+		mInv[mInvOffset + 3] = (-a10 * b09 + a11 * b07 - a12 * b06) * s;
+		mInv[mInvOffset + 4] = (-a01 * b11 + a02 * b10 - a03 * b09) * s;
+		mInv[mInvOffset + 5] = (a00 * b11 - a02 * b08 + a03 * b07) * s;
+		mInv[mInvOffset + 6] = (-a00 * b10 + a01 * b08 - a03 * b06) * s;
+		mInv[mInvOffset + 7] = (a00 * b09 - a01 * b07 + a02 * b06) * s;
+		mInv[mInvOffset + 8] = (a31 * b05 - a32 * b04 + a33 * b03) * s;
+		mInv[mInvOffset + 9] = (-a30 * b05 + a32 * b02 - a33 * b01) * s;
+		mInv[mInvOffset + 10] = (a30 * b04 - a31 * b02 + a33 * b00) * s;
+		mInv[mInvOffset + 11] = (-a30 * b03 + a31 * b01 - a32 * b00) * s;
+		mInv[mInvOffset + 12] = (-a21 * b05 + a22 * b04 - a23 * b03) * s;
+		mInv[mInvOffset + 13] = (a20 * b05 - a22 * b02 + a23 * b01) * s;
+		mInv[mInvOffset + 14] = (-a20 * b04 + a21 * b02 - a23 * b00) * s;
+		mInv[mInvOffset + 15] = (a20 * b03 - a21 * b01 + a22 * b00) * s;
+		return true;
+	}
+}
@@ -0,0 +1,302 @@
+// ESMeshFile
+//
+//    Binary mesh container holding exactly what ESShapes uploads: the
+//    interleaved vertices in an ESVertexFormat layout and the indices,
+//    behind a fixed header with the counts, the layout, the bounds and the
+//    geometric error. Everything is little-endian and 4-byte aligned, so a
+//    memory mapping of the file can be handed to glBufferData as it is and
+//    nothing is parsed at load time.
+//
+//    Layout:
+//       0  int       magic, "ESMF"
+//       4  int       version
+//       8  byte[4]   position, normal and texcoord encodings (ordinals of
+//                    ESVertexFormat.Encoding), bytes per index: 1, 2 or 4
+//      12  int       stride of a vertex in bytes
+//      16  int       number of vertices
+//      20  int       number of indices
+//      24  float[6]  bounding box, min xyz then max xyz
+//      48  float[4]  bounding sphere, center xyz and radius
+//      64  float     geometric error, see ESShapes.getError()
+//      68            vertices, number of vertices * stride bytes
+//                    indices, number of indices * bytes per index
+//
+
+package com.openglesbook.common;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+
+import android.opengl.GLES20;
+
+public class ESMeshFile {
+
+	public static final int MAGIC = 0x464D5345;
+	public static final int VERSION = 1;
+	public static final int HEADER_SIZE = 68;
+
+	//
+	///
+	/// \brief Read and check the header of a mesh file
+	/// \throws IOException if the file is not a mesh file this version can
+	/// read, or is shorter than its header says
+	//
+	public static ESMeshFile open(File file) throws IOException {
+		if (ByteOrder.nativeOrder() != ByteOrder.LITTLE_ENDIAN)
+			throw new IOException("Mesh files need a little-endian host");
+
+		ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE).order(
+				ByteOrder.LITTLE_ENDIAN);
+		long length;
+		FileInputStream in = new FileInputStream(file);
+		try {
+			FileChannel channel = in.getChannel();
+			length = channel.size();
+			if (length < HEADER_SIZE)
+				throw new IOException(file + ": not a mesh file");
+			readFully(channel, header, 0);
+		} finally {
+			in.close();
+		}
+		header.flip();
+
+		if (header.getInt(0) != MAGIC)
+			throw new IOException(file + ": not a mesh file");
+		if (header.getInt(4) != VERSION)
+			throw new IOException(file + ": unsupported version " + header.getInt(4));
+		ESVertexFormat.Encoding[] encodings = ESVertexFormat.Encoding.values();
+		for (int a = 0; a < ESVertexFormat.NUM_ATTRIBS; a++) {
+			if (header.get(8 + a) < 0 || header.get(8 + a) >= encodings.length)
+				throw new IOException(file + ": bad encoding " + header.get(8 + a));
+		}
+		ESVertexFormat format;
+		try {
+			format = new ESVertexFormat(encodings[header.get(8)],
+					encodings[header.get(9)], encodings[header.get(10)]);
+		} catch (IllegalArgumentException e) {
+			throw new IOException(file + ": " + e.getMessage());
+		}
+		int indexSize = header.get(11);
+		if (indexSize != 1 && indexSize != 2 && indexSize != 4)
+			throw new IOException(file + ": unsupported index size " + indexSize);
+		if (header.getInt(12) != format.getStride())
+			throw new IOException(file + ": stride " + header.getInt(12)
+					+ " does not match the vertex format");
+
+		ESMeshFile mesh = new ESMeshFile(file, format, header.getInt(16),
+				header.getInt(20), indexSize);
+		if (mesh.mNumVertices < 0 || mesh.mNumIndices < 0
+				|| mesh.getIndexOffset() + mesh.getIndexBytes() > length)
+			throw new IOException(file + ": truncated");
+		for (int i = 0; i < 6; i++)
+			mesh.mBoundingBox[i] = header.getFloat(24 + i * 4);
+		for (int i = 0; i < 4; i++)
+			mesh.mBoundingSphere[i] = header.getFloat(48 + i * 4);
+		mesh.mError = header.getFloat(64);
+		return mesh;
+	}
+
+	//
+	///
+	/// \brief Write a mesh file
+	/// \param interleaved numVertices vertices packed in format
+	/// \param boundingBox Bounds stored for the loader, see
+	/// ESShapes.getBoundingBox()
+	/// \param boundingSphere See ESShapes.getBoundingSphere()
+	/// \param error See ESShapes.getError()
+	//
+	public static void write(File file, ESVertexFormat format, ByteBuffer interleaved,
+			int numVertices, ESIndices indices, int numIndices, float[] boundingBox,
+			float[] boundingSphere, float error) throws IOException {
+		ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE).order(
+				ByteOrder.LITTLE_ENDIAN);
+		header.putInt(MAGIC);
+		header.putInt(VERSION);
+		for (int a = 0; a < ESVertexFormat.NUM_ATTRIBS; a++)
+			header.put((byte) format.getEncoding(a).ordinal());
+		header.put((byte) indices.getSize());
+		header.putInt(format.getStride());
+		header.putInt(numVertices);
+		header.putInt(numIndices);
+		for (int i = 0; i < 6; i++)
+			header.putFloat(boundingBox[i]);
+		for (int i = 0; i < 4; i++)
+			header.putFloat(boundingSphere[i]);
+		header.putFloat(error);
+		header.flip();
+
+		// the packed vertices and the indices are in native order,
+		// little-endian on every host open() accepts
+		ByteBuffer vertices = interleaved.duplicate();
+		vertices.position(0);
+		vertices.limit(numVertices * format.getStride());
+
+		ByteBuffer indexBytes = indices.getBuffer().duplicate();
+		indexBytes.position(0);
+		indexBytes.limit(numIndices * indices.getSize());
+
+		FileOutputStream out = new FileOutputStream(file);
+		try {
+			FileChannel channel = out.getChannel();
+			writeFully(channel, header);
+			writeFully(channel, vertices);
+			writeFully(channel, indexBytes);
+		} finally {
+			out.close();
+		}
+	}
+
+	public File getFile() {
+		return mFile;
+	}
+
+	public ESVertexFormat getVertexFormat() {
+		return mFormat;
+	}
+
+	public int getNumVertices() {
+		return mNumVertices;
+	}
+
+	public int getNumIndices() {
+		return mNumIndices;
+	}
+
+	/// \return Bytes per index
+	public int getIndexSize() {
+		return mIndexSize;
+	}
+
+	/// \return GL_UNSIGNED_BYTE, GL_UNSIGNED_SHORT or GL_UNSIGNED_INT
+	public int getIndexType() {
+		return mIndexSize == 1 ? GLES20.GL_UNSIGNED_BYTE
+				: mIndexSize == 2 ? GLES20.GL_UNSIGNED_SHORT : GLES20.GL_UNSIGNED_INT;
+	}
+
+	public long getVertexOffset() {
+		return HEADER_SIZE;
+	}
+
+	public int getVertexBytes() {
+		return mNumVertices * mFormat.getStride();
+	}
+
+	public long getIndexOffset() {
+		return getVertexOffset() + getVertexBytes();
+	}
+
+	public int getIndexBytes() {
+		return mNumIndices * mIndexSize;
+	}
+
+	public void getBoundingBox(float[] out) {
+		System.arraycopy(mBoundingBox, 0, out, 0, 6);
+	}
+
+	public void getBoundingSphere(float[] out) {
+		System.arraycopy(mBoundingSphere, 0, out, 0, 4);
+	}
+
+	public float getError() {
+		return mError;
+	}
+
+	//
+	///
+	/// \brief Map the whole file read-only. The mapping stays valid after
+	/// the file is closed and is released when it is garbage collected.
+	//
+	public ByteBuffer map() throws IOException {
+		FileInputStream in = new FileInputStream(mFile);
+		try {
+			FileChannel channel = in.getChannel();
+			return channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size())
+					.order(ByteOrder.LITTLE_ENDIAN);
+		} finally {
+			in.close();
+		}
+	}
+
+	//
+	///
+	/// \brief A little-endian view of part of a buffer returned by map()
+	//
+	public static ByteBuffer slice(ByteBuffer mapped, long offset, int length) {
+		ByteBuffer view = mapped.duplicate();
+		view.limit((int) offset + length);
+		view.position((int) offset);
+		return view.slice().order(ByteOrder.LITTLE_ENDIAN);
+	}
+
+	//
+	///
+	/// \brief Create a buffer object and fill it from a range of the file,
+	/// reading chunkBytes at a time into one direct staging buffer. Memory
+	/// use is bounded by the chunk size whatever the size of the mesh.
+	/// \param target GL_ARRAY_BUFFER or GL_ELEMENT_ARRAY_BUFFER
+	/// \return The buffer object, left bound to target
+	//
+	public int upload(ESGL gl, int target, long offset, int size, int chunkBytes)
+			throws IOException {
+		int buffer = gl.genBuffer();
+		gl.bindBuffer(target, buffer);
+		gl.bufferData(target, size, null, GLES20.GL_STATIC_DRAW);
+		if (size == 0)
+			return buffer;
+
+		ByteBuffer staging = ByteBuffer.allocateDirect(Math.min(chunkBytes, size))
+				.order(ByteOrder.LITTLE_ENDIAN);
+		FileInputStream in = new FileInputStream(mFile);
+		try {
+			FileChannel channel = in.getChannel();
+			for (int done = 0; done < size; done += staging.limit()) {
+				staging.clear();
+				staging.limit(Math.min(staging.capacity(), size - done));
+				readFully(channel, staging, offset + done);
+				staging.flip();
+				gl.bufferSubData(target, done, staging.limit(), staging);
+			}
+		} finally {
+			in.close();
+		}
+		return buffer;
+	}
+
+	private ESMeshFile(File file, ESVertexFormat format, int numVertices,
+			int numIndices, int indexSize) {
+		mFile = file;
+		mFormat = format;
+		mNumVertices = numVertices;
+		mNumIndices = numIndices;
+		mIndexSize = indexSize;
+	}
+
+	private static void readFully(FileChannel channel, ByteBuffer buffer, long position)
+			throws IOException {
+		while (buffer.hasRemaining()) {
+			if (channel.read(buffer, position + buffer.position()) < 0)
+				throw new EOFException();
+		}
+	}
+
+	private static void writeFully(FileChannel channel, ByteBuffer buffer)
+			throws IOException {
+		while (buffer.hasRemaining())
+			channel.write(buffer);
+	}
+
+	private final File mFile;
+	private final ESVertexFormat mFormat;
+	private final int mNumVertices;
+	private final int mNumIndices;
+	private final int mIndexSize;
+	private final float[] mBoundingBox = new float[6];
+	private final float[] mBoundingSphere = new float[4];
+	private float mError;
+}
@@ -0,0 +1,399 @@
+// ESMeshOptimizer
+//
+//    Reorders triangle lists and vertices so the GPU does less work for the
+//    same image:
+//
+//    - optimizeVertexCache() orders triangles so that recently transformed
+//      vertices are reused from the post-transform cache, with Tom
+//      Forsyth's greedy algorithm ("Linear-Speed Vertex Cache
+//      Optimisation", 2006). Where the cache leads nowhere it restarts
+//      next to the latest vertex with triangles left, or failing that at
+//      the best triangle left, from a list sorted once, rather than search
+//      all triangles; triangle soups cost O(n log n), not O(n^2).
+//    - optimizeOverdraw() then cuts that order into clusters that each pay
+//      little for starting with a cold cache, and sorts the clusters so
+//      the ones facing outwards are drawn first and occlude the rest from
+//      most viewpoints.
+//    - optimizeVertexFetch() numbers vertices in order of first use, so
+//      vertex fetches walk memory forwards, and drops unused vertices.
+//
+//    computeAcmr() simulates a FIFO post-transform cache to measure the
+//    result as the average cache miss ratio: vertices transformed per
+//    triangle, 3 at worst, about 0.5 at best for a regular grid.
+//
+
+package com.openglesbook.common;
+
+import java.nio.FloatBuffer;
+import java.util.Arrays;
+
+public class ESMeshOptimizer {
+
+	// Cache size reported by computeAcmr() callers in this package; GLES 2.0
+	// class hardware has 16 to 32 entries
+	public static final int CACHE_SIZE = 16;
+
+	// Forsyth's scoring constants. The cache modelled by the optimizer is
+	// larger than most real ones on purpose; the order it gives degrades
+	// gracefully on smaller caches.
+	private static final int MODEL_CACHE_SIZE = 32;
+	private static final float CACHE_DECAY_POWER = 1.5f;
+	private static final float LAST_TRIANGLE_SCORE = 0.75f;
+	private static final float VALENCE_BOOST_SCALE = 2.0f;
+	private static final float VALENCE_BOOST_POWER = 0.5f;
+
+	//
+	///
+	/// \brief Average cache miss ratio of a triangle list on a FIFO cache
+	/// \param cacheSize Entries in the simulated cache
+	/// \return Vertices transformed per triangle, 0 for no triangles
+	//
+	public static float computeAcmr(ESIndices indices, int numIndices,
+			int numVertices, int cacheSize) {
+		int triangles = numIndices / 3;
+		if (triangles == 0)
+			return 0.0f;
+		// a vertex is cached if fewer than cacheSize misses happened since
+		// it was last loaded
+		int[] loaded = new int[numVertices];
+		int misses = 0;
+		for (int i = 0; i < triangles * 3; i++) {
+			int v = indices.get(i);
+			if (loaded[v] == 0 || misses - loaded[v] >= cacheSize) {
+				misses++;
+				loaded[v] = misses;
+			}
+		}
+		return (float) misses / triangles;
+	}
+
+	//
+	///
+	/// \brief Reorder the triangles for the post-transform vertex cache. The
+	/// vertices of each triangle keep their order, so winding is preserved.
+	//
+	public static void optimizeVertexCache(ESIndices indices, int numIndices,
+			int numVertices) {
+		int triangles = numIndices / 3;
+		if (triangles == 0)
+			return;
+
+		// triangles around each vertex, as offsets into one array
+		int[] remaining = new int[numVertices];
+		for (int i = 0; i < triangles * 3; i++)
+			remaining[indices.get(i)]++;
+		int[] adjacencyStart = new int[numVertices + 1];
+		for (int v = 0; v < numVertices; v++)
+			adjacencyStart[v + 1] = adjacencyStart[v] + remaining[v];
+		int[] adjacency = new int[triangles * 3];
+		int[] fill = new int[numVertices];
+		for (int t = 0; t < triangles; t++) {
+			for (int k = 0; k < 3; k++) {
+				int v = indices.get(t * 3 + k);
+				adjacency[adjacencyStart[v] + fill[v]++] = t;
+			}
+		}
+
+		int[] source = new int[triangles * 3];
+		for (int i = 0; i < triangles * 3; i++)
+			source[i] = indices.get(i);
+
+		int[] cachePosition = new int[numVertices];
+		Arrays.fill(cachePosition, -1);
+		float[] vertexScore = new float[numVertices];
+		for (int v = 0; v < numVertices; v++)
+			vertexScore[v] = vertexScore(-1, remaining[v]);
+		boolean[] emitted = new boolean[triangles];
+
+		// vertices of the emitted triangles, latest on top, where a dead
+		// end looks for a way on
+		int[] deadEnd = new int[triangles * 3];
+		int deadEndCount = 0;
+
+		// triangles by descending starting score. Once the stack is empty,
+		// no triangle left touches a vertex that was ever used, so their
+		// scores are the starting ones and the first triangle left in this
+		// order is the best of all.
+		long[] keys = new long[triangles];
+		for (int t = 0; t < triangles; t++)
+			keys[t] = ((long) sortableBits(-triangleScore(vertexScore, source, t)) << 32) | t;
+		Arrays.sort(keys);
+		int[] byScore = new int[triangles];
+		for (int t = 0; t < triangles; t++)
+			byScore[t] = (int) keys[t];
+		int scoreCursor = 0;
+
+		// cache contents, most recent first, with room for the 3 vertices
+		// pushed in front before the tail is dropped
+		int[] cache = new int[MODEL_CACHE_SIZE + 3];
+		int[] newCache = new int[MODEL_CACHE_SIZE + 3];
+		int cacheCount = 0;
+
+		int best = -1;
+		for (int out = 0; out < triangles; out++) {
+			// nothing in the cache leads anywhere; restart next to the
+			// latest vertex with triangles left, else at the best triangle
+			// left. Each vertex is popped once per push and the cursor only
+			// moves forwards, rather than all triangles being searched.
+			while (best < 0 && deadEndCount > 0)
+				best = bestAdjacent(deadEnd[--deadEndCount], adjacency,
+						adjacencyStart, remaining, vertexScore, source);
+			if (best < 0) {
+				while (emitted[byScore[scoreCursor]])
+					scoreCursor++;
+				best = byScore[scoreCursor];
+			}
+			int t = best;
+			emitted[t] = true;
+			for (int k = 0; k < 3; k++) {
+				indices.put(out * 3 + k, source[t * 3 + k]);
+				deadEnd[deadEndCount++] = source[t * 3 + k];
+			}
+
+			// the triangle's vertices move to the front of the cache
+			int newCount = 0;
+			for (int k = 0; k < 3; k++) {
+				int v = source[t * 3 + k];
+				if (!contains(newCache, newCount, v))
+					newCache[newCount++] = v;
+				// drop t from the vertex's remaining triangles
+				int start = adjacencyStart[v];
+				int end = start + remaining[v];
+				for (int a = start; a < end; a++) {
+					if (adjacency[a] == t) {
+						adjacency[a] = adjacency[end - 1];
+						break;
+					}
+				}
+				remaining[v]--;
+			}
+			for (int c = 0; c < cacheCount; c++) {
+				int v = cache[c];
+				if (!contains(newCache, newCount, v))
+					newCache[newCount++] = v;
+			}
+
+			// rescore the cached vertices, and those that just fell out
+			for (int c = 0; c < newCount; c++) {
+				int v = newCache[c];
+				cachePosition[v] = c < MODEL_CACHE_SIZE ? c : -1;
+				vertexScore[v] = vertexScore(cachePosition[v], remaining[v]);
+			}
+			int[] swap = cache;
+			cache = newCache;
+			newCache = swap;
+			cacheCount = Math.min(newCount, MODEL_CACHE_SIZE);
+
+			// the next triangle is the best one touching the cache
+			best = -1;
+			float bestScore = -1.0f;
+			for (int c = 0; c < newCount; c++) {
+				int v = cache[c];
+				int start = adjacencyStart[v];
+				for (int a = start; a < start + remaining[v]; a++) {
+					int n = adjacency[a];
+					float score = triangleScore(vertexScore, source, n);
+					if (score > bestScore) {
+						bestScore = score;
+						best = n;
+					}
+				}
+			}
+		}
+	}
+
+	//
+	///
+	/// \brief Reorder clusters of an already cache-optimized triangle list
+	/// so that outward-facing ones come first
+	/// \param positions 3 floats per vertex
+	/// \param cacheSize Cache size the cluster cost is simulated with
+	/// \param threshold How much worse than the whole list a cluster's cache
+	/// miss ratio may be; 1.05 keeps the ACMR within about 5%
+	//
+	public static void optimizeOverdraw(ESIndices indices, int numIndices,
+			FloatBuffer positions, int numVertices, int cacheSize, float threshold) {
+		int triangles = numIndices / 3;
+		if (triangles == 0)
+			return;
+		float limit = computeAcmr(indices, numIndices, numVertices, cacheSize) * threshold;
+
+		// cut wherever the cluster so far, simulated from a cold cache, has
+		// paid back its misses
+		int[] clusterStart = new int[triangles + 1];
+		int clusters = 0;
+		int[] loaded = new int[numVertices];
+		int misses = 0;
+		int stamp = 0;
+		int clusterTriangles = 0;
+		int clusterMisses = 0;
+		for (int t = 0; t < triangles; t++) {
+			if (clusterTriangles == 0) {
+				clusterStart[clusters++] = t;
+				// a new stamp base empties the simulated cache
+				stamp = misses + cacheSize;
+				misses = stamp;
+				clusterMisses = 0;
+			}
+			for (int k = 0; k < 3; k++) {
+				int v = indices.get(t * 3 + k);
+				if (loaded[v] <= stamp - cacheSize || misses - loaded[v] >= cacheSize) {
+					misses++;
+					clusterMisses++;
+					loaded[v] = misses;
+				}
+			}
+			clusterTriangles++;
+			if ((float) clusterMisses / clusterTriangles <= limit)
+				clusterTriangles = 0;
+		}
+		clusterStart[clusters] = triangles;
+
+		// mesh centroid, then each cluster's area-weighted normal and
+		// centroid; the sort key is how far the cluster faces away from
+		// the middle of the mesh
+		float[] center = new float[3];
+		for (int i = 0; i < triangles * 3; i++) {
+			int v = indices.get(i);
+			for (int c = 0; c < 3; c++)
+				center[c] += positions.get(v * 3 + c);
+		}
+		for (int c = 0; c < 3; c++)
+			center[c] /= triangles * 3;
+
+		long[] keys = new long[clusters];
+		for (int k = 0; k < clusters; k++) {
+			float nx = 0.0f, ny = 0.0f, nz = 0.0f;
+			float cx = 0.0f, cy = 0.0f, cz = 0.0f;
+			float area = 0.0f;
+			for (int t = clusterStart[k]; t < clusterStart[k + 1]; t++) {
+				int a = indices.get(t * 3) * 3;
+				int b = indices.get(t * 3 + 1) * 3;
+				int c = indices.get(t * 3 + 2) * 3;
+				float ux = positions.get(b) - positions.get(a);
+				float uy = positions.get(b + 1) - positions.get(a + 1);
+				float uz = positions.get(b + 2) - positions.get(a + 2);
+				float vx = positions.get(c) - positions.get(a);
+				float vy = positions.get(c + 1) - positions.get(a + 1);
+				float vz = positions.get(c + 2) - positions.get(a + 2);
+				float tx = uy * vz - uz * vy;
+				float ty = uz * vx - ux * vz;
+				float tz = ux * vy - uy * vx;
+				float w = (float) Math.sqrt(tx * tx + ty * ty + tz * tz);
+				nx += tx;
+				ny += ty;
+				nz += tz;
+				cx += (positions.get(a) + positions.get(b) + positions.get(c)) * w;
+				cy += (positions.get(a + 1) + positions.get(b + 1) + positions.get(c + 1)) * w;
+				cz += (positions.get(a + 2) + positions.get(b + 2) + positions.get(c + 2)) * w;
+				area += w;
+			}
+			float len = (float) Math.sqrt(nx * nx + ny * ny + nz * nz);
+			float key = 0.0f;
+			if (len > 0.0f && area > 0.0f) {
+				float scale = 1.0f / (3.0f * area);
+				key = ((cx * scale - center[0]) * nx + (cy * scale - center[1]) * ny
+						+ (cz * scale - center[2]) * nz) / len;
+			}
+			// descending key in the high bits, cluster number in the low
+			keys[k] = ((long) sortableBits(-key) << 32) | k;
+		}
+		Arrays.sort(keys);
+
+		int[] source = new int[triangles * 3];
+		for (int i = 0; i < triangles * 3; i++)
+			source[i] = indices.get(i);
+		int out = 0;
+		for (int k = 0; k < clusters; k++) {
+			int cluster = (int) keys[k];
+			for (int i = clusterStart[cluster] * 3; i < clusterStart[cluster + 1] * 3; i++)
+				indices.put(out++, source[i]);
+		}
+	}
+
+	//
+	///
+	/// \brief Renumber vertices in order of first use
+	/// \param remap Receives the new number of each old vertex, -1 for
+	/// vertices no triangle uses; numVertices entries
+	/// \return The number of vertices used
+	//
+	public static int optimizeVertexFetch(ESIndices indices, int numIndices,
+			int numVertices, int[] remap) {
+		Arrays.fill(remap, 0, numVertices, -1);
+		int next = 0;
+		for (int i = 0; i < numIndices; i++) {
+			int v = indices.get(i);
+			if (remap[v] < 0)
+				remap[v] = next++;
+			indices.put(i, remap[v]);
+		}
+		return next;
+	}
+
+	// Forsyth's vertex score: recently used vertices score high, except the
+	// last triangle's, which would only repeat it; vertices with few
+	// triangles left score high so they get finished and leave the cache
+	private static float vertexScore(int cachePosition, int remaining) {
+		if (remaining == 0)
+			return -1.0f;
+		float score = cachePosition >= 0 ? CACHE_SCORES[cachePosition] : 0.0f;
+		return score + (remaining < VALENCE_SCORES.length ? VALENCE_SCORES[remaining]
+				: VALENCE_BOOST_SCALE * (float) Math.pow(remaining, -VALENCE_BOOST_POWER));
+	}
+
+	private static final float[] CACHE_SCORES = new float[MODEL_CACHE_SIZE];
+	private static final float[] VALENCE_SCORES = new float[32];
+	static {
+		for (int p = 0; p < MODEL_CACHE_SIZE; p++) {
+			if (p < 3) {
+				CACHE_SCORES[p] = LAST_TRIANGLE_SCORE;
+			} else {
+				float scale = 1.0f / (MODEL_CACHE_SIZE - 3);
+				CACHE_SCORES[p] = (float) Math.pow(1.0f - (p - 3) * scale,
+						CACHE_DECAY_POWER);
+			}
+		}
+		for (int n = 1; n < VALENCE_SCORES.length; n++)
+			VALENCE_SCORES[n] = VALENCE_BOOST_SCALE
+					* (float) Math.pow(n, -VALENCE_BOOST_POWER);
+	}
+
+	private static float triangleScore(float[] vertexScore, int[] source, int t) {
+		return vertexScore[source[t * 3]] + vertexScore[source[t * 3 + 1]]
+				+ vertexScore[source[t * 3 + 2]];
+	}
+
+	// Best scoring triangle left around a vertex, -1 if it has none
+	private static int bestAdjacent(int v, int[] adjacency, int[] adjacencyStart,
+			int[] remaining, float[] vertexScore, int[] source) {
+		int best = -1;
+		float bestScore = -Float.MAX_VALUE;
+		int start = adjacencyStart[v];
+		for (int a = start; a < start + remaining[v]; a++) {
+			float score = triangleScore(vertexScore, source, adjacency[a]);
+			if (score > bestScore) {
+				bestScore = score;
+				best = adjacency[a];
+			}
+		}
+		return best;
+	}
+
+	private static boolean contains(int[] array, int count, int value) {
+		for (int i = 0; i < count; i++) {
+			if (array[i] == value)
+				return true;
+		}
+		return false;
+	}
+
+	// Float bits that sort as signed ints in the order of the floats
+	private static int sortableBits(float value) {
+		int bits = Float.floatToIntBits(value);
+		return bits >= 0 ? bits : bits ^ 0x7fffffff;
+	}
+
+	private ESMeshOptimizer() {
+	}
+}
@@ -0,0 +1,507 @@
+// ESMeshSimplifier
+//
+//    Reduces the triangle count of an indexed mesh by quadric error
+//    metrics (Garland and Heckbert, "Surface Simplification Using Quadric
+//    Error Metrics", 1997).
+//
+//    Every vertex carries the sum of the squared distances to the planes of
+//    the triangles around it. Edges are collapsed cheapest first, one
+//    endpoint onto the other, until the target triangle count is reached or
+//    the next collapse would move the surface further than the error bound.
+//    Vertices only ever move onto existing vertices, so the result indexes
+//    into the source vertex data and keeps its normals and texture
+//    coordinates. Open borders get extra planes that keep them in place, and
+//    collapses that would fold a triangle over or pinch the surface into a
+//    non-manifold shape are skipped.
+//
+//    Vertices with the same position and normal are welded first, which
+//    closes the seams and poles of generated shapes; texture coordinates are
+//    those of the first welded vertex.
+//
+//    The source is read once, in the constructor. simplify() keeps all its
+//    working state local, so one simplifier can produce several levels at
+//    once on different threads.
+//
+
+package com.openglesbook.common;
+
+import java.nio.FloatBuffer;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.PriorityQueue;
+
+public class ESMeshSimplifier {
+
+	// Weight of the planes that hold open borders in place, relative to the
+	// unit weight of a triangle plane
+	private static final double BORDER_WEIGHT = 10.0;
+
+	// Smallest cosine between a triangle's normal before and after a
+	// collapse; anything less counts as folding the triangle over
+	private static final double MIN_NORMAL_COS = 0.2;
+
+	//
+	///
+	/// \param positions 3 floats per vertex
+	/// \param normals 3 floats per vertex, or null to weld by position only
+	/// \param numVertices Number of vertices
+	/// \param indices Triangle list
+	/// \param numIndices Number of indices, a multiple of 3
+	//
+	public ESMeshSimplifier(FloatBuffer positions, FloatBuffer normals,
+			int numVertices, ESIndices indices, int numIndices) {
+		mNumVertices = numVertices;
+		mPositions = new double[numVertices * 3];
+		for (int i = 0; i < numVertices * 3; i++)
+			mPositions[i] = positions.get(i);
+
+		// weld identical vertices onto the first of them
+		int[] weld = new int[numVertices];
+		HashMap<VertexKey, Integer> seen = new HashMap<VertexKey, Integer>();
+		for (int v = 0; v < numVertices; v++) {
+			VertexKey key = new VertexKey(positions, normals, v);
+			Integer first = seen.get(key);
+			if (first == null) {
+				seen.put(key, v);
+				weld[v] = v;
+			} else {
+				weld[v] = first;
+			}
+		}
+
+		// triangles between welded vertices, without the ones that have
+		// collapsed to a line or a point
+		int[] triangles = new int[numIndices];
+		int count = 0;
+		for (int i = 0; i + 2 < numIndices; i += 3) {
+			int a = weld[indices.get(i)];
+			int b = weld[indices.get(i + 1)];
+			int c = weld[indices.get(i + 2)];
+			if (a == b || b == c || c == a)
+				continue;
+			triangles[count++] = a;
+			triangles[count++] = b;
+			triangles[count++] = c;
+		}
+		mTriangles = new int[count];
+		System.arraycopy(triangles, 0, mTriangles, 0, count);
+	}
+
+	/// \return Triangles of the welded source mesh
+	public int getTriangleCount() {
+		return mTriangles.length / 3;
+	}
+
+	//
+	///
+	/// \brief Simplify the welded source mesh
+	/// \param targetTriangles Stop once at most this many triangles are left
+	/// \param maxError Largest error a collapse may have, in model units;
+	/// this bounds how far the surface moves from the planes of the source
+	/// triangles
+	/// \return The triangle list of the result, indexing into the source
+	/// vertices
+	//
+	public Result simplify(int targetTriangles, float maxError) {
+		return new Collapser(targetTriangles, maxError).run();
+	}
+
+	//
+	///
+	/// \brief Output of simplify()
+	//
+	public static class Result {
+		Result(int[] indices, float error) {
+			mIndices = indices;
+			mError = error;
+		}
+
+		/// \return Triangle list into the source vertices
+		public int[] getIndices() {
+			return mIndices;
+		}
+
+		public int getTriangleCount() {
+			return mIndices.length / 3;
+		}
+
+		/// \return Square root of the largest quadric error of the
+		/// collapses made, in model units; no vertex of the result is
+		/// further than this from the planes of the source triangles that
+		/// were merged into it
+		public float getError() {
+			return mError;
+		}
+
+		private final int[] mIndices;
+		private final float mError;
+	}
+
+	//
+	// Working state of one simplify() call
+	//
+	private class Collapser {
+
+		Collapser(int targetTriangles, float maxError) {
+			mTarget = Math.max(targetTriangles, 0);
+			mMaxCost = (double) maxError * maxError;
+			mTris = mTriangles.clone();
+			mLiveTris = mTris.length / 3;
+			mTriDead = new boolean[mLiveTris];
+			mTriMarks = new int[mLiveTris];
+			mQuadrics = new double[mNumVertices * 10];
+			mVertexDead = new boolean[mNumVertices];
+			mVersion = new int[mNumVertices];
+			mMark = new int[mNumVertices];
+			mVertexTris = new int[mNumVertices][];
+			mVertexTriCount = new int[mNumVertices];
+		}
+
+		Result run() {
+			computeQuadrics();
+			for (int t = 0; t < mTriDead.length; t++) {
+				for (int e = 0; e < 3; e++) {
+					int a = mTris[t * 3 + e];
+					int b = mTris[t * 3 + (e + 1) % 3];
+					push(a, b);
+					push(b, a);
+				}
+			}
+
+			double worst = 0.0;
+			while (mLiveTris > mTarget) {
+				Collapse c = mQueue.poll();
+				if (c == null)
+					break;
+				if (mVertexDead[c.from] || mVertexDead[c.to]
+						|| c.fromVersion != mVersion[c.from]
+						|| c.toVersion != mVersion[c.to])
+					continue; // stale
+				if (c.cost > mMaxCost)
+					break;
+				if (!canCollapse(c.from, c.to))
+					continue;
+				collapse(c.from, c.to);
+				worst = Math.max(worst, c.cost);
+			}
+
+			int[] indices = new int[mLiveTris * 3];
+			int n = 0;
+			for (int t = 0; t < mTriDead.length; t++) {
+				if (mTriDead[t])
+					continue;
+				indices[n++] = mTris[t * 3];
+				indices[n++] = mTris[t * 3 + 1];
+				indices[n++] = mTris[t * 3 + 2];
+			}
+			return new Result(indices, (float) Math.sqrt(worst));
+		}
+
+		private void computeQuadrics() {
+			HashMap<Long, Integer> edgeUse = new HashMap<Long, Integer>();
+			for (int t = 0; t < mTriDead.length; t++) {
+				for (int e = 0; e < 3; e++) {
+					int a = mTris[t * 3 + e];
+					addTri(a, t);
+					Long key = edgeKey(a, mTris[t * 3 + (e + 1) % 3]);
+					Integer uses = edgeUse.get(key);
+					edgeUse.put(key, uses == null ? 1 : uses + 1);
+				}
+			}
+
+			double[] n = new double[3];
+			for (int t = 0; t < mTriDead.length; t++) {
+				int a = mTris[t * 3], b = mTris[t * 3 + 1], c = mTris[t * 3 + 2];
+				if (normal(a, b, c, n) == 0.0)
+					continue;
+				double d = -dot(n, a);
+				addPlane(a, n[0], n[1], n[2], d, 1.0);
+				addPlane(b, n[0], n[1], n[2], d, 1.0);
+				addPlane(c, n[0], n[1], n[2], d, 1.0);
+
+				// a border edge also gets the plane through it that is
+				// perpendicular to the triangle
+				for (int e = 0; e < 3; e++) {
+					int p = mTris[t * 3 + e];
+					int q = mTris[t * 3 + (e + 1) % 3];
+					if (edgeUse.get(edgeKey(p, q)) != 1)
+						continue;
+					double ex = mPositions[q * 3] - mPositions[p * 3];
+					double ey = mPositions[q * 3 + 1] - mPositions[p * 3 + 1];
+					double ez = mPositions[q * 3 + 2] - mPositions[p * 3 + 2];
+					double mx = ey * n[2] - ez * n[1];
+					double my = ez * n[0] - ex * n[2];
+					double mz = ex * n[1] - ey * n[0];
+					double len = Math.sqrt(mx * mx + my * my + mz * mz);
+					if (len == 0.0)
+						continue;
+					mx /= len;
+					my /= len;
+					mz /= len;
+					double md = -(mx * mPositions[p * 3] + my * mPositions[p * 3 + 1]
+							+ mz * mPositions[p * 3 + 2]);
+					addPlane(p, mx, my, mz, md, BORDER_WEIGHT);
+					addPlane(q, mx, my, mz, md, BORDER_WEIGHT);
+				}
+			}
+		}
+
+		private void addPlane(int v, double a, double b, double c, double d, double w) {
+			int o = v * 10;
+			mQuadrics[o] += w * a * a;
+			mQuadrics[o + 1] += w * a * b;
+			mQuadrics[o + 2] += w * a * c;
+			mQuadrics[o + 3] += w * a * d;
+			mQuadrics[o + 4] += w * b * b;
+			mQuadrics[o + 5] += w * b * c;
+			mQuadrics[o + 6] += w * b * d;
+			mQuadrics[o + 7] += w * c * c;
+			mQuadrics[o + 8] += w * c * d;
+			mQuadrics[o + 9] += w * d * d;
+		}
+
+		// Error of moving both vertices to the position of to
+		private double cost(int from, int to) {
+			double x = mPositions[to * 3], y = mPositions[to * 3 + 1], z = mPositions[to * 3 + 2];
+			int f = from * 10, t = to * 10;
+			double[] q = mQuadrics;
+			double e = (q[f] + q[t]) * x * x + 2.0 * (q[f + 1] + q[t + 1]) * x * y
+					+ 2.0 * (q[f + 2] + q[t + 2]) * x * z + 2.0 * (q[f + 3] + q[t + 3]) * x
+					+ (q[f + 4] + q[t + 4]) * y * y + 2.0 * (q[f + 5] + q[t + 5]) * y * z
+					+ 2.0 * (q[f + 6] + q[t + 6]) * y + (q[f + 7] + q[t + 7]) * z * z
+					+ 2.0 * (q[f + 8] + q[t + 8]) * z + (q[f + 9] + q[t + 9]);
+			return Math.max(e, 0.0);
+		}
+
+		private void push(int from, int to) {
+			mQueue.add(new Collapse(cost(from, to), from, to, mVersion[from], mVersion[to]));
+		}
+
+		private boolean canCollapse(int from, int to) {
+			// the edge must still exist, and the vertices the two ends have
+			// in common must be exactly the tips of the triangles on the
+			// edge, otherwise the collapse pinches the surface
+			int shared = 0;
+			int stamp = ++mStamp;
+			int[] tris = mVertexTris[from];
+			for (int i = 0; i < mVertexTriCount[from]; i++) {
+				int t = tris[i];
+				if (mTriDead[t])
+					continue;
+				boolean hasTo = false;
+				for (int k = 0; k < 3; k++) {
+					int v = mTris[t * 3 + k];
+					if (v == to)
+						hasTo = true;
+					else if (v != from)
+						mMark[v] = stamp;
+				}
+				if (hasTo)
+					shared++;
+			}
+			if (shared == 0)
+				return false;
+
+			int common = 0;
+			int commonStamp = ++mStamp;
+			tris = mVertexTris[to];
+			for (int i = 0; i < mVertexTriCount[to]; i++) {
+				int t = tris[i];
+				if (mTriDead[t])
+					continue;
+				for (int k = 0; k < 3; k++) {
+					int v = mTris[t * 3 + k];
+					if (v != to && v != from && mMark[v] == stamp) {
+						mMark[v] = commonStamp;
+						common++;
+					}
+				}
+			}
+			if (common != shared)
+				return false;
+
+			// no triangle left around the edge may turn over
+			double[] before = mNormal;
+			double[] after = mNormal2;
+			tris = mVertexTris[from];
+			for (int i = 0; i < mVertexTriCount[from]; i++) {
+				int t = tris[i];
+				if (mTriDead[t])
+					continue;
+				int a = mTris[t * 3], b = mTris[t * 3 + 1], c = mTris[t * 3 + 2];
+				if (a == to || b == to || c == to)
+					continue;
+				if (normal(a, b, c, before) == 0.0)
+					continue;
+				double area = normal(a == from ? to : a, b == from ? to : b,
+						c == from ? to : c, after);
+				if (area == 0.0 || before[0] * after[0] + before[1] * after[1]
+						+ before[2] * after[2] < MIN_NORMAL_COS)
+					return false;
+			}
+			return true;
+		}
+
+		private void collapse(int from, int to) {
+			int[] tris = mVertexTris[from];
+			for (int i = 0; i < mVertexTriCount[from]; i++) {
+				int t = tris[i];
+				if (mTriDead[t])
+					continue;
+				int o = t * 3;
+				if (mTris[o] == to || mTris[o + 1] == to || mTris[o + 2] == to) {
+					mTriDead[t] = true;
+					mLiveTris--;
+					continue;
+				}
+				for (int k = 0; k < 3; k++) {
+					if (mTris[o + k] == from)
+						mTris[o + k] = to;
+				}
+				addTri(to, t);
+			}
+			for (int i = 0; i < 10; i++)
+				mQuadrics[to * 10 + i] += mQuadrics[from * 10 + i];
+			mVertexDead[from] = true;
+			mVertexTris[from] = null;
+			mVertexTriCount[from] = 0;
+			mVersion[to]++;
+			compactTris(to);
+
+			// every edge at the kept vertex costs something else now
+			int stamp = ++mStamp;
+			tris = mVertexTris[to];
+			for (int i = 0; i < mVertexTriCount[to]; i++) {
+				int t = tris[i];
+				for (int k = 0; k < 3; k++) {
+					int v = mTris[t * 3 + k];
+					if (v != to && mMark[v] != stamp) {
+						mMark[v] = stamp;
+						push(to, v);
+						push(v, to);
+					}
+				}
+			}
+		}
+
+		private void addTri(int v, int t) {
+			int[] tris = mVertexTris[v];
+			int n = mVertexTriCount[v];
+			if (tris == null) {
+				tris = new int[8];
+			} else if (n == tris.length) {
+				int[] grown = new int[n * 2];
+				System.arraycopy(tris, 0, grown, 0, n);
+				tris = grown;
+			}
+			tris[n] = t;
+			mVertexTris[v] = tris;
+			mVertexTriCount[v] = n + 1;
+		}
+
+		// Drop dead and repeated triangles from a vertex's list
+		private void compactTris(int v) {
+			int[] tris = mVertexTris[v];
+			int stamp = ++mStamp;
+			int n = 0;
+			for (int i = 0; i < mVertexTriCount[v]; i++) {
+				int t = tris[i];
+				if (mTriDead[t] || mTriMarks[t] == stamp)
+					continue;
+				mTriMarks[t] = stamp;
+				tris[n++] = t;
+			}
+			mVertexTriCount[v] = n;
+		}
+
+		// Unit normal of a triangle into n
+		// \return Twice the area, 0 for a degenerate triangle
+		private double normal(int a, int b, int c, double[] n) {
+			double[] p = mPositions;
+			double ux = p[b * 3] - p[a * 3], uy = p[b * 3 + 1] - p[a * 3 + 1], uz = p[b * 3 + 2] - p[a * 3 + 2];
+			double vx = p[c * 3] - p[a * 3], vy = p[c * 3 + 1] - p[a * 3 + 1], vz = p[c * 3 + 2] - p[a * 3 + 2];
+			double nx = uy * vz - uz * vy;
+			double ny = uz * vx - ux * vz;
+			double nz = ux * vy - uy * vx;
+			double len = Math.sqrt(nx * nx + ny * ny + nz * nz);
+			if (len == 0.0)
+				return 0.0;
+			n[0] = nx / len;
+			n[1] = ny / len;
+			n[2] = nz / len;
+			return len;
+		}
+
+		private double dot(double[] n, int v) {
+			return n[0] * mPositions[v * 3] + n[1] * mPositions[v * 3 + 1]
+					+ n[2] * mPositions[v * 3 + 2];
+		}
+
+		private final int mTarget;
+		private final double mMaxCost;
+		private final int[] mTris;
+		private int mLiveTris;
+		private final boolean[] mTriDead;
+		private final int[] mTriMarks;
+		private final double[] mQuadrics;
+		private final boolean[] mVertexDead;
+		private final int[] mVersion;
+		private final int[] mMark;
+		private int mStamp;
+		private final int[][] mVertexTris;
+		private final int[] mVertexTriCount;
+		private final PriorityQueue<Collapse> mQueue = new PriorityQueue<Collapse>();
+		private final double[] mNormal = new double[3];
+		private final double[] mNormal2 = new double[3];
+	}
+
+	private static final class Collapse implements Comparable<Collapse> {
+		Collapse(double cost, int from, int to, int fromVersion, int toVersion) {
+			this.cost = cost;
+			this.from = from;
+			this.to = to;
+			this.fromVersion = fromVersion;
+			this.toVersion = toVersion;
+		}
+
+		public int compareTo(Collapse other) {
+			return Double.compare(cost, other.cost);
+		}
+
+		final double cost;
+		final int from;
+		final int to;
+		final int fromVersion;
+		final int toVersion;
+	}
+
+	private static Long edgeKey(int a, int b) {
+		return a < b ? ((long) a << 32) | b : ((long) b << 32) | a;
+	}
+
+	private static final class VertexKey {
+		VertexKey(FloatBuffer positions, FloatBuffer normals, int v) {
+			for (int c = 0; c < 3; c++) {
+				mBits[c] = Float.floatToIntBits(positions.get(v * 3 + c));
+				mBits[c + 3] = normals != null ? Float.floatToIntBits(normals.get(v * 3 + c)) : 0;
+			}
+		}
+
+		@Override
+		public boolean equals(Object o) {
+			return o instanceof VertexKey && Arrays.equals(mBits, ((VertexKey) o).mBits);
+		}
+
+		@Override
+		public int hashCode() {
+			return Arrays.hashCode(mBits);
+		}
+
+		private final int[] mBits = new int[6];
+	}
+
+	// Member variables
+	private final int mNumVertices;
+	private final double[] mPositions;
+	private final int[] mTriangles;
+}
@@ -0,0 +1,300 @@
+// ESObjLoader
+//
+//    Wavefront OBJ reader producing an ESShapes. Reads positions, normals,
+//    texture coordinates and faces; polygons are split into triangle fans,
+//    negative (relative) indices are resolved, and every distinct
+//    position/texcoord/normal triple becomes one vertex. Faces without
+//    normals get smooth normals averaged from the faces around each
+//    position. Groups, materials and the other statements are skipped.
+//
+//    Parsing text is slow; this is meant for the offline converter to
+//    ESMeshFile, and for comparing against it.
+//
+
+package com.openglesbook.common;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.util.HashMap;
+import java.util.Map;
+
+public class ESObjLoader {
+
+	//
+	///
+	/// \brief Read an OBJ file
+	/// \param format Layout of the packed vertices of the returned shape
+	/// \throws IOException on a read error or a malformed statement
+	//
+	public static ESShapes load(File file, ESVertexFormat format) throws IOException {
+		Reader in = new InputStreamReader(new FileInputStream(file), "US-ASCII");
+		try {
+			return load(in, format);
+		} finally {
+			in.close();
+		}
+	}
+
+	public static ESShapes load(Reader in, ESVertexFormat format) throws IOException {
+		return new ESObjLoader().read(new BufferedReader(in), format);
+	}
+
+	private ESShapes read(BufferedReader in, ESVertexFormat format) throws IOException {
+		String line;
+		int lineNumber = 0;
+		while ((line = in.readLine()) != null) {
+			lineNumber++;
+			int count = tokenize(line);
+			if (count == 0)
+				continue;
+			try {
+				String keyword = mTokens[0];
+				if (keyword.equals("v")) {
+					mPositions.add(parseFloat(count, 1), parseFloat(count, 2),
+							parseFloat(count, 3));
+				} else if (keyword.equals("vn")) {
+					mObjNormals.add(parseFloat(count, 1), parseFloat(count, 2),
+							parseFloat(count, 3));
+				} else if (keyword.equals("vt")) {
+					mObjTexCoords.add(parseFloat(count, 1), parseFloat(count, 2));
+				} else if (keyword.equals("f")) {
+					if (count < 4)
+						throw new IOException("face with fewer than 3 vertices");
+					int first = vertex(mTokens[1]);
+					int previous = vertex(mTokens[2]);
+					for (int i = 3; i < count; i++) {
+						int current = vertex(mTokens[i]);
+						mIndices.add(first);
+						mIndices.add(previous);
+						mIndices.add(current);
+						previous = current;
+					}
+				}
+			} catch (NumberFormatException e) {
+				throw new IOException("line " + lineNumber + ": " + e.getMessage());
+			} catch (IOException e) {
+				throw new IOException("line " + lineNumber + ": " + e.getMessage());
+			}
+		}
+		return build(format);
+	}
+
+	// Index of the vertex for a face corner "v", "v/vt", "v//vn" or
+	// "v/vt/vn", created on first use
+	private int vertex(String corner) throws IOException {
+		int slash1 = corner.indexOf('/');
+		int slash2 = slash1 < 0 ? -1 : corner.indexOf('/', slash1 + 1);
+		int v = resolve(corner.substring(0, slash1 < 0 ? corner.length() : slash1),
+				mPositions.size() / 3);
+		int vt = -1;
+		int vn = -1;
+		if (slash1 >= 0) {
+			int end = slash2 < 0 ? corner.length() : slash2;
+			if (end > slash1 + 1)
+				vt = resolve(corner.substring(slash1 + 1, end), mObjTexCoords.size() / 2);
+			if (slash2 >= 0)
+				vn = resolve(corner.substring(slash2 + 1), mObjNormals.size() / 3);
+		}
+
+		// 21 bits per index, +1 so that "none" is 0
+		long key = ((long) v << 42) | ((long) (vt + 1) << 21) | (vn + 1);
+		Integer index = mVertexMap.get(key);
+		if (index != null)
+			return index;
+		index = mCorners.size() / 3;
+		mCorners.add(v);
+		mCorners.add(vt);
+		mCorners.add(vn);
+		mVertexMap.put(key, index);
+		return index;
+	}
+
+	// OBJ indices start at 1; negative ones count back from the end
+	private static int resolve(String token, int count) throws IOException {
+		int index = Integer.parseInt(token);
+		index = index < 0 ? count + index : index - 1;
+		if (index < 0 || index >= count || index >= 1 << 21)
+			throw new IOException("index " + token + " out of range");
+		return index;
+	}
+
+	private ESShapes build(ESVertexFormat format) {
+		int numVertices = mCorners.size() / 3;
+		int numIndices = mIndices.size();
+
+		FloatBuffer vertices = ByteBuffer.allocateDirect(numVertices * 3 * 4)
+				.order(ByteOrder.nativeOrder()).asFloatBuffer();
+		FloatBuffer normals = ByteBuffer.allocateDirect(numVertices * 3 * 4)
+				.order(ByteOrder.nativeOrder()).asFloatBuffer();
+		FloatBuffer texCoords = ByteBuffer.allocateDirect(numVertices * 2 * 4)
+				.order(ByteOrder.nativeOrder()).asFloatBuffer();
+		ESIndices indices = ESIndices.allocate(numIndices, numVertices);
+
+		float[] smooth = smoothNormals();
+		int[] corners = mCorners.mData;
+		for (int i = 0; i < numVertices; i++) {
+			int v = corners[i * 3];
+			int vt = corners[i * 3 + 1];
+			int vn = corners[i * 3 + 2];
+			for (int c = 0; c < 3; c++) {
+				vertices.put(i * 3 + c, mPositions.mData[v * 3 + c]);
+				normals.put(i * 3 + c, vn >= 0 ? mObjNormals.mData[vn * 3 + c]
+						: smooth[v * 3 + c]);
+			}
+			if (vt >= 0) {
+				texCoords.put(i * 2, mObjTexCoords.mData[vt * 2]);
+				texCoords.put(i * 2 + 1, mObjTexCoords.mData[vt * 2 + 1]);
+			}
+		}
+		for (int i = 0; i < numIndices; i++)
+			indices.put(i, mIndices.mData[i]);
+
+		ESShapes shape = new ESShapes(format);
+		shape.setData(vertices, normals, texCoords, numVertices, indices, numIndices,
+				0.0f);
+		return shape;
+	}
+
+	// Area-weighted face normals summed per position, for the corners that
+	// have no normal of their own
+	private float[] smoothNormals() {
+		float[] smooth = new float[mPositions.size()];
+		float[] p = mPositions.mData;
+		int[] corners = mCorners.mData;
+		int[] indices = mIndices.mData;
+		boolean needed = false;
+		for (int t = 0; t < mIndices.size(); t += 3) {
+			int a = corners[indices[t] * 3] * 3;
+			int b = corners[indices[t + 1] * 3] * 3;
+			int c = corners[indices[t + 2] * 3] * 3;
+			if (corners[indices[t] * 3 + 2] >= 0 && corners[indices[t + 1] * 3 + 2] >= 0
+					&& corners[indices[t + 2] * 3 + 2] >= 0)
+				continue;
+			needed = true;
+			float ux = p[b] - p[a], uy = p[b + 1] - p[a + 1], uz = p[b + 2] - p[a + 2];
+			float vx = p[c] - p[a], vy = p[c + 1] - p[a + 1], vz = p[c + 2] - p[a + 2];
+			float nx = uy * vz - uz * vy;
+			float ny = uz * vx - ux * vz;
+			float nz = ux * vy - uy * vx;
+			for (int k = 0; k < 3; k++) {
+				int o = corners[indices[t + k] * 3] * 3;
+				smooth[o] += nx;
+				smooth[o + 1] += ny;
+				smooth[o + 2] += nz;
+			}
+		}
+		if (!needed)
+			return smooth;
+		for (int o = 0; o < smooth.length; o += 3) {
+			float len = (float) Math.sqrt(smooth[o] * smooth[o] + smooth[o + 1]
+					* smooth[o + 1] + smooth[o + 2] * smooth[o + 2]);
+			if (len > 0.0f) {
+				smooth[o] /= len;
+				smooth[o + 1] /= len;
+				smooth[o + 2] /= len;
+			}
+		}
+		return smooth;
+	}
+
+	// Split on spaces and tabs, dropping a trailing comment
+	private int tokenize(String line) {
+		int count = 0;
+		int length = line.length();
+		int i = 0;
+		while (i < length) {
+			char ch = line.charAt(i);
+			if (ch == '#')
+				break;
+			if (ch == ' ' || ch == '\t') {
+				i++;
+				continue;
+			}
+			int start = i;
+			while (i < length && (ch = line.charAt(i)) != ' ' && ch != '\t' && ch != '#')
+				i++;
+			if (count == mTokens.length) {
+				String[] tokens = new String[count * 2];
+				System.arraycopy(mTokens, 0, tokens, 0, count);
+				mTokens = tokens;
+			}
+			mTokens[count++] = line.substring(start, i);
+		}
+		return count;
+	}
+
+	private float parseFloat(int count, int token) throws IOException {
+		if (token >= count)
+			throw new IOException("missing value");
+		return Float.parseFloat(mTokens[token]);
+	}
+
+	// Growable primitive arrays, to keep a large file from boxing every
+	// value
+	private static final class FloatList {
+		float[] mData = new float[256];
+		int mSize;
+
+		void add(float a, float b) {
+			ensure(2);
+			mData[mSize++] = a;
+			mData[mSize++] = b;
+		}
+
+		void add(float a, float b, float c) {
+			ensure(3);
+			mData[mSize++] = a;
+			mData[mSize++] = b;
+			mData[mSize++] = c;
+		}
+
+		int size() {
+			return mSize;
+		}
+
+		private void ensure(int more) {
+			if (mSize + more > mData.length) {
+				float[] data = new float[Math.max(mData.length * 2, mSize + more)];
+				System.arraycopy(mData, 0, data, 0, mSize);
+				mData = data;
+			}
+		}
+	}
+
+	private static final class IntList {
+		int[] mData = new int[256];
+		int mSize;
+
+		void add(int value) {
+			if (mSize == mData.length) {
+				int[] data = new int[mData.length * 2];
+				System.arraycopy(mData, 0, data, 0, mSize);
+				mData = data;
+			}
+			mData[mSize++] = value;
+		}
+
+		int size() {
+			return mSize;
+		}
+	}
+
+	private ESObjLoader() {
+	}
+
+	private String[] mTokens = new String[8];
+	private final FloatList mPositions = new FloatList();
+	private final FloatList mObjNormals = new FloatList();
+	private final FloatList mObjTexCoords = new FloatList();
+	// position, texcoord and normal index of each vertex, -1 for none
+	private final IntList mCorners = new IntList();
+	private final IntList mIndices = new IntList();
+	private final Map<Long, Integer> mVertexMap = new HashMap<Long, Integer>();
+}
@@ -0,0 +1,143 @@
+// ESProgram
+//
+//    A linked program object together with the locations of its attributes
+//    and uniforms, resolved once after linking. Drawables share one instance
+//    and look locations up from it instead of querying the driver per draw.
+//
+
+package com.openglesbook.common;
+
+public class ESProgram {
+
+	//
+	///
+	/// \brief Wrap a linked program and resolve the given names
+	/// \param gl Interface used for the location queries and uniform updates
+	/// \param programObject Program returned by ESShader.loadProgram()
+	/// \param attribNames Vertex attributes used by the drawables
+	/// \param uniformNames Uniforms used by the drawables
+	//
+	public ESProgram(ESGL gl, int programObject, String[] attribNames,
+			String[] uniformNames) {
+		mGL = gl;
+		mProgramObject = programObject;
+		mAttribNames = attribNames.clone();
+		mUniformNames = uniformNames.clone();
+		mAttribLocations = new int[attribNames.length];
+		mUniformLocations = new int[uniformNames.length];
+
+		for (int i = 0; i < mAttribNames.length; i++)
+			mAttribLocations[i] = gl.getAttribLocation(programObject,
+					mAttribNames[i]);
+		for (int i = 0; i < mUniformNames.length; i++)
+			mUniformLocations[i] = gl.getUniformLocation(programObject,
+					mUniformNames[i]);
+	}
+
+	public int getProgramObject() {
+		return mProgramObject;
+	}
+
+	//
+	///
+	/// \brief Location of an attribute resolved at construction
+	/// \return The location, -1 if the name was not given or is not active
+	//
+	public int getAttribLocation(String name) {
+		for (int i = 0; i < mAttribNames.length; i++) {
+			if (mAttribNames[i].equals(name))
+				return mAttribLocations[i];
+		}
+		return -1;
+	}
+
+	//
+	///
+	/// \brief Location of a uniform resolved at construction
+	/// \return The location, -1 if the name was not given or is not active
+	//
+	public int getUniformLocation(String name) {
+		for (int i = 0; i < mUniformNames.length; i++) {
+			if (mUniformNames[i].equals(name))
+				return mUniformLocations[i];
+		}
+		return -1;
+	}
+
+	public void use() {
+		mGL.useProgram(mProgramObject);
+	}
+
+	//
+	// Typed uniform setters. They take a location from getUniformLocation()
+	// and skip inactive (-1) uniforms.
+	//
+	public void setInt(int location, int x) {
+		if (location >= 0)
+			mGL.uniform1i(location, x);
+	}
+
+	public void setFloat(int location, float x) {
+		if (location >= 0)
+			mGL.uniform1f(location, x);
+	}
+
+	public void setVec3(int location, float[] v) {
+		if (location >= 0)
+			mGL.uniform3fv(location, 1, v, 0);
+	}
+
+	public void setVec4(int location, float[] v) {
+		if (location >= 0)
+			mGL.uniform4fv(location, 1, v, 0);
+	}
+
+	public void setMatrix4(int location, float[] m) {
+		if (location >= 0)
+			mGL.uniformMatrix4fv(location, 1, m, 0);
+	}
+
+	//
+	///
+	/// \brief Set count consecutive elements of a float array uniform
+	//
+	public void setFloatArray(int location, int count, float[] v) {
+		if (location >= 0)
+			mGL.uniform1fv(location, count, v, 0);
+	}
+
+	//
+	///
+	/// \brief Set count consecutive elements of a vec3 array uniform
+	//
+	public void setVec3Array(int location, int count, float[] v) {
+		if (location >= 0)
+			mGL.uniform3fv(location, count, v, 0);
+	}
+
+	//
+	///
+	/// \brief Set count consecutive elements of a vec4 array uniform
+	//
+	public void setVec4Array(int location, int count, float[] v) {
+		if (location >= 0)
+			mGL.uniform4fv(location, count, v, 0);
+	}
+
+	//
+	///
+	/// \brief Set count consecutive elements of a mat4 array uniform
+	//
+	public void setMatrix4Array(int location, int count, float[] m) {
+		if (location >= 0)
+			mGL.uniformMatrix4fv(location, count, m, 0);
+	}
+
+	// Member variables
+	private final ESGL mGL;
+	private final int mProgramObject;
+	private final String[] mAttribNames;
+	private final String[] mUniformNames;
+	private final int[] mAttribLocations;
+	private final int[] mUniformLocations;
+}
@@ -0,0 +1,262 @@
+// ESProgramCache
+//
+//    Program objects keyed by their shader sources. Each variant is
+//    compiled the first time it is asked for, shared by everyone asking for
+//    the same sources, and, where the driver can hand out program binaries,
+//    saved to storage so the next context or launch skips the compiler.
+//
+//    On-disk entry, one file per variant, big-endian:
+//
+//        int     magic 'ESPB'
+//        int     entry format version
+//        UTF     driver id the binary was made by
+//        long    hash of the shader sources
+//        int     length of the shader sources
+//        int     driver binary format
+//        int     binary length n
+//        byte[n] binary
+//        long    CRC32 of the binary
+//
+//    An entry made by another driver, for other sources or that fails its
+//    checksum is stale; it is deleted and the variant compiled again.
+//
+
+package com.openglesbook.common;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.HashMap;
+import java.util.zip.CRC32;
+
+import android.util.Log;
+
+public class ESProgramCache {
+
+	//
+	///
+	/// \brief What the cache needs from the driver; a stub can stand in for
+	/// it off-device
+	//
+	public interface Compiler {
+		/// \return A linked program object, 0 on failure
+		int compile(String vertShaderSrc, String fragShaderSrc);
+
+		/// \return The program binary, format in format[0]; null if the
+		/// driver cannot provide one
+		byte[] getBinary(int program, int[] format);
+
+		/// \return A linked program object, 0 if the driver rejects the binary
+		int loadBinary(int format, byte[] binary);
+	}
+
+	public static final int MAGIC = 0x45535042; // 'ESPB'
+	public static final int VERSION = 1;
+
+	//
+	///
+	/// \param compiler Compiles programs and moves binaries in and out
+	/// \param dir Directory for the binaries, null to keep nothing on disk
+	/// \param driverId Identifies the driver build; binaries made by a
+	///		different one are discarded
+	//
+	public ESProgramCache(Compiler compiler, File dir, String driverId) {
+		mCompiler = compiler;
+		mDir = dir;
+		mDriverId = driverId;
+	}
+
+	//
+	///
+	/// \brief Program linked from the given sources, compiled on first use
+	/// \return A program object, 0 if the sources fail to compile or link
+	//
+	public int getProgram(String vertShaderSrc, String fragShaderSrc) {
+		String key = vertShaderSrc + '\0' + fragShaderSrc;
+		Integer cached = mPrograms.get(key);
+		if (cached != null)
+			return cached;
+
+		long hash = hashSources(vertShaderSrc, fragShaderSrc);
+		int length = key.length();
+		File file = mDir != null ? new File(mDir, getFileName(hash)) : null;
+
+		int program = 0;
+		if (file != null && file.exists())
+			program = loadFromFile(file, hash, length);
+		if (program == 0) {
+			program = mCompiler.compile(vertShaderSrc, fragShaderSrc);
+			if (program == 0)
+				return 0;
+			mCompileCount++;
+			if (file != null)
+				saveToFile(file, program, hash, length);
+		}
+
+		mPrograms.put(key, program);
+		return program;
+	}
+
+	/// \return Programs built from source so far
+	public int getCompileCount() {
+		return mCompileCount;
+	}
+
+	/// \return Programs restored from a saved binary so far
+	public int getBinaryLoadCount() {
+		return mBinaryLoadCount;
+	}
+
+	//
+	///
+	/// \brief 64-bit FNV-1a hash of a vertex and fragment shader pair
+	//
+	public static long hashSources(String vertShaderSrc, String fragShaderSrc) {
+		long h = 0xcbf29ce484222325L;
+		h = hash(h, vertShaderSrc);
+		h = (h ^ 0xffff) * 0x100000001b3L;
+		return hash(h, fragShaderSrc);
+	}
+
+	public static String getFileName(long hash) {
+		return String.format("%016x.bin", hash);
+	}
+
+	//
+	///
+	/// \brief Write one entry in the format described at the top of the file
+	//
+	public static void writeEntry(OutputStream os, String driverId, long hash,
+			int sourceLength, int format, byte[] binary) throws IOException {
+		DataOutputStream out = new DataOutputStream(os);
+		out.writeInt(MAGIC);
+		out.writeInt(VERSION);
+		out.writeUTF(driverId);
+		out.writeLong(hash);
+		out.writeInt(sourceLength);
+		out.writeInt(format);
+		out.writeInt(binary.length);
+		out.write(binary);
+		out.writeLong(checksum(binary));
+		out.flush();
+	}
+
+	//
+	///
+	/// \brief Read one entry, checking it against the expected driver and
+	/// sources
+	/// \return The binary, format in format[0]; null if the entry is stale
+	/// or damaged
+	//
+	public static byte[] readEntry(InputStream is, String driverId, long hash,
+			int sourceLength, int[] format) throws IOException {
+		DataInputStream in = new DataInputStream(is);
+		if (in.readInt() != MAGIC || in.readInt() != VERSION)
+			return null;
+		if (!in.readUTF().equals(driverId) || in.readLong() != hash
+				|| in.readInt() != sourceLength)
+			return null;
+		format[0] = in.readInt();
+		int length = in.readInt();
+		if (length <= 0 || length > MAX_BINARY_SIZE)
+			return null;
+		byte[] binary = new byte[length];
+		in.readFully(binary);
+		if (in.readLong() != checksum(binary))
+			return null;
+		return binary;
+	}
+
+	private int loadFromFile(File file, long hash, int sourceLength) {
+		byte[] binary = null;
+		InputStream in = null;
+		try {
+			in = new BufferedInputStream(new FileInputStream(file));
+			binary = readEntry(in, mDriverId, hash, sourceLength, mFormat);
+		} catch (IOException e) {
+			binary = null;
+		} finally {
+			close(in);
+		}
+
+		int program = binary != null ? mCompiler.loadBinary(mFormat[0], binary) : 0;
+		if (program == 0) {
+			// stale, damaged or refused by the driver; rebuilt by the caller
+			file.delete();
+			return 0;
+		}
+		mBinaryLoadCount++;
+		return program;
+	}
+
+	private void saveToFile(File file, int program, long hash, int sourceLength) {
+		byte[] binary = mCompiler.getBinary(program, mFormat);
+		if (binary == null || binary.length == 0)
+			return;
+		if (!mDir.isDirectory() && !mDir.mkdirs())
+			return;
+
+		// write next to the target and rename, so a crash never leaves a
+		// truncated entry behind
+		File tmp = new File(mDir, file.getName() + ".tmp");
+		OutputStream out = null;
+		try {
+			out = new BufferedOutputStream(new FileOutputStream(tmp));
+			writeEntry(out, mDriverId, hash, sourceLength, mFormat[0], binary);
+			out.close();
+			out = null;
+			if (!tmp.renameTo(file))
+				tmp.delete();
+		} catch (IOException e) {
+			Log.w("ESProgramCache", "Could not save program binary: " + e);
+			tmp.delete();
+		} finally {
+			close(out);
+		}
+	}
+
+	private static long hash(long h, String s) {
+		for (int i = 0; i < s.length(); i++) {
+			char c = s.charAt(i);
+			h = (h ^ (c & 0xff)) * 0x100000001b3L;
+			h = (h ^ (c >>> 8)) * 0x100000001b3L;
+		}
+		return h;
+	}
+
+	private static long checksum(byte[] binary) {
+		CRC32 crc = new CRC32();
+		crc.update(binary, 0, binary.length);
+		return crc.getValue();
+	}
+
+	private static void close(Closeable c) {
+		if (c == null)
+			return;
+		try {
+			c.close();
+		} catch (IOException e) {
+			// nothing left to do
+		}
+	}
+
+	// Guards against allocating from a damaged length field
+	private static final int MAX_BINARY_SIZE = 16 * 1024 * 1024;
+
+	// Member variables
+	private final Compiler mCompiler;
+	private final File mDir;
+	private final String mDriverId;
+	private final HashMap<String, Integer> mPrograms = new HashMap<String, Integer>();
+	private final int[] mFormat = new int[1];
+	private int mCompileCount;
+	private int mBinaryLoadCount;
+}
@@ -0,0 +1,90 @@
+// ESShaderCompiler
+//
+//    ESProgramCache.Compiler backed by the current GL context. Programs are
+//    built with ESShader.loadProgram(). Binaries need glGetProgramBinary,
+//    which Android exposes from API 18 in GLES30 and which only works on an
+//    OpenGL ES 3 context; elsewhere the cache keeps programs in memory only.
+//
+
+package com.openglesbook.common;
+
+import java.nio.ByteBuffer;
+
+import android.opengl.GLES20;
+import android.opengl.GLES30;
+import android.os.Build;
+
+public class ESShaderCompiler implements ESProgramCache.Compiler {
+
+	//
+	///
+	/// \brief Must be created on the GL thread with a current context
+	//
+	public ESShaderCompiler() {
+		if (ESGLES20.isES30Context()) {
+			GLES20.glGetIntegerv(GLES30.GL_NUM_PROGRAM_BINARY_FORMATS, mParam, 0);
+			mBinaries = mParam[0] > 0;
+		}
+	}
+
+	//
+	///
+	/// \brief Identifies the driver build for ESProgramCache
+	//
+	public static String getDriverId() {
+		return GLES20.glGetString(GLES20.GL_VENDOR) + "|"
+				+ GLES20.glGetString(GLES20.GL_RENDERER) + "|"
+				+ GLES20.glGetString(GLES20.GL_VERSION) + "|"
+				+ Build.FINGERPRINT;
+	}
+
+	public boolean supportsBinaries() {
+		return mBinaries;
+	}
+
+	public int compile(String vertShaderSrc, String fragShaderSrc) {
+		return ESShader.loadProgram(vertShaderSrc, fragShaderSrc);
+	}
+
+	public byte[] getBinary(int program, int[] format) {
+		if (!mBinaries)
+			return null;
+		GLES20.glGetProgramiv(program, GLES30.GL_PROGRAM_BINARY_LENGTH, mParam, 0);
+		int length = mParam[0];
+		if (length <= 0)
+			return null;
+
+		ByteBuffer buffer = ByteBuffer.allocateDirect(length);
+		GLES30.glGetProgramBinary(program, length, mParam, 0, format, 0, buffer);
+		if (GLES20.glGetError() != GLES20.GL_NO_ERROR)
+			return null;
+		byte[] binary = new byte[mParam[0]];
+		buffer.get(binary);
+		return binary;
+	}
+
+	public int loadBinary(int format, byte[] binary) {
+		if (!mBinaries)
+			return 0;
+		int program = GLES20.glCreateProgram();
+		if (program == 0)
+			return 0;
+
+		ByteBuffer buffer = ByteBuffer.allocateDirect(binary.length);
+		buffer.put(binary).position(0);
+		GLES30.glProgramBinary(program, format, buffer, binary.length);
+
+		// A driver update can refuse binaries it made itself before
+		GLES20.glGetProgramiv(program, GLES20.GL_LINK_STATUS, mParam, 0);
+		if (mParam[0] == 0) {
+			GLES20.glDeleteProgram(program);
+			GLES20.glGetError();
+			return 0;
+		}
+		return program;
+	}
+
+	// Member variables
+	private final int[] mParam = new int[1];
+	private boolean mBinaries;
+}
@@ -15,79 +15,173 @@
 
 package com.openglesbook.common;
 
+import java.io.File;
+import java.io.IOException;
 import java.lang.Math;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
 import java.nio.FloatBuffer;
-import java.nio.ShortBuffer;
+import java.util.concurrent.ExecutorService;
+
+import android.opengl.GLES20;
 
 public class ESShapes {
 
+	public ESShapes() {
+		this(ESVertexFormat.createDefault());
+	}
+
+	//
+	///
+	/// \brief Create a shape generator
+	/// \param format Interleaved layout used for the GPU copy of the vertices
+	//
+	public ESShapes(ESVertexFormat format) {
+		mFormat = format;
+	}
+
+	//
+	///
+	/// \brief Generate a UV sphere
+	/// \param numSlices Segments around the equator; the sphere has half
+	/// as many parallels, rounded down
+	/// \return The number of indices
+	//
 	public int genSphere(int numSlices, float radius) {
-		int i;
-		int j;
-		int numParallels = numSlices;
-		int numVertices = (numParallels + 1) * (numSlices + 1);
-		int numIndices = numParallels * numSlices * 6;
+		return genSphere(numSlices, radius, null);
+	}
+
+	//
+	///
+	/// \brief Generate a UV sphere, filling bands of parallels in parallel
+	/// for large tessellations. The result is the same with or without an
+	/// executor.
+	/// \param executor Runs the bands; null to generate on this thread
+	//
+	public int genSphere(final int numSlices, final float radius,
+			ExecutorService executor) {
+		// the parallel angle runs from pole to pole, half a turn, in its
+		// own step so that an odd slice count still closes the sphere
+		final int numParallels = numSlices / 2;
 		float angleStep = ((2.0f * (float) Math.PI) / numSlices);
+		float parallelStep = ((2.0f * (float) Math.PI) / (2 * numParallels));
 
-		// Allocate memory for buffers
-		mVertices = ByteBuffer.allocateDirect(numVertices * 3 * 4)
-				.order(ByteOrder.nativeOrder()).asFloatBuffer();
-		mNormals = ByteBuffer.allocateDirect(numVertices * 3 * 4)
-				.order(ByteOrder.nativeOrder()).asFloatBuffer();
-		mTexCoords = ByteBuffer.allocateDirect(numVertices * 2 * 4)
-				.order(ByteOrder.nativeOrder()).asFloatBuffer();
-		mIndices = ByteBuffer.allocateDirect(numIndices * 2)
-				.order(ByteOrder.nativeOrder()).asShortBuffer();
-
-		for (i = 0; i < numParallels + 1; i++) {
-			for (j = 0; j < numSlices + 1; j++) {
-				int vertex = (i * (numSlices + 1) + j) * 3;
-
-				mVertices
-						.put(vertex + 2,
-								(float) (radius
-										* Math.sin(angleStep * (float) i) * Math
-										.sin(angleStep * (float) j)));
-
-				mVertices.put(vertex + 1,
-						(float) (radius * Math.cos(angleStep * (float) i)));
-				mVertices
-						.put(vertex + 0,
-								(float) (radius
-										* Math.sin(angleStep * (float) i) * Math
-										.cos(angleStep * (float) j)));
-
-				mNormals.put(vertex + 0, mVertices.get(vertex + 0) / radius);
-				mNormals.put(vertex + 1, mVertices.get(vertex + 1) / radius);
-				mNormals.put(vertex + 2, mVertices.get(vertex + 2) / radius);
-
-				int texIndex = (i * (numSlices + 1) + j) * 2;
-				mTexCoords.put(texIndex + 0, (float) j / (float) numSlices);
-				mTexCoords.put(texIndex + 1, (1.0f - (float) i)
-						/ (float) (numParallels - 1));
-			}
+		// sines and cosines per parallel and per slice, rather than four
+		// per vertex
+		final double[] sinParallel = new double[numParallels + 1];
+		final double[] cosParallel = new double[numParallels + 1];
+		for (int i = 0; i <= numParallels; i++) {
+			sinParallel[i] = Math.sin(parallelStep * (float) i);
+			cosParallel[i] = Math.cos(parallelStep * (float) i);
 		}
+		final double[] sinSlice = new double[numSlices + 1];
+		final double[] cosSlice = new double[numSlices + 1];
+		for (int j = 0; j <= numSlices; j++) {
+			sinSlice[j] = Math.sin(angleStep * (float) j);
+			cosSlice[j] = Math.cos(angleStep * (float) j);
+		}
+
+		ESGridBuilder builder = new ESGridBuilder(numParallels, numSlices) {
+			@Override
+			void fillRows(int firstRow, int endRow, float[] positions,
+					float[] normals, float[] texCoords) {
+				int vertex = 0;
+				for (int i = firstRow; i < endRow; i++) {
+					for (int j = 0; j <= numSlices; j++) {
+						float x = (float) (radius * sinParallel[i] * cosSlice[j]);
+						float y = (float) (radius * cosParallel[i]);
+						float z = (float) (radius * sinParallel[i] * sinSlice[j]);
+						positions[vertex * 3] = x;
+						positions[vertex * 3 + 1] = y;
+						positions[vertex * 3 + 2] = z;
+						normals[vertex * 3] = x / radius;
+						normals[vertex * 3 + 1] = y / radius;
+						normals[vertex * 3 + 2] = z / radius;
+						texCoords[vertex * 2] = (float) j / (float) numSlices;
+						texCoords[vertex * 2 + 1] = (1.0f - (float) i)
+								/ (float) (numParallels - 1);
+						vertex++;
+					}
+				}
+			}
+		};
+		setGrid(builder, executor);
 
-		int index = 0;
-		for (i = 0; i < numParallels; i++) {
-			for (j = 0; j < numSlices; j++) {
-				mIndices.put(index++, (short) (i * (numSlices + 1) + j));
-				mIndices.put(index++, (short) ((i + 1) * (numSlices + 1) + j));
-				mIndices.put(index++,
-						(short) ((i + 1) * (numSlices + 1) + (j + 1)));
+		// every flat triangle spans at most one step of either angle
+		mError = radius * (1.0f - (float) Math.cos(Math.max(angleStep, parallelStep)));
 
-				mIndices.put(index++, (short) (i * (numSlices + 1) + j));
-				mIndices.put(index++,
-						(short) ((i + 1) * (numSlices + 1) + (j + 1)));
-				mIndices.put(index++, (short) (i * (numSlices + 1) + (j + 1)));
+		return mNumIndices;
+	}
 
-			}
+	//
+	///
+	/// \brief Generate a flat square grid in the XZ plane, centered on the
+	/// origin and facing +Y, such as a terrain base
+	/// \param columns Quads along X
+	/// \param rows Quads along Z
+	/// \param size Side length
+	/// \return The number of indices
+	//
+	public int genGrid(int columns, int rows, float size) {
+		return genGrid(columns, rows, size, null);
+	}
+
+	//
+	///
+	/// \brief genGrid() filling bands of rows in parallel for large grids
+	/// \param executor Runs the bands; null to generate on this thread
+	//
+	public int genGrid(final int columns, final int rows, float size,
+			ExecutorService executor) {
+		final float[] x = new float[columns + 1];
+		final float[] u = new float[columns + 1];
+		for (int j = 0; j <= columns; j++) {
+			u[j] = (float) j / columns;
+			x[j] = (u[j] - 0.5f) * size;
+		}
+		final float[] z = new float[rows + 1];
+		final float[] v = new float[rows + 1];
+		for (int i = 0; i <= rows; i++) {
+			v[i] = (float) i / rows;
+			z[i] = (v[i] - 0.5f) * size;
 		}
-		mNumIndices = numIndices;
 
-		return numIndices;
+		ESGridBuilder builder = new ESGridBuilder(rows, columns) {
+			@Override
+			void fillRows(int firstRow, int endRow, float[] positions,
+					float[] normals, float[] texCoords) {
+				int vertex = 0;
+				for (int i = firstRow; i < endRow; i++) {
+					for (int j = 0; j <= columns; j++) {
+						positions[vertex * 3] = x[j];
+						positions[vertex * 3 + 2] = z[i];
+						normals[vertex * 3 + 1] = 1.0f;
+						texCoords[vertex * 2] = u[j];
+						texCoords[vertex * 2 + 1] = v[i];
+						vertex++;
+					}
+				}
+			}
+		};
+		setGrid(builder, executor);
+		mError = 0.0f;
+		return mNumIndices;
+	}
+
+	// Take over what a grid builder filled and packed; its index order
+	// needs no optimize()
+	private void setGrid(ESGridBuilder builder, ExecutorService executor) {
+		builder.build(mFormat, executor);
+		mVertices = builder.getPositions();
+		mNormals = builder.getNormals();
+		mTexCoords = builder.getTexCoords();
+		mInterleaved = builder.getInterleaved();
+		mIndices = builder.getIndices();
+		mNumVertices = builder.getNumVertices();
+		mNumIndices = builder.getNumIndices();
+		computeBounds();
+		mSplitVertices = null;
+		mUnoptimizedAcmr = 0.0f;
 	}
 
 	public int genCube(float scale) {
@@ -126,8 +220,7 @@ public class ESShapes {
 				.order(ByteOrder.nativeOrder()).asFloatBuffer();
 		mTexCoords = ByteBuffer.allocateDirect(numVertices * 2 * 4)
 				.order(ByteOrder.nativeOrder()).asFloatBuffer();
-		mIndices = ByteBuffer.allocateDirect(numIndices * 2)
-				.order(ByteOrder.nativeOrder()).asShortBuffer();
+		mIndices = ESIndices.allocate(numIndices, numVertices);
 
 		mVertices.put(cubeVerts).position(0);
 		for (i = 0; i < numVertices * 3; i++) {
@@ -137,15 +230,527 @@ public class ESShapes {
 		mNormals.put(cubeNormals).position(0);
 		mTexCoords.put(cubeTex).position(0);
 
-		short[] cubeIndices = { 0, 2, 1, 0, 3, 2, 4, 5, 6, 4, 6, 7, 8, 9, 10,
+		int[] cubeIndices = { 0, 2, 1, 0, 3, 2, 4, 5, 6, 4, 6, 7, 8, 9, 10,
 				8, 10, 11, 12, 15, 14, 12, 14, 13, 16, 17, 18, 16, 18, 19, 20,
 				23, 22, 20, 22, 21 };
 
-		mIndices.put(cubeIndices).position(0);
+		for (i = 0; i < numIndices; i++)
+			mIndices.put(i, cubeIndices[i]);
 		mNumIndices = numIndices;
+		mNumVertices = numVertices;
+		optimize(false);
+		mError = 0.0f;
 		return numIndices;
 	}
 
+	//
+	///
+	/// \brief Build a coarser version of this shape with ESMeshSimplifier.
+	/// Reads this shape only, so several levels can be built at once on
+	/// different threads; no GL calls are made.
+	/// \param targetTriangles Triangle count to reduce to
+	/// \param maxError Largest distance the surface may move, in model
+	/// units; simplification stops early rather than exceed it
+	/// \return A new shape with the same vertex format
+	//
+	public ESShapes simplify(int targetTriangles, float maxError) {
+		ESMeshSimplifier simplifier = new ESMeshSimplifier(mVertices, mNormals,
+				mNumVertices, mIndices, mNumIndices);
+		return simplify(simplifier, targetTriangles, maxError);
+	}
+
+	//
+	///
+	/// \brief simplify() with a simplifier built from this shape, to share
+	/// the welding work between levels
+	//
+	public ESShapes simplify(ESMeshSimplifier simplifier, int targetTriangles,
+			float maxError) {
+		ESMeshSimplifier.Result result = simplifier.simplify(targetTriangles, maxError);
+		int[] indices = result.getIndices();
+
+		// keep the referenced vertices only, in first use order
+		int[] remap = new int[mNumVertices];
+		for (int v = 0; v < mNumVertices; v++)
+			remap[v] = -1;
+		int numVertices = 0;
+		for (int i = 0; i < indices.length; i++) {
+			if (remap[indices[i]] < 0)
+				remap[indices[i]] = numVertices++;
+		}
+
+		FloatBuffer vertices = ByteBuffer.allocateDirect(numVertices * 3 * 4)
+				.order(ByteOrder.nativeOrder()).asFloatBuffer();
+		FloatBuffer normals = ByteBuffer.allocateDirect(numVertices * 3 * 4)
+				.order(ByteOrder.nativeOrder()).asFloatBuffer();
+		FloatBuffer texCoords = ByteBuffer.allocateDirect(numVertices * 2 * 4)
+				.order(ByteOrder.nativeOrder()).asFloatBuffer();
+		ESIndices newIndices = ESIndices.allocate(indices.length, numVertices);
+		for (int v = 0; v < mNumVertices; v++) {
+			int n = remap[v];
+			if (n < 0)
+				continue;
+			for (int c = 0; c < 3; c++) {
+				vertices.put(n * 3 + c, mVertices.get(v * 3 + c));
+				normals.put(n * 3 + c, mNormals.get(v * 3 + c));
+			}
+			texCoords.put(n * 2, mTexCoords.get(v * 2));
+			texCoords.put(n * 2 + 1, mTexCoords.get(v * 2 + 1));
+		}
+		for (int i = 0; i < indices.length; i++)
+			newIndices.put(i, remap[indices[i]]);
+
+		ESShapes shape = new ESShapes(mFormat);
+		shape.setData(vertices, normals, texCoords, numVertices, newIndices,
+				indices.length, mError + result.getError());
+		return shape;
+	}
+
+	//
+	///
+	/// \brief Take over vertex streams and indices built elsewhere in this
+	/// package, optimize and pack them and compute the bounds
+	//
+	void setData(FloatBuffer vertices, FloatBuffer normals, FloatBuffer texCoords,
+			int numVertices, ESIndices indices, int numIndices, float error) {
+		mVertices = vertices;
+		mNormals = normals;
+		mTexCoords = texCoords;
+		mIndices = indices;
+		mNumVertices = numVertices;
+		mNumIndices = numIndices;
+		optimize(false);
+		mError = error;
+	}
+
+	//
+	///
+	/// \brief Reorder the triangles for the post-transform vertex cache and
+	/// the vertices for fetch locality, then pack them again. Cubes, shapes
+	/// loaded from OBJ and simplified shapes are optimized as they are
+	/// built; genSphere() and genGrid() write their indices in a cache
+	/// friendly order to begin with, and files written by save() keep the
+	/// order, so mapped shapes need no pass. Unused vertices are dropped. No GL calls are made; call
+	/// createBuffers() again afterwards if the shape was uploaded.
+	/// \param overdraw Also order clusters of triangles so that the ones
+	/// facing outwards are drawn first, which cuts overdraw on concave
+	/// meshes for about 5% of cache efficiency. Pointless for convex
+	/// shapes, whose back faces are culled.
+	/// \throws IllegalStateException for a shape loaded from a mesh file,
+	/// which has no float streams
+	//
+	public void optimize(boolean overdraw) {
+		if (mVertices == null)
+			throw new IllegalStateException("No vertex streams to optimize");
+		mUnoptimizedAcmr = ESMeshOptimizer.computeAcmr(mIndices, mNumIndices,
+				mNumVertices, ESMeshOptimizer.CACHE_SIZE);
+		ESMeshOptimizer.optimizeVertexCache(mIndices, mNumIndices, mNumVertices);
+		if (overdraw)
+			ESMeshOptimizer.optimizeOverdraw(mIndices, mNumIndices, mVertices,
+					mNumVertices, ESMeshOptimizer.CACHE_SIZE, OVERDRAW_THRESHOLD);
+
+		int[] remap = new int[mNumVertices];
+		int numVertices = ESMeshOptimizer.optimizeVertexFetch(mIndices, mNumIndices,
+				mNumVertices, remap);
+		mVertices = remapStream(mVertices, 3, remap, mNumVertices, numVertices);
+		mNormals = remapStream(mNormals, 3, remap, mNumVertices, numVertices);
+		mTexCoords = remapStream(mTexCoords, 2, remap, mNumVertices, numVertices);
+		mNumVertices = numVertices;
+
+		mInterleaved = mFormat.pack(mVertices, mNormals, mTexCoords, numVertices);
+		computeBounds();
+		mSplitVertices = null;
+	}
+
+	private static FloatBuffer remapStream(FloatBuffer stream, int components,
+			int[] remap, int numVertices, int newNumVertices) {
+		FloatBuffer out = ByteBuffer.allocateDirect(newNumVertices * components * 4)
+				.order(ByteOrder.nativeOrder()).asFloatBuffer();
+		for (int v = 0; v < numVertices; v++) {
+			int n = remap[v];
+			if (n < 0)
+				continue;
+			for (int c = 0; c < components; c++)
+				out.put(n * components + c, stream.get(v * components + c));
+		}
+		return out;
+	}
+
+	//
+	///
+	/// \brief Map a file written by save() or the mesh converter. The packed
+	/// vertices and indices are views of the mapping, handed to the driver
+	/// by createBuffers() without a copy; the float streams are not
+	/// available, so getVertices() and friends return null and the shape
+	/// cannot be simplified or verified.
+	/// \param file Mesh file, see ESMeshFile
+	//
+	public static ESShapes load(File file) throws IOException {
+		ESMeshFile mesh = ESMeshFile.open(file);
+		ESShapes shape = new ESShapes(mesh.getVertexFormat());
+		shape.setHeader(mesh);
+		ByteBuffer mapped = mesh.map();
+		shape.mInterleaved = ESMeshFile.slice(mapped, mesh.getVertexOffset(),
+				mesh.getVertexBytes());
+		shape.mIndices = ESIndices.wrap(ESMeshFile.slice(mapped, mesh.getIndexOffset(),
+				mesh.getIndexBytes()), mesh.getIndexType());
+		return shape;
+	}
+
+	//
+	///
+	/// \brief Open a mesh file for streaming: only the header is read now.
+	/// createBuffers() reads the data in chunks through one staging buffer
+	/// of chunkBytes, so meshes larger than the heap or the address space
+	/// left can be uploaded; after a context loss it reads the file again.
+	/// The shape holds no vertex data of its own.
+	/// \param chunkBytes Size of each read and glBufferSubData call
+	//
+	public static ESShapes loadStreaming(File file, int chunkBytes) throws IOException {
+		ESMeshFile mesh = ESMeshFile.open(file);
+		ESShapes shape = new ESShapes(mesh.getVertexFormat());
+		shape.setHeader(mesh);
+		shape.mStreamSource = mesh;
+		shape.mStreamChunkBytes = chunkBytes;
+		return shape;
+	}
+
+	//
+	///
+	/// \brief Write the packed vertices and indices to a mesh file that
+	/// load() maps back as it is
+	//
+	public void save(File file) throws IOException {
+		ESMeshFile.write(file, mFormat, mInterleaved, mNumVertices, mIndices,
+				mNumIndices, mBoundingBox, mBoundingSphere, mError);
+	}
+
+	private void setHeader(ESMeshFile mesh) {
+		mNumVertices = mesh.getNumVertices();
+		mNumIndices = mesh.getNumIndices();
+		mesh.getBoundingBox(mBoundingBox);
+		mesh.getBoundingSphere(mBoundingSphere);
+		mError = mesh.getError();
+	}
+
+	//
+	///
+	/// \brief Upload the generated geometry into GPU buffer objects
+	/// \param gl Interface used to create and fill the buffer objects
+	///
+	/// Must be called on the GL thread after genSphere()/genCube(), and again
+	/// whenever the EGL context has been recreated. Any names held from a
+	/// previous context are dropped without being deleted, since they died
+	/// with that context. 32-bit indices are used where the context has
+	/// them, see ESIndices.isUintSupported().
+	//
+	public void createBuffers(ESGL gl) {
+		createBuffers(gl, getIndexType() != GLES20.GL_UNSIGNED_INT
+				|| ESIndices.isUintSupported());
+	}
+
+	//
+	///
+	/// \brief createBuffers() with the 32-bit index support given
+	/// \param uintIndices false to split a mesh with 32-bit indices into
+	/// parts that 16-bit indices can address, drawn one call each
+	//
+	public void createBuffers(ESGL gl, boolean uintIndices) {
+		if (mStreamSource != null) {
+			if (getIndexType() == GLES20.GL_UNSIGNED_INT && !uintIndices)
+				throw new IllegalStateException(mStreamSource.getFile()
+						+ ": streamed 32-bit indices need OES_element_index_uint");
+			try {
+				mVertexBufferId = mStreamSource.upload(gl, GLES20.GL_ARRAY_BUFFER,
+						mStreamSource.getVertexOffset(), mStreamSource.getVertexBytes(),
+						mStreamChunkBytes);
+				mIndexBufferId = mStreamSource.upload(gl, GLES20.GL_ELEMENT_ARRAY_BUFFER,
+						mStreamSource.getIndexOffset(), mStreamSource.getIndexBytes(),
+						mStreamChunkBytes);
+			} catch (IOException e) {
+				throw new RuntimeException("Cannot read " + mStreamSource.getFile(), e);
+			}
+			setSinglePart();
+		} else if (mIndices.getType() == GLES20.GL_UNSIGNED_INT && !uintIndices) {
+			if (mSplitVertices == null)
+				split16();
+			mVertexBufferId = uploadBuffer(gl, GLES20.GL_ARRAY_BUFFER, mSplitVertices);
+			mIndexBufferId = uploadBuffer(gl, GLES20.GL_ELEMENT_ARRAY_BUFFER,
+					mSplitIndices.getBuffer());
+			mPartBaseVertex = mSplitBaseVertex;
+			mPartFirstIndex = mSplitFirstIndex;
+			mPartIndexCount = mSplitIndexCount;
+			mDrawIndexType = GLES20.GL_UNSIGNED_SHORT;
+		} else {
+			mVertexBufferId = uploadBuffer(gl, GLES20.GL_ARRAY_BUFFER, mInterleaved);
+			mIndexBufferId = uploadBuffer(gl, GLES20.GL_ELEMENT_ARRAY_BUFFER,
+					mIndices.getBuffer());
+			setSinglePart();
+		}
+
+		gl.bindBuffer(GLES20.GL_ARRAY_BUFFER, 0);
+		gl.bindBuffer(GLES20.GL_ELEMENT_ARRAY_BUFFER, 0);
+	}
+
+	//
+	///
+	/// \brief Bind the buffer objects and point the position and normal
+	/// attributes into the interleaved vertex buffer, at the first part of
+	/// a split mesh. draw() handles every part.
+	/// \param positionLoc Location of the position attribute
+	/// \param normalLoc Location of the normal attribute, -1 to skip it
+	//
+	public void bindAttributes(ESGL gl, int positionLoc, int normalLoc) {
+		bindAttributes(gl, positionLoc, normalLoc, 0);
+	}
+
+	//
+	///
+	/// \brief Draw the shape as triangles, one call per part
+	/// \return The number of draw calls issued
+	//
+	public int draw(ESGL gl, int positionLoc, int normalLoc) {
+		int indexSize = ESIndices.sizeOf(mDrawIndexType);
+		for (int p = 0; p < mPartIndexCount.length; p++) {
+			bindAttributes(gl, positionLoc, normalLoc, mPartBaseVertex[p]);
+			gl.drawElements(GLES20.GL_TRIANGLES, mPartIndexCount[p], mDrawIndexType,
+					mPartFirstIndex[p] * indexSize);
+		}
+		return mPartIndexCount.length;
+	}
+
+	//
+	///
+	/// \brief draw() with glDrawElementsInstanced; the per-instance
+	/// attributes must be set up already
+	/// \return The number of draw calls issued
+	//
+	public int drawInstanced(ESGL gl, int positionLoc, int normalLoc, int instances) {
+		int indexSize = ESIndices.sizeOf(mDrawIndexType);
+		for (int p = 0; p < mPartIndexCount.length; p++) {
+			bindAttributes(gl, positionLoc, normalLoc, mPartBaseVertex[p]);
+			gl.drawElementsInstanced(GLES20.GL_TRIANGLES, mPartIndexCount[p],
+					mDrawIndexType, mPartFirstIndex[p] * indexSize, instances);
+		}
+		return mPartIndexCount.length;
+	}
+
+	/// \return Type of the indices returned by getIndices()
+	public int getIndexType() {
+		return mStreamSource != null ? mStreamSource.getIndexType() : mIndices.getType();
+	}
+
+	// Point the attributes at the vertex baseVertex; there is no base vertex
+	// draw in ES 2.0, so parts of a split mesh are reached this way
+	private void bindAttributes(ESGL gl, int positionLoc, int normalLoc, int baseVertex) {
+		int stride = mFormat.getStride();
+		int base = baseVertex * stride;
+
+		gl.bindBuffer(GLES20.GL_ARRAY_BUFFER, mVertexBufferId);
+		gl.vertexAttribPointer(positionLoc,
+				mFormat.getSize(ESVertexFormat.POSITION),
+				mFormat.getType(ESVertexFormat.POSITION),
+				mFormat.isNormalized(ESVertexFormat.POSITION), stride,
+				base + mFormat.getOffset(ESVertexFormat.POSITION));
+		gl.enableVertexAttribArray(positionLoc);
+
+		if (normalLoc >= 0) {
+			gl.vertexAttribPointer(normalLoc,
+					mFormat.getSize(ESVertexFormat.NORMAL),
+					mFormat.getType(ESVertexFormat.NORMAL),
+					mFormat.isNormalized(ESVertexFormat.NORMAL), stride,
+					base + mFormat.getOffset(ESVertexFormat.NORMAL));
+			gl.enableVertexAttribArray(normalLoc);
+		}
+
+		gl.bindBuffer(GLES20.GL_ELEMENT_ARRAY_BUFFER, mIndexBufferId);
+	}
+
+	private void setSinglePart() {
+		mPartBaseVertex = SINGLE_PART;
+		mPartFirstIndex = SINGLE_PART;
+		mPartIndexCount = new int[] { mNumIndices };
+		mDrawIndexType = getIndexType();
+	}
+
+	// Cut the triangle list into runs that use at most 65536 distinct
+	// vertices each. Every part gets a copy of the vertices it uses, placed
+	// one part after the other in one buffer, so a part is drawn with the
+	// attribute pointers moved to its first vertex and 16-bit indices.
+	// Vertices shared by two parts are stored twice.
+	private void split16() {
+		int[] stamp = new int[mNumVertices];
+		int[] local = new int[mNumVertices];
+
+		// pass 1: where the parts start and how many vertices they use
+		int[] firstTriangle = new int[4];
+		int[] partVertices = new int[4];
+		int parts = 1;
+		int used = 0;
+		for (int i = 0; i + 2 < mNumIndices; i += 3) {
+			int fresh = 0;
+			for (int k = 0; k < 3; k++) {
+				int v = mIndices.get(i + k);
+				if (stamp[v] != parts) {
+					stamp[v] = parts;
+					fresh++;
+				}
+			}
+			if (used + fresh > 1 << 16) {
+				partVertices[parts - 1] = used;
+				if (parts == firstTriangle.length) {
+					firstTriangle = grow(firstTriangle);
+					partVertices = grow(partVertices);
+				}
+				firstTriangle[parts++] = i;
+				used = 0;
+				for (int k = 0; k < 3; k++)
+					stamp[mIndices.get(i + k)] = parts;
+				// the triangle's own repeats count once
+				int a = mIndices.get(i), b = mIndices.get(i + 1), c = mIndices.get(i + 2);
+				fresh = 1 + (b != a ? 1 : 0) + (c != a && c != b ? 1 : 0);
+			}
+			used += fresh;
+		}
+		partVertices[parts - 1] = used;
+
+		// pass 2: copy the vertices and write part-local indices
+		int stride = mFormat.getStride();
+		int totalVertices = 0;
+		for (int p = 0; p < parts; p++)
+			totalVertices += partVertices[p];
+		int numIndices = mNumIndices - mNumIndices % 3;
+		mSplitVertices = ByteBuffer.allocateDirect(totalVertices * stride).order(
+				ByteOrder.nativeOrder());
+		mSplitIndices = ESIndices.allocateType(numIndices, GLES20.GL_UNSIGNED_SHORT);
+		mSplitBaseVertex = new int[parts];
+		mSplitFirstIndex = new int[parts];
+		mSplitIndexCount = new int[parts];
+		int base = 0;
+		for (int p = 0; p < parts; p++) {
+			int first = firstTriangle[p];
+			int last = p + 1 < parts ? firstTriangle[p + 1] : numIndices;
+			int mark = parts + 1 + p;
+			int count = 0;
+			for (int i = first; i < last; i++) {
+				int v = mIndices.get(i);
+				if (stamp[v] != mark) {
+					stamp[v] = mark;
+					local[v] = count;
+					for (int b = 0; b < stride; b++)
+						mSplitVertices.put((base + count) * stride + b,
+								mInterleaved.get(v * stride + b));
+					count++;
+				}
+				mSplitIndices.put(i, local[v]);
+			}
+			mSplitBaseVertex[p] = base;
+			mSplitFirstIndex[p] = first;
+			mSplitIndexCount[p] = last - first;
+			base += count;
+		}
+	}
+
+	private static int[] grow(int[] a) {
+		int[] b = new int[a.length * 2];
+		System.arraycopy(a, 0, b, 0, a.length);
+		return b;
+	}
+
+	//
+	///
+	/// \brief Release the buffer objects created by createBuffers()
+	//
+	public void deleteBuffers(ESGL gl) {
+		gl.deleteBuffer(mVertexBufferId);
+		gl.deleteBuffer(mIndexBufferId);
+		mVertexBufferId = mIndexBufferId = 0;
+	}
+
+	//
+	///
+	/// \brief Check the interleaved data against the float data it was packed
+	/// from
+	/// \return true if every decoded position and normal component is within
+	/// ESVertexFormat.getMaxError() of the float output of the generator
+	//
+	public boolean verifyPackedData() {
+		float[] decoded = new float[3];
+		float maxPosition = 0.0f;
+		for (int i = 0; i < mNumVertices * 3; i++)
+			maxPosition = Math.max(maxPosition, Math.abs(mVertices.get(i)));
+		float positionError = mFormat.getMaxError(ESVertexFormat.POSITION,
+				maxPosition);
+		float normalError = mFormat.getMaxError(ESVertexFormat.NORMAL, 1.0f);
+
+		for (int v = 0; v < mNumVertices; v++) {
+			mFormat.decode(mInterleaved, v, ESVertexFormat.POSITION, decoded);
+			for (int c = 0; c < 3; c++) {
+				if (Math.abs(decoded[c] - mVertices.get(v * 3 + c)) > positionError)
+					return false;
+			}
+			mFormat.decode(mInterleaved, v, ESVertexFormat.NORMAL, decoded);
+			for (int c = 0; c < 3; c++) {
+				if (Math.abs(decoded[c] - mNormals.get(v * 3 + c)) > normalError)
+					return false;
+			}
+		}
+		return true;
+	}
+
+	private static int uploadBuffer(ESGL gl, int target, ByteBuffer data) {
+		int buffer = gl.genBuffer();
+		data.position(0);
+		gl.bindBuffer(target, buffer);
+		gl.bufferData(target, data.capacity(), data, GLES20.GL_STATIC_DRAW);
+		return buffer;
+	}
+
+	//
+	///
+	/// \brief Axis-aligned bounding box of the generated vertices
+	/// \param out Receives minX, minY, minZ, maxX, maxY, maxZ
+	//
+	public void getBoundingBox(float[] out) {
+		System.arraycopy(mBoundingBox, 0, out, 0, 6);
+	}
+
+	//
+	///
+	/// \brief Bounding sphere of the generated vertices, centered on the box
+	/// \param out Receives centerX, centerY, centerZ, radius
+	//
+	public void getBoundingSphere(float[] out) {
+		System.arraycopy(mBoundingSphere, 0, out, 0, 4);
+	}
+
+	private void computeBounds() {
+		for (int c = 0; c < 3; c++) {
+			mBoundingBox[c] = Float.MAX_VALUE;
+			mBoundingBox[c + 3] = -Float.MAX_VALUE;
+		}
+		for (int v = 0; v < mNumVertices; v++) {
+			for (int c = 0; c < 3; c++) {
+				float f = mVertices.get(v * 3 + c);
+				mBoundingBox[c] = Math.min(mBoundingBox[c], f);
+				mBoundingBox[c + 3] = Math.max(mBoundingBox[c + 3], f);
+			}
+		}
+
+		// Farthest vertex from the box center; tighter than the half
+		// diagonal for round shapes
+		float radius2 = 0.0f;
+		for (int c = 0; c < 3; c++)
+			mBoundingSphere[c] = (mBoundingBox[c] + mBoundingBox[c + 3]) * 0.5f;
+		for (int v = 0; v < mNumVertices; v++) {
+			float dx = mVertices.get(v * 3) - mBoundingSphere[0];
+			float dy = mVertices.get(v * 3 + 1) - mBoundingSphere[1];
+			float dz = mVertices.get(v * 3 + 2) - mBoundingSphere[2];
+			radius2 = Math.max(radius2, dx * dx + dy * dy + dz * dz);
+		}
+		mBoundingSphere[3] = (float) Math.sqrt(radius2);
+	}
+
 	public FloatBuffer getVertices() {
 		return mVertices;
 	}
@@ -158,7 +763,7 @@ public class ESShapes {
 		return mTexCoords;
 	}
 
-	public ShortBuffer getIndices() {
+	public ESIndices getIndices() {
 		return mIndices;
 	}
 
@@ -166,10 +771,100 @@ public class ESShapes {
 		return mNumIndices;
 	}
 
+	public int getNumVertices() {
+		return mNumVertices;
+	}
+
+	//
+	///
+	/// \return Largest distance of the triangles from the surface the shape
+	/// stands for, in model units: the ideal sphere for genSphere(), the
+	/// source for simplify() on top of the source's own error, 0 for
+	/// genCube()
+	//
+	public float getError() {
+		return mError;
+	}
+
+	//
+	///
+	/// \return Average cache miss ratio of the indices on a FIFO cache of
+	/// ESMeshOptimizer.CACHE_SIZE entries: vertices transformed per
+	/// triangle. 0 for a streamed shape, whose indices are in the file.
+	//
+	public float getAcmr() {
+		if (mIndices == null)
+			return 0.0f;
+		return ESMeshOptimizer.computeAcmr(mIndices, mNumIndices, mNumVertices,
+				ESMeshOptimizer.CACHE_SIZE);
+	}
+
+	//
+	///
+	/// \return getAcmr() of the indices as they were before the last
+	/// optimize(), 0 for a shape that was never optimized
+	//
+	public float getUnoptimizedAcmr() {
+		return mUnoptimizedAcmr;
+	}
+
+	public ESVertexFormat getVertexFormat() {
+		return mFormat;
+	}
+
+	public ByteBuffer getInterleavedVertices() {
+		return mInterleaved;
+	}
+
+	public int getVertexBufferId() {
+		return mVertexBufferId;
+	}
+
+	public int getIndexBufferId() {
+		return mIndexBufferId;
+	}
+
 	// Member variables
 	private FloatBuffer mVertices;
 	private FloatBuffer mNormals;
 	private FloatBuffer mTexCoords;
-	private ShortBuffer mIndices;
+	private ESIndices mIndices;
 	private int mNumIndices;
+	private int mNumVertices;
+	private final float[] mBoundingBox = new float[6];
+	private final float[] mBoundingSphere = new float[4];
+	private float mError;
+	private float mUnoptimizedAcmr;
+
+	// Cache miss ratio optimize(true) may give up for less overdraw
+	private static final float OVERDRAW_THRESHOLD = 1.05f;
+
+	// Interleaved copy of the vertex streams above, in mFormat
+	private final ESVertexFormat mFormat;
+	private ByteBuffer mInterleaved;
+
+	// Set by loadStreaming(); the data is read from the file on upload
+	private ESMeshFile mStreamSource;
+	private int mStreamChunkBytes;
+
+	// 16-bit copy of a mesh with 32-bit indices, made by split16() the first
+	// time it is uploaded where 32-bit indices cannot be drawn
+	private ByteBuffer mSplitVertices;
+	private ESIndices mSplitIndices;
+	private int[] mSplitBaseVertex;
+	private int[] mSplitFirstIndex;
+	private int[] mSplitIndexCount;
+
+	// What draw() draws, set by createBuffers(): per part the first vertex
+	// and the range of indices
+	private static final int[] SINGLE_PART = { 0 };
+	private int[] mPartBaseVertex = SINGLE_PART;
+	private int[] mPartFirstIndex = SINGLE_PART;
+	private int[] mPartIndexCount = SINGLE_PART;
+	private int mDrawIndexType = GLES20.GL_UNSIGNED_SHORT;
+
+	// GPU buffer objects holding the interleaved vertices and the indices,
+	// 0 until createBuffers()
+	private int mVertexBufferId;
+	private int mIndexBufferId;
 }
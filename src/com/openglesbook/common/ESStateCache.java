@@ -0,0 +1,511 @@
+// ESStateCache
+//
+//    ESGL wrapper that shadows the GL state it has set and drops calls that
+//    would not change it: the bound program, buffers, framebuffer and
+//    textures, enabled capabilities and vertex arrays, attribute pointers,
+//    viewport, scissor, masks, and the uniform values of every program.
+//    Everything else is forwarded unchanged.
+//
+//    The shadow copy is only right while all GL state changes go through
+//    the cache. After the context is recreated, or after touching state
+//    directly through GLES20, call invalidate(); the next call of each kind
+//    is then issued again.
+//
+
+package com.openglesbook.common;
+
+import java.nio.Buffer;
+import java.util.Arrays;
+
+import android.opengl.GLES20;
+
+public class ESStateCache implements ESGL {
+
+	//
+	///
+	/// \param gl Receives the calls that change state
+	//
+	public ESStateCache(ESGL gl) {
+		mGL = gl;
+		invalidate();
+	}
+
+	//
+	///
+	/// \brief Forget the shadowed state
+	//
+	public void invalidate() {
+		mProgram = UNKNOWN;
+		mProgramState = null;
+		mProgramCount = 0;
+		mArrayBuffer = UNKNOWN;
+		mElementBuffer = UNKNOWN;
+		mFramebuffer = UNKNOWN;
+		mActiveUnit = UNKNOWN;
+		for (int i = 0; i < MAX_TEXTURE_UNITS; i++)
+			mTextures[i] = UNKNOWN;
+		mCapCount = 0;
+		mAttribKnown = 0;
+		for (int i = 0; i < MAX_ATTRIBS; i++) {
+			mPointerKnown[i] = false;
+			mDivisor[i] = UNKNOWN;
+		}
+		mViewportKnown = false;
+		mScissorKnown = false;
+		mColorMask = UNKNOWN;
+		mClearColorKnown = false;
+	}
+
+	//
+	///
+	/// \brief Zero the issued and suppressed counts, typically once a frame
+	//
+	public void resetCounters() {
+		mIssued = 0;
+		mSuppressed = 0;
+	}
+
+	/// \return Calls forwarded since resetCounters()
+	public int getIssuedCount() {
+		return mIssued;
+	}
+
+	/// \return Calls dropped as no-ops since resetCounters()
+	public int getSuppressedCount() {
+		return mSuppressed;
+	}
+
+	public int genBuffer() {
+		mIssued++;
+		return mGL.genBuffer();
+	}
+
+	public void deleteBuffer(int buffer) {
+		if (buffer == 0)
+			return;
+		// deleting a bound buffer unbinds it
+		if (mArrayBuffer == buffer)
+			mArrayBuffer = 0;
+		if (mElementBuffer == buffer)
+			mElementBuffer = 0;
+		for (int i = 0; i < MAX_ATTRIBS; i++) {
+			if (mPointerKnown[i] && mPointer[i * POINTER_FIELDS] == buffer)
+				mPointerKnown[i] = false;
+		}
+		mIssued++;
+		mGL.deleteBuffer(buffer);
+	}
+
+	public void bindBuffer(int target, int buffer) {
+		if (target == GLES20.GL_ARRAY_BUFFER) {
+			if (mArrayBuffer == buffer) {
+				mSuppressed++;
+				return;
+			}
+			mArrayBuffer = buffer;
+		} else if (target == GLES20.GL_ELEMENT_ARRAY_BUFFER) {
+			if (mElementBuffer == buffer) {
+				mSuppressed++;
+				return;
+			}
+			mElementBuffer = buffer;
+		}
+		mIssued++;
+		mGL.bindBuffer(target, buffer);
+	}
+
+	public void bufferData(int target, int size, Buffer data, int usage) {
+		mIssued++;
+		mGL.bufferData(target, size, data, usage);
+	}
+
+	public void bufferSubData(int target, int offset, int size, Buffer data) {
+		mIssued++;
+		mGL.bufferSubData(target, offset, size, data);
+	}
+
+	public void useProgram(int program) {
+		if (mProgram == program) {
+			mSuppressed++;
+			return;
+		}
+		mProgram = program;
+		mProgramState = getProgramState(program);
+		mIssued++;
+		mGL.useProgram(program);
+	}
+
+	public int getAttribLocation(int program, String name) {
+		mIssued++;
+		return mGL.getAttribLocation(program, name);
+	}
+
+	public int getUniformLocation(int program, String name) {
+		mIssued++;
+		return mGL.getUniformLocation(program, name);
+	}
+
+	public void uniform1i(int location, int x) {
+		mScratch[0] = x;
+		if (!setUniform(location, mScratch, 1))
+			return;
+		mGL.uniform1i(location, x);
+	}
+
+	public void uniform1f(int location, float x) {
+		mScratch[0] = Float.floatToRawIntBits(x);
+		if (!setUniform(location, mScratch, 1))
+			return;
+		mGL.uniform1f(location, x);
+	}
+
+	public void uniform1fv(int location, int count, float[] v, int offset) {
+		if (!setUniform(location, v, offset, count))
+			return;
+		mGL.uniform1fv(location, count, v, offset);
+	}
+
+	public void uniform3fv(int location, int count, float[] v, int offset) {
+		if (!setUniform(location, v, offset, count * 3))
+			return;
+		mGL.uniform3fv(location, count, v, offset);
+	}
+
+	public void uniform4fv(int location, int count, float[] v, int offset) {
+		if (!setUniform(location, v, offset, count * 4))
+			return;
+		mGL.uniform4fv(location, count, v, offset);
+	}
+
+	public void uniformMatrix4fv(int location, int count, float[] v, int offset) {
+		if (!setUniform(location, v, offset, count * 16))
+			return;
+		mGL.uniformMatrix4fv(location, count, v, offset);
+	}
+
+	public void vertexAttribPointer(int index, int size, int type,
+			boolean normalized, int stride, int offset) {
+		if (index >= 0 && index < MAX_ATTRIBS) {
+			int o = index * POINTER_FIELDS;
+			int norm = normalized ? 1 : 0;
+			if (mPointerKnown[index] && mPointer[o] == mArrayBuffer
+					&& mPointer[o + 1] == size && mPointer[o + 2] == type
+					&& mPointer[o + 3] == norm && mPointer[o + 4] == stride
+					&& mPointer[o + 5] == offset) {
+				mSuppressed++;
+				return;
+			}
+			// the pointer captures the buffer bound now
+			mPointerKnown[index] = mArrayBuffer != UNKNOWN;
+			mPointer[o] = mArrayBuffer;
+			mPointer[o + 1] = size;
+			mPointer[o + 2] = type;
+			mPointer[o + 3] = norm;
+			mPointer[o + 4] = stride;
+			mPointer[o + 5] = offset;
+		}
+		mIssued++;
+		mGL.vertexAttribPointer(index, size, type, normalized, stride, offset);
+	}
+
+	public void enableVertexAttribArray(int index) {
+		if (index >= 0 && index < MAX_ATTRIBS) {
+			int bit = 1 << index;
+			if ((mAttribKnown & bit) != 0 && (mAttribEnabled & bit) != 0) {
+				mSuppressed++;
+				return;
+			}
+			mAttribKnown |= bit;
+			mAttribEnabled |= bit;
+		}
+		mIssued++;
+		mGL.enableVertexAttribArray(index);
+	}
+
+	public void disableVertexAttribArray(int index) {
+		if (index >= 0 && index < MAX_ATTRIBS) {
+			int bit = 1 << index;
+			if ((mAttribKnown & bit) != 0 && (mAttribEnabled & bit) == 0) {
+				mSuppressed++;
+				return;
+			}
+			mAttribKnown |= bit;
+			mAttribEnabled &= ~bit;
+		}
+		mIssued++;
+		mGL.disableVertexAttribArray(index);
+	}
+
+	public void drawElements(int mode, int count, int type, int offset) {
+		mIssued++;
+		mGL.drawElements(mode, count, type, offset);
+	}
+
+	public void vertexAttribDivisor(int index, int divisor) {
+		if (index >= 0 && index < MAX_ATTRIBS) {
+			if (mDivisor[index] == divisor) {
+				mSuppressed++;
+				return;
+			}
+			mDivisor[index] = divisor;
+		}
+		mIssued++;
+		mGL.vertexAttribDivisor(index, divisor);
+	}
+
+	public void drawElementsInstanced(int mode, int count, int type, int offset,
+			int instanceCount) {
+		mIssued++;
+		mGL.drawElementsInstanced(mode, count, type, offset, instanceCount);
+	}
+
+	public void bindFramebuffer(int target, int framebuffer) {
+		if (mFramebuffer == framebuffer) {
+			mSuppressed++;
+			return;
+		}
+		mFramebuffer = framebuffer;
+		mIssued++;
+		mGL.bindFramebuffer(target, framebuffer);
+	}
+
+	public void activeTexture(int unit) {
+		if (mActiveUnit == unit) {
+			mSuppressed++;
+			return;
+		}
+		mActiveUnit = unit;
+		mIssued++;
+		mGL.activeTexture(unit);
+	}
+
+	public void bindTexture(int target, int texture) {
+		int unit = mActiveUnit - GLES20.GL_TEXTURE0;
+		boolean tracked = target == GLES20.GL_TEXTURE_2D && mActiveUnit != UNKNOWN
+				&& unit >= 0 && unit < MAX_TEXTURE_UNITS;
+		if (tracked) {
+			if (mTextures[unit] == texture) {
+				mSuppressed++;
+				return;
+			}
+			mTextures[unit] = texture;
+		}
+		mIssued++;
+		mGL.bindTexture(target, texture);
+	}
+
+	public void enable(int cap) {
+		if (setCap(cap, true))
+			mGL.enable(cap);
+	}
+
+	public void disable(int cap) {
+		if (setCap(cap, false))
+			mGL.disable(cap);
+	}
+
+	public void viewport(int x, int y, int width, int height) {
+		if (!setRect(mViewport, mViewportKnown, x, y, width, height))
+			return;
+		mViewportKnown = true;
+		mGL.viewport(x, y, width, height);
+	}
+
+	public void scissor(int x, int y, int width, int height) {
+		if (!setRect(mScissor, mScissorKnown, x, y, width, height))
+			return;
+		mScissorKnown = true;
+		mGL.scissor(x, y, width, height);
+	}
+
+	public void colorMask(boolean red, boolean green, boolean blue, boolean alpha) {
+		int mask = (red ? 1 : 0) | (green ? 2 : 0) | (blue ? 4 : 0) | (alpha ? 8 : 0);
+		if (mColorMask == mask) {
+			mSuppressed++;
+			return;
+		}
+		mColorMask = mask;
+		mIssued++;
+		mGL.colorMask(red, green, blue, alpha);
+	}
+
+	public void clearColor(float red, float green, float blue, float alpha) {
+		if (mClearColorKnown && mClearColor[0] == red && mClearColor[1] == green
+				&& mClearColor[2] == blue && mClearColor[3] == alpha) {
+			mSuppressed++;
+			return;
+		}
+		mClearColorKnown = true;
+		mClearColor[0] = red;
+		mClearColor[1] = green;
+		mClearColor[2] = blue;
+		mClearColor[3] = alpha;
+		mIssued++;
+		mGL.clearColor(red, green, blue, alpha);
+	}
+
+	public void clear(int mask) {
+		mIssued++;
+		mGL.clear(mask);
+	}
+
+	public void beginQuery(int target, int id) {
+		mIssued++;
+		mGL.beginQuery(target, id);
+	}
+
+	public void endQuery(int target) {
+		mIssued++;
+		mGL.endQuery(target);
+	}
+
+	//
+	// Per-program uniform values, as raw bits per location
+	//
+	private static final class ProgramState {
+		int program;
+		int[][] values = new int[16][];
+	}
+
+	private ProgramState getProgramState(int program) {
+		for (int i = 0; i < mProgramCount; i++) {
+			if (mPrograms[i].program == program)
+				return mPrograms[i];
+		}
+		if (mProgramCount == mPrograms.length) {
+			ProgramState[] p = new ProgramState[mProgramCount * 2];
+			System.arraycopy(mPrograms, 0, p, 0, mProgramCount);
+			mPrograms = p;
+		}
+		ProgramState state = mPrograms[mProgramCount];
+		if (state == null)
+			state = mPrograms[mProgramCount] = new ProgramState();
+		else
+			Arrays.fill(state.values, null);
+		state.program = program;
+		mProgramCount++;
+		return state;
+	}
+
+	private boolean setUniform(int location, float[] v, int offset, int n) {
+		if (n > mScratch.length)
+			mScratch = new int[n];
+		for (int i = 0; i < n; i++)
+			mScratch[i] = Float.floatToRawIntBits(v[offset + i]);
+		return setUniform(location, mScratch, n);
+	}
+
+	// Records the value for the current program
+	// \return true if the call has to be issued
+	private boolean setUniform(int location, int[] bits, int n) {
+		ProgramState state = mProgramState;
+		if (location < 0 || state == null) {
+			mIssued++;
+			return true;
+		}
+		if (location >= state.values.length) {
+			int[][] values = new int[Math.max(location + 1, state.values.length * 2)][];
+			System.arraycopy(state.values, 0, values, 0, state.values.length);
+			state.values = values;
+		}
+
+		int[] value = state.values[location];
+		if (value != null && value.length == n) {
+			boolean same = true;
+			for (int i = 0; i < n && same; i++)
+				same = value[i] == bits[i];
+			if (same) {
+				mSuppressed++;
+				return false;
+			}
+		} else {
+			value = state.values[location] = new int[n];
+		}
+		System.arraycopy(bits, 0, value, 0, n);
+		mIssued++;
+		return true;
+	}
+
+	// \return true if the call has to be issued
+	private boolean setCap(int cap, boolean enabled) {
+		for (int i = 0; i < mCapCount; i++) {
+			if (mCaps[i] == cap) {
+				if (mCapEnabled[i] == enabled) {
+					mSuppressed++;
+					return false;
+				}
+				mCapEnabled[i] = enabled;
+				mIssued++;
+				return true;
+			}
+		}
+		if (mCapCount < mCaps.length) {
+			mCaps[mCapCount] = cap;
+			mCapEnabled[mCapCount] = enabled;
+			mCapCount++;
+		}
+		mIssued++;
+		return true;
+	}
+
+	// \return true if the call has to be issued
+	private boolean setRect(int[] rect, boolean known, int x, int y, int width,
+			int height) {
+		if (known && rect[0] == x && rect[1] == y && rect[2] == width
+				&& rect[3] == height) {
+			mSuppressed++;
+			return false;
+		}
+		rect[0] = x;
+		rect[1] = y;
+		rect[2] = width;
+		rect[3] = height;
+		mIssued++;
+		return true;
+	}
+
+	// Shadowed values that are not known yet
+	private static final int UNKNOWN = -1;
+
+	// Tracked range; units and attributes beyond it are always forwarded
+	private static final int MAX_TEXTURE_UNITS = 32;
+	private static final int MAX_ATTRIBS = 32;
+
+	// buffer, size, type, normalized, stride, offset
+	private static final int POINTER_FIELDS = 6;
+
+	// Member variables
+	private final ESGL mGL;
+	private int mIssued;
+	private int mSuppressed;
+
+	private int mProgram;
+	private ProgramState mProgramState;
+	private ProgramState[] mPrograms = new ProgramState[4];
+	private int mProgramCount;
+	private int[] mScratch = new int[16];
+
+	private int mArrayBuffer;
+	private int mElementBuffer;
+	private int mFramebuffer;
+	private int mActiveUnit;
+	private final int[] mTextures = new int[MAX_TEXTURE_UNITS];
+
+	private final int[] mCaps = new int[16];
+	private final boolean[] mCapEnabled = new boolean[16];
+	private int mCapCount;
+
+	private int mAttribKnown;
+	private int mAttribEnabled;
+	private final boolean[] mPointerKnown = new boolean[MAX_ATTRIBS];
+	private final int[] mPointer = new int[MAX_ATTRIBS * POINTER_FIELDS];
+	private final int[] mDivisor = new int[MAX_ATTRIBS];
+
+	private final int[] mViewport = new int[4];
+	private boolean mViewportKnown;
+	private final int[] mScissor = new int[4];
+	private boolean mScissorKnown;
+	private int mColorMask;
+	private final float[] mClearColor = new float[4];
+	private boolean mClearColorKnown;
+}
@@ -0,0 +1,99 @@
+// ESTripleBuffer
+//
+//    Lock-free handoff of whole frames from one producer thread to one
+//    consumer thread. Three slots rotate between the producer's back slot,
+//    a middle slot holding the latest published frame, and the consumer's
+//    front slot. Neither side ever waits for the other: the producer always
+//    has a slot to fill and the consumer always gets the newest complete
+//    frame; frames the consumer was too slow to pick up are overwritten.
+//
+//    The slot indices live in one AtomicInteger, two bits each plus a flag
+//    saying the middle slot holds a frame the consumer has not seen.
+//
+
+package com.openglesbook.common;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class ESTripleBuffer<T> {
+
+	//
+	///
+	/// \brief Three slots, initially back, middle and front
+	//
+	public ESTripleBuffer(T back, T middle, T front) {
+		mSlots = new Object[] { back, middle, front };
+		mState.set(pack(0, 1, 2, false));
+	}
+
+	//
+	///
+	/// \brief The slot the producer fills next. Producer thread only.
+	//
+	@SuppressWarnings("unchecked")
+	public T getBack() {
+		return (T) mSlots[mState.get() & 3];
+	}
+
+	//
+	///
+	/// \brief Publish the back slot as the latest frame and take the old
+	/// middle slot as the new back slot. Producer thread only.
+	//
+	public void publish() {
+		int s;
+		do {
+			s = mState.get();
+		} while (!mState.compareAndSet(s, pack(middle(s), back(s), front(s), true)));
+	}
+
+	//
+	///
+	/// \brief Take the latest published frame, if there is one newer than
+	/// the current front slot. Consumer thread only.
+	/// \return true if the front slot changed
+	//
+	public boolean acquire() {
+		int s;
+		do {
+			s = mState.get();
+			if ((s & FRESH) == 0)
+				return false;
+		} while (!mState.compareAndSet(s, pack(back(s), front(s), middle(s), false)));
+		mHasFront = true;
+		return true;
+	}
+
+	//
+	///
+	/// \brief The frame the consumer works on. Consumer thread only.
+	/// \return null until a frame was acquired
+	//
+	@SuppressWarnings("unchecked")
+	public T getFront() {
+		return mHasFront ? (T) mSlots[front(mState.get())] : null;
+	}
+
+	private static int pack(int back, int middle, int front, boolean fresh) {
+		return back | (middle << 2) | (front << 4) | (fresh ? FRESH : 0);
+	}
+
+	private static int back(int s) {
+		return s & 3;
+	}
+
+	private static int middle(int s) {
+		return (s >> 2) & 3;
+	}
+
+	private static int front(int s) {
+		return (s >> 4) & 3;
+	}
+
+	private static final int FRESH = 1 << 6;
+
+	// Member variables
+	private final Object[] mSlots;
+	private final AtomicInteger mState = new AtomicInteger();
+	private boolean mHasFront;
+}
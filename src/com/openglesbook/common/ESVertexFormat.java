@@ -0,0 +1,375 @@
+// ESVertexFormat
+//
+//    Describes an interleaved vertex layout (position, normal, texcoord) with
+//    a configurable encoding per attribute, packs float data into it and
+//    decodes it back for CPU-side checks.
+//
+//    Signed normalized integers follow the OpenGL ES 2.0 conversion, where
+//    a b-bit code c stands for (2c + 1) / (2^b - 1): both -1 and 1 are
+//    exact but 0 is not. An ES 3.0 context converts with
+//    max(c / (2^(b-1) - 1), -1) instead, which moves a value by up to
+//    1 / (2^(b-1) - 1) more, 1/127 for bytes.
+//
+
+package com.openglesbook.common;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+
+import android.opengl.GLES20;
+
+public class ESVertexFormat {
+
+	// Attribute slots
+	public static final int POSITION = 0;
+	public static final int NORMAL = 1;
+	public static final int TEXCOORD = 2;
+	public static final int NUM_ATTRIBS = 3;
+
+	// Extension vertex types, not exposed by android.opengl.GLES20
+	public static final int GL_HALF_FLOAT_OES = 0x8D61;
+	public static final int GL_INT_10_10_10_2_OES = 0x8DF7;
+
+	public enum Encoding {
+		// 32-bit float per component
+		FLOAT,
+		// 16-bit float per component, needs GL_OES_vertex_half_float
+		HALF_FLOAT,
+		// signed normalized byte per component, padded to 4 bytes
+		BYTE,
+		// signed normalized 10/10/10/2 in one 32-bit word, needs
+		// GL_OES_vertex_type_10_10_10_2. Component 1 is in the most
+		// significant bits, as specified by the extension.
+		INT_10_10_10_2,
+		// unsigned normalized short per component, values clamped to [0, 1]
+		UNSIGNED_SHORT
+	}
+
+	//
+	///
+	/// \brief Float positions, byte normals, float texcoords: 24 bytes per
+	/// vertex using core GLES 2.0 types only
+	//
+	public static ESVertexFormat createDefault() {
+		return new ESVertexFormat(Encoding.FLOAT, Encoding.BYTE, Encoding.FLOAT);
+	}
+
+	//
+	///
+	/// \brief Build a layout from one encoding per attribute
+	/// \param position FLOAT or HALF_FLOAT
+	/// \param normal FLOAT, HALF_FLOAT, BYTE or INT_10_10_10_2
+	/// \param texCoord FLOAT, HALF_FLOAT or UNSIGNED_SHORT
+	//
+	public ESVertexFormat(Encoding position, Encoding normal, Encoding texCoord) {
+		if (position != Encoding.FLOAT && position != Encoding.HALF_FLOAT)
+			throw new IllegalArgumentException("Unsupported position encoding "
+					+ position);
+		if (normal == Encoding.UNSIGNED_SHORT)
+			throw new IllegalArgumentException("Unsupported normal encoding "
+					+ normal);
+		if (texCoord == Encoding.BYTE || texCoord == Encoding.INT_10_10_10_2)
+			throw new IllegalArgumentException("Unsupported texcoord encoding "
+					+ texCoord);
+
+		mEncoding[POSITION] = position;
+		mEncoding[NORMAL] = normal;
+		mEncoding[TEXCOORD] = texCoord;
+		mSize[POSITION] = 3;
+		mSize[NORMAL] = 3;
+		mSize[TEXCOORD] = 2;
+
+		int offset = 0;
+		for (int i = 0; i < NUM_ATTRIBS; i++) {
+			mOffset[i] = offset;
+			offset += byteSize(mEncoding[i], mSize[i]);
+		}
+		mStride = offset;
+	}
+
+	public int getStride() {
+		return mStride;
+	}
+
+	public int getOffset(int attrib) {
+		return mOffset[attrib];
+	}
+
+	public int getSize(int attrib) {
+		return mSize[attrib];
+	}
+
+	public Encoding getEncoding(int attrib) {
+		return mEncoding[attrib];
+	}
+
+	//
+	///
+	/// \brief GL component type to pass to glVertexAttribPointer
+	//
+	public int getType(int attrib) {
+		switch (mEncoding[attrib]) {
+		case HALF_FLOAT:
+			return GL_HALF_FLOAT_OES;
+		case BYTE:
+			return GLES20.GL_BYTE;
+		case INT_10_10_10_2:
+			return GL_INT_10_10_10_2_OES;
+		case UNSIGNED_SHORT:
+			return GLES20.GL_UNSIGNED_SHORT;
+		default:
+			return GLES20.GL_FLOAT;
+		}
+	}
+
+	//
+	///
+	/// \brief Normalized flag to pass to glVertexAttribPointer
+	//
+	public boolean isNormalized(int attrib) {
+		Encoding e = mEncoding[attrib];
+		return e == Encoding.BYTE || e == Encoding.INT_10_10_10_2
+				|| e == Encoding.UNSIGNED_SHORT;
+	}
+
+	//
+	///
+	/// \brief Check the extensions this layout needs against GL_EXTENSIONS
+	/// \param extensions The GL_EXTENSIONS string of the current context
+	//
+	public boolean isSupported(String extensions) {
+		for (int i = 0; i < NUM_ATTRIBS; i++) {
+			if (mEncoding[i] == Encoding.HALF_FLOAT
+					&& extensions.indexOf("GL_OES_vertex_half_float") < 0)
+				return false;
+			if (mEncoding[i] == Encoding.INT_10_10_10_2
+					&& extensions.indexOf("GL_OES_vertex_type_10_10_10_2") < 0)
+				return false;
+		}
+		return true;
+	}
+
+	//
+	///
+	/// \brief Largest absolute decode error for a component of the attribute
+	/// \param attrib POSITION, NORMAL or TEXCOORD
+	/// \param magnitude Largest absolute value the component takes
+	///
+	/// Half floats keep 11 significant bits, so they round to within
+	/// 2^-11 of the value. Normalized integers round to within half a step;
+	/// signed ones step by 2 / (2^b - 1).
+	//
+	public float getMaxError(int attrib, float magnitude) {
+		switch (mEncoding[attrib]) {
+		case HALF_FLOAT:
+			return magnitude / 2048.0f;
+		case BYTE:
+			return 1.0f / 255.0f;
+		case INT_10_10_10_2:
+			return 1.0f / 1023.0f;
+		case UNSIGNED_SHORT:
+			return 0.5f / 65535.0f;
+		default:
+			return 0.0f;
+		}
+	}
+
+	//
+	///
+	/// \brief Pack separate float streams into one interleaved buffer
+	/// \param positions 3 floats per vertex
+	/// \param normals 3 floats per vertex
+	/// \param texCoords 2 floats per vertex
+	/// \param numVertices Number of vertices to pack
+	/// \return A direct, native-order buffer of numVertices * getStride()
+	/// bytes
+	//
+	public ByteBuffer pack(FloatBuffer positions, FloatBuffer normals,
+			FloatBuffer texCoords, int numVertices) {
+		ByteBuffer out = ByteBuffer.allocateDirect(numVertices * mStride)
+				.order(ByteOrder.nativeOrder());
+		pack(positions, normals, texCoords, 0, numVertices, out);
+		return out;
+	}
+
+	//
+	///
+	/// \brief Pack vertices [first, first + count) into a buffer from an
+	/// earlier pack() or of the same size. Keeps no state, so threads can
+	/// pack disjoint ranges of one buffer at the same time.
+	//
+	public void pack(FloatBuffer positions, FloatBuffer normals,
+			FloatBuffer texCoords, int first, int count, ByteBuffer out) {
+		FloatBuffer[] src = { positions, normals, texCoords };
+		float[] scratch = new float[4];
+
+		for (int v = first; v < first + count; v++) {
+			for (int a = 0; a < NUM_ATTRIBS; a++) {
+				int base = v * mStride + mOffset[a];
+				int size = mSize[a];
+				for (int c = 0; c < size; c++)
+					scratch[c] = src[a].get(v * size + c);
+				encode(out, base, mEncoding[a], scratch, size);
+			}
+		}
+	}
+
+	//
+	///
+	/// \brief Decode one attribute of one vertex from a packed buffer
+	/// \param packed Buffer produced by pack()
+	/// \param vertex Vertex index
+	/// \param attrib POSITION, NORMAL or TEXCOORD
+	/// \param out Receives getSize(attrib) floats
+	//
+	public void decode(ByteBuffer packed, int vertex, int attrib, float[] out) {
+		int base = vertex * mStride + mOffset[attrib];
+		int size = mSize[attrib];
+
+		switch (mEncoding[attrib]) {
+		case HALF_FLOAT:
+			for (int c = 0; c < size; c++)
+				out[c] = halfToFloat(packed.getShort(base + c * 2));
+			break;
+		case BYTE:
+			for (int c = 0; c < size; c++)
+				out[c] = (2 * packed.get(base + c) + 1) / 255.0f;
+			break;
+		case INT_10_10_10_2: {
+			int word = packed.getInt(base);
+			for (int c = 0; c < size; c++) {
+				// sign-extend the 10-bit field starting at bit 22 - 10 * c
+				int field = (word << (10 * c)) >> 22;
+				out[c] = (2 * field + 1) / 1023.0f;
+			}
+			break;
+		}
+		case UNSIGNED_SHORT:
+			for (int c = 0; c < size; c++)
+				out[c] = (packed.getShort(base + c * 2) & 0xffff) / 65535.0f;
+			break;
+		default:
+			for (int c = 0; c < size; c++)
+				out[c] = packed.getFloat(base + c * 4);
+			break;
+		}
+	}
+
+	private static void encode(ByteBuffer out, int base, Encoding encoding,
+			float[] values, int size) {
+		switch (encoding) {
+		case HALF_FLOAT:
+			for (int c = 0; c < size; c++)
+				out.putShort(base + c * 2, floatToHalf(values[c]));
+			break;
+		case BYTE:
+			for (int c = 0; c < size; c++)
+				out.put(base + c, (byte) snorm(values[c], 8));
+			break;
+		case INT_10_10_10_2: {
+			int word = 0;
+			for (int c = 0; c < size; c++)
+				word |= (snorm(values[c], 10) & 0x3ff) << (22 - 10 * c);
+			out.putInt(base, word);
+			break;
+		}
+		case UNSIGNED_SHORT:
+			for (int c = 0; c < size; c++) {
+				float v = Math.min(Math.max(values[c], 0.0f), 1.0f);
+				out.putShort(base + c * 2, (short) Math.round(v * 65535.0f));
+			}
+			break;
+		default:
+			for (int c = 0; c < size; c++)
+				out.putFloat(base + c * 4, values[c]);
+			break;
+		}
+	}
+
+	// Nearest bits-bit code under the ES 2.0 conversion
+	private static int snorm(float value, int bits) {
+		float v = Math.min(Math.max(value, -1.0f), 1.0f);
+		int max = (1 << (bits - 1)) - 1;
+		int c = (int) Math.floor((v * (2 * max + 1) - 1.0f) * 0.5f + 0.5f);
+		return Math.min(Math.max(c, -max - 1), max);
+	}
+
+	// Components are padded so every attribute starts 4-byte aligned
+	private static int byteSize(Encoding encoding, int size) {
+		switch (encoding) {
+		case HALF_FLOAT:
+		case UNSIGNED_SHORT:
+			return (size * 2 + 3) & ~3;
+		case BYTE:
+			return (size + 3) & ~3;
+		case INT_10_10_10_2:
+			return 4;
+		default:
+			return size * 4;
+		}
+	}
+
+	//
+	///
+	/// \brief Convert a float to IEEE 754 half precision, rounding to nearest
+	/// even
+	//
+	public static short floatToHalf(float value) {
+		int bits = Float.floatToRawIntBits(value);
+		int sign = (bits >>> 16) & 0x8000;
+		int exp = (bits >>> 23) & 0xff;
+		int mant = bits & 0x7fffff;
+
+		if (exp == 0xff) // Inf or NaN
+			return (short) (sign | 0x7c00 | (mant != 0 ? 0x200 : 0));
+
+		int e = exp - 127 + 15;
+		if (e >= 0x1f) // overflow to Inf
+			return (short) (sign | 0x7c00);
+
+		if (e <= 0) { // subnormal or zero
+			if (e < -10)
+				return (short) sign;
+			mant |= 0x800000;
+			int shift = 14 - e;
+			int half = mant >> shift;
+			int rest = mant & ((1 << shift) - 1);
+			int mid = 1 << (shift - 1);
+			if (rest > mid || (rest == mid && (half & 1) != 0))
+				half++;
+			return (short) (sign | half);
+		}
+
+		int half = (e << 10) | (mant >> 13);
+		int rest = mant & 0x1fff;
+		if (rest > 0x1000 || (rest == 0x1000 && (half & 1) != 0))
+			half++; // may carry into the exponent, which is still correct
+		return (short) (sign | half);
+	}
+
+	//
+	///
+	/// \brief Convert an IEEE 754 half precision value to float
+	//
+	public static float halfToFloat(short value) {
+		int h = value & 0xffff;
+		int sign = (h & 0x8000) << 16;
+		int exp = (h >>> 10) & 0x1f;
+		int mant = h & 0x3ff;
+
+		if (exp == 0) {
+			float f = mant / 16777216.0f; // mant * 2^-24
+			return sign != 0 ? -f : f;
+		}
+		if (exp == 0x1f)
+			return Float.intBitsToFloat(sign | 0x7f800000 | (mant << 13));
+		return Float.intBitsToFloat(sign | ((exp - 15 + 127) << 23) | (mant << 13));
+	}
+
+	// Member variables
+	private final Encoding[] mEncoding = new Encoding[NUM_ATTRIBS];
+	private final int[] mSize = new int[NUM_ATTRIBS];
+	private final int[] mOffset = new int[NUM_ATTRIBS];
+	private final int mStride;
+}
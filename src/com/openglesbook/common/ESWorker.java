@@ -0,0 +1,110 @@
+// ESWorker
+//
+//    A daemon thread that runs one task at a time for the thread that owns
+//    it. Handing a task over and waiting for it take a monitor and nothing
+//    else, so unlike an ExecutorService, which wraps every task in a new
+//    FutureTask and queue node, it can be used every frame without
+//    producing garbage. The owner waits in a monitor while a task runs, so
+//    the two threads hand work back and forth; they do not run lock-free.
+//
+//    The thread runs until quit(); an owner that goes away without calling
+//    it leaves the thread parked for the life of the process.
+//
+
+package com.openglesbook.common;
+
+import java.util.concurrent.ExecutionException;
+
+public class ESWorker {
+
+	//
+	///
+	/// \brief Start the thread
+	/// \param name Thread name
+	//
+	public ESWorker(String name) {
+		Thread thread = new Thread(new Runnable() {
+			public void run() {
+				loop();
+			}
+		}, name);
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	//
+	///
+	/// \brief Stop the thread once the posted task, if any, has run. The task
+	/// can still be waited for; nothing can be posted afterwards.
+	//
+	public synchronized void quit() {
+		mQuit = true;
+		notifyAll();
+	}
+
+	//
+	///
+	/// \brief Have the thread run task. Owner thread only; the previous task
+	/// must have been waited for.
+	//
+	public synchronized void post(Runnable task) {
+		if (mQuit)
+			throw new IllegalStateException("The worker has quit");
+		if (mTask != null)
+			throw new IllegalStateException("A task is already running");
+		mTask = task;
+		notifyAll();
+	}
+
+	//
+	///
+	/// \brief Wait for the posted task to finish, if there is one. Owner
+	/// thread only.
+	/// \throws ExecutionException What the task threw, as its cause
+	//
+	public synchronized void await() throws InterruptedException,
+			ExecutionException {
+		while (mTask != null)
+			wait();
+		Throwable failure = mFailure;
+		mFailure = null;
+		if (failure != null)
+			throw new ExecutionException(failure);
+	}
+
+	private void loop() {
+		for (;;) {
+			Runnable task;
+			synchronized (this) {
+				while (mTask == null) {
+					if (mQuit)
+						return;
+					try {
+						wait();
+					} catch (InterruptedException e) {
+						return;
+					}
+				}
+				task = mTask;
+			}
+
+			Throwable failure = null;
+			try {
+				task.run();
+			} catch (Throwable t) {
+				failure = t;
+			}
+
+			synchronized (this) {
+				mTask = null;
+				mFailure = failure;
+				notifyAll();
+			}
+		}
+	}
+
+	// Member variables
+	private Runnable mTask;
+	private Throwable mFailure;
+	private boolean mQuit;
+}
@@ -0,0 +1,56 @@
+package com.opengles.shadow;
+
+import com.openglesbook.common.RecordingGL;
+
+/**
+ * Checks that mesh geometry lives in buffer objects filled once, at
+ * surface creation, and that steady-state frames only draw from them.
+ * The only per-frame data is the instance buffer; merged batches are
+ * rebuilt when members first move, not while they keep moving.
+ */
+public class BufferUploadTest extends TestCase {
+
+    private static final int FRAMES = 50;
+
+    public void testMeshBuffersAreUploadedOnce() {
+        checkMeshBuffers(new RendererFixture(9, 2));
+    }
+
+    public void testMeshBuffersAreUploadedOnceInstanced() {
+        checkMeshBuffers(new RendererFixture(9, 3));
+    }
+
+    public void testInstancedFramesOnlyRefillTheInstanceBuffer() {
+        RendererFixture fixture = new RendererFixture(9, 3);
+        fixture.drawFrames(FRAMES);
+        int[] refilled = RendererFixture.uploadedBuffers(fixture.gl);
+        assertEquals("Buffers refilled by instanced frames", 1, refilled.length);
+    }
+
+    public void testMergedFramesRefillNothing() {
+        RendererFixture fixture = new RendererFixture(9, 2);
+        fixture.drawFrames(FRAMES);
+        assertEquals("Uploads by merged frames", 0, fixture.gl.getUploadCount());
+    }
+
+    public void testMeshBuffersSurviveContextLoss() {
+        RendererFixture fixture = new RendererFixture(9, 2);
+        int before = fixture.gl.getBufferCount();
+        fixture.renderer.onSurfaceCreated(null, null);
+        fixture.renderer.onSurfaceChanged(null, RendererFixture.WIDTH, RendererFixture.HEIGHT);
+        assertTrue("New buffers after a context loss",
+                fixture.gl.getBufferCount() > before);
+        assertTrue("Geometry uploaded again after a context loss",
+                fixture.gl.getUploadCount(before + 1) > 0);
+    }
+
+    private static void checkMeshBuffers(RendererFixture fixture) {
+        RecordingGL gl = fixture.gl;
+        assertTrue("No mesh buffers filled at surface creation",
+                fixture.meshBuffers.length >= 4);
+        fixture.drawFrames(FRAMES);
+        assertTrue("No draws", gl.getDrawCallCount() > 0);
+        for (int buffer : fixture.meshBuffers)
+            assertEquals("Uploads into mesh buffer " + buffer, 0, gl.getUploadCount(buffer));
+    }
+}
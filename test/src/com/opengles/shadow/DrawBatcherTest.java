@@ -0,0 +1,190 @@
+package com.opengles.shadow;
+
+import com.openglesbook.common.ESMatrix;
+import com.openglesbook.common.ESShapes;
+import com.openglesbook.common.RecordingGL;
+
+import java.util.Arrays;
+
+import android.opengl.GLES20;
+
+/**
+ * Checks the draw calls of DrawBatcher on its own: a static merged batch
+ * is one draw per chunk, culled members split a chunk into runs, a member
+ * that moves is left to the caller after one rebuild of its chunk, and an
+ * instanced batch is one draw whatever it includes.
+ */
+public class DrawBatcherTest extends TestCase {
+
+    // 33 x 65 vertices: 30 members to a chunk of 16-bit indices
+    private static final int SLICES = 64;
+    private static final int PER_CHUNK = 30;
+    private static final int MEMBERS = 100;
+    private static final int CHUNKS = 4;
+
+    private RecordingGL mGL;
+    private SceneGraph mScene;
+    private ESShapes mMesh;
+    private int mGroup;
+    private int[] mNodes;
+    private boolean[] mInclude;
+
+    @Override
+    protected void setUp() {
+        GLES20.setContextVersion(2);
+        mGL = new RecordingGL();
+        mMesh = new ESShapes();
+        mMesh.genSphere(SLICES, 0.5f);
+        assertEquals("Members per chunk", PER_CHUNK, 65536 / mMesh.getNumVertices());
+
+        mScene = new SceneGraph(MEMBERS + 1);
+        mGroup = mScene.addNode(SceneGraph.NO_PARENT, 0);
+        mNodes = new int[MEMBERS];
+        float[] m = new float[16];
+        for (int i = 0; i < MEMBERS; i++) {
+            mNodes[i] = mScene.addNode(mGroup, 1);
+            ESMatrix.setIdentityM(m, 0);
+            ESMatrix.translateM(m, 0, i % 10, 0.0f, i / 10);
+            mScene.setLocalMatrix(mNodes[i], m, 0);
+        }
+        mInclude = new boolean[mScene.getNodeCount()];
+    }
+
+    public void testStaticBatchIsOneDrawPerChunk() {
+        DrawBatcher batcher = merged();
+        Arrays.fill(mInclude, true);
+        for (int frame = 0; frame < 3; frame++) {
+            update(batcher);
+            mGL.reset();
+            assertEquals("Frame " + frame + " draws", CHUNKS,
+                    batcher.drawMerged(0, mInclude, 0, 1));
+            assertEquals("Frame " + frame + " issued", CHUNKS, mGL.getDrawCallCount());
+            assertEquals("Frame " + frame + " indices", (long) MEMBERS * mMesh.getNumIndices(),
+                    mGL.getDrawnIndexCount());
+            // the first frame builds the chunks
+            assertEquals("Frame " + frame + " uploads", frame == 0 ? 2 * CHUNKS : 0,
+                    mGL.getUploadCount());
+        }
+    }
+
+    public void testCulledMembersSplitChunksIntoRuns() {
+        DrawBatcher batcher = merged();
+        update(batcher);
+        // two runs in the first chunk, one in the second, none after
+        int[] drawn = { 0, 1, 2, 3, 4, 10, 35 };
+        for (int k : drawn)
+            mInclude[mNodes[k]] = true;
+        mGL.reset();
+        assertEquals("Draws", 3, batcher.drawMerged(0, mInclude, 0, 1));
+        assertEquals("Issued", 3, mGL.getDrawCallCount());
+        assertEquals("Indices", (long) drawn.length * mMesh.getNumIndices(),
+                mGL.getDrawnIndexCount());
+        // member 35 is the sixth of the second chunk, in 16-bit indices
+        assertEquals("Offset", 5 * mMesh.getNumIndices() * 2, mGL.getLastDrawOffset());
+
+        Arrays.fill(mInclude, false);
+        mGL.reset();
+        assertEquals("Draws with nothing included", 0, batcher.drawMerged(0, mInclude, 0, 1));
+        assertEquals("Issued with nothing included", 0, mGL.getDrawCallCount());
+    }
+
+    public void testMovedMemberIsDrawnByTheCaller() {
+        DrawBatcher batcher = merged();
+        Arrays.fill(mInclude, true);
+        update(batcher);
+        batcher.drawMerged(0, mInclude, 0, 1);
+
+        for (int frame = 0; frame < 3; frame++) {
+            move(mNodes[5], frame + 1);
+            update(batcher);
+            for (int k = 0; k < MEMBERS; k++)
+                assertEquals("Member " + k + " separate", k == 5, batcher.isSeparate(mNodes[k]));
+            mGL.reset();
+            assertEquals("Frame " + frame + " draws", CHUNKS,
+                    batcher.drawMerged(0, mInclude, 0, 1));
+            assertEquals("Frame " + frame + " indices",
+                    (long) (MEMBERS - 1) * mMesh.getNumIndices(), mGL.getDrawnIndexCount());
+            // only the chunk it left is rebuilt, once
+            assertEquals("Frame " + frame + " uploads", frame == 0 ? 2 : 0, mGL.getUploadCount());
+        }
+        assertFalse("Group node separate", batcher.isSeparate(mGroup));
+    }
+
+    public void testMovesBeforeTheFirstDrawStayMerged() {
+        DrawBatcher batcher = merged();
+        move(mGroup, 1);
+        update(batcher);
+        move(mGroup, 2);
+        update(batcher);
+        for (int k = 0; k < MEMBERS; k++)
+            assertFalse("Member " + k + " separate", batcher.isSeparate(mNodes[k]));
+    }
+
+    public void testMovingGroupLeavesNothingMerged() {
+        DrawBatcher batcher = merged();
+        Arrays.fill(mInclude, true);
+        update(batcher);
+        batcher.drawMerged(0, mInclude, 0, 1);
+        move(mGroup, 1);
+        update(batcher);
+        mGL.reset();
+        assertEquals("Draws", 0, batcher.drawMerged(0, mInclude, 0, 1));
+        assertEquals("Issued", 0, mGL.getDrawCallCount());
+        for (int k = 0; k < MEMBERS; k++)
+            assertTrue("Member " + k + " merged", batcher.isSeparate(mNodes[k]));
+    }
+
+    public void testInstancedBatchIsOneDraw() {
+        GLES20.setContextVersion(3);
+        mMesh.createBuffers(mGL);
+        ESShapes cube = new ESShapes();
+        cube.genCube(1.0f);
+        cube.createBuffers(mGL);
+        DrawBatcher batcher = new DrawBatcher(mGL, mScene, true);
+        int spheres = batcher.addBatch(mMesh, new float[4]);
+        int cubes = batcher.addBatch(cube, new float[4]);
+        for (int k = 0; k < MEMBERS; k++)
+            batcher.addNode(k % 3 == 0 ? cubes : spheres, mNodes[k]);
+        batcher.createBuffers();
+        update(batcher);
+        move(mGroup, 1);
+        update(batcher);
+
+        for (int k = 0; k < MEMBERS; k += 2)
+            mInclude[mNodes[k]] = true;
+        mGL.reset();
+        int draws = batcher.drawInstanced(spheres, mInclude, 0, 1, 2, 6)
+                + batcher.drawInstanced(cubes, mInclude, 0, 1, 2, 6);
+        assertEquals("Draws", 2, draws);
+        assertEquals("Instanced draws", 2, mGL.getInstancedDrawCallCount());
+        assertEquals("Instances", MEMBERS / 2, mGL.getInstanceCount());
+        for (int k = 0; k < MEMBERS; k++)
+            assertFalse("Member " + k + " separate", batcher.isSeparate(mNodes[k]));
+    }
+
+    private DrawBatcher merged() {
+        DrawBatcher batcher = new DrawBatcher(mGL, mScene, false);
+        int batch = batcher.addBatch(mMesh, new float[4]);
+        for (int node : mNodes)
+            batcher.addNode(batch, node);
+        batcher.createBuffers();
+        return batcher;
+    }
+
+    private void update(DrawBatcher batcher) {
+        mScene.update();
+        batcher.update();
+    }
+
+    // Lifts a member to height y, or turns the group by y * 10 degrees; a
+    // member's world matrix is its local one while the group is unmoved
+    private void move(int node, float y) {
+        float[] m = new float[16];
+        System.arraycopy(mScene.getWorldMatrices(), node * 16, m, 0, 16);
+        if (node != mGroup)
+            m[13] = y;
+        else
+            ESMatrix.setRotateM(m, 0, y * 10.0f, 0.0f, 1.0f, 0.0f);
+        mScene.setLocalMatrix(node, m, 0);
+    }
+}
@@ -0,0 +1,70 @@
+package com.opengles.shadow;
+
+import com.openglesbook.common.RecordingGL;
+
+/**
+ * Checks the draw calls of whole frames: with instancing the cubes take
+ * one instanced draw per pass however many there are, the rotating cubes
+ * of the merged path are drawn one by one, and getDrawCallCount() reports
+ * what the frame issued.
+ */
+public class DrawCallCountTest extends TestCase {
+
+    private static final int FRAMES = 20;
+
+    public void testInstancedCubesTakeOneDrawPerPass() {
+        for (int cubes : new int[] { 9, 64 }) {
+            RendererFixture fixture = new RendererFixture(cubes, 3);
+            RecordingGL gl = fixture.gl;
+            for (int frame = 0; frame < FRAMES; frame++) {
+                int passes = drawFrame(fixture);
+                String name = cubes + " cubes, frame " + frame;
+                assertEquals(name + ": instanced draws", passes, gl.getInstancedDrawCallCount());
+                assertEquals(name + ": instances", (long) passes * cubes, gl.getInstanceCount());
+                // the floor is the only other shape drawn
+                assertEquals(name + ": draws", 2 * passes, gl.getDrawCallCount());
+            }
+        }
+    }
+
+    public void testMovingMergedCubesAreDrawnOneByOne() {
+        for (int cubes : new int[] { 9, 64 }) {
+            RendererFixture fixture = new RendererFixture(cubes, 2);
+            RecordingGL gl = fixture.gl;
+            for (int frame = 0; frame < FRAMES; frame++) {
+                int passes = drawFrame(fixture);
+                String name = cubes + " cubes, frame " + frame;
+                assertEquals(name + ": instanced draws", 0, gl.getInstancedDrawCallCount());
+                assertEquals(name + ": draws", passes * (cubes + 1), gl.getDrawCallCount());
+                assertEquals(name + ": uploads", 0, gl.getUploadCount());
+            }
+        }
+    }
+
+    public void testReportedCountMatchesIssued() {
+        checkReportedCount(new RendererFixture(16, 2));
+    }
+
+    public void testReportedCountMatchesIssuedInstanced() {
+        checkReportedCount(new RendererFixture(16, 3));
+    }
+
+    private static void checkReportedCount(RendererFixture fixture) {
+        for (int frame = 0; frame < FRAMES; frame++) {
+            drawFrame(fixture);
+            assertTrue("Frame " + frame + " drew nothing", fixture.gl.getDrawCallCount() > 0);
+            assertEquals("Frame " + frame + " draws", fixture.gl.getDrawCallCount(),
+                    fixture.renderer.getDrawCallCount());
+        }
+    }
+
+    // Draws one frame into freshly reset counters and returns its passes:
+    // the eye pass, and each shadow view drawn, which sets its tile
+    // viewport; the screen viewport is set again after the last one
+    private static int drawFrame(RendererFixture fixture) {
+        fixture.gl.reset();
+        fixture.drawFrames(1);
+        int viewports = fixture.gl.getViewportCount();
+        return viewports > 0 ? viewports : 1;
+    }
+}
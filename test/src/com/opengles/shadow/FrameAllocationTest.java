@@ -0,0 +1,134 @@
+package com.opengles.shadow;
+
+import com.openglesbook.common.ESMatrix;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Checks that the steady-state frame loop leaves nothing for the garbage
+ * collector: the GL thread replaying frames, the worker thread that
+ * animates, culls and records them, and the matrix path it runs through
+ * allocate no bytes at all.
+ *
+ * Bytes are counted per thread by the JVM (HotSpot's
+ * com.sun.management.ThreadMXBean), which sees every allocation the code
+ * makes, including ones a device would only reveal as GC pauses later.
+ */
+public class FrameAllocationTest extends TestCase {
+
+    private static final int FRAMES = 100;
+    // the JIT allocates a little while it compiles the loop; allocation
+    // that is still there after this many rounds happens every frame
+    private static final int MAX_ROUNDS = 20;
+
+    private com.sun.management.ThreadMXBean mThreads;
+
+    @Override
+    protected void setUp() {
+        java.lang.management.ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        if (!(threads instanceof com.sun.management.ThreadMXBean))
+            fail("This JVM does not count allocated bytes per thread");
+        mThreads = (com.sun.management.ThreadMXBean) threads;
+        mThreads.setThreadAllocatedMemoryEnabled(true);
+    }
+
+    public void testFramesAllocateNothing() {
+        final RendererFixture fixture = new RendererFixture(9);
+        assertSteadyStateAllocatesNothing("Drawing frames", new Runnable() {
+            public void run() {
+                fixture.drawFrames(FRAMES);
+            }
+        });
+    }
+
+    public void testInstancedFramesAllocateNothing() {
+        final RendererFixture fixture = new RendererFixture(9, 3);
+        assertSteadyStateAllocatesNothing("Drawing instanced frames", new Runnable() {
+            public void run() {
+                fixture.drawFrames(FRAMES);
+            }
+        });
+    }
+
+    public void testFramesWithSeveralLightsAllocateNothing() {
+        final RendererFixture fixture = new RendererFixture(9);
+        fixture.renderer.setLightCount(3);
+        assertSteadyStateAllocatesNothing("Drawing frames with 3 lights", new Runnable() {
+            public void run() {
+                fixture.drawFrames(FRAMES);
+            }
+        });
+    }
+
+    public void testMatrixPathAllocatesNothing() {
+        final float[] model = new float[16];
+        final float[] view = new float[16];
+        final float[] projection = new float[16];
+        final float[] mvp = new float[16];
+        final float[] normal = new float[16];
+        final float[] batch = new float[16 * 32];
+        final float[] normals = new float[16 * 32];
+        ESMatrix.frustumM(projection, 0, -1.0f, 1.0f, -0.75f, 0.75f, 1.0f, 20.0f);
+        ESMatrix.setLookAtM(view, 0, 0.0f, 3.0f, 5.0f, 0.0f, 0.0f, 0.0f, 0.0f, 1.0f, 0.0f);
+
+        final SceneGraph scene = new SceneGraph(33);
+        final int root = scene.addNode(SceneGraph.NO_PARENT, 0);
+        for (int i = 0; i < 32; i++) {
+            ESMatrix.setIdentityM(model, 0);
+            ESMatrix.translateM(model, 0, i * 0.5f, 0.0f, 0.0f);
+            scene.setLocalMatrix(scene.addNode(root, 1), model, 0);
+        }
+
+        assertSteadyStateAllocatesNothing("The matrix path", new Runnable() {
+            public void run() {
+                for (int frame = 0; frame < FRAMES; frame++) {
+                    ESMatrix.setRotateM(model, 0, frame, 0.0f, 1.0f, 0.0f);
+                    scene.setLocalMatrix(root, model, 0);
+                    scene.update();
+                    float[] world = scene.getWorldMatrices();
+                    ESMatrix.multiplyMMM(mvp, 0, projection, 0, view, 0, world, 16);
+                    ESMatrix.normalMatrixM(normal, 0, world, 16);
+                    ESMatrix.multiplyMMBatch(batch, 0, view, 0, world, 16, 32);
+                    ESMatrix.normalMatrixBatch(normals, 0, batch, 0, 32);
+                }
+            }
+        });
+    }
+
+    // Runs round until one run allocates nothing on this thread and the
+    // frame preparation threads
+    private void assertSteadyStateAllocatesNothing(String what, Runnable round) {
+        long[] threads = frameThreadIds();
+        long least = Long.MAX_VALUE;
+        for (int i = 0; i < MAX_ROUNDS && least > 0; i++) {
+            long before = allocatedBytes(threads);
+            round.run();
+            least = Math.min(least, allocatedBytes(threads) - before);
+        }
+        assertEquals(what + ": bytes allocated per " + FRAMES + " frames", 0, least);
+    }
+
+    // This thread, and the worker of every renderer made so far; idle
+    // workers allocate nothing
+    private static long[] frameThreadIds() {
+        List<Long> ids = new ArrayList<Long>();
+        ids.add(Thread.currentThread().getId());
+        for (Thread thread : Thread.getAllStackTraces().keySet()) {
+            if (thread.getName().equals("ShadowFramePrep"))
+                ids.add(thread.getId());
+        }
+        long[] result = new long[ids.size()];
+        for (int i = 0; i < result.length; i++)
+            result[i] = ids.get(i);
+        return result;
+    }
+
+    private long allocatedBytes(long[] threads) {
+        long total = 0;
+        for (long id : threads)
+            total += mThreads.getThreadAllocatedBytes(id);
+        return total;
+    }
+}
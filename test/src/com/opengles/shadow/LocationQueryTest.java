@@ -0,0 +1,36 @@
+package com.opengles.shadow;
+
+import com.openglesbook.common.RecordingGL;
+
+/**
+ * Checks that attribute and uniform locations are all resolved when the
+ * programs are created: once the surface is set up, frames ask the driver
+ * for no locations at all.
+ */
+public class LocationQueryTest extends TestCase {
+
+    private static final int FRAMES = 50;
+
+    public void testNoLocationQueriesAfterInit() {
+        checkNoQueries(new RendererFixture(9, 2));
+    }
+
+    public void testNoLocationQueriesAfterInitInstanced() {
+        checkNoQueries(new RendererFixture(9, 3));
+    }
+
+    public void testLocationsAreResolvedAtInit() {
+        RendererFixture fixture = new RendererFixture(9, 3);
+        fixture.gl.reset();
+        fixture.renderer.onSurfaceCreated(null, null);
+        assertTrue("No locations resolved at surface creation",
+                fixture.gl.getLocationQueryCount() > 0);
+    }
+
+    private static void checkNoQueries(RendererFixture fixture) {
+        RecordingGL gl = fixture.gl;
+        fixture.drawFrames(FRAMES);
+        assertTrue("No draws", gl.getDrawCallCount() > 0);
+        assertEquals("Location queries after init", 0, gl.getLocationQueryCount());
+    }
+}
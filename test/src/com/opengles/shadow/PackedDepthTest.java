@@ -0,0 +1,132 @@
+package com.opengles.shadow;
+
+import java.util.Random;
+
+/**
+ * Checks the Java mirror of the RGBA8 depth packing: every stored channel
+ * is an 8-bit value and a round trip stays within
+ * getPackedDepthMaxError(). The bound holds for a float decode only, so
+ * the shaders that pack and unpack must ask for highp.
+ */
+public class PackedDepthTest extends TestCase {
+
+    private static final int SAMPLES = 200000;
+
+    public void testRoundTripWithinBound() {
+        float bound = ShadowShaders.getPackedDepthMaxError();
+        float[] rgba = new float[4];
+        Random random = new Random(9);
+        double worst = 0.0;
+        for (int i = 0; i < SAMPLES; i++) {
+            float depth = random.nextFloat();
+            worst = Math.max(worst, roundTripError(depth, rgba, bound));
+        }
+        // channel boundaries, where the carries happen
+        for (int k = 0; k < 255; k++) {
+            worst = Math.max(worst, roundTripError(k / 255.0f, rgba, bound));
+            worst = Math.max(worst, roundTripError(k / 65025.0f, rgba, bound));
+            worst = Math.max(worst, roundTripError(Math.nextUp(k / 255.0f), rgba, bound));
+            worst = Math.max(worst, roundTripError(Math.nextAfter(1.0f, 0.0) - k * 1e-7f,
+                    rgba, bound));
+        }
+        assertTrue("Worst error " + worst, worst <= bound);
+    }
+
+    public void testChannelsAreStoredBytes() {
+        float[] rgba = new float[4];
+        Random random = new Random(9);
+        for (int i = 0; i < 1000; i++) {
+            ShadowShaders.packDepth(random.nextFloat(), rgba);
+            for (int c = 0; c < 4; c++) {
+                assertTrue("Channel " + c + " = " + rgba[c],
+                        rgba[c] >= 0.0f && rgba[c] <= 1.0f);
+                float code = rgba[c] * 255.0f;
+                assertEquals("Channel " + c + " is not a byte", Math.rint(code), code, 1e-3);
+            }
+        }
+    }
+
+    public void testOrderIsKeptBeyondTheBound() {
+        // a shadow test compares stored and fragment depth; depths further
+        // apart than twice the bound must keep their order
+        float bound = ShadowShaders.getPackedDepthMaxError();
+        float[] rgba = new float[4];
+        Random random = new Random(9);
+        for (int i = 0; i < 10000; i++) {
+            float a = random.nextFloat() * 0.999f;
+            float b = a + 2.5f * bound + Math.ulp(a) * 2;
+            ShadowShaders.packDepth(a, rgba);
+            float unpackedA = ShadowShaders.unpackDepth(rgba);
+            ShadowShaders.packDepth(b, rgba);
+            float unpackedB = ShadowShaders.unpackDepth(rgba);
+            assertTrue("Order lost at " + a, unpackedA < unpackedB);
+        }
+    }
+
+    public void testBoundIsTighterThanOneByte() {
+        // the point of packing: far finer than an 8-bit depth
+        assertTrue("Bound " + ShadowShaders.getPackedDepthMaxError(),
+                ShadowShaders.getPackedDepthMaxError() < 1.0f / 65025.0f);
+    }
+
+    public void testPackedShadersAskForHighp() {
+        checkHighp("Depth shader", ShadowShaders.depthFragmentShader(true));
+        for (ShadowRenderer.ShadowFilter filter : ShadowRenderer.ShadowFilter.values()) {
+            for (int cascades = 1; cascades <= 4; cascades += 3) {
+                String source = ShadowShaders.eyeFragmentShader(cascades, 2, true, filter);
+                checkHighp("Eye shader, " + filter + ", " + cascades + " cascades", source);
+                assertTrue(filter + " does not decode", source.contains("unpackDepth("));
+            }
+        }
+    }
+
+    public void testMediumpDecodeLosesTheLowBytes() {
+        // the same decode with every value and operation rounded to the 11
+        // significant bits of a half float, the least mediump guarantees
+        float bound = ShadowShaders.getPackedDepthMaxError();
+        float[] rgba = new float[4];
+        Random random = new Random(9);
+        double worst = 0.0;
+        for (int i = 0; i < 10000; i++) {
+            float depth = 0.5f + random.nextFloat() * 0.5f;
+            ShadowShaders.packDepth(depth, rgba);
+            float sum = mediump(rgba[0]);
+            sum = mediump(sum + mediump(mediump(rgba[1]) * mediump(1.0f / 255.0f)));
+            sum = mediump(sum + mediump(mediump(rgba[2]) * mediump(1.0f / 65025.0f)));
+            sum = mediump(sum + mediump(mediump(rgba[3]) * mediump(1.0f / 16581375.0f)));
+            worst = Math.max(worst, Math.abs(sum - depth));
+        }
+        // no better than two bytes: the packing would be wasted
+        assertTrue("Worst mediump error " + worst, worst > 1.0 / 65025.0 && worst > 100 * bound);
+    }
+
+    // The shader sets highp when the fragment stage has it, before any
+    // float is declared, and mediump only as the fallback
+    private static void checkHighp(String name, String source) {
+        String highp = "#ifdef GL_FRAGMENT_PRECISION_HIGH";
+        int start = source.indexOf(highp);
+        assertTrue(name + " has no highp block", start >= 0);
+        assertTrue(name + " sets no highp", source.indexOf("precision highp float;", start) > start);
+        int end = source.indexOf("#endif", start);
+        assertTrue(name + " declares floats before the precision",
+                source.substring(0, start).indexOf("float") < 0);
+        int mediump = source.indexOf("precision mediump float;");
+        assertTrue(name + " sets mediump outside the fallback", mediump > start && mediump < end
+                && source.indexOf("precision mediump float;", mediump + 1) < 0);
+    }
+
+    // Rounds to 11 significant bits, as a half float, ignoring its range
+    private static float mediump(float value) {
+        int bits = Float.floatToRawIntBits(value);
+        bits = (bits + (1 << 12)) & ~((1 << 13) - 1);
+        return Float.intBitsToFloat(bits);
+    }
+
+    private static double roundTripError(float depth, float[] rgba, float bound) {
+        ShadowShaders.packDepth(depth, rgba);
+        double error = Math.abs(ShadowShaders.unpackDepth(rgba) - depth);
+        assertTrue("Depth " + depth + " came back " + error + " off, over " + bound,
+                error <= bound);
+        return error;
+    }
+}
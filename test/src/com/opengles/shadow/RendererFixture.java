@@ -0,0 +1,73 @@
+package com.opengles.shadow;
+
+import com.openglesbook.common.RecordingGL;
+
+import java.util.Arrays;
+
+import android.opengl.GLES20;
+
+/**
+ * A ShadowRenderer drawing into a RecordingGL, taken through surface
+ * creation and enough frames that its buffers, programs and caches have
+ * settled, so that what a test measures next is the steady state.
+ */
+class RendererFixture {
+
+    static final int WIDTH = 800;
+    static final int HEIGHT = 600;
+    static final int WARM_UP_FRAMES = 60;
+
+    final RecordingGL gl = new RecordingGL();
+    final ShadowRenderer renderer;
+    /** The buffers filled before the first frame: the static meshes */
+    final int[] meshBuffers;
+
+    RendererFixture(int cubeCount) {
+        this(cubeCount, 2);
+    }
+
+    /**
+     * @param contextVersion - 3 for an ES 3.0 context, where batches are
+     * drawn instanced, 2 for ES 2.0, where they are merged on the CPU.
+     */
+    RendererFixture(int cubeCount, int contextVersion) {
+        GLES20.setContextVersion(contextVersion);
+        renderer = new ShadowRenderer(null, gl);
+        renderer.setCubeCount(cubeCount);
+        renderer.onSurfaceCreated(null, null);
+        renderer.onSurfaceChanged(null, WIDTH, HEIGHT);
+        meshBuffers = uploadedBuffers(gl);
+        drawFrames(WARM_UP_FRAMES);
+        gl.reset();
+    }
+
+    /**
+     * @return The names of the buffers with data uploaded since the last
+     * reset.
+     */
+    static int[] uploadedBuffers(RecordingGL gl) {
+        int count = 0;
+        int[] buffers = new int[gl.getBufferCount()];
+        for (int buffer = 1; buffer <= gl.getBufferCount(); buffer++) {
+            if (gl.getUploadCount(buffer) > 0)
+                buffers[count++] = buffer;
+        }
+        return Arrays.copyOf(buffers, count);
+    }
+
+    /**
+     * Draws count frames, pausing between them like a display would so the
+     * worker thread gets to prepare the next one.
+     */
+    void drawFrames(int count) {
+        for (int i = 0; i < count; i++) {
+            renderer.onDrawFrame(null);
+            try {
+                Thread.sleep(1);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+    }
+}
@@ -0,0 +1,207 @@
+package com.opengles.shadow;
+
+import com.openglesbook.common.ESMatrix;
+
+import java.util.Random;
+
+/**
+ * Checks that the atlas packs any tile set that fits without overlaps or
+ * holes, keeps its layout when a set does not fit, and that a tile's
+ * rectangle and lookup matrix address that tile only.
+ */
+public class ShadowAtlasTest extends TestCase {
+
+    private static final int ATLAS_SIZE = 2048;
+    private static final int MIN_TILE = 64;
+    private static final int MAX_TILES = (ATLAS_SIZE / MIN_TILE) * (ATLAS_SIZE / MIN_TILE);
+
+    public void testRandomSetsFillTheAtlasExactly() {
+        Random random = new Random(5);
+        ShadowAtlas atlas = new ShadowAtlas(MAX_TILES);
+        int[] sizes = new int[MAX_TILES];
+        for (int round = 0; round < 200; round++) {
+            // random tiles until the atlas is full, so the area is exact
+            long left = (long) ATLAS_SIZE * ATLAS_SIZE;
+            int count = 0;
+            while (left > 0) {
+                int size = ATLAS_SIZE >> random.nextInt(6);
+                while ((long) size * size > left)
+                    size /= 2;
+                sizes[count++] = size;
+                left -= (long) size * size;
+            }
+            assertTrue("Round " + round + " did not fit", atlas.pack(ATLAS_SIZE, sizes, count));
+            assertEquals("Count", count, atlas.getCount());
+            boolean[] covered = checkLayout(atlas, sizes, count);
+            for (int c = 0; c < covered.length; c++)
+                assertTrue("Round " + round + " left a hole at cell " + c, covered[c]);
+        }
+    }
+
+    public void testPartialSetsDoNotOverlap() {
+        Random random = new Random(6);
+        ShadowAtlas atlas = new ShadowAtlas(MAX_TILES);
+        int[] sizes = new int[MAX_TILES];
+        for (int round = 0; round < 200; round++) {
+            int count = 1 + random.nextInt(40);
+            long area = 0;
+            for (int i = 0; i < count; i++) {
+                sizes[i] = MIN_TILE << random.nextInt(4);
+                area += (long) sizes[i] * sizes[i];
+            }
+            boolean fits = area <= (long) ATLAS_SIZE * ATLAS_SIZE;
+            assertEquals("Round " + round + " fit", fits, atlas.pack(ATLAS_SIZE, sizes, count));
+            if (fits)
+                checkLayout(atlas, sizes, count);
+        }
+    }
+
+    public void testOverfullSetKeepsPreviousLayout() {
+        ShadowAtlas atlas = new ShadowAtlas(8);
+        int[] sizes = { 1024, 512, 512, 256 };
+        assertTrue("First layout", atlas.pack(ATLAS_SIZE, sizes, 4));
+        int[][] before = viewports(atlas, 4);
+
+        int[] tooMany = { 2048, 64, 64, 64, 64 };
+        assertFalse("Over the atlas area", atlas.pack(ATLAS_SIZE, tooMany, 5));
+        assertEquals("Count", 4, atlas.getCount());
+        assertEquals("Atlas size", ATLAS_SIZE, atlas.getAtlasSize());
+        int[][] after = viewports(atlas, 4);
+        for (int i = 0; i < 4; i++)
+            for (int k = 0; k < 4; k++)
+                assertEquals("Tile " + i + " moved", before[i][k], after[i][k]);
+    }
+
+    public void testBadSizesThrow() {
+        ShadowAtlas atlas = new ShadowAtlas(4);
+        for (int bad : new int[] { 0, 96, ATLAS_SIZE * 2 }) {
+            try {
+                atlas.pack(ATLAS_SIZE, new int[] { 256, bad }, 2);
+                fail("Size " + bad + " accepted");
+            } catch (IllegalArgumentException expected) {
+            }
+        }
+    }
+
+    public void testTilesAheadOfAChangeStayPut() {
+        ShadowAtlas atlas = new ShadowAtlas(8);
+        int[] sizes = { 512, 256, 512, 256, 128, 128 };
+        assertTrue("First layout", atlas.pack(ATLAS_SIZE, sizes, 6));
+        int[][] before = viewports(atlas, 6);
+        // the tiles of 256 and larger come first and do not move when a
+        // smaller one changes
+        sizes[4] = 64;
+        assertTrue("Second layout", atlas.pack(ATLAS_SIZE, sizes, 6));
+        int[][] after = viewports(atlas, 6);
+        for (int i = 0; i < 4; i++)
+            for (int k = 0; k < 4; k++)
+                assertEquals("Tile " + i + " moved", before[i][k], after[i][k]);
+        // equal sizes are placed in tile order
+        assertTrue("Tile 2 placed before tile 0", mortonOrder(before[0]) < mortonOrder(before[2]));
+        assertTrue("Tile 3 placed before tile 1", mortonOrder(before[1]) < mortonOrder(before[3]));
+    }
+
+    public void testRectMatchesViewport() {
+        ShadowAtlas atlas = new ShadowAtlas(4);
+        int[] sizes = { 1024, 256, 512, 1024 };
+        assertTrue("Layout", atlas.pack(ATLAS_SIZE, sizes, 4));
+        int[] viewport = new int[4];
+        float[] rects = new float[4 * 4 + 1];
+        for (int i = 0; i < 4; i++) {
+            atlas.getViewport(i, viewport);
+            atlas.getRect(i, rects, 1 + i * 4);
+            int o = 1 + i * 4;
+            assertEquals("Tile " + i + " min u", (double) viewport[0] / ATLAS_SIZE, rects[o], 0.0);
+            assertEquals("Tile " + i + " min v", (double) viewport[1] / ATLAS_SIZE, rects[o + 1], 0.0);
+            assertEquals("Tile " + i + " max u", (double) (viewport[0] + viewport[2]) / ATLAS_SIZE,
+                    rects[o + 2], 0.0);
+            assertEquals("Tile " + i + " max v", (double) (viewport[1] + viewport[3]) / ATLAS_SIZE,
+                    rects[o + 3], 0.0);
+        }
+        assertEquals("Written before the offset", 0.0, rects[0], 0.0);
+    }
+
+    public void testAtlasMatrixMapsClipSpaceIntoTile() {
+        float[] view = new float[16];
+        float[] projection = new float[16];
+        float[] viewProj = new float[20];
+        ESMatrix.setLookAtM(view, 0, 10.0f, 20.0f, 10.0f, 0.0f, 0.0f, 0.0f, 0.0f, 1.0f, 0.0f);
+        ESMatrix.frustumM(projection, 0, -1.0f, 1.0f, -0.75f, 0.75f, 1.0f, 60.0f);
+        ESMatrix.multiplyMM(viewProj, 4, projection, 0, view, 0);
+
+        int[] viewport = { 512, 1536, 256, 256 };
+        float[] atlasMatrix = new float[18];
+        ShadowAtlas.toAtlasMatrix(viewProj, 4, viewport, ATLAS_SIZE, atlasMatrix, 2);
+
+        Random random = new Random(9);
+        float[] point = new float[4];
+        float[] clip = new float[4];
+        float[] lookup = new float[4];
+        float[] matrix = new float[16];
+        float[] atlasM = new float[16];
+        System.arraycopy(viewProj, 4, matrix, 0, 16);
+        System.arraycopy(atlasMatrix, 2, atlasM, 0, 16);
+        for (int n = 0; n < 1000; n++) {
+            point[0] = random.nextFloat() * 20.0f - 10.0f;
+            point[1] = random.nextFloat() * 20.0f - 10.0f;
+            point[2] = random.nextFloat() * 20.0f - 10.0f;
+            point[3] = 1.0f;
+            ESMatrix.multiplyMV(clip, 0, matrix, 0, point, 0);
+            ESMatrix.multiplyMV(lookup, 0, atlasM, 0, point, 0);
+            assertEquals("w", clip[3], lookup[3], Math.abs(clip[3]) * 1e-6);
+            if (clip[3] <= 0.0f)
+                continue;
+            double x = clip[0] / clip[3];
+            double y = clip[1] / clip[3];
+            double z = clip[2] / clip[3];
+            double u = (viewport[0] + (x * 0.5 + 0.5) * viewport[2]) / ATLAS_SIZE;
+            double v = (viewport[1] + (y * 0.5 + 0.5) * viewport[3]) / ATLAS_SIZE;
+            assertEquals("u", u, lookup[0] / lookup[3], 1e-5);
+            assertEquals("v", v, lookup[1] / lookup[3], 1e-5);
+            assertEquals("depth", z * 0.5 + 0.5, lookup[2] / lookup[3], 1e-5);
+        }
+    }
+
+    // Checks every tile lies inside the atlas on its own size grid and that
+    // no two overlap; returns which MIN_TILE cells are covered
+    private static boolean[] checkLayout(ShadowAtlas atlas, int[] sizes, int count) {
+        int cells = ATLAS_SIZE / MIN_TILE;
+        boolean[] covered = new boolean[cells * cells];
+        int[] viewport = new int[4];
+        for (int i = 0; i < count; i++) {
+            atlas.getViewport(i, viewport);
+            int size = sizes[i];
+            assertEquals("Tile " + i + " width", size, viewport[2]);
+            assertEquals("Tile " + i + " height", size, viewport[3]);
+            assertTrue("Tile " + i + " off its grid", viewport[0] % size == 0
+                    && viewport[1] % size == 0);
+            assertTrue("Tile " + i + " outside the atlas", viewport[0] >= 0 && viewport[1] >= 0
+                    && viewport[0] + size <= ATLAS_SIZE && viewport[1] + size <= ATLAS_SIZE);
+            for (int y = viewport[1] / MIN_TILE; y < (viewport[1] + size) / MIN_TILE; y++) {
+                for (int x = viewport[0] / MIN_TILE; x < (viewport[0] + size) / MIN_TILE; x++) {
+                    assertFalse("Tile " + i + " overlaps at " + x + ", " + y,
+                            covered[y * cells + x]);
+                    covered[y * cells + x] = true;
+                }
+            }
+        }
+        return covered;
+    }
+
+    private static int[][] viewports(ShadowAtlas atlas, int count) {
+        int[][] viewports = new int[count][4];
+        for (int i = 0; i < count; i++)
+            atlas.getViewport(i, viewports[i]);
+        return viewports;
+    }
+
+    // Position of a tile's corner along the Morton curve
+    private static long mortonOrder(int[] viewport) {
+        long order = 0;
+        for (int bit = 0; bit < 16; bit++) {
+            order |= (long) ((viewport[0] >> bit) & 1) << (2 * bit);
+            order |= (long) ((viewport[1] >> bit) & 1) << (2 * bit + 1);
+        }
+        return order;
+    }
+}
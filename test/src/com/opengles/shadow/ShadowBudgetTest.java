@@ -0,0 +1,258 @@
+package com.opengles.shadow;
+
+import com.openglesbook.common.ESMatrix;
+
+import java.util.Random;
+
+/**
+ * Checks the screen coverage estimate, that tile sizes fit the atlas in
+ * order of importance and only change past the hysteresis, and that slow
+ * lights take turns to redraw.
+ */
+public class ShadowBudgetTest extends TestCase {
+
+    private static final int ATLAS_SIZE = 2048;
+    private static final int MIN_TILE = 64;
+    private static final int MAX_LIGHTS = 8;
+
+    public void testCoverageOfSpheresAroundAndBehindTheCamera() {
+        float[] viewProj = cameraViewProj();
+        assertEquals("Around the camera", 1.0, ShadowBudget.screenCoverage(viewProj,
+                0.0f, 0.0f, 0.0f, 2.0f), 0.0);
+        assertEquals("Behind the camera", 0.0, ShadowBudget.screenCoverage(viewProj,
+                0.0f, 0.0f, 20.0f, 2.0f), 0.0);
+        assertEquals("Beside the frustum", 0.0, ShadowBudget.screenCoverage(viewProj,
+                100.0f, 0.0f, -20.0f, 2.0f), 0.0);
+    }
+
+    public void testCoverageShrinksWithDistance() {
+        float[] viewProj = cameraViewProj();
+        float previous = 1.0f;
+        for (float distance = 4.0f; distance <= 64.0f; distance *= 2.0f) {
+            float coverage = ShadowBudget.screenCoverage(viewProj, 0.0f, 0.0f, -distance, 1.0f);
+            assertTrue("Coverage " + coverage + " at " + distance, coverage > 0.0f
+                    && coverage < previous);
+            if (distance >= 16.0f) {
+                // far away the projected disc shrinks with the square of the
+                // distance; nearer, the estimate from the sphere's nearest
+                // point shrinks faster
+                float ratio = previous / coverage;
+                assertTrue("Ratio " + ratio + " at " + distance, ratio > 4.0f && ratio < 4.7f);
+            }
+            previous = coverage;
+        }
+    }
+
+    public void testCoverageMatchesProjectedDisc() {
+        float[] viewProj = cameraViewProj();
+        // a sphere of radius r at distance d projects to a disc of about
+        // r / d in NDC units over the near plane's half width of 1
+        float distance = 40.0f;
+        float radius = 2.0f;
+        double disc = Math.PI * (radius / distance) * (radius / distance);
+        // NDC spans 2 x 1.5 units before the aspect scaling of frustumM
+        double expected = disc / (2.0 * 2.0) * (4.0 / 3.0);
+        float coverage = ShadowBudget.screenCoverage(viewProj, 0.0f, 0.0f, -distance, radius);
+        assertEquals("Coverage", expected, coverage, expected * 0.15);
+    }
+
+    public void testSizesFitTheAtlasInOrderOfImportance() {
+        Random random = new Random(3);
+        ShadowBudget budget = new ShadowBudget(MAX_LIGHTS);
+        float[] importance = new float[MAX_LIGHTS];
+        int[] views = new int[MAX_LIGHTS];
+        for (int round = 0; round < 500; round++) {
+            int count = 1 + random.nextInt(MAX_LIGHTS);
+            for (int i = 0; i < count; i++) {
+                importance[i] = random.nextFloat() < 0.1f ? 0.0f : random.nextFloat();
+                views[i] = random.nextBoolean() ? 1 : 6;
+            }
+            budget.update(importance, views, count, ATLAS_SIZE, MIN_TILE);
+
+            long used = 0;
+            for (int i = 0; i < count; i++) {
+                int size = budget.getSize(i);
+                assertEquals("Round " + round + ": size " + size, 1, Integer.bitCount(size));
+                assertTrue("Round " + round + ": size " + size + " below the minimum",
+                        size >= MIN_TILE);
+                used += (long) size * size * views[i];
+            }
+            assertTrue("Round " + round + ": " + used + " pixels over the atlas",
+                    used <= (long) ATLAS_SIZE * ATLAS_SIZE);
+            for (int i = 0; i < count; i++) {
+                for (int j = 0; j < count; j++) {
+                    if (views[i] == views[j] && importance[i] > importance[j]
+                            && budget.getSize(j) > budget.getSize(i))
+                        fail("Round " + round + ": light " + j + " has larger tiles than the"
+                                + " more important light " + i);
+                }
+            }
+
+            // the sizes always pack
+            int[] sizes = new int[MAX_LIGHTS * 6];
+            int tiles = 0;
+            for (int i = 0; i < count; i++)
+                for (int v = 0; v < views[i]; v++)
+                    sizes[tiles++] = budget.getSize(i);
+            assertTrue("Round " + round + " did not pack",
+                    new ShadowAtlas(sizes.length).pack(ATLAS_SIZE, sizes, tiles));
+        }
+    }
+
+    public void testEqualLightsGetEqualSizes() {
+        ShadowBudget budget = new ShadowBudget(MAX_LIGHTS);
+        float[] importance = { 0.3f, 0.3f, 0.3f, 0.3f };
+        int[] views = { 1, 1, 1, 1 };
+        assertTrue("First update", budget.update(importance, views, 4, ATLAS_SIZE, MIN_TILE));
+        for (int i = 0; i < 4; i++)
+            assertEquals("Light " + i, ATLAS_SIZE / 2, budget.getSize(i));
+    }
+
+    public void testSizesHoldWithinHysteresis() {
+        ShadowBudget budget = new ShadowBudget(MAX_LIGHTS);
+        float[] importance = { 0.8f, 0.2f, 0.1f };
+        int[] views = { 1, 6, 1 };
+        assertTrue("First update", budget.update(importance, views, 3, ATLAS_SIZE, MIN_TILE));
+        int[] sizes = sizes(budget, 3);
+        assertFalse("Same importance", budget.update(importance, views, 3, ATLAS_SIZE, MIN_TILE));
+
+        // just inside the hysteresis either way: nothing moves
+        float inside = ShadowBudget.HYSTERESIS * 0.99f;
+        float[] moved = { 0.8f * inside, 0.2f / inside, 0.1f * inside };
+        assertFalse("Within the hysteresis", budget.update(moved, views, 3, ATLAS_SIZE, MIN_TILE));
+        assertSizes(budget, sizes, "Within the hysteresis");
+    }
+
+    public void testDriftIsMeasuredFromTheLastAllocation() {
+        ShadowBudget budget = new ShadowBudget(MAX_LIGHTS);
+        int[] views = { 1, 6 };
+        float inside = ShadowBudget.HYSTERESIS * 0.99f;
+        budget.update(new float[] { 1.0f, 1.0f }, views, 2, ATLAS_SIZE, MIN_TILE);
+        assertEquals("Light 1", 512, budget.getSize(1));
+        assertFalse("First step", budget.update(new float[] { 1.0f, 1.0f / inside }, views, 2,
+                ATLAS_SIZE, MIN_TILE));
+        // within the hysteresis of the previous call, past it since the
+        // sizes were chosen
+        assertTrue("Second step", budget.update(new float[] { 1.0f, 1.0f / (inside * inside) },
+                views, 2, ATLAS_SIZE, MIN_TILE));
+        assertEquals("Light 1", 256, budget.getSize(1));
+    }
+
+    public void testReallocationToTheSameSizesIsNoChange() {
+        ShadowBudget budget = new ShadowBudget(MAX_LIGHTS);
+        int[] views = { 1, 1, 1 };
+        budget.update(new float[] { 1.0f, 0.8f, 0.1f }, views, 3, ATLAS_SIZE, MIN_TILE);
+        int[] sizes = sizes(budget, 3);
+        // past the hysteresis, but the shares round to the same tiles
+        assertFalse("Reported a change", budget.update(new float[] { 1.0f, 0.8f, 0.2f }, views,
+                3, ATLAS_SIZE, MIN_TILE));
+        assertSizes(budget, sizes, "Same shares");
+    }
+
+    public void testReversedImportanceMovesArea() {
+        ShadowBudget budget = new ShadowBudget(MAX_LIGHTS);
+        int[] views = { 1, 1, 1, 1, 1 };
+        budget.update(new float[] { 1.0f, 0.4f, 0.3f, 0.2f, 0.1f }, views, 5, ATLAS_SIZE,
+                MIN_TILE);
+        assertTrue("Light 0 not larger", budget.getSize(0) > budget.getSize(4));
+        assertTrue("Reversal not reallocated", budget.update(
+                new float[] { 0.1f, 0.2f, 0.3f, 0.4f, 1.0f }, views, 5, ATLAS_SIZE, MIN_TILE));
+        assertTrue("Light 4 not larger", budget.getSize(4) > budget.getSize(0));
+    }
+
+    public void testCountOrAtlasChangeReallocates() {
+        ShadowBudget budget = new ShadowBudget(MAX_LIGHTS);
+        float[] importance = { 0.5f, 0.5f, 0.5f };
+        int[] views = { 1, 1, 1 };
+        budget.update(importance, views, 2, ATLAS_SIZE, MIN_TILE);
+        assertTrue("Light added", budget.update(importance, views, 3, ATLAS_SIZE, MIN_TILE));
+        assertTrue("Atlas halved", budget.update(importance, views, 3, ATLAS_SIZE / 2, MIN_TILE));
+        for (int i = 0; i < 3; i++)
+            assertTrue("Light " + i + " larger than the atlas",
+                    budget.getSize(i) <= ATLAS_SIZE / 2);
+    }
+
+    public void testSlowLightsTakeTurns() {
+        ShadowBudget budget = new ShadowBudget(MAX_LIGHTS);
+        int count = 7;
+        boolean[] needsUpdate = new boolean[count];
+        boolean[] mustUpdate = new boolean[count];
+        boolean[] slow = new boolean[count];
+        boolean[] out = new boolean[count];
+        for (int i = 0; i < count; i++) {
+            needsUpdate[i] = true;
+            slow[i] = i != 0;
+        }
+        mustUpdate[3] = true;
+
+        int maxSlow = 2;
+        int[] served = new int[count];
+        int frames = 6;
+        for (int frame = 0; frame < frames; frame++) {
+            int refreshed = budget.scheduleRefresh(count, needsUpdate, mustUpdate, slow,
+                    maxSlow, out);
+            int slowServed = 0;
+            int total = 0;
+            for (int i = 0; i < count; i++) {
+                if (out[i]) {
+                    served[i]++;
+                    total++;
+                    if (slow[i] && !mustUpdate[i])
+                        slowServed++;
+                }
+            }
+            assertEquals("Frame " + frame + " count", total, refreshed);
+            assertEquals("Frame " + frame + " slow lights", maxSlow, slowServed);
+            assertTrue("Fast light skipped", out[0]);
+            assertTrue("Invalid tile skipped", out[3]);
+        }
+        // five waiting slow lights, two a frame: each served within three
+        // frames, so at least twice in six
+        for (int i = 1; i < count; i++) {
+            if (i != 3)
+                assertTrue("Light " + i + " served " + served[i] + " times", served[i] >= 2);
+        }
+    }
+
+    public void testIdleLightsAreNotRefreshed() {
+        ShadowBudget budget = new ShadowBudget(MAX_LIGHTS);
+        boolean[] none = new boolean[3];
+        boolean[] slow = { true, false, true };
+        boolean[] out = new boolean[3];
+        assertEquals("Refreshed", 0, budget.scheduleRefresh(3, none, none, slow, 2, out));
+        for (int i = 0; i < 3; i++)
+            assertFalse("Light " + i, out[i]);
+    }
+
+    // A camera at the origin looking down -z, with a 4:3 frustum whose
+    // near plane is as far as its half width
+    private static float[] cameraViewProj() {
+        float[] projection = new float[16];
+        float[] view = new float[16];
+        float[] viewProj = new float[16];
+        ESMatrix.frustumM(projection, 0, -1.0f, 1.0f, -0.75f, 0.75f, 1.0f, 200.0f);
+        ESMatrix.setIdentityM(view, 0);
+        ESMatrix.multiplyMM(viewProj, 0, projection, 0, view, 0);
+        return viewProj;
+    }
+
+    private static int[] sizes(ShadowBudget budget, int count) {
+        int[] sizes = new int[count];
+        for (int i = 0; i < count; i++)
+            sizes[i] = budget.getSize(i);
+        return sizes;
+    }
+
+    private static boolean sameSizes(ShadowBudget budget, int[] sizes) {
+        for (int i = 0; i < sizes.length; i++) {
+            if (budget.getSize(i) != sizes[i])
+                return false;
+        }
+        return true;
+    }
+
+    private static void assertSizes(ShadowBudget budget, int[] sizes, String message) {
+        for (int i = 0; i < sizes.length; i++)
+            assertEquals(message + ": light " + i, sizes[i], budget.getSize(i));
+    }
+}
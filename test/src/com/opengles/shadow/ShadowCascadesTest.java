@@ -0,0 +1,168 @@
+package com.opengles.shadow;
+
+import com.openglesbook.common.ESMatrix;
+
+/**
+ * Checks the cascade splits and that each cascade's light projection
+ * contains its slice of the camera frustum, casters up to the margin
+ * towards the light included, inside its own atlas tile.
+ */
+public class ShadowCascadesTest extends TestCase {
+
+    private static final float NEAR = 1.0f;
+    private static final float FAR = 100.0f;
+    private static final float HALF_WIDTH = 0.6f;
+    private static final float HALF_HEIGHT = 0.45f;
+    private static final float MARGIN = 5.0f;
+    private static final int ATLAS_SIZE = 2048;
+    private static final float[] LIGHT = { 10.0f, 20.0f, 10.0f };
+    private static final float EPSILON = 1e-4f;
+
+    public void testSplitsEndAtNearAndFar() {
+        float[] splits = new float[5];
+        ShadowCascades.computeSplits(NEAR, FAR, 4, 0.7f, splits);
+        assertEquals("First split", NEAR, splits[0], 0.0);
+        assertEquals("Last split", FAR, splits[4], 0.0);
+        for (int i = 0; i < 4; i++)
+            assertTrue("Splits not increasing at " + i, splits[i] < splits[i + 1]);
+    }
+
+    public void testSplitSchemes() {
+        float[] splits = new float[5];
+        ShadowCascades.computeSplits(NEAR, FAR, 4, 0.0f, splits);
+        for (int i = 1; i < 4; i++)
+            assertEquals("Uniform split " + i, NEAR + (FAR - NEAR) * i / 4.0f, splits[i], 1e-4);
+
+        ShadowCascades.computeSplits(NEAR, FAR, 4, 1.0f, splits);
+        double ratio = Math.pow(FAR / NEAR, 0.25);
+        for (int i = 0; i < 4; i++)
+            assertEquals("Logarithmic ratio " + i, ratio, splits[i + 1] / splits[i], 1e-4);
+
+        // a blend lies between the two
+        float[] uniform = new float[5];
+        ShadowCascades.computeSplits(NEAR, FAR, 4, 0.0f, uniform);
+        float[] blend = new float[5];
+        ShadowCascades.computeSplits(NEAR, FAR, 4, 0.5f, blend);
+        for (int i = 1; i < 4; i++)
+            assertTrue("Blended split " + i, blend[i] > splits[i] && blend[i] < uniform[i]);
+    }
+
+    public void testAtlasTiles() {
+        int[] viewport = new int[4];
+        assertEquals("Columns for 1", 1, ShadowCascades.getAtlasColumns(1));
+        assertEquals("Columns for 3", 2, ShadowCascades.getAtlasColumns(3));
+        assertEquals("Columns for 5", 3, ShadowCascades.getAtlasColumns(5));
+        ShadowCascades.getAtlasTile(3, 4, ATLAS_SIZE, viewport);
+        assertEquals("x", ATLAS_SIZE / 2, viewport[0]);
+        assertEquals("y", ATLAS_SIZE / 2, viewport[1]);
+        assertEquals("Size", ATLAS_SIZE / 2, viewport[2]);
+    }
+
+    public void testSlicesFitTheirTiles() {
+        for (int count = 1; count <= 4; count++) {
+            float[] view = new float[16];
+            ESMatrix.setLookAtM(view, 0, 0.0f, 3.0f, 12.0f, 1.0f, 0.0f, -20.0f,
+                    0.0f, 1.0f, 0.0f);
+            checkFit(view, count);
+        }
+        // looking along the light and away from it
+        float[] view = new float[16];
+        ESMatrix.setLookAtM(view, 0, 0.0f, 0.0f, 0.0f, -LIGHT[0], -LIGHT[1], -LIGHT[2],
+                0.0f, 0.0f, 1.0f);
+        checkFit(view, 4);
+        ESMatrix.setLookAtM(view, 0, 0.0f, 0.0f, 0.0f, LIGHT[0], LIGHT[1], LIGHT[2],
+                0.0f, 0.0f, 1.0f);
+        checkFit(view, 4);
+    }
+
+    public void testProjectionsSnapToTexels() {
+        float[] view = new float[16];
+        float[] projection = new float[16];
+        float[] extent = new float[4];
+        for (int step = 0; step < 20; step++) {
+            // the camera turns and moves by fractions of a texel
+            ESMatrix.setLookAtM(view, 0, step * 0.013f, 3.0f, 12.0f,
+                    (float) Math.sin(step * 0.1), 0.0f, -20.0f, 0.0f, 1.0f, 0.0f);
+            ShadowCascades cascades = newCascades(view);
+            cascades.update(4, 0.7f, MARGIN, ATLAS_SIZE);
+            for (int i = 0; i < 4; i++) {
+                cascades.getProjection(i, projection);
+                if (step == 0)
+                    extent[i] = projection[0];
+                assertEquals("Extent of cascade " + i + " changed under rotation",
+                        extent[i], projection[0], 1e-6);
+                // center = -m[12] / m[0] in light space, texel = 2 / (m[0] tile)
+                float texels = -projection[12] / 2.0f * (ATLAS_SIZE / 2);
+                assertEquals("Cascade " + i + " x offset in texels", Math.rint(texels),
+                        texels, 1e-2);
+                texels = -projection[13] / 2.0f * (ATLAS_SIZE / 2);
+                assertEquals("Cascade " + i + " y offset in texels", Math.rint(texels),
+                        texels, 1e-2);
+            }
+        }
+    }
+
+    private static void checkFit(float[] view, int count) {
+        ShadowCascades cascades = newCascades(view);
+        cascades.update(count, 0.7f, MARGIN, ATLAS_SIZE);
+        assertEquals("Count", count, cascades.getCount());
+
+        float[] cameraToWorld = new float[16];
+        assertTrue("Singular view", ESMatrix.invertM(cameraToWorld, 0, view, 0));
+        float length = (float) Math.sqrt(LIGHT[0] * LIGHT[0] + LIGHT[1] * LIGHT[1]
+                + LIGHT[2] * LIGHT[2]);
+        float[] point = new float[4];
+        float[] world = new float[4];
+        float[] shadow = new float[4];
+        int[] viewport = new int[4];
+        float near = NEAR;
+        for (int i = 0; i < count; i++) {
+            float far = cascades.getSplit(i);
+            ShadowCascades.getAtlasTile(i, count, ATLAS_SIZE, viewport);
+            float x0 = (float) viewport[0] / ATLAS_SIZE;
+            float y0 = (float) viewport[1] / ATLAS_SIZE;
+            float x1 = (float) (viewport[0] + viewport[2]) / ATLAS_SIZE;
+            float y1 = (float) (viewport[1] + viewport[3]) / ATLAS_SIZE;
+            for (int c = 0; c < 8; c++) {
+                float d = (c & 4) == 0 ? near : far;
+                point[0] = ((c & 1) == 0 ? -HALF_WIDTH : HALF_WIDTH) * d / NEAR;
+                point[1] = ((c & 2) == 0 ? -HALF_HEIGHT : HALF_HEIGHT) * d / NEAR;
+                point[2] = -d;
+                point[3] = 1.0f;
+                ESMatrix.multiplyMV(world, 0, cameraToWorld, 0, point, 0);
+                for (int caster = 0; caster < 2; caster++) {
+                    // the corner itself, then a caster just inside the margin
+                    if (caster == 1) {
+                        for (int k = 0; k < 3; k++)
+                            world[k] += LIGHT[k] / length * MARGIN * 0.99f;
+                    }
+                    ESMatrix.multiplyMV(shadow, 0, cascades.getShadowMatrices(), i * 16,
+                            world, 0);
+                    String where = count + " cascades, cascade " + i + " corner " + c
+                            + (caster == 1 ? " caster" : "");
+                    assertInside(where + " x", shadow[0] / shadow[3], x0, x1);
+                    assertInside(where + " y", shadow[1] / shadow[3], y0, y1);
+                    assertInside(where + " depth", shadow[2] / shadow[3], 0.0f, 1.0f);
+                }
+            }
+            near = far;
+        }
+        assertEquals("Last split", FAR, near, 0.0);
+    }
+
+    private static ShadowCascades newCascades(float[] view) {
+        ShadowCascades cascades = new ShadowCascades(4);
+        cascades.setCamera(view, -HALF_WIDTH, HALF_WIDTH, -HALF_HEIGHT, HALF_HEIGHT,
+                NEAR, FAR);
+        float[] lightView = new float[16];
+        ESMatrix.setLookAtM(lightView, 0, LIGHT[0], LIGHT[1], LIGHT[2], 0.0f, 0.0f, 0.0f,
+                0.0f, 1.0f, 0.0f);
+        cascades.setLight(lightView);
+        return cascades;
+    }
+
+    private static void assertInside(String message, float value, float min, float max) {
+        assertTrue(message + " = " + value + " outside [" + min + ", " + max + "]",
+                value >= min - EPSILON && value <= max + EPSILON);
+    }
+}
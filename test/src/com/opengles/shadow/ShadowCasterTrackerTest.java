@@ -0,0 +1,155 @@
+package com.opengles.shadow;
+
+import com.openglesbook.common.ESMatrix;
+
+/**
+ * Checks the dirty region of the shadow map: a moved caster dirties the
+ * union of its old and new footprints, casters outside that region are
+ * not redrawn, and invalidation or a new light redraws everything.
+ *
+ * The light is an orthographic projection scaling world x and y by 0.1,
+ * so a footprint in light NDC is the caster's world box divided by 10.
+ */
+public class ShadowCasterTrackerTest extends TestCase {
+
+    private static final int SIZE = 1000;
+    private static final float[] UNIT_BOX = { -1.0f, -1.0f, -1.0f, 1.0f, 1.0f, 1.0f };
+
+    private ShadowCasterTracker mTracker;
+    private float[] mLight;
+
+    @Override
+    protected void setUp() {
+        mLight = new float[16];
+        ESMatrix.setIdentityM(mLight, 0);
+        ESMatrix.scaleM(mLight, 0, 0.1f, 0.1f, 0.1f);
+        mTracker = new ShadowCasterTracker(4);
+        mTracker.setLightMatrix(mLight);
+        // caster 0 moves; 1 is far from it, 2 overlaps where it was
+        place(0, -5.0f, 0.0f);
+        place(1, 5.0f, 5.0f);
+        place(2, -6.5f, 0.0f);
+        mTracker.clear();
+    }
+
+    public void testNewTrackerRedrawsEverything() {
+        ShadowCasterTracker tracker = new ShadowCasterTracker(1);
+        assertTrue("Needs no update", tracker.needsUpdate());
+        assertTrue("Not a full update", tracker.isFullUpdate());
+        checkRect(tracker, 0, 0, SIZE, SIZE);
+    }
+
+    public void testUnmovedCastersDirtyNothing() {
+        place(0, -5.0f, 0.0f);
+        place(1, 5.0f, 5.0f);
+        place(2, -6.5f, 0.0f);
+        assertFalse("Update without a change", mTracker.needsUpdate());
+    }
+
+    public void testMovedCasterDirtiesOldAndNewFootprints() {
+        place(0, -3.0f, 0.0f);
+        assertTrue("No update", mTracker.needsUpdate());
+        assertFalse("Full update", mTracker.isFullUpdate());
+        // old box x in [-6, -4], new in [-4, -2], y in [-1, 1]: light NDC
+        // [-0.6, -0.2] x [-0.1, 0.1]
+        checkDirty(-0.6f, -0.1f, -0.2f, 0.1f);
+    }
+
+    public void testOnlyCastersInTheDirtyRegionAreRedrawn() {
+        place(0, -3.0f, 0.0f);
+        assertTrue("Moved caster skipped", mTracker.intersectsDirty(0));
+        assertTrue("Caster over the old footprint skipped", mTracker.intersectsDirty(2));
+        assertFalse("Far caster redrawn", mTracker.intersectsDirty(1));
+    }
+
+    public void testClearMarksTheMapUpToDate() {
+        place(0, -3.0f, 0.0f);
+        mTracker.clear();
+        assertFalse("Update after clear()", mTracker.needsUpdate());
+        assertFalse("Caster redrawn after clear()", mTracker.intersectsDirty(0));
+
+        // the next move starts from the position the map now holds
+        place(0, -3.0f, 2.0f);
+        checkDirty(-0.4f, -0.1f, -0.2f, 0.3f);
+    }
+
+    public void testRemovedCasterDirtiesItsFootprint() {
+        mTracker.removeCaster(1);
+        checkDirty(0.4f, 0.4f, 0.6f, 0.6f);
+        assertTrue("Caster under the removed one skipped", mTracker.intersectsDirty(1));
+        assertFalse("Unrelated caster redrawn", mTracker.intersectsDirty(0));
+    }
+
+    public void testInvalidateRedrawsEverything() {
+        mTracker.invalidate();
+        assertTrue("Not a full update", mTracker.isFullUpdate());
+        checkRect(mTracker, 0, 0, SIZE, SIZE);
+        for (int id = 0; id < 3; id++)
+            assertTrue("Caster " + id + " skipped", mTracker.intersectsDirty(id));
+    }
+
+    public void testLightChangeRedrawsEverything() {
+        mTracker.setLightMatrix(mLight);
+        assertFalse("Same light redrew", mTracker.needsUpdate());
+        float[] moved = mLight.clone();
+        moved[12] = 0.01f;
+        mTracker.setLightMatrix(moved);
+        assertTrue("Not a full update", mTracker.isFullUpdate());
+        checkRect(mTracker, 0, 0, SIZE, SIZE);
+    }
+
+    public void testCasterCoveringTheMapIsAFullUpdate() {
+        float[] model = new float[16];
+        ESMatrix.setIdentityM(model, 0);
+        ESMatrix.scaleM(model, 0, 20.0f, 20.0f, 1.0f);
+        mTracker.updateCaster(3, model, 0, UNIT_BOX);
+        assertTrue("Not a full update", mTracker.isFullUpdate());
+        checkRect(mTracker, 0, 0, SIZE, SIZE);
+    }
+
+    public void testCasterBehindAPerspectiveLightCoversTheMap() {
+        float[] light = new float[16];
+        ESMatrix.frustumM(light, 0, -1.0f, 1.0f, -1.0f, 1.0f, 1.0f, 100.0f);
+        ShadowCasterTracker tracker = new ShadowCasterTracker(1);
+        tracker.setLightMatrix(light);
+        tracker.clear();
+        float[] model = new float[16];
+        ESMatrix.setIdentityM(model, 0);
+        ESMatrix.translateM(model, 0, 0.0f, 0.0f, 0.5f);
+        tracker.updateCaster(0, model, 0, UNIT_BOX);
+        assertTrue("Not a full update", tracker.isFullUpdate());
+    }
+
+    private void place(int id, float x, float y) {
+        float[] model = new float[16];
+        ESMatrix.setIdentityM(model, 0);
+        ESMatrix.translateM(model, 0, x, y, 0.0f);
+        mTracker.updateCaster(id, model, 0, UNIT_BOX);
+    }
+
+    // The scissor rectangle holds the given light NDC region, with at most
+    // the one texel of margin getDirtyRect() adds and a texel of rounding
+    private void checkDirty(float minX, float minY, float maxX, float maxY) {
+        int[] rect = new int[4];
+        mTracker.getDirtyRect(SIZE, rect);
+        float x0 = (minX * 0.5f + 0.5f) * SIZE;
+        float y0 = (minY * 0.5f + 0.5f) * SIZE;
+        float x1 = (maxX * 0.5f + 0.5f) * SIZE;
+        float y1 = (maxY * 0.5f + 0.5f) * SIZE;
+        String got = rect[0] + ", " + rect[1] + ", " + rect[2] + ", " + rect[3];
+        assertTrue("Rect " + got + " misses the dirty region", rect[0] <= x0 && rect[1] <= y0
+                && rect[0] + rect[2] >= x1 && rect[1] + rect[3] >= y1);
+        assertTrue("Rect " + got + " is too large", rect[0] >= x0 - 2 && rect[1] >= y0 - 2
+                && rect[0] + rect[2] <= x1 + 2 && rect[1] + rect[3] <= y1 + 2);
+    }
+
+    private static void checkRect(ShadowCasterTracker tracker, int x, int y, int width,
+            int height) {
+        int[] rect = new int[4];
+        tracker.getDirtyRect(SIZE, rect);
+        assertEquals("x", x, rect[0]);
+        assertEquals("y", y, rect[1]);
+        assertEquals("Width", width, rect[2]);
+        assertEquals("Height", height, rect[3]);
+    }
+}
@@ -0,0 +1,105 @@
+package com.opengles.shadow;
+
+import com.openglesbook.common.ESFrameStats;
+
+import java.io.ByteArrayOutputStream;
+import java.io.PrintStream;
+import java.util.Arrays;
+
+/**
+ * Checks the samples ShadowRenderer writes to its frame statistics, and
+ * the percentile line the logger prints for a known set of samples.
+ */
+public class ShadowStatsTest extends TestCase {
+
+    private static final long MILLISECOND = 1000000;
+
+    public void testNamesMatchTheFields() {
+        assertEquals("Names", ShadowStats.FIELDS, ShadowStats.NAMES.length);
+    }
+
+    public void testRendererWritesOneSamplePerFrame() {
+        RendererFixture fixture = new RendererFixture(9);
+        ESFrameStats stats = fixture.renderer.getFrameStats();
+        long before = stats.getSampleCount();
+        fixture.drawFrames(20);
+        assertEquals("Samples", before + 20, stats.getSampleCount());
+
+        long[] samples = new long[20 * ShadowStats.FIELDS];
+        assertEquals("Copied", 20, stats.read(samples, 20));
+        int fresh = 0;
+        for (int s = 0; s < 20; s++) {
+            int o = s * ShadowStats.FIELDS;
+            assertTrue("Frame time", samples[o + ShadowStats.FRAME_NS] >= MILLISECOND);
+            assertTrue("Replay time", samples[o + ShadowStats.REPLAY_NS] >= 0);
+            assertTrue("Draw calls", samples[o + ShadowStats.DRAW_CALLS] > 0);
+            assertTrue("GL calls", samples[o + ShadowStats.GL_CALLS] > 0);
+            assertEquals("Allocations", -1, samples[o + ShadowStats.ALLOCATIONS]);
+            assertEquals("GL errors", 0, samples[o + ShadowStats.GL_ERRORS]);
+            // the worker phases are known exactly when the frame is new
+            long update = samples[o + ShadowStats.UPDATE_NS];
+            boolean known = update >= 0;
+            assertEquals("Shadow pass known", known, samples[o + ShadowStats.SHADOW_PASS_NS] >= 0);
+            assertEquals("Eye pass known", known, samples[o + ShadowStats.EYE_PASS_NS] >= 0);
+            if (known)
+                fresh++;
+        }
+        assertTrue("No fresh frame", fresh > 0);
+        int last = 19 * ShadowStats.FIELDS;
+        assertEquals("Last draw calls", fixture.renderer.getDrawCallCount(),
+                samples[last + ShadowStats.DRAW_CALLS]);
+    }
+
+    public void testLoggerPrintsPercentiles() throws Exception {
+        // frame times 1 to 100 ms, draw calls 1 to 100, every other field
+        // unknown
+        ESFrameStats stats = new ESFrameStats(100, ShadowStats.FIELDS);
+        long[] sample = new long[ShadowStats.FIELDS];
+        for (int n = 1; n <= 100; n++) {
+            Arrays.fill(sample, -1);
+            sample[ShadowStats.FRAME_NS] = (101 - n) * MILLISECOND;
+            sample[ShadowStats.DRAW_CALLS] = n;
+            stats.write(sample);
+        }
+
+        String line = logFirstLine(stats);
+        assertEquals("Line", "I/ShadowStats: 100 frames frame=50.00/95.00/99.00 draws=50/95/99",
+                line);
+    }
+
+    public void testLoggerPadsHundredths() throws Exception {
+        ESFrameStats stats = new ESFrameStats(4, ShadowStats.FIELDS);
+        long[] sample = new long[ShadowStats.FIELDS];
+        Arrays.fill(sample, -1);
+        // 16.07 ms
+        sample[ShadowStats.REPLAY_NS] = 16 * MILLISECOND + 70000;
+        stats.write(sample);
+        assertEquals("Line", "I/ShadowStats: 1 frames replay=16.07/16.07/16.07",
+                logFirstLine(stats));
+    }
+
+    // Run the logger until it prints, capturing what it writes to the
+    // stand-in logcat
+    private static String logFirstLine(ESFrameStats stats) throws InterruptedException {
+        PrintStream err = System.err;
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        System.setErr(new PrintStream(bytes, true));
+        Thread logger = null;
+        try {
+            logger = ShadowStats.startLogging(stats, 1);
+            for (int i = 0; i < 5000 && bytes.size() == 0; i++)
+                Thread.sleep(1);
+        } finally {
+            if (logger != null) {
+                logger.interrupt();
+                logger.join();
+            }
+            System.setErr(err);
+        }
+        String output = bytes.toString();
+        int end = output.indexOf('\n');
+        if (end < 0)
+            fail("Nothing logged");
+        return output.substring(0, end);
+    }
+}
@@ -0,0 +1,72 @@
+package com.opengles.shadow;
+
+import com.openglesbook.common.ESCommandBufferTest;
+import com.openglesbook.common.ESIndicesTest;
+import com.openglesbook.common.ESFrameStatsTest;
+import com.openglesbook.common.ESLodChainTest;
+import com.openglesbook.common.ESMatrixTest;
+import com.openglesbook.common.ESMeshFileTest;
+import com.openglesbook.common.ESMeshOptimizerTest;
+import com.openglesbook.common.ESObjLoaderTest;
+import com.openglesbook.common.ESMeshSimplifierTest;
+import com.openglesbook.common.ESProgramCacheTest;
+import com.openglesbook.common.ESShapesTest;
+import com.openglesbook.common.ESStateCacheTest;
+import com.openglesbook.common.ESVertexFormatTest;
+import com.openglesbook.common.ESWorkerTest;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Desktop JVM tests of the renderer and the common classes. There is no
+ * device or GL context: the renderer draws through RecordingGL, and the
+ * few android classes the code calls are stood in for by test/stubs,
+ * which replace android.jar for this build:
+ *
+ *   javac -d test/out $(find src test/src test/stubs -name '*.java')
+ *   java -cp test/out com.opengles.shadow.ShadowTests [filter...]
+ *
+ * Prints one PASS or FAIL line per test and exits with status 1 if any
+ * failed. A filter keeps the tests whose "Class.method" contains it.
+ */
+public class ShadowTests {
+
+    private static List<Class<? extends TestCase>> tests() {
+        List<Class<? extends TestCase>> tests = new ArrayList<Class<? extends TestCase>>();
+        tests.add(FrameAllocationTest.class);
+        tests.add(BufferUploadTest.class);
+        tests.add(LocationQueryTest.class);
+        tests.add(DrawCallCountTest.class);
+        tests.add(DrawBatcherTest.class);
+        tests.add(ShadowCasterTrackerTest.class);
+        tests.add(ShadowCascadesTest.class);
+        tests.add(ShadowAtlasTest.class);
+        tests.add(ShadowBudgetTest.class);
+        tests.add(PackedDepthTest.class);
+        tests.add(ShadowStatsTest.class);
+        tests.add(ESVertexFormatTest.class);
+        tests.add(ESProgramCacheTest.class);
+        tests.add(ESCommandBufferTest.class);
+        tests.add(ESStateCacheTest.class);
+        tests.add(ESWorkerTest.class);
+        tests.add(ESFrameStatsTest.class);
+        tests.add(ESMatrixTest.class);
+        tests.add(ESIndicesTest.class);
+        tests.add(ESShapesTest.class);
+        tests.add(ESMeshSimplifierTest.class);
+        tests.add(ESLodChainTest.class);
+        tests.add(ESMeshOptimizerTest.class);
+        tests.add(ESMeshFileTest.class);
+        tests.add(ESObjLoaderTest.class);
+        return tests;
+    }
+
+    public static void main(String[] args) {
+        int failures = 0;
+        for (Class<? extends TestCase> type : tests())
+            failures += TestCase.run(type, args, System.out);
+        System.out.println(failures == 0 ? "OK" : failures + " FAILED");
+        System.exit(failures == 0 ? 0 : 1);
+    }
+}
@@ -0,0 +1,129 @@
+package com.opengles.shadow;
+
+import java.io.PrintStream;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.util.Arrays;
+import java.util.Comparator;
+
+/**
+ * Base of the desktop JVM tests, a small subset of JUnit 3: every public
+ * no-argument method whose name starts with "test" runs on a fresh
+ * instance, between setUp() and tearDown(). A test fails by throwing,
+ * normally through one of the assertions here.
+ */
+public abstract class TestCase {
+
+    protected void setUp() throws Exception {
+    }
+
+    protected void tearDown() throws Exception {
+    }
+
+    protected static void fail(String message) {
+        throw new AssertionError(message);
+    }
+
+    protected static void assertTrue(String message, boolean condition) {
+        if (!condition)
+            fail(message);
+    }
+
+    protected static void assertFalse(String message, boolean condition) {
+        if (condition)
+            fail(message);
+    }
+
+    protected static void assertEquals(String message, long expected, long actual) {
+        if (expected != actual)
+            fail(message + ": expected " + expected + ", got " + actual);
+    }
+
+    protected static void assertEquals(String message, double expected, double actual,
+            double tolerance) {
+        if (!(Math.abs(expected - actual) <= tolerance))
+            fail(message + ": expected " + expected + " +- " + tolerance + ", got " + actual);
+    }
+
+    protected static void assertEquals(String message, Object expected, Object actual) {
+        if (expected == null ? actual != null : !expected.equals(actual))
+            fail(message + ": expected " + expected + ", got " + actual);
+    }
+
+    /**
+     * Runs the tests of one class whose "Class.method" contains one of the
+     * filters, or all of them without filters.
+     *
+     * @return The number of failed tests.
+     */
+    static int run(Class<? extends TestCase> type, String[] filters, PrintStream out) {
+        Method[] methods = type.getMethods();
+        // reflection order is unspecified; run in a repeatable one
+        Arrays.sort(methods, new Comparator<Method>() {
+            @Override
+            public int compare(Method a, Method b) {
+                return a.getName().compareTo(b.getName());
+            }
+        });
+
+        int failures = 0;
+        for (Method method : methods) {
+            if (!method.getName().startsWith("test") || method.getParameterTypes().length != 0
+                    || Modifier.isStatic(method.getModifiers()))
+                continue;
+            String id = type.getSimpleName() + "." + method.getName();
+            if (!matches(id, filters))
+                continue;
+
+            long start = System.nanoTime();
+            Throwable failure = runOne(type, method);
+            long millis = (System.nanoTime() - start) / 1000000L;
+            if (failure == null) {
+                out.println("PASS " + id + " (" + millis + " ms)");
+            } else {
+                out.println("FAIL " + id + " (" + millis + " ms): " + failure);
+                if (!(failure instanceof AssertionError))
+                    failure.printStackTrace(out);
+                failures++;
+            }
+            out.flush();
+        }
+        return failures;
+    }
+
+    private static Throwable runOne(Class<? extends TestCase> type, Method method) {
+        TestCase test;
+        try {
+            test = type.getDeclaredConstructor().newInstance();
+        } catch (Exception e) {
+            return e;
+        }
+        Throwable failure = null;
+        try {
+            test.setUp();
+            method.invoke(test);
+        } catch (InvocationTargetException e) {
+            failure = e.getCause();
+        } catch (Throwable t) {
+            failure = t;
+        }
+        try {
+            test.tearDown();
+        } catch (Throwable t) {
+            if (failure == null)
+                failure = t;
+        }
+        return failure;
+    }
+
+    private static boolean matches(String id, String[] filters) {
+        if (filters.length == 0)
+            return true;
+        for (String filter : filters) {
+            if (id.contains(filter))
+                return true;
+        }
+        return false;
+    }
+}
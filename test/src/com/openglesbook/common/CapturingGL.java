@@ -0,0 +1,108 @@
+// CapturingGL
+//
+//    RecordingGL that also keeps a copy of the data uploaded to every
+//    buffer object, and a record of every glDrawElements call, so tests
+//    can compare what reached the driver with what was meant to. Copying
+//    allocates; keep it out of allocation-counted code.
+//
+
+package com.openglesbook.common;
+
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import android.opengl.GLES20;
+
+public class CapturingGL extends RecordingGL {
+
+	//
+	///
+	/// \return The contents of a buffer object, null if nothing was
+	/// uploaded to it
+	//
+	public byte[] getBufferData(int buffer) {
+		return mData.get(buffer);
+	}
+
+	/// \return glDrawElements calls made
+	public int getDrawCount() {
+		return mDraws.size();
+	}
+
+	//
+	///
+	/// \brief One glDrawElements call
+	/// \return Index count, index type, byte offset into the index buffer,
+	/// and the byte offset attribute 0 pointed at in the vertex buffer
+	//
+	public int[] getDraw(int draw) {
+		return mDraws.get(draw);
+	}
+
+	@Override
+	public void vertexAttribPointer(int index, int size, int type, boolean normalized,
+			int stride, int offset) {
+		super.vertexAttribPointer(index, size, type, normalized, stride, offset);
+		if (index == 0)
+			mPointerOffset = offset;
+	}
+
+	@Override
+	public void drawElements(int mode, int count, int type, int offset) {
+		super.drawElements(mode, count, type, offset);
+		mDraws.add(new int[] { count, type, offset, mPointerOffset });
+	}
+
+	@Override
+	public void bindBuffer(int target, int buffer) {
+		super.bindBuffer(target, buffer);
+		if (target == GLES20.GL_ELEMENT_ARRAY_BUFFER)
+			mBoundElements = buffer;
+		else
+			mBoundArray = buffer;
+	}
+
+	@Override
+	public void bufferData(int target, int size, Buffer data, int usage) {
+		super.bufferData(target, size, data, usage);
+		mData.put(bound(target), new byte[size]);
+		if (data != null)
+			copy(target, 0, size, data);
+	}
+
+	@Override
+	public void bufferSubData(int target, int offset, int size, Buffer data) {
+		super.bufferSubData(target, offset, size, data);
+		copy(target, offset, size, data);
+	}
+
+	private int bound(int target) {
+		int buffer = target == GLES20.GL_ELEMENT_ARRAY_BUFFER ? mBoundElements : mBoundArray;
+		if (buffer == 0)
+			throw new IllegalStateException("No buffer bound to " + target);
+		return buffer;
+	}
+
+	// Copy size bytes from the position of data, which must be a
+	// ByteBuffer, like every upload the code under test makes
+	private void copy(int target, int offset, int size, Buffer data) {
+		byte[] contents = mData.get(bound(target));
+		if (contents == null || offset + size > contents.length)
+			throw new IllegalStateException("Upload past the end of the buffer");
+		if (!(data instanceof ByteBuffer))
+			throw new IllegalArgumentException("Not a ByteBuffer: " + data);
+		ByteBuffer bytes = ((ByteBuffer) data).duplicate();
+		bytes.get(contents, offset, size);
+	}
+
+	// Member variables
+	private final Map<Integer, byte[]> mData = new HashMap<Integer, byte[]>();
+	private final List<int[]> mDraws = new ArrayList<int[]>();
+	private int mPointerOffset;
+	private int mBoundArray;
+	private int mBoundElements;
+}
@@ -0,0 +1,492 @@
+package com.openglesbook.common;
+
+import com.opengles.shadow.TestCase;
+
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+import java.nio.ShortBuffer;
+
+import android.opengl.GLES20;
+
+/**
+ * Checks that calls recorded into an ESCommandBuffer and replayed reach
+ * the driver exactly as the same calls made directly would, data and
+ * uniform values included, and that frames handed between threads through
+ * an ESTripleBuffer arrive whole and in order.
+ */
+public class ESCommandBufferTest extends TestCase {
+
+    public void testReplayMatchesDirectCalls() {
+        for (int frame = 0; frame < 4; frame++) {
+            Script script = new Script();
+            TraceGL direct = new TraceGL();
+            script.frame(direct, frame);
+
+            assertSameCalls("Frame " + frame, direct, recordAndReplay(script, frame));
+        }
+    }
+
+    public void testReusedBufferMatchesDirectCalls() {
+        // one buffer and one set of sources for every frame, as the
+        // renderer keeps them; the cached views must follow the sources
+        Script script = new Script();
+        Script reference = new Script();
+        TraceGL replayed = new TraceGL();
+        ESCommandRecorder recorder = new ESCommandRecorder(replayed);
+        ESCommandBuffer commands = new ESCommandBuffer();
+        for (int frame = 0; frame < 20; frame++) {
+            TraceGL direct = new TraceGL();
+            reference.frame(direct, frame);
+
+            recorder.begin(commands);
+            script.frame(recorder, frame);
+            recorder.end();
+            replayed.reset();
+            commands.replay(replayed);
+            assertSameCalls("Frame " + frame, direct, replayed);
+        }
+    }
+
+    public void testRecordedDataIsACopy() {
+        Script script = new Script();
+        TraceGL direct = new TraceGL();
+        script.frame(direct, 1);
+
+        TraceGL replayed = new TraceGL();
+        ESCommandRecorder recorder = new ESCommandRecorder(replayed);
+        ESCommandBuffer commands = new ESCommandBuffer();
+        recorder.begin(commands);
+        script.frame(recorder, 1);
+        recorder.end();
+        // the client memory and uniform arrays change before the replay
+        script.fill(99);
+        commands.replay(replayed);
+        assertSameCalls("Replay after the sources changed", direct, replayed);
+    }
+
+    public void testLargeUploadsGrowTheStore() {
+        ByteBuffer large = ByteBuffer.allocateDirect(100000).order(ByteOrder.nativeOrder());
+        for (int i = 0; i < large.capacity(); i++)
+            large.put(i, (byte) (i * 7));
+        TraceGL direct = new TraceGL();
+        TraceGL replayed = new TraceGL();
+        ESCommandRecorder recorder = new ESCommandRecorder(replayed);
+        ESCommandBuffer commands = new ESCommandBuffer();
+        recorder.begin(commands);
+        for (int size = 1000; size <= large.capacity(); size *= 3) {
+            large.position(size / 10);
+            direct.bufferSubData(GLES20.GL_ARRAY_BUFFER, size, size - size / 10, large);
+            recorder.bufferSubData(GLES20.GL_ARRAY_BUFFER, size, size - size / 10, large);
+        }
+        recorder.end();
+        commands.replay(replayed);
+        assertSameCalls("Replay", direct, replayed);
+    }
+
+    public void testCallsPassThroughOutsideRecording() {
+        TraceGL gl = new TraceGL();
+        ESCommandRecorder recorder = new ESCommandRecorder(gl);
+        TraceGL direct = new TraceGL();
+        new Script().frame(direct, 2);
+        new Script().frame(recorder, 2);
+        assertSameCalls("Forwarded calls", direct, gl);
+        assertTrue("Created a buffer", recorder.genBuffer() > 0);
+    }
+
+    public void testValueCallsThrowWhileRecording() {
+        ESCommandRecorder recorder = new ESCommandRecorder(new TraceGL());
+        recorder.begin(new ESCommandBuffer());
+        try {
+            recorder.genBuffer();
+            fail("genBuffer() while recording");
+        } catch (IllegalStateException expected) {
+        }
+        try {
+            recorder.getUniformLocation(1, "uMVPMatrix");
+            fail("getUniformLocation() while recording");
+        } catch (IllegalStateException expected) {
+        }
+    }
+
+    public void testTripleBufferHandsOverTheLatestFrame() {
+        int[] a = new int[1], b = new int[1], c = new int[1];
+        ESTripleBuffer<int[]> frames = new ESTripleBuffer<int[]>(a, b, c);
+        assertFalse("Frame before any was published", frames.acquire());
+        assertEquals("Front before any was acquired", null, frames.getFront());
+
+        frames.getBack()[0] = 1;
+        frames.publish();
+        assertTrue("Published frame", frames.acquire());
+        assertEquals("Front", 1, frames.getFront()[0]);
+        assertFalse("Same frame twice", frames.acquire());
+        assertTrue("Producer writes into the front slot", frames.getBack() != frames.getFront());
+
+        // frames the consumer misses are dropped, the newest wins
+        for (int n = 2; n <= 5; n++) {
+            frames.getBack()[0] = n;
+            frames.publish();
+            assertTrue("Producer writes into the front slot",
+                    frames.getBack() != frames.getFront());
+        }
+        assertEquals("Front kept while frames are published", 1, frames.getFront()[0]);
+        assertTrue("Newest frame", frames.acquire());
+        assertEquals("Front", 5, frames.getFront()[0]);
+    }
+
+    public void testFramesRecordedOnAnotherThreadReplayWhole() throws InterruptedException {
+        final int count = 2000;
+        final ESTripleBuffer<Frame> frames = new ESTripleBuffer<Frame>(new Frame(),
+                new Frame(), new Frame());
+        final Throwable[] failure = new Throwable[1];
+        Thread producer = new Thread(new Runnable() {
+            public void run() {
+                try {
+                    Script script = new Script();
+                    ESCommandRecorder recorder = new ESCommandRecorder(new TraceGL());
+                    for (int n = 1; n <= count; n++) {
+                        Frame frame = frames.getBack();
+                        frame.index = n;
+                        recorder.begin(frame.commands);
+                        script.frame(recorder, n);
+                        recorder.end();
+                        frames.publish();
+                    }
+                } catch (Throwable t) {
+                    failure[0] = t;
+                }
+            }
+        }, "Producer");
+        producer.start();
+
+        Script reference = new Script();
+        TraceGL replayed = new TraceGL();
+        int last = 0;
+        int checked = 0;
+        while (last < count && failure[0] == null) {
+            // checked before the acquire, so no frame is published after it
+            boolean finished = !producer.isAlive();
+            if (!frames.acquire()) {
+                if (finished)
+                    break;
+                Thread.yield();
+                continue;
+            }
+            Frame frame = frames.getFront();
+            assertTrue("Frame " + frame.index + " after " + last, frame.index > last);
+            last = frame.index;
+
+            TraceGL direct = new TraceGL();
+            reference.frame(direct, frame.index);
+            replayed.reset();
+            frame.commands.replay(replayed);
+            assertSameCalls("Frame " + frame.index, direct, replayed);
+            checked++;
+        }
+        producer.join();
+        if (failure[0] != null)
+            throw new AssertionError(failure[0]);
+        assertEquals("Last frame", count, last);
+        assertTrue("No frames checked", checked > 0);
+    }
+
+    // Fails with the first call that differs
+    private static void assertSameCalls(String message, TraceGL expected, TraceGL actual) {
+        String[] e = expected.toString().split("\n");
+        String[] a = actual.toString().split("\n");
+        for (int i = 0; i < Math.min(e.length, a.length); i++)
+            assertEquals(message + ", call " + i, e[i], a[i]);
+        assertEquals(message + ", calls", e.length, a.length);
+    }
+
+    private static TraceGL recordAndReplay(Script script, int frame) {
+        TraceGL replayed = new TraceGL();
+        ESCommandRecorder recorder = new ESCommandRecorder(replayed);
+        ESCommandBuffer commands = new ESCommandBuffer();
+        recorder.begin(commands);
+        script.frame(recorder, frame);
+        recorder.end();
+        assertTrue("Nothing recorded", commands.getCommandCount() > 0);
+        assertEquals("Calls passed through while recording", "", replayed.toString());
+        commands.replay(replayed);
+        return replayed;
+    }
+
+    private static final class Frame {
+        final ESCommandBuffer commands = new ESCommandBuffer();
+        int index;
+    }
+
+    // Every recordable call, with arguments and client data that depend
+    // on the frame number
+    private static final class Script {
+        void fill(int frame) {
+            for (int i = 0; i < mBytes.capacity(); i++)
+                mBytes.put(i, (byte) (frame * 31 + i));
+            for (int i = 0; i < mFloats.capacity(); i++)
+                mFloats.put(i, frame + i * 0.25f);
+            for (int i = 0; i < mShorts.capacity(); i++)
+                mShorts.put(i, (short) (frame * 7 + i));
+            for (int i = 0; i < mInts.capacity(); i++)
+                mInts.put(i, frame * 100003 + i);
+            for (int i = 0; i < mUniforms.length; i++)
+                mUniforms[i] = frame * 0.5f - i;
+        }
+
+        void frame(ESGL gl, int frame) {
+            fill(frame);
+            int p = frame % 5;
+            gl.bindFramebuffer(GLES20.GL_FRAMEBUFFER, frame & 1);
+            gl.viewport(p, p + 1, 800 - p, 600);
+            gl.scissor(1, 2, 3 + p, 4);
+            gl.colorMask((frame & 1) != 0, true, (frame & 2) != 0, false);
+            gl.clearColor(0.1f * p, 0.2f, 0.3f, 1.0f);
+            gl.clear(GLES20.GL_COLOR_BUFFER_BIT | GLES20.GL_DEPTH_BUFFER_BIT);
+            gl.enable(GLES20.GL_DEPTH_TEST);
+            gl.disable(GLES20.GL_CULL_FACE);
+            gl.beginQuery(0x88BF, frame + 1);
+            gl.useProgram(3 + p);
+            gl.activeTexture(GLES20.GL_TEXTURE0);
+            gl.bindTexture(GLES20.GL_TEXTURE_2D, 9);
+            gl.uniform1i(1, frame);
+            gl.uniform1f(2, frame * 0.125f);
+            gl.uniform1fv(3, 4, mUniforms, p);
+            gl.uniform3fv(4, 2, mUniforms, 1);
+            gl.uniform4fv(5, 3, mUniforms, 2);
+            gl.uniformMatrix4fv(6, 2, mUniforms, p);
+
+            gl.bindBuffer(GLES20.GL_ARRAY_BUFFER, 11);
+            mFloats.position(p);
+            gl.bufferData(GLES20.GL_ARRAY_BUFFER, 4 * (64 + p), mFloats,
+                    GLES20.GL_STREAM_DRAW);
+            mFloats.position(3);
+            gl.bufferSubData(GLES20.GL_ARRAY_BUFFER, 16, 40, mFloats);
+            mBytes.position(p + 1);
+            gl.bufferSubData(GLES20.GL_ARRAY_BUFFER, 4, 37, mBytes);
+            gl.bindBuffer(GLES20.GL_ELEMENT_ARRAY_BUFFER, 12);
+            mShorts.position(p);
+            gl.bufferData(GLES20.GL_ELEMENT_ARRAY_BUFFER, 2 * 30, mShorts,
+                    GLES20.GL_DYNAMIC_DRAW);
+            mInts.position(2);
+            gl.bufferSubData(GLES20.GL_ELEMENT_ARRAY_BUFFER, 8, 4 * 10, mInts);
+            gl.bufferData(GLES20.GL_ARRAY_BUFFER, 256, null, GLES20.GL_STREAM_DRAW);
+
+            gl.vertexAttribPointer(0, 3, GLES20.GL_FLOAT, false, 24, 0);
+            gl.vertexAttribPointer(1, 4, GLES20.GL_BYTE, true, 24, 12 + p);
+            gl.enableVertexAttribArray(0);
+            gl.enableVertexAttribArray(1);
+            gl.vertexAttribDivisor(2, 1);
+            gl.drawElements(GLES20.GL_TRIANGLES, 36 + p, GLES20.GL_UNSIGNED_SHORT, 0);
+            gl.drawElementsInstanced(GLES20.GL_TRIANGLES, 36, GLES20.GL_UNSIGNED_SHORT,
+                    2 * p, frame + 2);
+            gl.vertexAttribDivisor(2, 0);
+            gl.disableVertexAttribArray(1);
+            gl.endQuery(0x88BF);
+            gl.deleteBuffer(20 + frame);
+        }
+
+        private final ByteBuffer mBytes = ByteBuffer.allocateDirect(128)
+                .order(ByteOrder.nativeOrder());
+        private final FloatBuffer mFloats = ByteBuffer.allocateDirect(4 * 128)
+                .order(ByteOrder.nativeOrder()).asFloatBuffer();
+        private final ShortBuffer mShorts = ByteBuffer.allocateDirect(2 * 64)
+                .order(ByteOrder.nativeOrder()).asShortBuffer();
+        private final IntBuffer mInts = IntBuffer.allocate(32);
+        private final float[] mUniforms = new float[64];
+    }
+
+    // Writes every call with its arguments, and the bytes and values it
+    // reads, as one line of text
+    private static final class TraceGL implements ESGL {
+        void reset() {
+            mTrace.setLength(0);
+        }
+
+        @Override
+        public String toString() {
+            return mTrace.toString();
+        }
+
+        public int genBuffer() {
+            line("genBuffer");
+            return ++mNextName;
+        }
+
+        public void deleteBuffer(int buffer) {
+            line("deleteBuffer", buffer);
+        }
+
+        public void bindBuffer(int target, int buffer) {
+            line("bindBuffer", target, buffer);
+        }
+
+        public void bufferData(int target, int size, Buffer data, int usage) {
+            line("bufferData", target, size, usage);
+            data(data, size);
+        }
+
+        public void bufferSubData(int target, int offset, int size, Buffer data) {
+            line("bufferSubData", target, offset, size);
+            data(data, size);
+        }
+
+        public void useProgram(int program) {
+            line("useProgram", program);
+        }
+
+        public int getAttribLocation(int program, String name) {
+            line("getAttribLocation " + name, program);
+            return 0;
+        }
+
+        public int getUniformLocation(int program, String name) {
+            line("getUniformLocation " + name, program);
+            return 0;
+        }
+
+        public void uniform1i(int location, int x) {
+            line("uniform1i", location, x);
+        }
+
+        public void uniform1f(int location, float x) {
+            line("uniform1f", location);
+            mTrace.append(' ').append(x);
+        }
+
+        public void uniform1fv(int location, int count, float[] v, int offset) {
+            line("uniform1fv", location, count);
+            values(v, offset, count);
+        }
+
+        public void uniform3fv(int location, int count, float[] v, int offset) {
+            line("uniform3fv", location, count);
+            values(v, offset, count * 3);
+        }
+
+        public void uniform4fv(int location, int count, float[] v, int offset) {
+            line("uniform4fv", location, count);
+            values(v, offset, count * 4);
+        }
+
+        public void uniformMatrix4fv(int location, int count, float[] v, int offset) {
+            line("uniformMatrix4fv", location, count);
+            values(v, offset, count * 16);
+        }
+
+        public void vertexAttribPointer(int index, int size, int type, boolean normalized,
+                int stride, int offset) {
+            line("vertexAttribPointer", index, size, type, normalized ? 1 : 0, stride, offset);
+        }
+
+        public void enableVertexAttribArray(int index) {
+            line("enableVertexAttribArray", index);
+        }
+
+        public void disableVertexAttribArray(int index) {
+            line("disableVertexAttribArray", index);
+        }
+
+        public void drawElements(int mode, int count, int type, int offset) {
+            line("drawElements", mode, count, type, offset);
+        }
+
+        public void vertexAttribDivisor(int index, int divisor) {
+            line("vertexAttribDivisor", index, divisor);
+        }
+
+        public void drawElementsInstanced(int mode, int count, int type, int offset,
+                int instanceCount) {
+            line("drawElementsInstanced", mode, count, type, offset, instanceCount);
+        }
+
+        public void bindFramebuffer(int target, int framebuffer) {
+            line("bindFramebuffer", target, framebuffer);
+        }
+
+        public void activeTexture(int unit) {
+            line("activeTexture", unit);
+        }
+
+        public void bindTexture(int target, int texture) {
+            line("bindTexture", target, texture);
+        }
+
+        public void enable(int cap) {
+            line("enable", cap);
+        }
+
+        public void disable(int cap) {
+            line("disable", cap);
+        }
+
+        public void viewport(int x, int y, int width, int height) {
+            line("viewport", x, y, width, height);
+        }
+
+        public void scissor(int x, int y, int width, int height) {
+            line("scissor", x, y, width, height);
+        }
+
+        public void colorMask(boolean red, boolean green, boolean blue, boolean alpha) {
+            line("colorMask", red ? 1 : 0, green ? 1 : 0, blue ? 1 : 0, alpha ? 1 : 0);
+        }
+
+        public void clearColor(float red, float green, float blue, float alpha) {
+            line("clearColor");
+            values(new float[] { red, green, blue, alpha }, 0, 4);
+        }
+
+        public void clear(int mask) {
+            line("clear", mask);
+        }
+
+        public void beginQuery(int target, int id) {
+            line("beginQuery", target, id);
+        }
+
+        public void endQuery(int target) {
+            line("endQuery", target);
+        }
+
+        private void line(String name, int... args) {
+            mTrace.append('\n').append(name);
+            for (int a : args)
+                mTrace.append(' ').append(a);
+        }
+
+        private void values(float[] v, int offset, int n) {
+            for (int i = 0; i < n; i++)
+                mTrace.append(' ').append(v[offset + i]);
+        }
+
+        // The size bytes a driver would read from data, in native order
+        // whatever the buffer type
+        private void data(Buffer data, int size) {
+            if (data == null) {
+                mTrace.append(" null");
+                return;
+            }
+            ByteBuffer bytes = ByteBuffer.allocate(size).order(ByteOrder.nativeOrder());
+            int p = data.position();
+            for (int i = 0; bytes.hasRemaining(); i++) {
+                if (data instanceof ByteBuffer)
+                    bytes.put(((ByteBuffer) data).get(p + i));
+                else if (data instanceof FloatBuffer)
+                    bytes.putFloat(((FloatBuffer) data).get(p + i));
+                else if (data instanceof ShortBuffer)
+                    bytes.putShort(((ShortBuffer) data).get(p + i));
+                else
+                    bytes.putInt(((IntBuffer) data).get(p + i));
+            }
+            mTrace.append(" [");
+            for (int i = 0; i < size; i++)
+                mTrace.append(Integer.toHexString(bytes.get(i) & 0xff)).append(',');
+            mTrace.append(']');
+        }
+
+        private final StringBuilder mTrace = new StringBuilder();
+        private int mNextName;
+    }
+}
@@ -0,0 +1,165 @@
+package com.openglesbook.common;
+
+import com.opengles.shadow.TestCase;
+
+import java.util.Random;
+
+/**
+ * Checks the frame statistics ring: reads return the newest samples oldest
+ * first once the ring has wrapped, a reader racing the writer never sees a
+ * torn sample, and percentiles are nearest-rank over the known values.
+ */
+public class ESFrameStatsTest extends TestCase {
+
+    private static final float[] PERCENTILES = { 0.0f, 50.0f, 95.0f, 99.0f, 100.0f };
+
+    public void testReadBeforeAnyWrite() {
+        ESFrameStats stats = new ESFrameStats(8, 2);
+        assertEquals("Samples", 0, stats.getSampleCount());
+        assertEquals("Copied", 0, stats.read(new long[16], 8));
+    }
+
+    public void testReadReturnsTheSamplesWritten() {
+        ESFrameStats stats = new ESFrameStats(8, 2);
+        for (int n = 0; n < 5; n++)
+            stats.write(new long[] { n, -n });
+        long[] out = new long[16];
+        assertEquals("Copied", 5, stats.read(out, 8));
+        checkSamples(out, 5, 2, 0);
+        assertEquals("Newest two", 2, stats.read(out, 2));
+        checkSamples(out, 2, 2, 3);
+    }
+
+    public void testReadAfterWraparound() {
+        int capacity = 8;
+        ESFrameStats stats = new ESFrameStats(capacity, 2);
+        int written = 3 * capacity + 5;
+        for (int n = 0; n < written; n++)
+            stats.write(new long[] { n, -n });
+        assertEquals("Samples", written, stats.getSampleCount());
+
+        long[] out = new long[2 * capacity];
+        // asking for more than the ring holds returns the whole ring
+        assertEquals("Copied", capacity, stats.read(out, 100));
+        checkSamples(out, capacity, 2, written - capacity);
+        assertEquals("Newest three", 3, stats.read(out, 3));
+        checkSamples(out, 3, 2, written - 3);
+    }
+
+    public void testConcurrentReadsAreNeverTorn() throws Exception {
+        final int fields = 6;
+        final int samples = 200000;
+        final ESFrameStats stats = new ESFrameStats(16, fields);
+        Thread writer = new Thread("ESFrameStatsTest writer") {
+            @Override
+            public void run() {
+                long[] values = new long[fields];
+                for (int n = 0; n < samples; n++) {
+                    for (int i = 0; i < fields; i++)
+                        values[i] = n;
+                    stats.write(values);
+                }
+            }
+        };
+        writer.start();
+
+        long[] out = new long[16 * fields];
+        int reads = 0;
+        while (writer.isAlive() || reads == 0) {
+            int count = stats.read(out, 16);
+            long previous = -1;
+            for (int s = 0; s < count; s++) {
+                long n = out[s * fields];
+                for (int i = 1; i < fields; i++)
+                    assertEquals("Read " + reads + ", sample " + s + " field " + i, n,
+                            out[s * fields + i]);
+                assertTrue("Read " + reads + ": sample " + n + " after " + previous,
+                        n > previous);
+                previous = n;
+            }
+            reads++;
+        }
+        writer.join();
+        assertEquals("Copied after the writer stopped", 16, stats.read(out, 16));
+        checkSamples(out, 16, fields, samples - 16);
+    }
+
+    public void testPercentilesOfAKnownSet() {
+        // 1 to 100 in random order
+        long[] samples = new long[100];
+        for (int i = 0; i < 100; i++)
+            samples[i] = i + 1;
+        Random random = new Random(5);
+        for (int i = samples.length - 1; i > 0; i--) {
+            int j = random.nextInt(i + 1);
+            long t = samples[i];
+            samples[i] = samples[j];
+            samples[j] = t;
+        }
+        long[] result = percentiles(samples, 100, 1, 0);
+        checkValues(result, 1, 50, 95, 99, 100);
+    }
+
+    public void testPercentilesUseNearestRank() {
+        long[] samples = { 40, 10, 30, 20 };
+        // ranks ceil(p / 100 * 4): 0 clamps to the first, 50 is the second,
+        // 95 and 99 round up to the last
+        checkValues(percentiles(samples, 4, 1, 0), 10, 20, 40, 40, 40);
+        checkValues(percentiles(new long[] { 7 }, 1, 1, 0), 7, 7, 7, 7, 7);
+    }
+
+    public void testPercentilesOfOneField() {
+        // two fields; the second is unknown in every other sample
+        long[] samples = new long[2 * 10];
+        for (int i = 0; i < 10; i++) {
+            samples[2 * i] = 1000 + i;
+            samples[2 * i + 1] = i % 2 == 0 ? -1 : i;
+        }
+        checkValues(percentiles(samples, 10, 2, 0), 1000, 1004, 1009, 1009, 1009);
+        // known values 1, 3, 5, 7, 9
+        checkValues(percentiles(samples, 10, 2, 1), 1, 5, 9, 9, 9);
+        // only the first count samples are looked at
+        checkValues(percentiles(samples, 4, 2, 0), 1000, 1001, 1003, 1003, 1003);
+    }
+
+    public void testPercentilesOfAnUnknownField() {
+        long[] samples = { -1, -1, -1 };
+        checkValues(percentiles(samples, 3, 1, 0), -1, -1, -1, -1, -1);
+        checkValues(percentiles(samples, 0, 1, 0), -1, -1, -1, -1, -1);
+    }
+
+    public void testPercentilesOfWhatARingHolds() {
+        // the first samples are overwritten and leave the percentiles
+        ESFrameStats stats = new ESFrameStats(100, 1);
+        for (int n = 0; n < 250; n++)
+            stats.write(new long[] { n < 150 ? 1000000 : n - 149 });
+        long[] out = new long[100];
+        int count = stats.read(out, 100);
+        assertEquals("Copied", 100, count);
+        checkValues(percentiles(out, count, 1, 0), 1, 50, 95, 99, 100);
+    }
+
+    private static long[] percentiles(long[] samples, int count, int fields, int field) {
+        long[] result = new long[PERCENTILES.length];
+        ESFrameStats.percentiles(samples, count, fields, field, new long[Math.max(count, 1)],
+                PERCENTILES, result);
+        return result;
+    }
+
+    // Samples first, first + 1, ... each holding n and then -n, or n in
+    // every field
+    private static void checkSamples(long[] out, int count, int fields, long first) {
+        for (int s = 0; s < count; s++) {
+            long n = first + s;
+            assertEquals("Sample " + s, n, out[s * fields]);
+            for (int i = 1; i < fields; i++)
+                assertEquals("Sample " + s + " field " + i, fields == 2 ? -n : n,
+                        out[s * fields + i]);
+        }
+    }
+
+    private static void checkValues(long[] result, long... expected) {
+        for (int p = 0; p < expected.length; p++)
+            assertEquals("p" + PERCENTILES[p], expected[p], result[p]);
+    }
+}
@@ -0,0 +1,56 @@
+package com.openglesbook.common;
+
+import com.opengles.shadow.TestCase;
+
+import android.opengl.GLES20;
+
+/**
+ * Checks that ESIndices picks the smallest index type for a vertex count,
+ * exactly at the limits of each type, and that the largest index of each
+ * type reads back unsigned.
+ */
+public class ESIndicesTest extends TestCase {
+
+    public void testTypeAtTheLimits() {
+        assertEquals("1 vertex", GLES20.GL_UNSIGNED_BYTE, ESIndices.typeFor(1));
+        assertEquals("256 vertices", GLES20.GL_UNSIGNED_BYTE, ESIndices.typeFor(256));
+        assertEquals("257 vertices", GLES20.GL_UNSIGNED_SHORT, ESIndices.typeFor(257));
+        assertEquals("65536 vertices", GLES20.GL_UNSIGNED_SHORT, ESIndices.typeFor(65536));
+        assertEquals("65537 vertices", GLES20.GL_UNSIGNED_INT, ESIndices.typeFor(65537));
+    }
+
+    public void testSizes() {
+        assertEquals("Byte", 1, ESIndices.sizeOf(GLES20.GL_UNSIGNED_BYTE));
+        assertEquals("Short", 2, ESIndices.sizeOf(GLES20.GL_UNSIGNED_SHORT));
+        assertEquals("Int", 4, ESIndices.sizeOf(GLES20.GL_UNSIGNED_INT));
+        try {
+            ESIndices.sizeOf(GLES20.GL_FLOAT);
+            fail("GL_FLOAT has a size");
+        } catch (IllegalArgumentException expected) {
+        }
+    }
+
+    public void testLargestIndexOfEachType() {
+        int[] counts = { 256, 65536, 65537 };
+        int[] sizes = { 1, 2, 4 };
+        for (int t = 0; t < counts.length; t++) {
+            int last = counts[t] - 1;
+            ESIndices indices = ESIndices.allocate(3, counts[t]);
+            assertEquals(counts[t] + " vertices: size", sizes[t], indices.getSize());
+            assertEquals(counts[t] + " vertices: count", 3, indices.getCount());
+            assertEquals(counts[t] + " vertices: bytes", 3 * sizes[t],
+                    indices.getBuffer().capacity());
+            indices.put(0, 0);
+            indices.put(1, last);
+            indices.put(2, last / 2);
+            assertEquals(counts[t] + " vertices: first", 0, indices.get(0));
+            assertEquals(counts[t] + " vertices: last", last, indices.get(1));
+            assertEquals(counts[t] + " vertices: middle", last / 2, indices.get(2));
+            // the bulk copy narrows the same way
+            indices.put(0, new int[] { 7, last, 0, last }, 1, 3);
+            assertEquals(counts[t] + " vertices: bulk first", last, indices.get(0));
+            assertEquals(counts[t] + " vertices: bulk middle", 0, indices.get(1));
+            assertEquals(counts[t] + " vertices: bulk last", last, indices.get(2));
+        }
+    }
+}
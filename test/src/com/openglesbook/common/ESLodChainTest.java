@@ -0,0 +1,117 @@
+package com.openglesbook.common;
+
+import com.opengles.shadow.TestCase;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Checks that level chains coarsen in order within their error bounds,
+ * and that selectLevel() picks the coarsest level within the tolerance.
+ */
+public class ESLodChainTest extends TestCase {
+
+    private static final float RADIUS = 1.0f;
+    private static final int[] SLICES = { 32, 16, 8, 5 };
+    private static final float[] RATIOS = { 0.5f, 0.25f, 0.1f };
+
+    public void testSphereLevelsCoarsen() {
+        ESLodChain chain = ESLodChain.genSpheres(SLICES, RADIUS, null);
+        assertEquals("Levels", SLICES.length, chain.getLevelCount());
+        checkCoarsening(chain);
+        for (int i = 0; i < chain.getLevelCount(); i++) {
+            ESShapes level = chain.getLevel(i);
+            double deviation = ESShapesTest.sphereDeviation(level, RADIUS);
+            assertTrue("Level " + i + ": deviation " + deviation + " over the error "
+                    + level.getError(), deviation <= level.getError() + 1e-6);
+        }
+    }
+
+    public void testSimplifiedLevelsMeetRatios() {
+        ESShapes base = new ESShapes();
+        base.genSphere(40, RADIUS);
+        ESLodChain chain = ESLodChain.simplify(base, RATIOS, RADIUS, null);
+        assertEquals("Levels", RATIOS.length + 1, chain.getLevelCount());
+        assertTrue("Base replaced", chain.getLevel(0) == base);
+        checkCoarsening(chain);
+        // the ratios count the triangles left after welding
+        int baseTriangles = new ESMeshSimplifier(base.getVertices(), base.getNormals(),
+                base.getNumVertices(), base.getIndices(), base.getNumIndices())
+                .getTriangleCount();
+        for (int i = 0; i < RATIOS.length; i++) {
+            ESShapes level = chain.getLevel(i + 1);
+            assertTrue("Level " + (i + 1) + " has " + triangles(level) + " triangles",
+                    triangles(level) <= baseTriangles * RATIOS[i] + 1);
+            assertTrue("Level " + (i + 1) + " error " + level.getError(),
+                    level.getError() <= base.getError() + RADIUS);
+            double deviation = ESShapesTest.sphereDeviation(level, RADIUS);
+            assertTrue("Level " + (i + 1) + ": deviation " + deviation,
+                    deviation <= level.getError() + 1e-6);
+        }
+    }
+
+    public void testTightBoundCapsLevelError() {
+        ESShapes base = new ESShapes();
+        base.genSphere(40, RADIUS);
+        float maxError = 0.02f;
+        ESLodChain chain = ESLodChain.simplify(base, RATIOS, maxError, null);
+        ESShapes coarsest = chain.getLevel(chain.getLevelCount() - 1);
+        assertTrue("Coarsest level error " + coarsest.getError() + " over the bound",
+                coarsest.getError() <= base.getError() + maxError);
+        assertTrue("Coarsest level reached its ratio despite the bound",
+                triangles(coarsest) > triangles(base) * RATIOS[RATIOS.length - 1]);
+    }
+
+    public void testSelectLevelPicksCoarsestWithinTolerance() {
+        ESLodChain chain = ESLodChain.genSpheres(SLICES, RADIUS, null);
+        float maxPixelError = 1.0f;
+        for (float pixelsPerUnit = 1.0f; pixelsPerUnit < 1e5f; pixelsPerUnit *= 1.5f) {
+            int selected = chain.selectLevel(pixelsPerUnit, maxPixelError);
+            float error = chain.getLevel(selected).getError() * pixelsPerUnit;
+            if (selected > 0)
+                assertTrue("Level " + selected + " off by " + error + " pixels",
+                        error <= maxPixelError);
+            if (selected + 1 < chain.getLevelCount())
+                assertTrue("Level " + (selected + 1) + " was good enough at "
+                        + pixelsPerUnit, chain.getLevel(selected + 1).getError()
+                        * pixelsPerUnit > maxPixelError);
+        }
+        assertEquals("Tiny", SLICES.length - 1, chain.selectLevel(1e-3f, maxPixelError));
+        assertEquals("Huge", 0, chain.selectLevel(1e7f, maxPixelError));
+    }
+
+    public void testExecutorBuildsTheSameLevels() throws Exception {
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+        try {
+            ESLodChain serial = ESLodChain.genSpheres(SLICES, RADIUS, null);
+            ESLodChain parallel = ESLodChain.genSpheres(SLICES, RADIUS, executor);
+            ESShapes base = new ESShapes();
+            base.genSphere(40, RADIUS);
+            ESLodChain simplified = ESLodChain.simplify(base, RATIOS, RADIUS, null);
+            ESLodChain simplifiedParallel = ESLodChain.simplify(base, RATIOS, RADIUS, executor);
+            for (int i = 0; i < serial.getLevelCount(); i++)
+                assertEquals("Sphere level " + i, serial.getLevel(i).getInterleavedVertices(),
+                        parallel.getLevel(i).getInterleavedVertices());
+            for (int i = 0; i < simplified.getLevelCount(); i++)
+                assertEquals("Simplified level " + i,
+                        simplified.getLevel(i).getInterleavedVertices(),
+                        simplifiedParallel.getLevel(i).getInterleavedVertices());
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    // Finer levels have more triangles and less error
+    private static void checkCoarsening(ESLodChain chain) {
+        for (int i = 1; i < chain.getLevelCount(); i++) {
+            ESShapes finer = chain.getLevel(i - 1);
+            ESShapes coarser = chain.getLevel(i);
+            assertTrue("Level " + i + " triangles", triangles(coarser) < triangles(finer));
+            assertTrue("Level " + i + " error", coarser.getError() > finer.getError());
+        }
+    }
+
+    private static int triangles(ESShapes shape) {
+        return shape.getNumIndices() / 3;
+    }
+}
@@ -0,0 +1,375 @@
+package com.openglesbook.common;
+
+import com.opengles.shadow.TestCase;
+
+import java.util.Random;
+
+/**
+ * Checks ESMatrix against a straightforward double precision reference:
+ * textbook products, Gauss-Jordan inverses and the defining formulas of
+ * the transforms. Results must agree to within a few float roundings,
+ * relative to the size of the values involved.
+ */
+public class ESMatrixTest extends TestCase {
+
+    private static final int SAMPLES = 500;
+    // for products and transforms; inverses lose a little more
+    private static final double TOLERANCE = 2e-6;
+    private static final double INVERSE_TOLERANCE = 2e-5;
+
+    public void testMultiplyMM() {
+        Random random = new Random(19);
+        float[] lhs = new float[16], rhs = new float[16], result = new float[16];
+        for (int n = 0; n < SAMPLES; n++) {
+            general(random, lhs, 0);
+            affine(random, rhs, 0);
+            ESMatrix.multiplyMM(result, 0, lhs, 0, rhs, 0);
+            assertClose("lhs * rhs", multiply(lhs, 0, rhs, 0), result, 0, TOLERANCE);
+        }
+    }
+
+    public void testMultiplyMMInPlace() {
+        Random random = new Random(19);
+        float[] lhs = new float[16], rhs = new float[16];
+        for (int n = 0; n < SAMPLES; n++) {
+            general(random, lhs, 0);
+            general(random, rhs, 0);
+            double[] expected = multiply(lhs, 0, rhs, 0);
+            float[] copy = rhs.clone();
+            ESMatrix.multiplyMM(rhs, 0, lhs, 0, rhs, 0);
+            assertClose("result is rhs", expected, rhs, 0, TOLERANCE);
+            ESMatrix.multiplyMM(lhs, 0, lhs, 0, copy, 0);
+            assertClose("result is lhs", expected, lhs, 0, TOLERANCE);
+        }
+    }
+
+    public void testMultiplyMMBatch() {
+        Random random = new Random(19);
+        int count = 37;
+        float[] lhs = new float[16 + 16];
+        float[] rhs = new float[16 * count + 4];
+        float[] result = new float[16 * count + 8];
+        general(random, lhs, 16);
+        for (int i = 0; i < count; i++)
+            affine(random, rhs, 4 + i * 16);
+        ESMatrix.multiplyMMBatch(result, 8, lhs, 16, rhs, 4, count);
+        for (int i = 0; i < count; i++)
+            assertClose("Matrix " + i, multiply(lhs, 16, rhs, 4 + i * 16), result, 8 + i * 16,
+                    TOLERANCE);
+
+        // in place over the right-hand matrices
+        float[] expected = result.clone();
+        ESMatrix.multiplyMMBatch(rhs, 4, lhs, 16, rhs, 4, count);
+        for (int i = 0; i < count * 16; i++)
+            assertEquals("In place " + i, expected[8 + i], rhs[4 + i], 0.0);
+    }
+
+    public void testMultiplyMMM() {
+        Random random = new Random(19);
+        float[] p = new float[16], v = new float[16], m = new float[16];
+        float[] result = new float[16];
+        for (int n = 0; n < SAMPLES; n++) {
+            ESMatrix.frustumM(p, 0, -1.0f - random.nextFloat(), 1.0f, -0.75f,
+                    0.75f + random.nextFloat(), 0.5f + random.nextFloat(),
+                    50.0f + 100.0f * random.nextFloat());
+            affine(random, v, 0);
+            affine(random, m, 0);
+            double[] pv = multiply(p, 0, v, 0);
+            double[] expected = multiply(toFloat(pv), 0, m, 0);
+            ESMatrix.multiplyMMM(result, 0, p, 0, v, 0, m, 0);
+            // the reference rounds P * V to float once, as a two-step
+            // multiply would; allow for that
+            assertClose("p * v * m", expected, result, 0, 4 * TOLERANCE);
+            ESMatrix.multiplyMMM(m, 0, p, 0, v, 0, m, 0);
+            assertClose("result is m", expected, m, 0, 4 * TOLERANCE);
+        }
+    }
+
+    public void testMultiplyMV() {
+        Random random = new Random(19);
+        float[] m = new float[16], vec = new float[4], result = new float[4];
+        for (int n = 0; n < SAMPLES; n++) {
+            general(random, m, 0);
+            for (int i = 0; i < 4; i++)
+                vec[i] = random.nextFloat() * 20.0f - 10.0f;
+            ESMatrix.multiplyMV(result, 0, m, 0, vec, 0);
+            double scale = 0.0;
+            for (int r = 0; r < 4; r++) {
+                double expected = 0.0;
+                for (int k = 0; k < 4; k++) {
+                    expected += (double) m[k * 4 + r] * vec[k];
+                    scale += Math.abs((double) m[k * 4 + r] * vec[k]);
+                }
+                assertEquals("Row " + r, expected, result[r], TOLERANCE * (1.0 + scale));
+            }
+        }
+    }
+
+    public void testInvertM() {
+        Random random = new Random(19);
+        float[] m = new float[16], inverse = new float[16];
+        for (int n = 0; n < SAMPLES; n++) {
+            if ((n & 1) == 0) {
+                general(random, m, 0);
+            } else {
+                // projective: a perspective view-projection
+                float[] p = new float[16], v = new float[16];
+                ESMatrix.frustumM(p, 0, -1, 1, -0.75f, 0.75f, 1.0f, 20.0f);
+                affine(random, v, 0);
+                ESMatrix.multiplyMM(m, 0, p, 0, v, 0);
+            }
+            assertTrue("Singular", ESMatrix.invertM(inverse, 0, m, 0));
+            assertClose("Inverse", invert(m, 0), inverse, 0, INVERSE_TOLERANCE);
+        }
+    }
+
+    public void testInvertAffineM() {
+        Random random = new Random(19);
+        float[] m = new float[16], inverse = new float[16];
+        for (int n = 0; n < SAMPLES; n++) {
+            affine(random, m, 0);
+            assertTrue("Singular", ESMatrix.invertAffineM(inverse, 0, m, 0));
+            assertClose("Inverse", invert(m, 0), inverse, 0, INVERSE_TOLERANCE);
+        }
+    }
+
+    public void testSingularMatricesAreReported() {
+        float[] m = new float[16];
+        ESMatrix.setIdentityM(m, 0);
+        ESMatrix.scaleM(m, 0, 1.0f, 0.0f, 1.0f);
+        float[] inverse = { 7.0f, 7.0f, 7.0f, 7.0f, 7.0f, 7.0f, 7.0f, 7.0f,
+                7.0f, 7.0f, 7.0f, 7.0f, 7.0f, 7.0f, 7.0f, 7.0f };
+        assertFalse("invertM", ESMatrix.invertM(inverse, 0, m, 0));
+        assertFalse("invertAffineM", ESMatrix.invertAffineM(inverse, 0, m, 0));
+        for (int i = 0; i < 16; i++)
+            assertEquals("Output touched at " + i, 7.0, inverse[i], 0.0);
+
+        float[] normal = new float[16];
+        ESMatrix.normalMatrixM(normal, 0, m, 0);
+        for (int i = 0; i < 16; i++)
+            assertEquals("Singular normal matrix at " + i, i == 15 ? 1.0 : 0.0, normal[i], 0.0);
+    }
+
+    public void testNormalMatrix() {
+        Random random = new Random(19);
+        int count = 23;
+        float[] m = new float[16 * count];
+        float[] batch = new float[16 * count];
+        float[] single = new float[16];
+        for (int i = 0; i < count; i++)
+            affine(random, m, i * 16);
+        ESMatrix.normalMatrixBatch(batch, 0, m, 0, count);
+        for (int i = 0; i < count; i++) {
+            // inverse transpose of the upper 3x3, identity elsewhere
+            double[] inverse = invert(m, i * 16);
+            double[] expected = new double[16];
+            for (int c = 0; c < 3; c++) {
+                for (int r = 0; r < 3; r++)
+                    expected[c * 4 + r] = inverse[r * 4 + c];
+            }
+            expected[15] = 1.0;
+            assertClose("Batch matrix " + i, expected, batch, i * 16, INVERSE_TOLERANCE);
+            ESMatrix.normalMatrixM(single, 0, m, i * 16);
+            for (int k = 0; k < 16; k++)
+                assertEquals("Single and batch differ", batch[i * 16 + k], single[k], 0.0);
+        }
+    }
+
+    public void testTransforms() {
+        Random random = new Random(19);
+        float[] m = new float[16], copy = new float[16], t = new float[16];
+        for (int n = 0; n < SAMPLES; n++) {
+            general(random, m, 0);
+            System.arraycopy(m, 0, copy, 0, 16);
+            float x = random.nextFloat() * 10 - 5, y = random.nextFloat() * 10 - 5;
+            float z = random.nextFloat() * 10 - 5;
+
+            ESMatrix.translateM(m, 0, x, y, z);
+            ESMatrix.setIdentityM(t, 0);
+            t[12] = x;
+            t[13] = y;
+            t[14] = z;
+            assertClose("m * T", multiply(copy, 0, t, 0), m, 0, TOLERANCE);
+
+            System.arraycopy(copy, 0, m, 0, 16);
+            ESMatrix.scaleM(m, 0, x, y, z);
+            ESMatrix.setIdentityM(t, 0);
+            t[0] = x;
+            t[5] = y;
+            t[10] = z;
+            assertClose("m * S", multiply(copy, 0, t, 0), m, 0, TOLERANCE);
+        }
+    }
+
+    public void testSetRotateM() {
+        Random random = new Random(19);
+        float[] m = new float[16];
+        for (int n = 0; n < SAMPLES; n++) {
+            float angle = random.nextFloat() * 720.0f - 360.0f;
+            float x = random.nextFloat() * 2 - 1, y = random.nextFloat() * 2 - 1;
+            float z = random.nextFloat() * 2 - 1;
+            ESMatrix.setRotateM(m, 0, angle, x, y, z);
+
+            // Rodrigues: R = cI + s[k]x + (1 - c) k k^T
+            double len = Math.sqrt((double) x * x + (double) y * y + (double) z * z);
+            double[] k = { x / len, y / len, z / len };
+            double c = Math.cos(Math.toRadians(angle)), s = Math.sin(Math.toRadians(angle));
+            double[][] cross = { { 0, -k[2], k[1] }, { k[2], 0, -k[0] }, { -k[1], k[0], 0 } };
+            double[] expected = new double[16];
+            for (int col = 0; col < 3; col++) {
+                for (int row = 0; row < 3; row++)
+                    expected[col * 4 + row] = (row == col ? c : 0.0) + s * cross[row][col]
+                            + (1.0 - c) * k[row] * k[col];
+            }
+            expected[15] = 1.0;
+            assertClose("Rotation " + angle, expected, m, 0, TOLERANCE);
+        }
+    }
+
+    public void testFrustumM() {
+        float[] m = new float[16];
+        double l = -1.5, r = 1.0, b = -0.75, t = 0.5, n = 1.5, f = 80.0;
+        ESMatrix.frustumM(m, 0, (float) l, (float) r, (float) b, (float) t, (float) n, (float) f);
+        double[] expected = new double[16];
+        expected[0] = 2 * n / (r - l);
+        expected[5] = 2 * n / (t - b);
+        expected[8] = (r + l) / (r - l);
+        expected[9] = (t + b) / (t - b);
+        expected[10] = -(f + n) / (f - n);
+        expected[11] = -1.0;
+        expected[14] = -2 * f * n / (f - n);
+        assertClose("Frustum", expected, m, 0, TOLERANCE);
+    }
+
+    public void testSetLookAtM() {
+        Random random = new Random(19);
+        float[] view = new float[16];
+        float[] point = new float[4], result = new float[4];
+        for (int n = 0; n < SAMPLES; n++) {
+            float[] eye = new float[3], center = new float[3];
+            for (int i = 0; i < 3; i++) {
+                eye[i] = random.nextFloat() * 20 - 10;
+                center[i] = random.nextFloat() * 20 - 10;
+            }
+            ESMatrix.setLookAtM(view, 0, eye[0], eye[1], eye[2], center[0], center[1],
+                    center[2], 0.0f, 1.0f, 0.0f);
+            double distance = Math.sqrt(sq(center[0] - eye[0]) + sq(center[1] - eye[1])
+                    + sq(center[2] - eye[2]));
+            if (distance < 0.5)
+                continue;
+            double tolerance = TOLERANCE * 40.0;
+
+            // the eye goes to the origin and the center down -z
+            point[3] = 1.0f;
+            System.arraycopy(eye, 0, point, 0, 3);
+            ESMatrix.multiplyMV(result, 0, view, 0, point, 0);
+            for (int i = 0; i < 3; i++)
+                assertEquals("Eye " + i, 0.0, result[i], tolerance);
+            System.arraycopy(center, 0, point, 0, 3);
+            ESMatrix.multiplyMV(result, 0, view, 0, point, 0);
+            assertEquals("Center x", 0.0, result[0], tolerance);
+            assertEquals("Center y", 0.0, result[1], tolerance);
+            assertEquals("Center z", -distance, result[2], tolerance);
+
+            // rigid: the upper 3x3 is orthonormal
+            for (int a = 0; a < 3; a++) {
+                for (int c = 0; c < 3; c++) {
+                    double dot = 0.0;
+                    for (int r = 0; r < 3; r++)
+                        dot += (double) view[r * 4 + a] * view[r * 4 + c];
+                    assertEquals("Row dot " + a + c, a == c ? 1.0 : 0.0, dot, 1e-5);
+                }
+            }
+        }
+    }
+
+    private static double sq(double x) {
+        return x * x;
+    }
+
+    // Rotation, scale in [0.5, 2] and translation, bottom row (0, 0, 0, 1)
+    private static void affine(Random random, float[] m, int o) {
+        ESMatrix.setRotateM(m, o, random.nextFloat() * 360.0f, random.nextFloat() - 0.5f,
+                random.nextFloat() - 0.5f, random.nextFloat() - 0.5f);
+        ESMatrix.scaleM(m, o, 0.5f + 1.5f * random.nextFloat(), 0.5f + 1.5f * random.nextFloat(),
+                0.5f + 1.5f * random.nextFloat());
+        m[o + 12] = random.nextFloat() * 20.0f - 10.0f;
+        m[o + 13] = random.nextFloat() * 20.0f - 10.0f;
+        m[o + 14] = random.nextFloat() * 20.0f - 10.0f;
+    }
+
+    // Random entries in [-1, 1] on top of 3 I, which keeps them well
+    // conditioned
+    private static void general(Random random, float[] m, int o) {
+        for (int i = 0; i < 16; i++)
+            m[o + i] = random.nextFloat() * 2.0f - 1.0f + (i % 5 == 0 ? 3.0f : 0.0f);
+    }
+
+    private static double[] multiply(float[] a, int ao, float[] b, int bo) {
+        double[] out = new double[16];
+        for (int c = 0; c < 4; c++) {
+            for (int r = 0; r < 4; r++) {
+                double sum = 0.0;
+                for (int k = 0; k < 4; k++)
+                    sum += (double) a[ao + k * 4 + r] * b[bo + c * 4 + k];
+                out[c * 4 + r] = sum;
+            }
+        }
+        return out;
+    }
+
+    // Gauss-Jordan with partial pivoting, column-major like the input
+    private static double[] invert(float[] m, int o) {
+        double[][] a = new double[4][8];
+        for (int r = 0; r < 4; r++) {
+            for (int c = 0; c < 4; c++)
+                a[r][c] = m[o + c * 4 + r];
+            a[r][4 + r] = 1.0;
+        }
+        for (int c = 0; c < 4; c++) {
+            int pivot = c;
+            for (int r = c + 1; r < 4; r++) {
+                if (Math.abs(a[r][c]) > Math.abs(a[pivot][c]))
+                    pivot = r;
+            }
+            double[] swap = a[c];
+            a[c] = a[pivot];
+            a[pivot] = swap;
+            double scale = 1.0 / a[c][c];
+            for (int k = 0; k < 8; k++)
+                a[c][k] *= scale;
+            for (int r = 0; r < 4; r++) {
+                if (r == c)
+                    continue;
+                double factor = a[r][c];
+                for (int k = 0; k < 8; k++)
+                    a[r][k] -= factor * a[c][k];
+            }
+        }
+        double[] out = new double[16];
+        for (int r = 0; r < 4; r++) {
+            for (int c = 0; c < 4; c++)
+                out[c * 4 + r] = a[r][4 + c];
+        }
+        return out;
+    }
+
+    private static float[] toFloat(double[] m) {
+        float[] out = new float[m.length];
+        for (int i = 0; i < m.length; i++)
+            out[i] = (float) m[i];
+        return out;
+    }
+
+    // Every element within tolerance times the largest reference element,
+    // or of 1 for small matrices
+    private static void assertClose(String message, double[] expected, float[] actual,
+            int offset, double tolerance) {
+        double scale = 1.0;
+        for (double e : expected)
+            scale = Math.max(scale, Math.abs(e));
+        for (int i = 0; i < 16; i++)
+            assertEquals(message + ", element " + i, expected[i], actual[offset + i],
+                    tolerance * scale);
+    }
+}
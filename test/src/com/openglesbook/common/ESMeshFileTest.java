@@ -0,0 +1,264 @@
+package com.openglesbook.common;
+
+import com.opengles.shadow.TestCase;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+
+import android.opengl.GLES20;
+
+/**
+ * Checks that a shape saved to a mesh file comes back the same, mapped by
+ * ESShapes.load() or streamed to the driver by loadStreaming(), and that a
+ * truncated or corrupted file is turned down.
+ */
+public class ESMeshFileTest extends TestCase {
+
+    private File mFile;
+
+    @Override
+    protected void setUp() throws Exception {
+        mFile = File.createTempFile("ESMeshFileTest", ".esm");
+    }
+
+    @Override
+    protected void tearDown() {
+        mFile.delete();
+    }
+
+    public void testMappedRoundTrip() throws IOException {
+        // a cube has byte indices, a sphere short and a large grid int ones
+        ESShapes cube = new ESShapes();
+        cube.genCube(1.0f);
+        ESShapes sphere = new ESShapes();
+        sphere.genSphere(24, 2.0f);
+        ESShapes grid = new ESShapes();
+        grid.genGrid(300, 300, 10.0f);
+        ESShapes[] shapes = { cube, sphere, grid };
+        int[] types = { GLES20.GL_UNSIGNED_BYTE, GLES20.GL_UNSIGNED_SHORT,
+                GLES20.GL_UNSIGNED_INT };
+        for (int s = 0; s < shapes.length; s++) {
+            String name = "Shape " + s;
+            assertEquals(name + " index type", types[s], shapes[s].getIndexType());
+            shapes[s].save(mFile);
+            ESShapes loaded = ESShapes.load(mFile);
+            assertSameHeader(name, shapes[s], loaded);
+            assertEquals(name + " loaded index type", types[s], loaded.getIndexType());
+            assertSameBytes(name + " vertices", shapes[s].getInterleavedVertices(),
+                    loaded.getInterleavedVertices());
+            ESIndices expected = shapes[s].getIndices();
+            ESIndices indices = loaded.getIndices();
+            for (int i = 0; i < shapes[s].getNumIndices(); i++)
+                assertEquals(name + " index " + i, expected.get(i), indices.get(i));
+            assertEquals(name + " file length", ESMeshFile.HEADER_SIZE
+                    + shapes[s].getNumVertices() * shapes[s].getVertexFormat().getStride()
+                    + shapes[s].getNumIndices() * expected.getSize(), mFile.length());
+        }
+    }
+
+    public void testDecodedPositionsMatchTheSource() throws IOException {
+        ESShapes sphere = new ESShapes(new ESVertexFormat(ESVertexFormat.Encoding.HALF_FLOAT,
+                ESVertexFormat.Encoding.INT_10_10_10_2, ESVertexFormat.Encoding.FLOAT));
+        sphere.genSphere(16, 2.0f);
+        sphere.save(mFile);
+        ESShapes loaded = ESShapes.load(mFile);
+        ESVertexFormat format = loaded.getVertexFormat();
+        assertEquals("Position encoding", ESVertexFormat.Encoding.HALF_FLOAT,
+                format.getEncoding(ESVertexFormat.POSITION));
+        assertEquals("Normal encoding", ESVertexFormat.Encoding.INT_10_10_10_2,
+                format.getEncoding(ESVertexFormat.NORMAL));
+        float error = format.getMaxError(ESVertexFormat.POSITION, 2.0f);
+        float[] decoded = new float[3];
+        for (int v = 0; v < loaded.getNumVertices(); v++) {
+            format.decode(loaded.getInterleavedVertices(), v, ESVertexFormat.POSITION, decoded);
+            for (int c = 0; c < 3; c++)
+                assertEquals("Vertex " + v + "." + c, sphere.getVertices().get(v * 3 + c),
+                        decoded[c], error);
+        }
+    }
+
+    public void testStreamingRoundTrip() throws IOException {
+        ESShapes sphere = new ESShapes();
+        sphere.genSphere(24, 2.0f);
+        sphere.save(mFile);
+        // not a divisor of either size, so the last chunk is a short one
+        int chunkBytes = 1000;
+        ESShapes streamed = ESShapes.loadStreaming(mFile, chunkBytes);
+        assertSameHeader("Streamed", sphere, streamed);
+        assertEquals("Index type", sphere.getIndexType(), streamed.getIndexType());
+
+        CapturingGL gl = new CapturingGL();
+        streamed.createBuffers(gl, false);
+        int vertexBytes = sphere.getNumVertices() * sphere.getVertexFormat().getStride();
+        int indexBytes = sphere.getNumIndices() * sphere.getIndices().getSize();
+        assertSameBytes("Vertices", sphere.getInterleavedVertices(),
+                gl.getBufferData(streamed.getVertexBufferId()));
+        assertSameBytes("Indices", sphere.getIndices().getBuffer(),
+                gl.getBufferData(streamed.getIndexBufferId()));
+        // one glBufferData, then a glBufferSubData per chunk
+        assertEquals("Vertex uploads", 1 + (vertexBytes + chunkBytes - 1) / chunkBytes,
+                gl.getUploadCount(streamed.getVertexBufferId()));
+        assertEquals("Index uploads", 1 + (indexBytes + chunkBytes - 1) / chunkBytes,
+                gl.getUploadCount(streamed.getIndexBufferId()));
+
+        // after a context loss the file is read again
+        CapturingGL lost = new CapturingGL();
+        streamed.createBuffers(lost, false);
+        assertSameBytes("Vertices after a context loss", sphere.getInterleavedVertices(),
+                lost.getBufferData(streamed.getVertexBufferId()));
+    }
+
+    public void testStreamedIntIndicesNeedSupport() throws IOException {
+        ESShapes grid = new ESShapes();
+        grid.genGrid(300, 300, 10.0f);
+        grid.save(mFile);
+        ESShapes streamed = ESShapes.loadStreaming(mFile, 1 << 16);
+        try {
+            streamed.createBuffers(new CapturingGL(), false);
+            fail("Streamed 32-bit indices without support");
+        } catch (IllegalStateException expected) {
+        }
+        CapturingGL gl = new CapturingGL();
+        streamed.createBuffers(gl, true);
+        assertSameBytes("Indices", grid.getIndices().getBuffer(),
+                gl.getBufferData(streamed.getIndexBufferId()));
+    }
+
+    public void testTruncatedFileIsRejected() throws IOException {
+        ESShapes sphere = new ESShapes();
+        sphere.genSphere(8, 1.0f);
+        sphere.save(mFile);
+        long length = mFile.length();
+        long[] lengths = { length - 1, ESMeshFile.HEADER_SIZE + 4, ESMeshFile.HEADER_SIZE - 1, 0 };
+        for (long truncated : lengths) {
+            RandomAccessFile file = new RandomAccessFile(mFile, "rw");
+            try {
+                file.setLength(truncated);
+            } finally {
+                file.close();
+            }
+            assertRejected(truncated + " bytes");
+        }
+    }
+
+    public void testCorruptHeaderIsRejected() throws IOException {
+        ESShapes sphere = new ESShapes();
+        sphere.genSphere(8, 1.0f);
+        // offset and the byte written there: magic, version, an encoding out
+        // of range, one no position can have, an index size, the stride
+        int[][] corruptions = { { 0, 'X' }, { 4, 2 }, { 8, 99 }, { 8, 2 }, { 11, 3 },
+                { 12, 20 } };
+        for (int[] corruption : corruptions) {
+            sphere.save(mFile);
+            writeByte(corruption[0], corruption[1]);
+            assertRejected("Byte " + corruption[0] + " set to " + corruption[1]);
+        }
+        // the unchanged file is fine
+        sphere.save(mFile);
+        ESMeshFile.open(mFile);
+    }
+
+    public void testVerifyPackedDataCatchesCorruptVertices() throws IOException {
+        ESShapes sphere = new ESShapes();
+        sphere.genSphere(16, 2.0f);
+        assertTrue("Generated data fails", sphere.verifyPackedData());
+        sphere.save(mFile);
+
+        // data mapped back from the file checks out against the floats it
+        // was packed from
+        ByteBuffer packed = sphere.getInterleavedVertices();
+        copyInto(packed, ESShapes.load(mFile).getInterleavedVertices());
+        assertTrue("Mapped data fails", sphere.verifyPackedData());
+
+        // flip an exponent bit of the x of vertex 5 in the file
+        ESVertexFormat format = sphere.getVertexFormat();
+        int offset = ESMeshFile.HEADER_SIZE + 5 * format.getStride()
+                + format.getOffset(ESVertexFormat.POSITION) + 3;
+        RandomAccessFile file = new RandomAccessFile(mFile, "rw");
+        try {
+            file.seek(offset);
+            int b = file.read();
+            file.seek(offset);
+            file.write(b ^ 0x40);
+        } finally {
+            file.close();
+        }
+        copyInto(packed, ESShapes.load(mFile).getInterleavedVertices());
+        assertFalse("Corrupt data passes", sphere.verifyPackedData());
+    }
+
+    private void assertRejected(String message) {
+        try {
+            ESMeshFile.open(mFile);
+            fail(message + ": file accepted");
+        } catch (IOException expected) {
+        }
+        try {
+            ESShapes.load(mFile);
+            fail(message + ": file mapped");
+        } catch (IOException expected) {
+        }
+        try {
+            ESShapes.loadStreaming(mFile, 1024);
+            fail(message + ": file streamed");
+        } catch (IOException expected) {
+        }
+    }
+
+    private void writeByte(int offset, int value) throws IOException {
+        RandomAccessFile file = new RandomAccessFile(mFile, "rw");
+        try {
+            file.seek(offset);
+            file.write(value);
+        } finally {
+            file.close();
+        }
+    }
+
+    private static void copyInto(ByteBuffer target, ByteBuffer source) {
+        ByteBuffer to = target.duplicate();
+        ByteBuffer from = source.duplicate();
+        to.clear();
+        from.clear();
+        to.put(from);
+    }
+
+    private static void assertSameHeader(String message, ESShapes expected, ESShapes actual) {
+        assertEquals(message + " vertices", expected.getNumVertices(), actual.getNumVertices());
+        assertEquals(message + " indices", expected.getNumIndices(), actual.getNumIndices());
+        assertEquals(message + " stride", expected.getVertexFormat().getStride(),
+                actual.getVertexFormat().getStride());
+        float[] a = new float[6];
+        float[] b = new float[6];
+        expected.getBoundingBox(a);
+        actual.getBoundingBox(b);
+        for (int i = 0; i < 6; i++)
+            assertEquals(message + " box " + i, a[i], b[i], 0.0);
+        expected.getBoundingSphere(a);
+        actual.getBoundingSphere(b);
+        for (int i = 0; i < 4; i++)
+            assertEquals(message + " sphere " + i, a[i], b[i], 0.0);
+        assertEquals(message + " error", expected.getError(), actual.getError(), 0.0);
+    }
+
+    private static void assertSameBytes(String message, ByteBuffer expected, ByteBuffer actual) {
+        byte[] bytes = new byte[actual.capacity()];
+        ByteBuffer copy = actual.duplicate();
+        copy.clear();
+        copy.get(bytes);
+        assertSameBytes(message, expected, bytes);
+    }
+
+    private static void assertSameBytes(String message, ByteBuffer expected, byte[] actual) {
+        if (actual == null)
+            fail(message + ": nothing uploaded");
+        assertEquals(message + " length", expected.capacity(), actual.length);
+        for (int i = 0; i < actual.length; i++) {
+            if (expected.get(i) != actual[i])
+                fail(message + ": byte " + i + " is " + actual[i] + ", expected "
+                        + expected.get(i));
+        }
+    }
+}
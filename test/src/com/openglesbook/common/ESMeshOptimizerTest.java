@@ -0,0 +1,134 @@
+package com.openglesbook.common;
+
+import com.opengles.shadow.TestCase;
+
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Checks that the vertex cache pass keeps every triangle and its winding,
+ * stays fast on triangle soups, where every triangle is a dead end, and
+ * orders shuffled meshes at least as well as a full search of the
+ * triangles left at each dead end did. The ACMR limits are what that
+ * search gave for the same meshes.
+ */
+public class ESMeshOptimizerTest extends TestCase {
+
+    private static final int SOUP_TRIANGLES = 125000;
+
+    public void testTriangleSoupIsFast() {
+        int[] soup = new int[SOUP_TRIANGLES * 3];
+        for (int i = 0; i < soup.length; i++)
+            soup[i] = i;
+        ESIndices indices = toIndices(soup, soup.length);
+        // the full search took over 6 s here
+        long time = System.nanoTime();
+        ESMeshOptimizer.optimizeVertexCache(indices, soup.length, soup.length);
+        double seconds = (System.nanoTime() - time) * 1e-9;
+        assertTrue(SOUP_TRIANGLES + " triangle soup took " + seconds + " s", seconds < 1.0);
+        checkSameTriangles(soup, indices);
+        assertEquals("ACMR", 3.0, ESMeshOptimizer.computeAcmr(indices, soup.length,
+                soup.length, ESMeshOptimizer.CACHE_SIZE), 0.0);
+    }
+
+    public void testShuffledGridAcmr() {
+        checkAcmr("Grid", grid(100, 100, 1), 101 * 101, 0.6792f);
+    }
+
+    public void testShuffledIslandsAcmr() {
+        // dead ends at every island, with no way on from the cache
+        checkAcmr("Islands", grid(4, 4, 3000), 25 * 3000, 0.7813f);
+    }
+
+    public void testShuffledSphereAcmr() {
+        ESShapes sphere = new ESShapes();
+        sphere.genSphere(128, 1.0f);
+        int[] triangles = new int[sphere.getNumIndices()];
+        for (int i = 0; i < triangles.length; i++)
+            triangles[i] = sphere.getIndices().get(i);
+        checkAcmr("Sphere", triangles, sphere.getNumVertices(), 0.6671f);
+    }
+
+    public void testEmptyList() {
+        ESIndices indices = ESIndices.allocate(3, 3);
+        ESMeshOptimizer.optimizeVertexCache(indices, 0, 3);
+        assertEquals("ACMR", 0.0, ESMeshOptimizer.computeAcmr(indices, 0, 3,
+                ESMeshOptimizer.CACHE_SIZE), 0.0);
+    }
+
+    private static void checkAcmr(String name, int[] triangles, int numVertices, float limit) {
+        shuffle(triangles, new Random(7));
+        ESIndices indices = toIndices(triangles, numVertices);
+        ESMeshOptimizer.optimizeVertexCache(indices, triangles.length, numVertices);
+        checkSameTriangles(triangles, indices);
+        float acmr = ESMeshOptimizer.computeAcmr(indices, triangles.length, numVertices,
+                ESMeshOptimizer.CACHE_SIZE);
+        assertTrue(name + " ACMR " + acmr + " worse than " + limit, acmr <= limit + 1e-4f);
+    }
+
+    // The output holds the same triangles, each starting from any of its
+    // vertices but in the same winding
+    private static void checkSameTriangles(int[] source, ESIndices indices) {
+        int triangles = source.length / 3;
+        long[] expected = new long[triangles];
+        long[] actual = new long[triangles];
+        for (int t = 0; t < triangles; t++) {
+            expected[t] = triangleKey(source[t * 3], source[t * 3 + 1], source[t * 3 + 2]);
+            actual[t] = triangleKey(indices.get(t * 3), indices.get(t * 3 + 1),
+                    indices.get(t * 3 + 2));
+        }
+        Arrays.sort(expected);
+        Arrays.sort(actual);
+        assertTrue("Triangles or windings changed", Arrays.equals(expected, actual));
+    }
+
+    // Rotated so the smallest index comes first, which keeps the winding
+    private static long triangleKey(int a, int b, int c) {
+        if (b < a && b < c)
+            return triangleKey(b, c, a);
+        if (c < a && c < b)
+            return triangleKey(c, a, b);
+        return ((long) a << 42) | ((long) b << 21) | c;
+    }
+
+    // Copies of a columns x rows grid of two triangles per quad, each copy
+    // with its own vertices
+    private static int[] grid(int columns, int rows, int copies) {
+        int vertices = (columns + 1) * (rows + 1);
+        int[] triangles = new int[columns * rows * 6 * copies];
+        int o = 0;
+        for (int copy = 0; copy < copies; copy++) {
+            for (int i = 0; i < rows; i++) {
+                for (int j = 0; j < columns; j++) {
+                    int a = copy * vertices + i * (columns + 1) + j;
+                    int b = a + columns + 1;
+                    triangles[o++] = a;
+                    triangles[o++] = b;
+                    triangles[o++] = a + 1;
+                    triangles[o++] = a + 1;
+                    triangles[o++] = b;
+                    triangles[o++] = b + 1;
+                }
+            }
+        }
+        return triangles;
+    }
+
+    private static void shuffle(int[] triangles, Random random) {
+        for (int i = triangles.length / 3 - 1; i > 0; i--) {
+            int j = random.nextInt(i + 1);
+            for (int k = 0; k < 3; k++) {
+                int swap = triangles[i * 3 + k];
+                triangles[i * 3 + k] = triangles[j * 3 + k];
+                triangles[j * 3 + k] = swap;
+            }
+        }
+    }
+
+    private static ESIndices toIndices(int[] triangles, int numVertices) {
+        ESIndices indices = ESIndices.allocate(triangles.length, numVertices);
+        for (int i = 0; i < triangles.length; i++)
+            indices.put(i, triangles[i]);
+        return indices;
+    }
+}
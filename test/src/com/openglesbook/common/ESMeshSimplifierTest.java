@@ -0,0 +1,102 @@
+package com.openglesbook.common;
+
+import com.opengles.shadow.TestCase;
+
+/**
+ * Checks that simplification reaches its triangle target unless the error
+ * bound stops it first, and that the error it reports bounds how far the
+ * result strays from the source surface.
+ */
+public class ESMeshSimplifierTest extends TestCase {
+
+    private static final float RADIUS = 1.0f;
+
+    public void testSphereReachesTargetWithinLooseBound() {
+        ESShapes sphere = new ESShapes();
+        sphere.genSphere(40, RADIUS);
+        ESMeshSimplifier simplifier = simplifierFor(sphere);
+        for (int target : new int[] { 400, 200, 100 }) {
+            ESMeshSimplifier.Result result = simplifier.simplify(target, RADIUS);
+            assertTrue("Target " + target + ", got " + result.getTriangleCount(),
+                    result.getTriangleCount() <= target);
+            assertTrue("Target " + target + " barely simplified",
+                    result.getTriangleCount() > target - 4);
+            assertTrue("Error " + result.getError(), result.getError() <= RADIUS);
+        }
+    }
+
+    public void testTightBoundStopsShortOfTarget() {
+        ESShapes sphere = new ESShapes();
+        sphere.genSphere(40, RADIUS);
+        ESMeshSimplifier simplifier = simplifierFor(sphere);
+        float maxError = 0.01f;
+        ESMeshSimplifier.Result result = simplifier.simplify(50, maxError);
+        assertTrue("Reached the target with an error of " + result.getError(),
+                result.getTriangleCount() > 50);
+        assertTrue("Nothing collapsed", result.getTriangleCount() < simplifier.getTriangleCount());
+        assertTrue("Error " + result.getError() + " over the bound " + maxError,
+                result.getError() <= maxError);
+    }
+
+    public void testZeroBoundKeepsCurvedSurface() {
+        ESShapes sphere = new ESShapes();
+        sphere.genSphere(20, RADIUS);
+        ESShapes simplified = sphere.simplify(1, 0.0f);
+        // only collapses that move nothing, such as at the poles, are made
+        assertTrue("Collapsed down to " + simplified.getNumIndices() / 3 + " triangles",
+                simplified.getNumIndices() > sphere.getNumIndices() * 9 / 10);
+        assertEquals("Error", sphere.getError(), simplified.getError(), 0.0);
+        double deviation = ESShapesTest.sphereDeviation(simplified, RADIUS);
+        assertTrue("Deviation " + deviation, deviation <= sphere.getError() + 1e-6);
+    }
+
+    public void testFlatGridCollapsesWithoutError() {
+        ESShapes grid = new ESShapes();
+        grid.genGrid(8, 8, 2.0f);
+        ESMeshSimplifier simplifier = simplifierFor(grid);
+        assertEquals("Welded triangles", 128, simplifier.getTriangleCount());
+        ESMeshSimplifier.Result result = simplifier.simplify(2, 1e-4f);
+        assertTrue("Flat grid left with " + result.getTriangleCount() + " triangles",
+                result.getTriangleCount() <= 8);
+        assertTrue("Error " + result.getError(), result.getError() <= 1e-4f);
+
+        // the borders are held, so the area is the same
+        double area = 0.0;
+        int[] indices = result.getIndices();
+        for (int t = 0; t < indices.length; t += 3)
+            area += triangleArea(grid, indices[t], indices[t + 1], indices[t + 2]);
+        assertEquals("Area", 4.0, area, 1e-4);
+    }
+
+    public void testSimplifiedSphereStaysWithinReportedError() {
+        ESShapes sphere = new ESShapes();
+        sphere.genSphere(40, RADIUS);
+        for (float maxError : new float[] { 0.01f, 0.05f, 0.2f }) {
+            ESShapes simplified = sphere.simplify(20, maxError);
+            assertTrue("Error " + simplified.getError() + " over the bound",
+                    simplified.getError() <= sphere.getError() + maxError);
+            double deviation = ESShapesTest.sphereDeviation(simplified, RADIUS);
+            assertTrue("Bound " + maxError + ": deviation " + deviation
+                    + " over the error " + simplified.getError(),
+                    deviation <= simplified.getError() + 1e-6);
+        }
+    }
+
+    private static ESMeshSimplifier simplifierFor(ESShapes shape) {
+        return new ESMeshSimplifier(shape.getVertices(), shape.getNormals(),
+                shape.getNumVertices(), shape.getIndices(), shape.getNumIndices());
+    }
+
+    private static double triangleArea(ESShapes shape, int a, int b, int c) {
+        double[] e1 = new double[3];
+        double[] e2 = new double[3];
+        for (int k = 0; k < 3; k++) {
+            e1[k] = shape.getVertices().get(b * 3 + k) - shape.getVertices().get(a * 3 + k);
+            e2[k] = shape.getVertices().get(c * 3 + k) - shape.getVertices().get(a * 3 + k);
+        }
+        double x = e1[1] * e2[2] - e1[2] * e2[1];
+        double y = e1[2] * e2[0] - e1[0] * e2[2];
+        double z = e1[0] * e2[1] - e1[1] * e2[0];
+        return 0.5 * Math.sqrt(x * x + y * y + z * z);
+    }
+}
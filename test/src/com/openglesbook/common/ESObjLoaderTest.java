@@ -0,0 +1,191 @@
+package com.openglesbook.common;
+
+import com.opengles.shadow.TestCase;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.StringReader;
+import java.nio.FloatBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Checks that ESObjLoader turns faces into triangle fans, shares a vertex
+ * between faces that name the same position, texcoord and normal, with
+ * positive or negative indices, and reports malformed statements with
+ * their line.
+ */
+public class ESObjLoaderTest extends TestCase {
+
+    // Two quads sharing the edge from v2 to v3. The second face names its
+    // corners relative to the end of the lists: -5 is v2 once six
+    // positions are read, -3 is vt2 of four.
+    private static final String TWO_QUADS =
+            "# two quads\n"
+            + "o quads\n"
+            + "v 0 0 0\n"
+            + "v 1 0 0\n"
+            + "v 1 1 0\n"
+            + "v 0 1 0\n"
+            + "vt 0 0\n"
+            + "vt 1 0\n"
+            + "vt 1 1\n"
+            + "vt 0 1\n"
+            + "vn 0 0 1\n"
+            + "\n"
+            + "usemtl plain\n"
+            + "s off\n"
+            + "f 1/1/1 2/2/1 3/3/1 4/4/1\n"
+            + "v 2 0 0\n"
+            + "v\t2 1 0   # tab separated\n"
+            + "f -5/-3/-1 -2/-4/-1 -1/-1/-1 -4/-2/-1\n";
+
+    public void testSharedAndNegativeIndices() throws IOException {
+        ESShapes shape = load(TWO_QUADS);
+        // four corners, and two new ones for the second quad
+        assertEquals("Vertices", 6, shape.getNumVertices());
+        String v1 = corner(0, 0, 0, 0, 0);
+        String v2 = corner(1, 0, 0, 1, 0);
+        String v3 = corner(1, 1, 0, 1, 1);
+        String v4 = corner(0, 1, 0, 0, 1);
+        String v5 = corner(2, 0, 0, 0, 0);
+        String v6 = corner(2, 1, 0, 0, 1);
+        checkTriangles(shape, v1, v2, v3, v1, v3, v4, v2, v5, v6, v2, v6, v3);
+        for (int v = 0; v < 6; v++)
+            checkNormal(shape, v, 0, 0, 1);
+    }
+
+    public void testNegativeIndicesMatchPositiveOnes() throws IOException {
+        String positive = TWO_QUADS.replace("f -5/-3/-1 -2/-4/-1 -1/-1/-1 -4/-2/-1",
+                "f 2/2/1 5/1/1 6/4/1 3/3/1");
+        ESShapes expected = load(positive);
+        ESShapes shape = load(TWO_QUADS);
+        assertEquals("Vertices", expected.getNumVertices(), shape.getNumVertices());
+        assertEquals("Triangles", triangles(expected), triangles(shape));
+    }
+
+    public void testTexcoordSeamSplitsAVertex() throws IOException {
+        // the same position with two texcoords is two vertices
+        ESShapes shape = load("v 0 0 0\nv 1 0 0\nv 0 1 0\nvt 0 0\nvt 1 1\n"
+                + "f 1/1 2/1 3/1\nf 1/2 3/1 2/1\n");
+        assertEquals("Vertices", 4, shape.getNumVertices());
+        String v2 = corner(1, 0, 0, 0, 0);
+        String v3 = corner(0, 1, 0, 0, 0);
+        checkTriangles(shape, corner(0, 0, 0, 0, 0), v2, v3, corner(0, 0, 0, 1, 1), v3, v2);
+    }
+
+    public void testMissingNormalsAreSmoothed() throws IOException {
+        // a tent: two faces meeting at the ridge, one with normals given as
+        // "v//vn", the other with none; positions only ("v") there
+        ESShapes shape = load("v -1 0 0\nv 0 1 0\nv 0 1 -1\nv 1 0 0\nv 1 0 -1\nv -1 0 -1\n"
+                + "vn 0 0 1\n"
+                + "f 1//1 4//1 2//1\n"
+                + "f 2 4 5 3\n");
+        // corners 2 and 4 appear twice: with the given normal and without
+        assertEquals("Vertices", 7, shape.getNumVertices());
+        // the second face slopes down to +x: its normal is (1, 1, 0) / sqrt 2
+        float s = (float) Math.sqrt(0.5);
+        int given = 0;
+        FloatBuffer normals = shape.getNormals();
+        for (int v = 0; v < 7; v++) {
+            if (normals.get(v * 3 + 2) > 0.5f) {
+                checkNormal(shape, v, 0, 0, 1);
+                given++;
+            } else {
+                checkNormal(shape, v, s, s, 0);
+            }
+        }
+        assertEquals("Corners with the given normal", 3, given);
+    }
+
+    public void testLoadFromAFile() throws IOException {
+        File file = File.createTempFile("ESObjLoaderTest", ".obj");
+        try {
+            FileOutputStream out = new FileOutputStream(file);
+            try {
+                out.write(TWO_QUADS.getBytes("US-ASCII"));
+            } finally {
+                out.close();
+            }
+            ESShapes shape = ESObjLoader.load(file, ESVertexFormat.createDefault());
+            assertEquals("Indices", 12, shape.getNumIndices());
+            assertTrue("Packed data", shape.verifyPackedData());
+        } finally {
+            file.delete();
+        }
+    }
+
+    public void testMalformedStatementsNameTheirLine() {
+        checkRejected("v 0 0 0\nv 1 0 0\nv 0 1 0\nf 1 2 4\n", "line 4");
+        checkRejected("v 0 0 0\nv 1 0 0\nf 1 2\n", "line 3");
+        checkRejected("v 0 0 0\nv 1 0 0\nv 0 1 0\nf 1 2 -4\n", "line 4");
+        checkRejected("v 0 0\n", "line 1");
+        checkRejected("# ok\nvn 0 x 1\n", "line 2");
+        checkRejected("v 0 0 0\nv 1 0 0\nv 0 1 0\nf 0 1 2\n", "line 4");
+    }
+
+    private static ESShapes load(String obj) throws IOException {
+        return ESObjLoader.load(new StringReader(obj), ESVertexFormat.createDefault());
+    }
+
+    private static void checkRejected(String obj, String where) {
+        try {
+            load(obj);
+            fail("Accepted:\n" + obj);
+        } catch (IOException e) {
+            assertTrue("Message " + e.getMessage() + " does not start with " + where,
+                    e.getMessage().startsWith(where + ":"));
+        }
+    }
+
+    // The shape holds exactly these triangles, three corners each, in any
+    // order and starting from any corner, but wound as given. Loaded shapes
+    // are optimized, which reorders both triangles and vertices.
+    private static void checkTriangles(ESShapes shape, String... corners) {
+        List<String> expected = new ArrayList<String>();
+        for (int i = 0; i < corners.length; i += 3)
+            expected.add(triangle(corners[i], corners[i + 1], corners[i + 2]));
+        Collections.sort(expected);
+        assertEquals("Triangles", expected, triangles(shape));
+    }
+
+    private static List<String> triangles(ESShapes shape) {
+        List<String> triangles = new ArrayList<String>();
+        ESIndices indices = shape.getIndices();
+        for (int i = 0; i < shape.getNumIndices(); i += 3) {
+            triangles.add(triangle(corner(shape, indices.get(i)),
+                    corner(shape, indices.get(i + 1)), corner(shape, indices.get(i + 2))));
+        }
+        Collections.sort(triangles);
+        return triangles;
+    }
+
+    // Rotated to start at the least corner, which keeps the winding
+    private static String triangle(String a, String b, String c) {
+        if (b.compareTo(a) < 0 && b.compareTo(c) < 0)
+            return b + " " + c + " " + a;
+        if (c.compareTo(a) < 0 && c.compareTo(b) < 0)
+            return c + " " + a + " " + b;
+        return a + " " + b + " " + c;
+    }
+
+    private static String corner(float x, float y, float z, float s, float t) {
+        return "(" + x + " " + y + " " + z + " | " + s + " " + t + ")";
+    }
+
+    private static String corner(ESShapes shape, int v) {
+        FloatBuffer positions = shape.getVertices();
+        FloatBuffer texCoords = shape.getTexCoords();
+        return corner(positions.get(v * 3), positions.get(v * 3 + 1), positions.get(v * 3 + 2),
+                texCoords.get(v * 2), texCoords.get(v * 2 + 1));
+    }
+
+    private static void checkNormal(ESShapes shape, int v, float x, float y, float z) {
+        FloatBuffer normals = shape.getNormals();
+        assertEquals("Normal " + v + " x", x, normals.get(v * 3), 1e-6);
+        assertEquals("Normal " + v + " y", y, normals.get(v * 3 + 1), 1e-6);
+        assertEquals("Normal " + v + " z", z, normals.get(v * 3 + 2), 1e-6);
+    }
+}
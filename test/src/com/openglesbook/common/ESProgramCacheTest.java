@@ -0,0 +1,246 @@
+package com.openglesbook.common;
+
+import com.opengles.shadow.TestCase;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.zip.CRC32;
+
+/**
+ * Checks how ESProgramCache keys programs, when it throws saved binaries
+ * away, and the layout of its files, with a stub compiler whose "binary"
+ * is the shader sources.
+ */
+public class ESProgramCacheTest extends TestCase {
+
+    private static final String DRIVER = "stub driver 1";
+    private static final int FORMAT = 0x1234;
+
+    @Override
+    protected void setUp() throws IOException {
+        mDir = File.createTempFile("programs", "");
+        if (!mDir.delete() || !mDir.mkdir())
+            throw new IOException("Could not create " + mDir);
+    }
+
+    @Override
+    protected void tearDown() {
+        File[] files = mDir.listFiles();
+        if (files != null) {
+            for (File file : files)
+                file.delete();
+        }
+        mDir.delete();
+    }
+
+    public void testSameSourcesShareOneProgram() {
+        StubCompiler compiler = new StubCompiler();
+        ESProgramCache cache = new ESProgramCache(compiler, null, DRIVER);
+        int program = cache.getProgram("vs", "fs");
+        assertTrue("No program", program != 0);
+        assertEquals("Same sources", program, cache.getProgram("vs", "fs"));
+        assertEquals("Compiles", 1, cache.getCompileCount());
+    }
+
+    public void testKeyCoversBothSources() {
+        ESProgramCache cache = new ESProgramCache(new StubCompiler(), null, DRIVER);
+        int a = cache.getProgram("vsa", "fs");
+        int b = cache.getProgram("vs", "afs");
+        int c = cache.getProgram("vs", "fs");
+        assertTrue("Split moved between the sources", a != b && b != c && a != c);
+        assertTrue("Hash ignores where the sources split",
+                ESProgramCache.hashSources("vsa", "fs") != ESProgramCache.hashSources("vs", "afs"));
+        assertEquals("Compiles", 3, cache.getCompileCount());
+    }
+
+    public void testFailedCompileIsNotCached() {
+        StubCompiler compiler = new StubCompiler();
+        compiler.failCompile = true;
+        ESProgramCache cache = new ESProgramCache(compiler, mDir, DRIVER);
+        assertEquals("Failed program", 0, cache.getProgram("vs", "fs"));
+        compiler.failCompile = false;
+        assertTrue("Program after a failure", cache.getProgram("vs", "fs") != 0);
+        assertEquals("Compile attempts", 2, compiler.compiles.size());
+    }
+
+    public void testNoDirectoryKeepsNothing() {
+        new ESProgramCache(new StubCompiler(), null, DRIVER).getProgram("vs", "fs");
+        StubCompiler compiler = new StubCompiler();
+        ESProgramCache cache = new ESProgramCache(compiler, null, DRIVER);
+        cache.getProgram("vs", "fs");
+        assertEquals("Compiles", 1, cache.getCompileCount());
+        assertEquals("Files", 0, mDir.list().length);
+    }
+
+    public void testBinaryIsReloadedByTheNextCache() {
+        new ESProgramCache(new StubCompiler(), mDir, DRIVER).getProgram("vs", "fs");
+        assertEquals("Files", 1, mDir.list().length);
+
+        StubCompiler compiler = new StubCompiler();
+        ESProgramCache cache = new ESProgramCache(compiler, mDir, DRIVER);
+        assertTrue("No program", cache.getProgram("vs", "fs") != 0);
+        assertEquals("Compiles", 0, cache.getCompileCount());
+        assertEquals("Binary loads", 1, cache.getBinaryLoadCount());
+        assertEquals("Format", FORMAT, compiler.loadedFormat);
+        assertEquals("Binary", "vs\0fs", compiler.loaded.get(0));
+    }
+
+    public void testOtherDriverInvalidates() {
+        new ESProgramCache(new StubCompiler(), mDir, DRIVER).getProgram("vs", "fs");
+        checkRecompiled(new ESProgramCache(new StubCompiler(), mDir, "stub driver 2"),
+                "stub driver 2");
+    }
+
+    public void testDamagedBinaryInvalidates() throws IOException {
+        new ESProgramCache(new StubCompiler(), mDir, DRIVER).getProgram("vs", "fs");
+        File file = mDir.listFiles()[0];
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            // the first binary byte, after the fixed header
+            long at = file.length() - 8 - 5;
+            raf.seek(at);
+            int b = raf.read();
+            raf.seek(at);
+            raf.write(b ^ 0x40);
+        } finally {
+            raf.close();
+        }
+        checkRecompiled(new ESProgramCache(new StubCompiler(), mDir, DRIVER), DRIVER);
+    }
+
+    public void testTruncatedEntryInvalidates() throws IOException {
+        new ESProgramCache(new StubCompiler(), mDir, DRIVER).getProgram("vs", "fs");
+        File file = mDir.listFiles()[0];
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            raf.setLength(file.length() / 2);
+        } finally {
+            raf.close();
+        }
+        checkRecompiled(new ESProgramCache(new StubCompiler(), mDir, DRIVER), DRIVER);
+    }
+
+    public void testRefusedBinaryInvalidates() {
+        new ESProgramCache(new StubCompiler(), mDir, DRIVER).getProgram("vs", "fs");
+        StubCompiler compiler = new StubCompiler();
+        compiler.refuseBinaries = true;
+        checkRecompiled(new ESProgramCache(compiler, mDir, DRIVER), DRIVER);
+    }
+
+    public void testNoBinarySavesNothing() {
+        StubCompiler compiler = new StubCompiler();
+        compiler.noBinaries = true;
+        new ESProgramCache(compiler, mDir, DRIVER).getProgram("vs", "fs");
+        assertEquals("Files", 0, mDir.list().length);
+    }
+
+    public void testFileLayout() throws IOException {
+        new ESProgramCache(new StubCompiler(), mDir, DRIVER).getProgram("vs", "fs");
+        long hash = ESProgramCache.hashSources("vs", "fs");
+        File file = new File(mDir, ESProgramCache.getFileName(hash));
+        assertTrue("No " + file.getName(), file.isFile());
+        assertEquals("Name", String.format("%016x.bin", hash), file.getName());
+
+        DataInputStream in = new DataInputStream(new FileInputStream(file));
+        try {
+            assertEquals("Magic", 0x45535042, in.readInt());
+            assertEquals("Version", ESProgramCache.VERSION, in.readInt());
+            assertEquals("Driver", DRIVER, in.readUTF());
+            assertEquals("Hash", hash, in.readLong());
+            assertEquals("Source length", "vs\0fs".length(), in.readInt());
+            assertEquals("Format", FORMAT, in.readInt());
+            int length = in.readInt();
+            byte[] binary = new byte[length];
+            in.readFully(binary);
+            assertEquals("Binary", "vs\0fs", new String(binary, "UTF-8"));
+            CRC32 crc = new CRC32();
+            crc.update(binary);
+            assertEquals("Checksum", crc.getValue(), in.readLong());
+            assertEquals("Trailing bytes", -1, in.read());
+        } finally {
+            in.close();
+        }
+    }
+
+    public void testEntryRoundTrip() throws IOException {
+        byte[] binary = { 1, 2, 3, 4, 5 };
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        ESProgramCache.writeEntry(out, DRIVER, 42L, 7, FORMAT, binary);
+        byte[] entry = out.toByteArray();
+
+        int[] format = new int[1];
+        byte[] read = ESProgramCache.readEntry(new ByteArrayInputStream(entry), DRIVER, 42L,
+                7, format);
+        assertTrue("Binary", Arrays.equals(binary, read));
+        assertEquals("Format", FORMAT, format[0]);
+
+        assertEquals("Other hash", null, ESProgramCache.readEntry(
+                new ByteArrayInputStream(entry), DRIVER, 43L, 7, format));
+        assertEquals("Other source length", null, ESProgramCache.readEntry(
+                new ByteArrayInputStream(entry), DRIVER, 42L, 8, format));
+        assertEquals("Other driver", null, ESProgramCache.readEntry(
+                new ByteArrayInputStream(entry), "other", 42L, 7, format));
+    }
+
+    // The stale entry is dropped and replaced by a fresh compile's, which
+    // the next cache for the same driver loads
+    private void checkRecompiled(ESProgramCache cache, String driverId) {
+        assertTrue("No program", cache.getProgram("vs", "fs") != 0);
+        assertEquals("Compiles", 1, cache.getCompileCount());
+        assertEquals("Binary loads", 0, cache.getBinaryLoadCount());
+
+        StubCompiler compiler = new StubCompiler();
+        ESProgramCache next = new ESProgramCache(compiler, mDir, driverId);
+        next.getProgram("vs", "fs");
+        assertEquals("Binary loads after the rewrite", 1, next.getBinaryLoadCount());
+        assertEquals("Rewritten binary", "vs\0fs", compiler.loaded.get(0));
+    }
+
+    // Compiles by handing out names; a program's binary is its sources
+    private static final class StubCompiler implements ESProgramCache.Compiler {
+        public int compile(String vertShaderSrc, String fragShaderSrc) {
+            compiles.add(vertShaderSrc + '\0' + fragShaderSrc);
+            return failCompile ? 0 : compiles.size();
+        }
+
+        public byte[] getBinary(int program, int[] format) {
+            if (noBinaries)
+                return null;
+            format[0] = FORMAT;
+            try {
+                return compiles.get(program - 1).getBytes("UTF-8");
+            } catch (IOException e) {
+                throw new AssertionError(e);
+            }
+        }
+
+        public int loadBinary(int format, byte[] binary) {
+            if (refuseBinaries)
+                return 0;
+            loadedFormat = format;
+            try {
+                loaded.add(new String(binary, "UTF-8"));
+            } catch (IOException e) {
+                throw new AssertionError(e);
+            }
+            return 1000 + loaded.size();
+        }
+
+        final List<String> compiles = new ArrayList<String>();
+        final List<String> loaded = new ArrayList<String>();
+        int loadedFormat;
+        boolean failCompile;
+        boolean noBinaries;
+        boolean refuseBinaries;
+    }
+
+    private File mDir;
+}
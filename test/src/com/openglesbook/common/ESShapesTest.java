@@ -0,0 +1,240 @@
+package com.openglesbook.common;
+
+import com.opengles.shadow.TestCase;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import android.opengl.GLES20;
+
+/**
+ * Checks that generated spheres close at both poles for any slice count
+ * and that their triangles stay within getError() of the ideal sphere,
+ * that shapes generated in parallel bands are bit for bit the ones
+ * generated on one thread, and that a mesh too large for 16-bit indices is
+ * split into parts that draw the same triangles where 32-bit indices are
+ * missing.
+ */
+public class ESShapesTest extends TestCase {
+
+    private static final float RADIUS = 1.0f;
+
+    public void testSphereReachesBothPoles() {
+        for (int slices = 4; slices <= 21; slices++) {
+            ESShapes sphere = new ESShapes();
+            sphere.genSphere(slices, RADIUS);
+            float[] box = new float[6];
+            sphere.getBoundingBox(box);
+            assertEquals(slices + " slices, bottom", -RADIUS, box[1], 1e-6);
+            assertEquals(slices + " slices, top", RADIUS, box[4], 1e-6);
+        }
+    }
+
+    public void testSphereErrorBoundsTheSurface() {
+        for (int slices = 4; slices <= 21; slices++) {
+            ESShapes sphere = new ESShapes();
+            sphere.genSphere(slices, RADIUS);
+            double deviation = sphereDeviation(sphere, RADIUS);
+            assertTrue(slices + " slices: deviation " + deviation + " over the error "
+                    + sphere.getError(), deviation <= sphere.getError() + 1e-6);
+        }
+    }
+
+    public void testParallelSphereMatchesSerial() throws Exception {
+        // odd counts leave a short last band
+        for (int slices : new int[] { 512, 721, 1024 }) {
+            ESShapes serial = new ESShapes();
+            serial.genSphere(slices, RADIUS);
+            assertTrue(slices + " slices are filled inline", serial.getNumVertices()
+                    >= ESGridBuilder.PARALLEL_MIN_VERTICES);
+            for (int threads = 2; threads <= 3; threads++) {
+                ExecutorService executor = Executors.newFixedThreadPool(threads);
+                try {
+                    ESShapes parallel = new ESShapes();
+                    parallel.genSphere(slices, RADIUS, executor);
+                    assertSameShape(slices + " slices, " + threads + " threads", serial, parallel);
+                } finally {
+                    executor.shutdown();
+                }
+            }
+        }
+    }
+
+    public void testParallelGridMatchesSerial() throws Exception {
+        int[][] sizes = { { 300, 300 }, { 1000, 77 }, { 77, 1000 }, { 511, 257 } };
+        for (int[] size : sizes) {
+            String name = size[0] + "x" + size[1];
+            ESShapes serial = new ESShapes();
+            serial.genGrid(size[0], size[1], 10.0f);
+            assertTrue(name + " is filled inline", serial.getNumVertices()
+                    >= ESGridBuilder.PARALLEL_MIN_VERTICES);
+            for (int threads = 2; threads <= 3; threads++) {
+                ExecutorService executor = Executors.newFixedThreadPool(threads);
+                try {
+                    ESShapes parallel = new ESShapes();
+                    parallel.genGrid(size[0], size[1], 10.0f, executor);
+                    assertSameShape(name + ", " + threads + " threads", serial, parallel);
+                } finally {
+                    executor.shutdown();
+                }
+            }
+        }
+    }
+
+    public void testSplitPartsRebuildTheTriangles() {
+        ESShapes sphere = new ESShapes();
+        sphere.genSphere(512, RADIUS);
+        assertTrue("Too few vertices to split", sphere.getNumVertices() > 1 << 16);
+        assertEquals("Index type", GLES20.GL_UNSIGNED_INT, sphere.getIndexType());
+
+        CapturingGL gl = new CapturingGL();
+        sphere.createBuffers(gl, false);
+        int parts = sphere.draw(gl, 0, 1);
+        assertTrue("Parts " + parts, parts >= 2);
+        assertEquals("Draw calls", parts, gl.getDrawCallCount());
+        assertEquals("Recorded draws", parts, gl.getDrawCount());
+
+        int stride = sphere.getVertexFormat().getStride();
+        int position = sphere.getVertexFormat().getOffset(ESVertexFormat.POSITION);
+        ByteBuffer source = sphere.getInterleavedVertices();
+        ESIndices indices = sphere.getIndices();
+        byte[] vertexData = gl.getBufferData(sphere.getVertexBufferId());
+        ByteBuffer partIndices = ByteBuffer.wrap(gl.getBufferData(sphere.getIndexBufferId()))
+                .order(ByteOrder.nativeOrder());
+        int next = 0;
+        for (int p = 0; p < parts; p++) {
+            int[] draw = gl.getDraw(p);
+            String name = "Part " + p;
+            assertEquals(name + " type", GLES20.GL_UNSIGNED_SHORT, draw[1]);
+            assertEquals(name + " count", 0, draw[0] % 3);
+            // parts follow each other through the index buffer
+            assertEquals(name + " first index", next, draw[2] / 2);
+            int base = (draw[3] - position) / stride;
+            assertEquals(name + " pointer", base * stride + position, draw[3]);
+            int end = p + 1 < parts ? (gl.getDraw(p + 1)[3] - position) / stride
+                    : vertexData.length / stride;
+            assertTrue(name + ": " + (end - base) + " vertices", end - base <= 1 << 16);
+            for (int i = next; i < next + draw[0]; i++) {
+                int local = partIndices.getShort(i * 2) & 0xffff;
+                assertTrue(name + " index " + i + " past the part", base + local < end);
+                // the part's copy of the vertex is the vertex the original
+                // triangle named
+                int original = indices.get(i);
+                for (int b = 0; b < stride; b++) {
+                    if (vertexData[(base + local) * stride + b] != source.get(original * stride
+                            + b))
+                        fail(name + " index " + i + ": vertex " + (base + local)
+                                + " is not vertex " + original);
+                }
+            }
+            next += draw[0];
+        }
+        assertEquals("Indices drawn", sphere.getNumIndices(), next);
+    }
+
+    public void testUnsplitMeshDrawsOnce() {
+        ESShapes sphere = new ESShapes();
+        sphere.genSphere(512, RADIUS);
+        CapturingGL gl = new CapturingGL();
+        sphere.createBuffers(gl, true);
+        assertEquals("Parts", 1, sphere.draw(gl, 0, 1));
+        assertEquals("Draw calls", 1, gl.getDrawCallCount());
+        int[] draw = gl.getDraw(0);
+        assertEquals("Type", GLES20.GL_UNSIGNED_INT, draw[1]);
+        assertEquals("Count", sphere.getNumIndices(), draw[0]);
+        assertEquals("Offset", 0, draw[2]);
+
+        // a mesh 16-bit indices address is never split
+        ESShapes small = new ESShapes();
+        small.genSphere(64, RADIUS);
+        small.createBuffers(gl, false);
+        assertEquals("Small parts", 1, small.draw(gl, 0, 1));
+        assertEquals("Small type", small.getIndexType(), gl.getDraw(1)[1]);
+    }
+
+    // Same counts, and the same bits in every stream, the packed vertices,
+    // the indices, the bounds and the error
+    private static void assertSameShape(String name, ESShapes expected, ESShapes actual) {
+        assertEquals(name + ": vertices", expected.getNumVertices(), actual.getNumVertices());
+        assertEquals(name + ": indices", expected.getNumIndices(), actual.getNumIndices());
+        assertSameBits(name + ": positions", expected.getVertices(), actual.getVertices());
+        assertSameBits(name + ": normals", expected.getNormals(), actual.getNormals());
+        assertSameBits(name + ": texture coordinates", expected.getTexCoords(),
+                actual.getTexCoords());
+
+        ByteBuffer expectedPacked = expected.getInterleavedVertices();
+        ByteBuffer actualPacked = actual.getInterleavedVertices();
+        assertEquals(name + ": packed size", expectedPacked.capacity(), actualPacked.capacity());
+        for (int i = 0; i < expectedPacked.capacity(); i++) {
+            if (expectedPacked.get(i) != actualPacked.get(i))
+                fail(name + ": packed vertices differ at byte " + i);
+        }
+
+        ESIndices expectedIndices = expected.getIndices();
+        ESIndices actualIndices = actual.getIndices();
+        assertEquals(name + ": index type", expectedIndices.getType(), actualIndices.getType());
+        for (int i = 0; i < expected.getNumIndices(); i++) {
+            if (expectedIndices.get(i) != actualIndices.get(i))
+                fail(name + ": index " + i + " is " + actualIndices.get(i)
+                        + ", not " + expectedIndices.get(i));
+        }
+
+        float[] expectedBox = new float[6];
+        float[] actualBox = new float[6];
+        expected.getBoundingBox(expectedBox);
+        actual.getBoundingBox(actualBox);
+        assertSameBits(name + ": box", FloatBuffer.wrap(expectedBox), FloatBuffer.wrap(actualBox));
+        float[] expectedSphere = new float[4];
+        float[] actualSphere = new float[4];
+        expected.getBoundingSphere(expectedSphere);
+        actual.getBoundingSphere(actualSphere);
+        assertSameBits(name + ": sphere", FloatBuffer.wrap(expectedSphere),
+                FloatBuffer.wrap(actualSphere));
+        assertEquals(name + ": error", Float.floatToRawIntBits(expected.getError()),
+                Float.floatToRawIntBits(actual.getError()));
+    }
+
+    // Compares raw bits, which tells 0.0f from -0.0f, unlike equals()
+    private static void assertSameBits(String name, FloatBuffer expected, FloatBuffer actual) {
+        assertEquals(name + " length", expected.capacity(), actual.capacity());
+        for (int i = 0; i < expected.capacity(); i++) {
+            int expectedBits = Float.floatToRawIntBits(expected.get(i));
+            int actualBits = Float.floatToRawIntBits(actual.get(i));
+            if (expectedBits != actualBits)
+                fail(name + " differ at " + i + ": " + actual.get(i) + ", not "
+                        + expected.get(i));
+        }
+    }
+
+    // Largest distance from the sphere of points sampled across every
+    // triangle of the shape
+    static double sphereDeviation(ESShapes shape, float radius) {
+        final int steps = 4;
+        FloatBuffer vertices = shape.getVertices();
+        ESIndices indices = shape.getIndices();
+        double worst = 0.0;
+        for (int t = 0; t < shape.getNumIndices(); t += 3) {
+            int a = indices.get(t) * 3;
+            int b = indices.get(t + 1) * 3;
+            int c = indices.get(t + 2) * 3;
+            for (int i = 0; i <= steps; i++) {
+                for (int j = 0; i + j <= steps; j++) {
+                    double u = (double) i / steps;
+                    double v = (double) j / steps;
+                    double w = 1.0 - u - v;
+                    double length = 0.0;
+                    for (int k = 0; k < 3; k++) {
+                        double p = u * vertices.get(a + k) + v * vertices.get(b + k)
+                                + w * vertices.get(c + k);
+                        length += p * p;
+                    }
+                    worst = Math.max(worst, Math.abs(radius - Math.sqrt(length)));
+                }
+            }
+        }
+        return worst;
+    }
+}
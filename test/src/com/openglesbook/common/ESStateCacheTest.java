@@ -0,0 +1,200 @@
+package com.openglesbook.common;
+
+import com.opengles.shadow.TestCase;
+
+import android.opengl.GLES20;
+
+/**
+ * Checks that ESStateCache drops calls that would not change the GL state
+ * and forwards every other one: uniform values are kept per program,
+ * attribute pointers remember the buffer they captured, invalidate()
+ * forgets everything, and the counters add up to the calls made.
+ */
+public class ESStateCacheTest extends TestCase {
+
+    private static final int ARRAY = GLES20.GL_ARRAY_BUFFER;
+
+    private RecordingGL mGL;
+    private ESStateCache mCache;
+
+    @Override
+    protected void setUp() {
+        mGL = new RecordingGL();
+        mCache = new ESStateCache(mGL);
+    }
+
+    public void testRepeatedCallsAreSuppressed() {
+        float[] color = { 1.0f, 0.5f, 0.25f, 1.0f };
+        for (int pass = 0; pass < 3; pass++) {
+            mGL.reset();
+            mCache.useProgram(1);
+            mCache.activeTexture(GLES20.GL_TEXTURE0);
+            mCache.bindTexture(GLES20.GL_TEXTURE_2D, 7);
+            mCache.enable(GLES20.GL_DEPTH_TEST);
+            mCache.enableVertexAttribArray(2);
+            mCache.uniform4fv(3, 1, color, 0);
+            mCache.uniform1i(4, 0);
+            mCache.bindBuffer(ARRAY, 5);
+            mCache.viewport(0, 0, 640, 480);
+            mCache.colorMask(true, true, true, false);
+            assertEquals("Pass " + pass + " calls", pass == 0 ? 10 : 0, mGL.getCallCount());
+        }
+    }
+
+    public void testChangedStateIsForwarded() {
+        mCache.enable(GLES20.GL_DEPTH_TEST);
+        mCache.enableVertexAttribArray(2);
+        mCache.useProgram(1);
+        mCache.uniform1f(3, 0.0f);
+        mGL.reset();
+        mCache.disable(GLES20.GL_DEPTH_TEST);
+        mCache.disableVertexAttribArray(2);
+        mCache.useProgram(2);
+        mCache.useProgram(1);
+        // the same value to ==, but other bits
+        mCache.uniform1f(3, -0.0f);
+        assertEquals("Calls", 5, mGL.getCallCount());
+    }
+
+    public void testTexturesAreTrackedPerUnit() {
+        mCache.activeTexture(GLES20.GL_TEXTURE0);
+        mCache.bindTexture(GLES20.GL_TEXTURE_2D, 7);
+        mCache.activeTexture(GLES20.GL_TEXTURE0 + 1);
+        mGL.reset();
+        mCache.bindTexture(GLES20.GL_TEXTURE_2D, 7);
+        assertEquals("Bind on another unit", 1, mGL.getCallCount());
+        mCache.activeTexture(GLES20.GL_TEXTURE0);
+        mCache.bindTexture(GLES20.GL_TEXTURE_2D, 7);
+        assertEquals("Bind back on the first unit", 2, mGL.getCallCount());
+    }
+
+    public void testUniformValuesArePerProgram() {
+        mCache.useProgram(1);
+        mCache.uniform1f(3, 1.0f);
+        mCache.useProgram(2);
+        mGL.reset();
+        // location 3 of program 2 was never set
+        mCache.uniform1f(3, 1.0f);
+        assertEquals("First value in program 2", 1, mGL.getCallCount());
+
+        mCache.useProgram(1);
+        mGL.reset();
+        mCache.uniform1f(3, 1.0f);
+        assertEquals("Value program 1 holds", 0, mGL.getCallCount());
+        mCache.uniform1f(3, 2.0f);
+        assertEquals("New value in program 1", 1, mGL.getCallCount());
+
+        mCache.useProgram(2);
+        mGL.reset();
+        mCache.uniform1f(3, 1.0f);
+        assertEquals("Value program 2 still holds", 0, mGL.getCallCount());
+    }
+
+    public void testUniformArraysCompareEveryElement() {
+        float[] matrices = new float[32];
+        mCache.useProgram(1);
+        mCache.uniformMatrix4fv(0, 2, matrices, 0);
+        mGL.reset();
+        mCache.uniformMatrix4fv(0, 2, matrices, 0);
+        assertEquals("Same matrices", 0, mGL.getCallCount());
+        matrices[31] = 1.0f;
+        mCache.uniformMatrix4fv(0, 2, matrices, 0);
+        assertEquals("Last element changed", 1, mGL.getCallCount());
+        // fewer elements at the same location is another value
+        mCache.uniformMatrix4fv(0, 1, matrices, 0);
+        assertEquals("Shorter array", 2, mGL.getCallCount());
+    }
+
+    public void testUniformsWithoutAProgramAreForwarded() {
+        mCache.uniform1i(0, 1);
+        mCache.uniform1i(0, 1);
+        mCache.useProgram(1);
+        mCache.uniform1i(-1, 1);
+        mCache.uniform1i(-1, 1);
+        assertEquals("Suppressed", 0, mCache.getSuppressedCount());
+    }
+
+    public void testAttribPointerFollowsTheBoundBuffer() {
+        mCache.bindBuffer(ARRAY, 5);
+        mCache.vertexAttribPointer(0, 3, GLES20.GL_FLOAT, false, 24, 0);
+        mGL.reset();
+        mCache.vertexAttribPointer(0, 3, GLES20.GL_FLOAT, false, 24, 0);
+        assertEquals("Same pointer, same buffer", 0, mGL.getCallCount());
+
+        mCache.bindBuffer(ARRAY, 6);
+        mGL.reset();
+        mCache.vertexAttribPointer(0, 3, GLES20.GL_FLOAT, false, 24, 0);
+        assertEquals("Same pointer, other buffer", 1, mGL.getCallCount());
+        mCache.vertexAttribPointer(0, 3, GLES20.GL_FLOAT, false, 24, 12);
+        assertEquals("Other offset", 2, mGL.getCallCount());
+
+        // a deleted buffer's name can come back for new data
+        mCache.deleteBuffer(6);
+        mCache.bindBuffer(ARRAY, 6);
+        mGL.reset();
+        mCache.vertexAttribPointer(0, 3, GLES20.GL_FLOAT, false, 24, 12);
+        assertEquals("Pointer into a deleted buffer", 1, mGL.getCallCount());
+    }
+
+    public void testDeletedBufferIsUnbound() {
+        mCache.bindBuffer(ARRAY, 5);
+        mCache.deleteBuffer(5);
+        mGL.reset();
+        mCache.bindBuffer(ARRAY, 5);
+        assertEquals("Bind after delete", 1, mGL.getCallCount());
+    }
+
+    public void testInvalidateForwardsEverythingAgain() {
+        float[] color = { 1.0f, 0.5f, 0.25f, 1.0f };
+        mCache.useProgram(1);
+        mCache.uniform4fv(3, 1, color, 0);
+        mCache.activeTexture(GLES20.GL_TEXTURE0);
+        mCache.bindTexture(GLES20.GL_TEXTURE_2D, 7);
+        mCache.enable(GLES20.GL_DEPTH_TEST);
+        mCache.enableVertexAttribArray(2);
+        mCache.bindBuffer(ARRAY, 5);
+        mCache.vertexAttribPointer(2, 3, GLES20.GL_FLOAT, false, 0, 0);
+        mCache.bindFramebuffer(GLES20.GL_FRAMEBUFFER, 0);
+        mCache.scissor(1, 2, 3, 4);
+        mCache.clearColor(0.0f, 0.0f, 0.0f, 1.0f);
+
+        mCache.invalidate();
+        mGL.reset();
+        mCache.useProgram(1);
+        mCache.uniform4fv(3, 1, color, 0);
+        mCache.activeTexture(GLES20.GL_TEXTURE0);
+        mCache.bindTexture(GLES20.GL_TEXTURE_2D, 7);
+        mCache.enable(GLES20.GL_DEPTH_TEST);
+        mCache.enableVertexAttribArray(2);
+        mCache.bindBuffer(ARRAY, 5);
+        mCache.vertexAttribPointer(2, 3, GLES20.GL_FLOAT, false, 0, 0);
+        mCache.bindFramebuffer(GLES20.GL_FRAMEBUFFER, 0);
+        mCache.scissor(1, 2, 3, 4);
+        mCache.clearColor(0.0f, 0.0f, 0.0f, 1.0f);
+        assertEquals("Calls after invalidate()", 11, mGL.getCallCount());
+    }
+
+    public void testCountersAddUpToTheCallsMade() {
+        float[] v = new float[4];
+        int made = 0;
+        for (int i = 0; i < 10; i++) {
+            mCache.useProgram(1 + i % 2);
+            mCache.uniform4fv(0, 1, v, 0);
+            mCache.bindBuffer(ARRAY, 5);
+            mCache.enable(GLES20.GL_SCISSOR_TEST);
+            mCache.drawElements(GLES20.GL_TRIANGLES, 6, GLES20.GL_UNSIGNED_SHORT, 0);
+            made += 5;
+        }
+        // every program switch, each program's first uniform, one bind, one
+        // enable and every draw
+        assertEquals("Issued", 10 + 2 + 1 + 1 + 10, mCache.getIssuedCount());
+        assertEquals("Issued matches forwarded", mGL.getCallCount(), mCache.getIssuedCount());
+        assertEquals("Suppressed", made - mCache.getIssuedCount(), mCache.getSuppressedCount());
+
+        mCache.resetCounters();
+        assertEquals("Issued after reset", 0, mCache.getIssuedCount());
+        assertEquals("Suppressed after reset", 0, mCache.getSuppressedCount());
+        mCache.bindBuffer(ARRAY, 5);
+        assertEquals("Suppressed bind", 1, mCache.getSuppressedCount());
+    }
+}
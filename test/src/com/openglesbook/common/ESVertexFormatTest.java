@@ -0,0 +1,101 @@
+package com.openglesbook.common;
+
+import com.openglesbook.common.ESVertexFormat.Encoding;
+import com.opengles.shadow.TestCase;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+
+/**
+ * Checks the packed vertex encodings against the OpenGL ES 2.0 conversion
+ * of signed normalized integers, (2c + 1) / (2^b - 1), and that the error
+ * bounds verifyPackedData() checks against hold and are tight.
+ */
+public class ESVertexFormatTest extends TestCase {
+
+    private static final int STEPS = 20000;
+
+    public void testByteCodesDecodeByTheEs20Rule() {
+        ESVertexFormat format = ESVertexFormat.createDefault();
+        ByteBuffer packed = ByteBuffer.allocate(format.getStride()).order(ByteOrder.nativeOrder());
+        int offset = format.getOffset(ESVertexFormat.NORMAL);
+        packed.put(offset, (byte) -128);
+        packed.put(offset + 1, (byte) 127);
+        packed.put(offset + 2, (byte) 0);
+
+        float[] decoded = new float[3];
+        format.decode(packed, 0, ESVertexFormat.NORMAL, decoded);
+        assertEquals("Code -128", -1.0, decoded[0], 0.0);
+        assertEquals("Code 127", 1.0, decoded[1], 0.0);
+        assertEquals("Code 0", 1.0 / 255.0, decoded[2], 1e-7);
+    }
+
+    public void testByteNormalErrorWithinBound() {
+        checkNormalError(ESVertexFormat.createDefault(), 255);
+    }
+
+    public void testPacked1010102NormalErrorWithinBound() {
+        checkNormalError(new ESVertexFormat(Encoding.HALF_FLOAT, Encoding.INT_10_10_10_2,
+                Encoding.UNSIGNED_SHORT), 1023);
+    }
+
+    public void testShapesVerify() {
+        ESShapes sphere = new ESShapes();
+        sphere.genSphere(20, 1.0f);
+        assertTrue("Sphere", sphere.verifyPackedData());
+        ESShapes cube = new ESShapes();
+        cube.genCube(2.0f);
+        assertTrue("Cube", cube.verifyPackedData());
+        ESShapes compact = new ESShapes(new ESVertexFormat(Encoding.HALF_FLOAT,
+                Encoding.INT_10_10_10_2, Encoding.UNSIGNED_SHORT));
+        compact.genSphere(20, 1.0f);
+        assertTrue("Compact sphere", compact.verifyPackedData());
+    }
+
+    public void testVerifyRejectsNormalOffByOneCode() {
+        ESShapes cube = new ESShapes();
+        cube.genCube(2.0f);
+        ESVertexFormat format = cube.getVertexFormat();
+        ByteBuffer packed = cube.getInterleavedVertices();
+        // the cube's face normals are exact codes; one step is past the bound
+        int at = format.getOffset(ESVertexFormat.NORMAL);
+        byte code = packed.get(at);
+        packed.put(at, (byte) (code > 0 ? code - 1 : code + 1));
+        assertFalse("A normal one code off passed", cube.verifyPackedData());
+    }
+
+    // Packs normal components across [-1, 1] and checks the decoded error
+    // against getMaxError(), which must also be reached within a tenth
+    private static void checkNormalError(ESVertexFormat format, int steps) {
+        FloatBuffer positions = FloatBuffer.allocate(3 * (STEPS + 1));
+        FloatBuffer normals = FloatBuffer.allocate(3 * (STEPS + 1));
+        FloatBuffer texCoords = FloatBuffer.allocate(2 * (STEPS + 1));
+        for (int i = 0; i <= STEPS; i++) {
+            float x = -1.0f + 2.0f * i / STEPS;
+            normals.put(x).put(-x).put(x * 0.5f);
+        }
+        ByteBuffer packed = format.pack(positions, normals, texCoords, STEPS + 1);
+
+        float bound = format.getMaxError(ESVertexFormat.NORMAL, 1.0f);
+        assertEquals("Bound", 1.0 / steps, bound, 1e-9);
+        float[] decoded = new float[3];
+        double worst = 0.0;
+        for (int i = 0; i <= STEPS; i++) {
+            format.decode(packed, i, ESVertexFormat.NORMAL, decoded);
+            for (int c = 0; c < 3; c++) {
+                double error = Math.abs(decoded[c] - normals.get(i * 3 + c));
+                assertTrue("Error " + error + " at " + normals.get(i * 3 + c)
+                        + " over the bound " + bound, error <= bound);
+                worst = Math.max(worst, error);
+            }
+        }
+        assertTrue("Bound " + bound + " is loose, worst error " + worst,
+                worst > 0.9 * bound);
+
+        // the ends are exact
+        format.decode(packed, 0, ESVertexFormat.NORMAL, decoded);
+        assertEquals("-1", -1.0, decoded[0], 0.0);
+        assertEquals("1", 1.0, decoded[1], 0.0);
+    }
+}
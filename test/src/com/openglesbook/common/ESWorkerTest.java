@@ -0,0 +1,149 @@
+package com.openglesbook.common;
+
+import com.opengles.shadow.TestCase;
+
+import java.util.concurrent.ExecutionException;
+
+/**
+ * Checks that an ESWorker runs one posted task at a time, reports what a
+ * task threw from await(), and that quit() lets the posted task finish
+ * and then ends the thread.
+ */
+public class ESWorkerTest extends TestCase {
+
+    private static final long TIMEOUT_MS = 5000;
+
+    private ESWorker mWorker;
+    private String mName;
+
+    @Override
+    protected void setUp() {
+        mName = "ESWorkerTest-" + System.nanoTime();
+        mWorker = new ESWorker(mName);
+    }
+
+    @Override
+    protected void tearDown() {
+        mWorker.quit();
+    }
+
+    public void testTasksRunInTurn() throws Exception {
+        final int[] runs = new int[1];
+        final Thread[] ranOn = new Thread[1];
+        Runnable task = new Runnable() {
+            public void run() {
+                runs[0]++;
+                ranOn[0] = Thread.currentThread();
+            }
+        };
+        for (int i = 0; i < 100; i++) {
+            mWorker.post(task);
+            mWorker.await();
+            assertEquals("Runs", i + 1, runs[0]);
+        }
+        assertEquals("Thread", mName, ranOn[0].getName());
+        assertTrue("Not a daemon thread", ranOn[0].isDaemon());
+        // nothing posted: returns at once
+        mWorker.await();
+    }
+
+    public void testFailureIsThrownByAwait() throws Exception {
+        final RuntimeException failure = new RuntimeException("task failed");
+        mWorker.post(new Runnable() {
+            public void run() {
+                throw failure;
+            }
+        });
+        try {
+            mWorker.await();
+            fail("No ExecutionException");
+        } catch (ExecutionException e) {
+            assertEquals("Cause", failure, e.getCause());
+        }
+        // reported once; the worker carries on
+        mWorker.post(new Runnable() {
+            public void run() {
+            }
+        });
+        mWorker.await();
+    }
+
+    public void testPostWhileRunningThrows() throws Exception {
+        final Object gate = new Object();
+        final boolean[] open = new boolean[1];
+        mWorker.post(new Runnable() {
+            public void run() {
+                synchronized (gate) {
+                    while (!open[0]) {
+                        try {
+                            gate.wait();
+                        } catch (InterruptedException e) {
+                            return;
+                        }
+                    }
+                }
+            }
+        });
+        try {
+            mWorker.post(new Runnable() {
+                public void run() {
+                }
+            });
+            fail("Second task accepted");
+        } catch (IllegalStateException expected) {
+        } finally {
+            synchronized (gate) {
+                open[0] = true;
+                gate.notifyAll();
+            }
+        }
+        mWorker.await();
+    }
+
+    public void testQuitEndsTheThread() throws Exception {
+        assertTrue("Thread not started", findThread() != null);
+        mWorker.quit();
+        Thread thread = findThread();
+        if (thread != null)
+            thread.join(TIMEOUT_MS);
+        assertTrue("Thread still running", findThread() == null);
+        try {
+            mWorker.post(new Runnable() {
+                public void run() {
+                }
+            });
+            fail("Task accepted after quit()");
+        } catch (IllegalStateException expected) {
+        }
+    }
+
+    public void testQuitFinishesThePostedTask() throws Exception {
+        final boolean[] done = new boolean[1];
+        mWorker.post(new Runnable() {
+            public void run() {
+                try {
+                    Thread.sleep(20);
+                } catch (InterruptedException e) {
+                    return;
+                }
+                done[0] = true;
+            }
+        });
+        mWorker.quit();
+        mWorker.await();
+        assertTrue("Posted task dropped", done[0]);
+        Thread thread = findThread();
+        if (thread != null)
+            thread.join(TIMEOUT_MS);
+        assertTrue("Thread still running", findThread() == null);
+    }
+
+    // The live thread with this test's worker name, if any
+    private Thread findThread() {
+        for (Thread thread : Thread.getAllStackTraces().keySet()) {
+            if (thread.getName().equals(mName) && thread.isAlive())
+                return thread;
+        }
+        return null;
+    }
+}
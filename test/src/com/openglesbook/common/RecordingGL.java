@@ -0,0 +1,278 @@
+// RecordingGL
+//
+//    ESGL stand-in for the desktop tests. Nothing is drawn; every call is
+//    counted, by kind, so that tests can check what a frame asks of the
+//    driver. Buffer and program names and locations are handed out from
+//    counters, like a driver would. Counting allocates nothing, so it can
+//    run inside allocation-counted code.
+//
+
+package com.openglesbook.common;
+
+import java.nio.Buffer;
+import java.util.Arrays;
+
+import android.opengl.GLES20;
+
+public class RecordingGL implements ESGL {
+
+	/// \brief Zero the counters, for instance once setup is done
+	public void reset() {
+		mCalls = 0;
+		mUploads = 0;
+		mUploadedBytes = 0;
+		mLocationQueries = 0;
+		mDrawCalls = 0;
+		mInstancedDrawCalls = 0;
+		mInstances = 0;
+		mDrawnIndices = 0;
+		mViewports = 0;
+		mBufferBinds = 0;
+		Arrays.fill(mBufferUploads, 0);
+	}
+
+	/// \return Buffer names handed out so far, 1 to this count
+	public int getBufferCount() {
+		return mNextName - 1;
+	}
+
+	/// \return Calls of any kind since the last reset()
+	public int getCallCount() {
+		return mCalls;
+	}
+
+	/// \return bufferData() and bufferSubData() calls
+	public int getUploadCount() {
+		return mUploads;
+	}
+
+	public long getUploadedBytes() {
+		return mUploadedBytes;
+	}
+
+	/// \return getAttribLocation() and getUniformLocation() calls
+	public int getLocationQueryCount() {
+		return mLocationQueries;
+	}
+
+	/// \return drawElements() and drawElementsInstanced() calls
+	public int getDrawCallCount() {
+		return mDrawCalls;
+	}
+
+	/// \return drawElementsInstanced() calls
+	public int getInstancedDrawCallCount() {
+		return mInstancedDrawCalls;
+	}
+
+	/// \return Instances drawn by drawElementsInstanced()
+	public long getInstanceCount() {
+		return mInstances;
+	}
+
+	/// \return Indices drawn, once per instance
+	public long getDrawnIndexCount() {
+		return mDrawnIndices;
+	}
+
+	/// \return Byte offset into the index buffer of the last draw
+	public int getLastDrawOffset() {
+		return mLastDrawOffset;
+	}
+
+	/// \return viewport() calls
+	public int getViewportCount() {
+		return mViewports;
+	}
+
+	public int getBufferBindCount() {
+		return mBufferBinds;
+	}
+
+	/// \return bufferData() and bufferSubData() calls into one buffer
+	public int getUploadCount(int buffer) {
+		return mBufferUploads[buffer];
+	}
+
+	public int genBuffer() {
+		mCalls++;
+		if (mNextName == mBufferUploads.length)
+			mBufferUploads = Arrays.copyOf(mBufferUploads, mNextName * 2);
+		return mNextName++;
+	}
+
+	public void deleteBuffer(int buffer) {
+		mCalls++;
+	}
+
+	public void bindBuffer(int target, int buffer) {
+		mCalls++;
+		mBufferBinds++;
+		if (target == GLES20.GL_ELEMENT_ARRAY_BUFFER)
+			mElementArrayBuffer = buffer;
+		else
+			mArrayBuffer = buffer;
+	}
+
+	public void bufferData(int target, int size, Buffer data, int usage) {
+		upload(target, size);
+	}
+
+	public void bufferSubData(int target, int offset, int size, Buffer data) {
+		upload(target, size);
+	}
+
+	public void useProgram(int program) {
+		mCalls++;
+	}
+
+	public int getAttribLocation(int program, String name) {
+		mCalls++;
+		mLocationQueries++;
+		// attribute indices are few and small
+		return mNextAttrib++ % MAX_VERTEX_ATTRIBS;
+	}
+
+	public int getUniformLocation(int program, String name) {
+		mCalls++;
+		mLocationQueries++;
+		return mNextUniform++;
+	}
+
+	public void uniform1i(int location, int x) {
+		mCalls++;
+	}
+
+	public void uniform1f(int location, float x) {
+		mCalls++;
+	}
+
+	public void uniform1fv(int location, int count, float[] v, int offset) {
+		mCalls++;
+	}
+
+	public void uniform3fv(int location, int count, float[] v, int offset) {
+		mCalls++;
+	}
+
+	public void uniform4fv(int location, int count, float[] v, int offset) {
+		mCalls++;
+	}
+
+	public void uniformMatrix4fv(int location, int count, float[] v, int offset) {
+		mCalls++;
+	}
+
+	public void vertexAttribPointer(int index, int size, int type, boolean normalized,
+			int stride, int offset) {
+		mCalls++;
+	}
+
+	public void enableVertexAttribArray(int index) {
+		mCalls++;
+	}
+
+	public void disableVertexAttribArray(int index) {
+		mCalls++;
+	}
+
+	public void drawElements(int mode, int count, int type, int offset) {
+		mCalls++;
+		mDrawCalls++;
+		mDrawnIndices += count;
+		mLastDrawOffset = offset;
+	}
+
+	public void vertexAttribDivisor(int index, int divisor) {
+		mCalls++;
+	}
+
+	public void drawElementsInstanced(int mode, int count, int type, int offset,
+			int instanceCount) {
+		mCalls++;
+		mDrawCalls++;
+		mInstancedDrawCalls++;
+		mInstances += instanceCount;
+		mDrawnIndices += (long) count * instanceCount;
+		mLastDrawOffset = offset;
+	}
+
+	public void bindFramebuffer(int target, int framebuffer) {
+		mCalls++;
+	}
+
+	public void activeTexture(int unit) {
+		mCalls++;
+	}
+
+	public void bindTexture(int target, int texture) {
+		mCalls++;
+	}
+
+	public void enable(int cap) {
+		mCalls++;
+	}
+
+	public void disable(int cap) {
+		mCalls++;
+	}
+
+	public void viewport(int x, int y, int width, int height) {
+		mCalls++;
+		mViewports++;
+	}
+
+	public void scissor(int x, int y, int width, int height) {
+		mCalls++;
+	}
+
+	public void colorMask(boolean red, boolean green, boolean blue, boolean alpha) {
+		mCalls++;
+	}
+
+	public void clearColor(float red, float green, float blue, float alpha) {
+		mCalls++;
+	}
+
+	public void clear(int mask) {
+		mCalls++;
+	}
+
+	public void beginQuery(int target, int id) {
+		mCalls++;
+	}
+
+	public void endQuery(int target) {
+		mCalls++;
+	}
+
+	private void upload(int target, int size) {
+		mCalls++;
+		mUploads++;
+		mUploadedBytes += size;
+		mBufferUploads[target == GLES20.GL_ELEMENT_ARRAY_BUFFER
+				? mElementArrayBuffer : mArrayBuffer]++;
+	}
+
+	private static final int MAX_VERTEX_ATTRIBS = 16;
+
+	// Member variables
+	private int mCalls;
+	private int mUploads;
+	private long mUploadedBytes;
+	private int mLocationQueries;
+	private int mDrawCalls;
+	private int mInstancedDrawCalls;
+	private long mInstances;
+	private long mDrawnIndices;
+	private int mViewports;
+	private int mLastDrawOffset;
+	private int mBufferBinds;
+	private int mArrayBuffer;
+	private int mElementArrayBuffer;
+	// per buffer name
+	private int[] mBufferUploads = new int[64];
+	private int mNextName = 1;
+	private int mNextAttrib;
+	private int mNextUniform = 1;
+}
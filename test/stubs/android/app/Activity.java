@@ -0,0 +1,26 @@
+package android.app;
+
+import android.content.Context;
+import android.os.Bundle;
+
+/** Desktop test stand-in; see test/stubs/android/opengl/GLES20.java. */
+public class Activity extends Context {
+
+    protected void onCreate(Bundle savedInstanceState) {
+    }
+
+    protected void onResume() {
+    }
+
+    protected void onPause() {
+    }
+
+    protected void onDestroy() {
+    }
+
+    public void setContentView(Object view) {
+    }
+
+    public void finish() {
+    }
+}
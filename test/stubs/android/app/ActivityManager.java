@@ -0,0 +1,17 @@
+package android.app;
+
+import android.content.pm.ConfigurationInfo;
+
+/** Desktop test stand-in; see test/stubs/android/opengl/GLES20.java. */
+public class ActivityManager {
+
+    public ConfigurationInfo getDeviceConfigurationInfo() {
+        ConfigurationInfo info = new ConfigurationInfo();
+        info.reqGlEsVersion = 0x20000;
+        return info;
+    }
+
+    public int getMemoryClass() {
+        return 64;
+    }
+}
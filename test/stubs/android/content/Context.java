@@ -0,0 +1,19 @@
+package android.content;
+
+import android.app.ActivityManager;
+
+import java.io.File;
+
+/** Desktop test stand-in; see test/stubs/android/opengl/GLES20.java. */
+public class Context {
+
+    public static final String ACTIVITY_SERVICE = "activity";
+
+    public Object getSystemService(String name) {
+        return ACTIVITY_SERVICE.equals(name) ? new ActivityManager() : null;
+    }
+
+    public File getCacheDir() {
+        return new File(System.getProperty("java.io.tmpdir"));
+    }
+}
@@ -0,0 +1,6 @@
+package android.content.pm;
+
+/** Desktop test stand-in; see test/stubs/android/opengl/GLES20.java. */
+public class ConfigurationInfo {
+    public int reqGlEsVersion;
+}
@@ -0,0 +1,278 @@
+package android.opengl;
+
+import java.nio.Buffer;
+
+/**
+ * Desktop test stand-in for the part of android.jar that the app calls,
+ * with the same signatures and constant values, so the tests compile and
+ * run without a device. Nothing is drawn. Object names come from a
+ * counter, shaders compile and programs link, and queries answer like an
+ * OpenGL ES 2.0 driver with depth textures and 32-bit indices, or an ES 3.0
+ * one after setContextVersion(3). The renderer's per-frame GL goes through
+ * ESGL, which the tests replace with RecordingGL.
+ */
+public class GLES20 {
+
+    /** Makes GL_VERSION report an ES 2.0 or ES 3.0 context. */
+    public static void setContextVersion(int major) {
+        sVersion = "OpenGL ES " + major + ".0 Test stub";
+    }
+
+    public static final int GL_NO_ERROR = 0;
+    public static final int GL_TRIANGLES = 0x0004;
+    public static final int GL_LEQUAL = 0x0203;
+    public static final int GL_BACK = 0x0405;
+    public static final int GL_CCW = 0x0901;
+    public static final int GL_CULL_FACE = 0x0B44;
+    public static final int GL_DEPTH_TEST = 0x0B71;
+    public static final int GL_SCISSOR_TEST = 0x0C11;
+    public static final int GL_MAX_TEXTURE_SIZE = 0x0D33;
+    public static final int GL_TEXTURE_2D = 0x0DE1;
+    public static final int GL_UNSIGNED_BYTE = 0x1401;
+    public static final int GL_UNSIGNED_SHORT = 0x1403;
+    public static final int GL_UNSIGNED_INT = 0x1405;
+    public static final int GL_FLOAT = 0x1406;
+    public static final int GL_BYTE = 0x1400;
+    public static final int GL_DEPTH_COMPONENT = 0x1902;
+    public static final int GL_RGBA = 0x1908;
+    public static final int GL_VENDOR = 0x1F00;
+    public static final int GL_RENDERER = 0x1F01;
+    public static final int GL_VERSION = 0x1F02;
+    public static final int GL_EXTENSIONS = 0x1F03;
+    public static final int GL_NEAREST = 0x2600;
+    public static final int GL_TEXTURE_MAG_FILTER = 0x2800;
+    public static final int GL_TEXTURE_MIN_FILTER = 0x2801;
+    public static final int GL_TEXTURE_WRAP_S = 0x2802;
+    public static final int GL_TEXTURE_WRAP_T = 0x2803;
+    public static final int GL_REPEAT = 0x2901;
+    public static final int GL_DEPTH_BUFFER_BIT = 0x0100;
+    public static final int GL_COLOR_BUFFER_BIT = 0x4000;
+    public static final int GL_DEPTH_COMPONENT16 = 0x81A5;
+    public static final int GL_TEXTURE0 = 0x84C0;
+    public static final int GL_ARRAY_BUFFER = 0x8892;
+    public static final int GL_ELEMENT_ARRAY_BUFFER = 0x8893;
+    public static final int GL_STREAM_DRAW = 0x88E0;
+    public static final int GL_STATIC_DRAW = 0x88E4;
+    public static final int GL_DYNAMIC_DRAW = 0x88E8;
+    public static final int GL_FRAGMENT_SHADER = 0x8B30;
+    public static final int GL_VERTEX_SHADER = 0x8B31;
+    public static final int GL_COMPILE_STATUS = 0x8B81;
+    public static final int GL_LINK_STATUS = 0x8B82;
+    public static final int GL_COLOR_ATTACHMENT0 = 0x8CE0;
+    public static final int GL_DEPTH_ATTACHMENT = 0x8D00;
+    public static final int GL_FRAMEBUFFER = 0x8D40;
+    public static final int GL_RENDERBUFFER = 0x8D41;
+
+    public static void glActiveTexture(int texture) {
+    }
+
+    public static void glAttachShader(int program, int shader) {
+    }
+
+    public static void glBindBuffer(int target, int buffer) {
+    }
+
+    public static void glBindFramebuffer(int target, int framebuffer) {
+    }
+
+    public static void glBindRenderbuffer(int target, int renderbuffer) {
+    }
+
+    public static void glBindTexture(int target, int texture) {
+    }
+
+    public static void glBufferData(int target, int size, Buffer data, int usage) {
+    }
+
+    public static void glBufferSubData(int target, int offset, int size, Buffer data) {
+    }
+
+    public static void glClear(int mask) {
+    }
+
+    public static void glClearColor(float red, float green, float blue, float alpha) {
+    }
+
+    public static void glClearDepthf(float depth) {
+    }
+
+    public static void glColorMask(boolean red, boolean green, boolean blue,
+            boolean alpha) {
+    }
+
+    public static void glCompileShader(int shader) {
+    }
+
+    public static void glCopyTexImage2D(int target, int level, int internalformat, int x,
+            int y, int width, int height, int border) {
+    }
+
+    public static int glCreateProgram() {
+        return sNextName++;
+    }
+
+    public static int glCreateShader(int type) {
+        return sNextName++;
+    }
+
+    public static void glCullFace(int mode) {
+    }
+
+    public static void glDeleteBuffers(int n, int[] buffers, int offset) {
+    }
+
+    public static void glDeleteProgram(int program) {
+    }
+
+    public static void glDeleteShader(int shader) {
+    }
+
+    public static void glDepthFunc(int func) {
+    }
+
+    public static void glDisable(int cap) {
+    }
+
+    public static void glDisableVertexAttribArray(int index) {
+    }
+
+    public static void glDrawElements(int mode, int count, int type, int offset) {
+    }
+
+    public static void glEnable(int cap) {
+    }
+
+    public static void glEnableVertexAttribArray(int index) {
+    }
+
+    public static void glFramebufferRenderbuffer(int target, int attachment,
+            int renderbuffertarget, int renderbuffer) {
+    }
+
+    public static void glFramebufferTexture2D(int target, int attachment, int textarget,
+            int texture, int level) {
+    }
+
+    public static void glFrontFace(int mode) {
+    }
+
+    public static void glGenBuffers(int n, int[] buffers, int offset) {
+        genNames(n, buffers, offset);
+    }
+
+    public static void glGenFramebuffers(int n, int[] framebuffers, int offset) {
+        genNames(n, framebuffers, offset);
+    }
+
+    public static void glGenRenderbuffers(int n, int[] renderbuffers, int offset) {
+        genNames(n, renderbuffers, offset);
+    }
+
+    public static void glGenTextures(int n, int[] textures, int offset) {
+        genNames(n, textures, offset);
+    }
+
+    public static int glGetAttribLocation(int program, String name) {
+        return 0;
+    }
+
+    public static int glGetError() {
+        return GL_NO_ERROR;
+    }
+
+    public static void glGetIntegerv(int pname, int[] params, int offset) {
+        params[offset] = pname == GL_MAX_TEXTURE_SIZE ? 4096 : 0;
+    }
+
+    public static String glGetProgramInfoLog(int program) {
+        return "";
+    }
+
+    public static void glGetProgramiv(int program, int pname, int[] params, int offset) {
+        params[offset] = pname == GL_LINK_STATUS ? 1 : 0;
+    }
+
+    public static String glGetShaderInfoLog(int shader) {
+        return "";
+    }
+
+    public static void glGetShaderiv(int shader, int pname, int[] params, int offset) {
+        params[offset] = pname == GL_COMPILE_STATUS ? 1 : 0;
+    }
+
+    public static String glGetString(int name) {
+        switch (name) {
+        case GL_VENDOR:
+            return "Desktop";
+        case GL_RENDERER:
+            return "Test stub";
+        case GL_VERSION:
+            return sVersion;
+        case GL_EXTENSIONS:
+            return "GL_OES_depth_texture GL_OES_element_index_uint";
+        default:
+            return null;
+        }
+    }
+
+    public static int glGetUniformLocation(int program, String name) {
+        return 0;
+    }
+
+    public static void glLinkProgram(int program) {
+    }
+
+    public static void glRenderbufferStorage(int target, int internalformat, int width,
+            int height) {
+    }
+
+    public static void glScissor(int x, int y, int width, int height) {
+    }
+
+    public static void glShaderSource(int shader, String string) {
+    }
+
+    public static void glTexImage2D(int target, int level, int internalformat, int width,
+            int height, int border, int format, int type, Buffer pixels) {
+    }
+
+    public static void glTexParameteri(int target, int pname, int param) {
+    }
+
+    public static void glUniform1f(int location, float x) {
+    }
+
+    public static void glUniform1fv(int location, int count, float[] v, int offset) {
+    }
+
+    public static void glUniform1i(int location, int x) {
+    }
+
+    public static void glUniform3fv(int location, int count, float[] v, int offset) {
+    }
+
+    public static void glUniform4fv(int location, int count, float[] v, int offset) {
+    }
+
+    public static void glUniformMatrix4fv(int location, int count, boolean transpose,
+            float[] value, int offset) {
+    }
+
+    public static void glUseProgram(int program) {
+    }
+
+    public static void glVertexAttribPointer(int indx, int size, int type,
+            boolean normalized, int stride, int offset) {
+    }
+
+    public static void glViewport(int x, int y, int width, int height) {
+    }
+
+    static void genNames(int n, int[] names, int offset) {
+        for (int i = 0; i < n; i++)
+            names[offset + i] = sNextName++;
+    }
+
+    private static int sNextName = 1;
+    private static String sVersion = "OpenGL ES 2.0 Test stub";
+}
@@ -0,0 +1,45 @@
+package android.opengl;
+
+import java.nio.Buffer;
+
+/** Desktop test stand-in; see GLES20. */
+public class GLES30 extends GLES20 {
+
+    public static final int GL_PROGRAM_BINARY_LENGTH = 0x8741;
+    public static final int GL_NUM_PROGRAM_BINARY_FORMATS = 0x87FE;
+    public static final int GL_QUERY_RESULT = 0x8866;
+    public static final int GL_QUERY_RESULT_AVAILABLE = 0x8867;
+
+    public static void glGetProgramBinary(int program, int bufSize, int[] length,
+            int lengthOffset, int[] binaryFormat, int binaryFormatOffset, Buffer binary) {
+        length[lengthOffset] = 0;
+    }
+
+    public static void glProgramBinary(int program, int binaryFormat, Buffer binary,
+            int length) {
+    }
+
+    public static void glVertexAttribDivisor(int index, int divisor) {
+    }
+
+    public static void glDrawElementsInstanced(int mode, int count, int type, int offset,
+            int instanceCount) {
+    }
+
+    public static void glGenQueries(int n, int[] ids, int offset) {
+        genNames(n, ids, offset);
+    }
+
+    public static void glDeleteQueries(int n, int[] ids, int offset) {
+    }
+
+    public static void glBeginQuery(int target, int id) {
+    }
+
+    public static void glEndQuery(int target) {
+    }
+
+    public static void glGetQueryObjectuiv(int id, int pname, int[] params, int offset) {
+        params[offset] = 0;
+    }
+}
@@ -0,0 +1,36 @@
+package android.opengl;
+
+import android.content.Context;
+
+import javax.microedition.khronos.egl.EGLConfig;
+import javax.microedition.khronos.opengles.GL10;
+
+/**
+ * Desktop test stand-in; see GLES20. Tests call the Renderer methods
+ * themselves.
+ */
+public class GLSurfaceView {
+
+    public interface Renderer {
+        void onSurfaceCreated(GL10 gl, EGLConfig config);
+
+        void onSurfaceChanged(GL10 gl, int width, int height);
+
+        void onDrawFrame(GL10 gl);
+    }
+
+    public GLSurfaceView(Context context) {
+    }
+
+    public void setEGLContextClientVersion(int version) {
+    }
+
+    public void setRenderer(Renderer renderer) {
+    }
+
+    public void onResume() {
+    }
+
+    public void onPause() {
+    }
+}
@@ -0,0 +1,14 @@
+package android.os;
+
+/**
+ * Desktop test stand-in; see test/stubs/android/opengl/GLES20.java. Reports
+ * the first release with ES 3.0, so the ES 3.0 paths compile and link.
+ */
+public class Build {
+
+    public static final String FINGERPRINT = "desktop/test";
+
+    public static class VERSION {
+        public static final int SDK_INT = 18;
+    }
+}
@@ -0,0 +1,5 @@
+package android.os;
+
+/** Desktop test stand-in; see test/stubs/android/opengl/GLES20.java. */
+public class Bundle {
+}
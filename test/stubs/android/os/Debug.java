@@ -0,0 +1,27 @@
+package android.os;
+
+/**
+ * Desktop test stand-in; see test/stubs/android/opengl/GLES20.java. There
+ * is no allocation counter here; tests measure allocation with the JVM's
+ * per-thread byte counts instead. The counting calls are deprecated from
+ * API 23, as in android.jar.
+ */
+public class Debug {
+
+    @Deprecated
+    public static void startAllocCounting() {
+    }
+
+    @Deprecated
+    public static void stopAllocCounting() {
+    }
+
+    @Deprecated
+    public static void resetGlobalAllocCount() {
+    }
+
+    @Deprecated
+    public static int getGlobalAllocCount() {
+        return 0;
+    }
+}
@@ -0,0 +1,9 @@
+package android.os;
+
+/** Desktop test stand-in; see test/stubs/android/opengl/GLES20.java. */
+public class SystemClock {
+
+    public static long uptimeMillis() {
+        return System.nanoTime() / 1000000L;
+    }
+}
@@ -0,0 +1,22 @@
+package android.util;
+
+/** Desktop test stand-in; see test/stubs/android/opengl/GLES20.java. */
+public class Log {
+
+    public static int e(String tag, String msg) {
+        return println("E", tag, msg);
+    }
+
+    public static int w(String tag, String msg) {
+        return println("W", tag, msg);
+    }
+
+    public static int i(String tag, String msg) {
+        return println("I", tag, msg);
+    }
+
+    private static int println(String level, String tag, String msg) {
+        System.err.println(level + "/" + tag + ": " + msg);
+        return 0;
+    }
+}
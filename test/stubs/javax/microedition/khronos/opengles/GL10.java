@@ -0,0 +1,5 @@
+package javax.microedition.khronos.opengles;
+
+/** Desktop test stand-in; see test/stubs/android/opengl/GLES20.java. */
+public interface GL10 {
+}
@@ -0,0 +1,86 @@
+package com.opengles.shadow;
+
+import java.io.File;
+import java.io.IOException;
+
+import com.openglesbook.common.ESObjLoader;
+import com.openglesbook.common.ESShapes;
+import com.openglesbook.common.ESVertexFormat;
+import com.openglesbook.common.ESVertexFormat.Encoding;
+
+/**
+ * Offline converter from Wavefront OBJ to the binary mesh files that
+ * ESShapes.load() maps without parsing (see ESMeshFile). Runs on a
+ * desktop JVM:
+ *
+ *   javac -d tools/out -cp $ANDROID_SDK/platforms/android-18/android.jar \
+ *       $(find src tools/src -name '*.java')
+ *   java -cp tools/out com.opengles.shadow.MeshConverter \
+ *       [-format float|default|compact] [-overdraw] in.obj out.mesh
+ *
+ * The format picks the vertex layout baked into the file: all floats,
+ * the default layout of ESVertexFormat.createDefault(), or the compact
+ * one that needs the half float and 10_10_10_2 extensions. The loader
+ * already orders the mesh for the vertex cache; -overdraw also orders it
+ * to cut overdraw (see ESShapes.optimize()). The file keeps that order, so
+ * loading it does no optimization of its own.
+ */
+public class MeshConverter {
+
+    public static void main(String[] args) throws IOException {
+        String formatName = "default";
+        boolean overdraw = false;
+        int arg = 0;
+        while (arg < args.length && args[arg].startsWith("-")) {
+            if (args[arg].equals("-format") && arg + 1 < args.length) {
+                formatName = args[arg + 1];
+                arg += 2;
+            } else if (args[arg].equals("-overdraw")) {
+                overdraw = true;
+                arg++;
+            } else {
+                usage();
+            }
+        }
+        if (args.length - arg != 2)
+            usage();
+        ESVertexFormat format = parseFormat(formatName);
+        File in = new File(args[arg]);
+        File out = new File(args[arg + 1]);
+
+        long start = System.nanoTime();
+        ESShapes shape = ESObjLoader.load(in, format);
+        float acmr = shape.getUnoptimizedAcmr();
+        if (overdraw)
+            shape.optimize(true);
+        long parsed = System.nanoTime();
+        shape.save(out);
+        long written = System.nanoTime();
+
+        System.out.println(in + ": " + shape.getNumVertices() + " vertices, "
+                + shape.getNumIndices() / 3 + " triangles, parsed and optimized in "
+                + (parsed - start) / 1000000 + " ms");
+        System.out.println("ACMR " + acmr + " before optimization, "
+                + shape.getAcmr() + " after");
+        System.out.println(out + ": " + out.length() + " bytes (" + in.length()
+                + " as OBJ), written in " + (written - parsed) / 1000000 + " ms");
+    }
+
+    static ESVertexFormat parseFormat(String name) {
+        if (name.equals("float"))
+            return new ESVertexFormat(Encoding.FLOAT, Encoding.FLOAT, Encoding.FLOAT);
+        if (name.equals("default"))
+            return ESVertexFormat.createDefault();
+        if (name.equals("compact"))
+            return new ESVertexFormat(Encoding.HALF_FLOAT, Encoding.INT_10_10_10_2,
+                    Encoding.UNSIGNED_SHORT);
+        usage();
+        return null;
+    }
+
+    private static void usage() {
+        System.err.println("usage: MeshConverter [-format float|default|compact]"
+                + " [-overdraw] in.obj out.mesh");
+        System.exit(2);
+    }
+}